@@ -46,7 +46,7 @@ public class MangadexImageService {
             if (!response.getStatusCode().is2xxSuccessful()) {
                 throw new MangadexUpstreamException("Upstream returned an error status code: " + response.getStatusCode());
             }
-            LOGGER.info("Retrieving {} from upstream {}", imageRequest, upstreamServerUri);
+            LOGGER.debug("Retrieving {} from upstream {}", imageRequest, upstreamServerUri);
 
             MediaType contentType = Objects.requireNonNull(
                 response.getHeaders().getContentType(),
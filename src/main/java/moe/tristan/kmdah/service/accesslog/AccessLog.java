@@ -0,0 +1,166 @@
+package moe.tristan.kmdah.service.accesslog;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.CacheMode;
+import moe.tristan.kmdah.service.metrics.CacheSearchResult;
+
+/**
+ * Structured access log, kept off the request path: requests only publish to a lock-free ring buffer, which a single background thread drains
+ * in batches to a rotating file. Entries published while the buffer is full are dropped and counted rather than blocking serving.
+ */
+@Component
+public class AccessLog implements SmartLifecycle {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AccessLog.class);
+
+    private static final String METRICS_PREFIX = "kmdah_access_log_";
+
+    private final AccessLogSettings settings;
+    private final ObjectMapper objectMapper;
+    private final AccessLogRingBuffer<AccessLogEntry> ringBuffer;
+    private final Counter droppedCounter;
+    private final Counter writtenCounter;
+
+    private final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "kmdah-access-log");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicReference<ScheduledFuture<?>> drainJob = new AtomicReference<>();
+
+    private AccessLogFileWriter fileWriter;
+
+    public AccessLog(AccessLogSettings settings, ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+        this.settings = settings;
+        this.objectMapper = objectMapper;
+        this.ringBuffer = new AccessLogRingBuffer<>(settings.enabled() ? settings.bufferSize() : 2);
+
+        this.droppedCounter = meterRegistry.counter(METRICS_PREFIX + "dropped");
+        this.writtenCounter = meterRegistry.counter(METRICS_PREFIX + "written");
+        Gauge.builder(METRICS_PREFIX + "pending", ringBuffer, AccessLogRingBuffer::size).register(meterRegistry);
+    }
+
+    public void record(
+        ImageSpec spec,
+        CacheMode cacheMode,
+        CacheSearchResult status,
+        long bytes,
+        long lookupNanos,
+        long upstreamNanos,
+        long totalNanos
+    ) {
+        if (!settings.enabled()) {
+            return;
+        }
+
+        AccessLogEntry entry = new AccessLogEntry(
+            Instant.now(),
+            spec,
+            cacheMode,
+            status,
+            bytes,
+            TimeUnit.NANOSECONDS.toMicros(lookupNanos),
+            TimeUnit.NANOSECONDS.toMicros(upstreamNanos),
+            TimeUnit.NANOSECONDS.toMicros(totalNanos)
+        );
+
+        if (!ringBuffer.offer(entry)) {
+            droppedCounter.increment();
+        }
+    }
+
+    @Override
+    public void start() {
+        if (!settings.enabled()) {
+            LOGGER.info("Access log is not enabled.");
+            return;
+        }
+
+        try {
+            fileWriter = new AccessLogFileWriter(
+                settings.file(),
+                DataSize.ofMegabytes(settings.maxFileSizeMb()).toBytes(),
+                settings.maxFiles()
+            );
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open access log file " + settings.file(), e);
+        }
+
+        LOGGER.info("Writing access log to {} (buffer of {} entries)", settings.file().toAbsolutePath(), ringBuffer.capacity());
+        drainJob.set(executorService.scheduleWithFixedDelay(
+            this::drain,
+            settings.flushIntervalMillis(),
+            settings.flushIntervalMillis(),
+            TimeUnit.MILLISECONDS
+        ));
+    }
+
+    @Override
+    public void stop() {
+        Optional.ofNullable(drainJob.getAndSet(null)).ifPresent(job -> {
+            job.cancel(false);
+            try {
+                executorService.submit(this::drain).get(5, TimeUnit.SECONDS);
+                fileWriter.close();
+            } catch (Exception e) {
+                LOGGER.error("Failed flushing access log on shutdown", e);
+            }
+        });
+        executorService.shutdown();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return Optional
+            .ofNullable(drainJob.get())
+            .map(job -> !job.isDone())
+            .orElse(false);
+    }
+
+    void drain() {
+        List<String> batch = new ArrayList<>(settings.batchSize());
+        try {
+            while (ringBuffer.drain(entry -> batch.add(serialize(entry)), settings.batchSize()) > 0) {
+                fileWriter.write(batch);
+                writtenCounter.increment(batch.size());
+                batch.clear();
+            }
+        } catch (Throwable e) {
+            LOGGER.error("Failed writing access log batch of {} entries", batch.size(), e);
+            droppedCounter.increment(batch.size());
+        }
+    }
+
+    private String serialize(AccessLogEntry entry) {
+        try {
+            return objectMapper.writeValueAsString(entry);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot serialize access log entry " + entry, e);
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+package moe.tristan.kmdah.service.accesslog;
+
+import java.time.Instant;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.CacheMode;
+import moe.tristan.kmdah.service.metrics.CacheSearchResult;
+
+public record AccessLogEntry(
+
+    @JsonProperty("timestamp")
+    Instant timestamp,
+
+    @JsonProperty("spec")
+    ImageSpec spec,
+
+    @JsonProperty("cacheMode")
+    CacheMode cacheMode,
+
+    @JsonProperty("status")
+    CacheSearchResult status,
+
+    @JsonProperty("bytes")
+    long bytes,
+
+    @JsonProperty("lookupMicros")
+    long lookupMicros,
+
+    @JsonProperty("upstreamMicros")
+    long upstreamMicros,
+
+    @JsonProperty("totalMicros")
+    long totalMicros
+
+) {}
@@ -0,0 +1,84 @@
+package moe.tristan.kmdah.service.accesslog;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Size-rotated append-only log file: {@code access.log} is rotated to {@code access.log.1}, which is itself shifted to {@code access.log.2} and so on
+ * up to {@code maxFiles}, after which the oldest file is dropped.
+ */
+public class AccessLogFileWriter implements Closeable {
+
+    private final Path file;
+    private final long maxFileSizeBytes;
+    private final int maxFiles;
+
+    private OutputStream writer;
+    private long currentSize;
+
+    public AccessLogFileWriter(Path file, long maxFileSizeBytes, int maxFiles) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.maxFileSizeBytes = maxFileSizeBytes;
+        this.maxFiles = maxFiles;
+
+        Files.createDirectories(this.file.getParent());
+        open();
+    }
+
+    public void write(List<String> lines) throws IOException {
+        for (String line : lines) {
+            byte[] bytes = line.getBytes(UTF_8);
+            writer.write(bytes);
+            writer.write('\n');
+            currentSize += bytes.length + 1;
+        }
+        writer.flush();
+
+        if (currentSize >= maxFileSizeBytes) {
+            rotate();
+        }
+    }
+
+    private void open() throws IOException {
+        writer = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+        currentSize = Files.size(file);
+    }
+
+    private void rotate() throws IOException {
+        writer.close();
+
+        Files.deleteIfExists(rotated(maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path source = rotated(i);
+            if (Files.exists(source)) {
+                Files.move(source, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 0) {
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+
+        open();
+    }
+
+    private Path rotated(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+}
@@ -0,0 +1,91 @@
+package moe.tristan.kmdah.service.accesslog;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Bounded lock-free multi-producer single-consumer ring buffer.
+ * <p>
+ * Each slot carries a sequence number telling producers whether it is free for the current lap, and the consumer whether it has been published.
+ * Producers never block: {@link #offer(Object)} fails immediately when the buffer is full.
+ */
+public final class AccessLogRingBuffer<T> {
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<T> slots;
+    private final AtomicLongArray sequences;
+
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail = 0L;
+
+    public AccessLogRingBuffer(int requestedCapacity) {
+        if (requestedCapacity < 2) {
+            throw new IllegalArgumentException("Ring buffer capacity must be at least 2, but was " + requestedCapacity);
+        }
+
+        this.capacity = Integer.highestOneBit(requestedCapacity - 1) << 1;
+        this.mask = capacity - 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    public boolean offer(T element) {
+        long position;
+        int index;
+        while (true) {
+            position = head.get();
+            index = (int) (position & mask);
+            long available = sequences.get(index) - position;
+            if (available == 0L) {
+                if (head.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (available < 0L) {
+                return false;
+            }
+        }
+
+        slots.lazySet(index, element);
+        sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Must only ever be called from a single thread at a time.
+     */
+    public int drain(Consumer<T> consumer, int maxElements) {
+        long position = tail;
+        int drained = 0;
+        while (drained < maxElements) {
+            int index = (int) (position & mask);
+            if (sequences.get(index) != position + 1) {
+                break;
+            }
+
+            T element = slots.get(index);
+            slots.lazySet(index, null);
+            sequences.lazySet(index, position + capacity);
+            position++;
+            drained++;
+
+            consumer.accept(element);
+        }
+        tail = position;
+        return drained;
+    }
+
+    public int size() {
+        return (int) Math.max(0L, head.get() - tail);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+}
@@ -0,0 +1,26 @@
+package moe.tristan.kmdah.service.accesslog;
+
+import java.nio.file.Path;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+
+@ConstructorBinding
+@ConfigurationProperties("kmdah.access-log")
+public record AccessLogSettings(
+
+    boolean enabled,
+
+    Path file,
+
+    int bufferSize,
+
+    int batchSize,
+
+    long flushIntervalMillis,
+
+    int maxFileSizeMb,
+
+    int maxFiles
+
+) {}
@@ -0,0 +1,31 @@
+package moe.tristan.kmdah.service.gossip.messages;
+
+import static moe.tristan.kmdah.service.gossip.messages.GossipMessageType.CACHE_ACCESS;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import moe.tristan.kmdah.service.workers.WorkerInfo;
+
+/**
+ * @param minutes the time of the accesses, in minutes since epoch
+ * @param hashes  the hashes of the access recency buckets the worker touched
+ */
+public record CacheAccessEvent(
+
+    @JsonProperty("worker")
+    WorkerInfo worker,
+
+    @JsonProperty("minutes")
+    int minutes,
+
+    @JsonProperty("hashes")
+    int[] hashes
+
+) implements GossipMessage {
+
+    @Override
+    public GossipMessageType getType() {
+        return CACHE_ACCESS;
+    }
+
+}
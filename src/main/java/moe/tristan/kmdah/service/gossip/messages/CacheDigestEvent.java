@@ -0,0 +1,31 @@
+package moe.tristan.kmdah.service.gossip.messages;
+
+import static moe.tristan.kmdah.service.gossip.messages.GossipMessageType.CACHE_DIGEST;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import moe.tristan.kmdah.service.workers.WorkerInfo;
+
+/**
+ * @param hashFunctions the number of bits set per image in the digest
+ * @param digest        the bits of a Bloom filter of the images held by the worker
+ */
+public record CacheDigestEvent(
+
+    @JsonProperty("worker")
+    WorkerInfo worker,
+
+    @JsonProperty("hashFunctions")
+    int hashFunctions,
+
+    @JsonProperty("digest")
+    byte[] digest
+
+) implements GossipMessage {
+
+    @Override
+    public GossipMessageType getType() {
+        return CACHE_DIGEST;
+    }
+
+}
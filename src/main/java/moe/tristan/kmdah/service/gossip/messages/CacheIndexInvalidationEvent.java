@@ -0,0 +1,27 @@
+package moe.tristan.kmdah.service.gossip.messages;
+
+import static moe.tristan.kmdah.service.gossip.messages.GossipMessageType.CACHE_INDEX_INVALIDATION;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import moe.tristan.kmdah.service.workers.WorkerInfo;
+
+/**
+ * @param keys the index keys of the images the worker moved or deleted
+ */
+public record CacheIndexInvalidationEvent(
+
+    @JsonProperty("worker")
+    WorkerInfo worker,
+
+    @JsonProperty("keys")
+    long[] keys
+
+) implements GossipMessage {
+
+    @Override
+    public GossipMessageType getType() {
+        return CACHE_INDEX_INVALIDATION;
+    }
+
+}
@@ -0,0 +1,24 @@
+package moe.tristan.kmdah.service.gossip.messages;
+
+import static moe.tristan.kmdah.service.gossip.messages.GossipMessageType.CHAPTER_DELETION;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+
+public record ChapterDeletionEvent(
+
+    @JsonProperty("mode")
+    ImageMode mode,
+
+    @JsonProperty("chapter")
+    String chapter
+
+) implements GossipMessage {
+
+    @Override
+    public GossipMessageType getType() {
+        return CHAPTER_DELETION;
+    }
+
+}
@@ -18,7 +18,11 @@ import com.fasterxml.jackson.annotation.JsonTypeInfo;
     @Type(value = WorkerPingEvent.class, name = "WORKER_PING"),
     @Type(value = WorkerShutdownEvent.class, name = "WORKER_SHUTDOWN"),
     @Type(value = LeaderImageServerEvent.class, name = "LEADER_IMAGE_SERVER"),
-    @Type(value = LeaderTokenEvent.class, name = "LEADER_TOKEN")
+    @Type(value = LeaderTokenEvent.class, name = "LEADER_TOKEN"),
+    @Type(value = ChapterDeletionEvent.class, name = "CHAPTER_DELETION"),
+    @Type(value = CacheDigestEvent.class, name = "CACHE_DIGEST"),
+    @Type(value = CacheIndexInvalidationEvent.class, name = "CACHE_INDEX_INVALIDATION"),
+    @Type(value = CacheAccessEvent.class, name = "CACHE_ACCESS")
 })
 public interface GossipMessage {
 
@@ -5,4 +5,8 @@ public enum GossipMessageType {
     WORKER_SHUTDOWN,
     LEADER_IMAGE_SERVER,
     LEADER_TOKEN,
+    CHAPTER_DELETION,
+    CACHE_DIGEST,
+    CACHE_INDEX_INVALIDATION,
+    CACHE_ACCESS,
 }
@@ -1,30 +1,40 @@
 package moe.tristan.kmdah.service.gossip.messages.pub;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Component;
 
 import moe.tristan.kmdah.service.gossip.InstanceId;
 import moe.tristan.kmdah.service.gossip.RedisSettings;
+import moe.tristan.kmdah.service.gossip.messages.CacheAccessEvent;
+import moe.tristan.kmdah.service.gossip.messages.CacheDigestEvent;
+import moe.tristan.kmdah.service.gossip.messages.CacheIndexInvalidationEvent;
+import moe.tristan.kmdah.service.gossip.messages.ChapterDeletionEvent;
 import moe.tristan.kmdah.service.gossip.messages.GossipMessage;
 import moe.tristan.kmdah.service.gossip.messages.LeaderImageServerEvent;
 import moe.tristan.kmdah.service.gossip.messages.LeaderTokenEvent;
 import moe.tristan.kmdah.service.gossip.messages.WorkerPingEvent;
 import moe.tristan.kmdah.service.gossip.messages.WorkerShutdownEvent;
+import moe.tristan.kmdah.service.images.ImageSpec;
 import moe.tristan.kmdah.service.workers.WorkerInfo;
+import moe.tristan.kmdah.service.workers.WorkerSettings;
 
 @Component
 public class GossipPublisher {
 
-    private final InstanceId instanceId;
+    private final WorkerInfo localWorker;
     private final RedisSettings redisSettings;
     private final RedisTemplate<String, GossipMessage> workerEventsRedisTemplate;
 
     public GossipPublisher(
         InstanceId instanceId,
+        WorkerSettings workerSettings,
         RedisSettings redisSettings,
         RedisTemplate<String, GossipMessage> workerEventsRedisTemplate
     ) {
-        this.instanceId = instanceId;
+        this.localWorker = new WorkerInfo(instanceId.id(), advertisedAddress(workerSettings));
         this.redisSettings = redisSettings;
         this.workerEventsRedisTemplate = workerEventsRedisTemplate;
     }
@@ -32,14 +42,14 @@ public class GossipPublisher {
     public void broadcastPing() {
         workerEventsRedisTemplate.convertAndSend(
             redisSettings.gossipTopic(),
-            new WorkerPingEvent(new WorkerInfo(instanceId.id()))
+            new WorkerPingEvent(localWorker)
         );
     }
 
     public void broadcastShutdown() {
         workerEventsRedisTemplate.convertAndSend(
             redisSettings.gossipTopic(),
-            new WorkerShutdownEvent(new WorkerInfo(instanceId.id()))
+            new WorkerShutdownEvent(localWorker)
         );
     }
 
@@ -57,4 +67,44 @@ public class GossipPublisher {
         );
     }
 
+    public void broadcastChapterDeletion(ImageSpec imageSpec) {
+        workerEventsRedisTemplate.convertAndSend(
+            redisSettings.gossipTopic(),
+            new ChapterDeletionEvent(imageSpec.mode(), imageSpec.chapter())
+        );
+    }
+
+    public void broadcastCacheDigest(int hashFunctions, byte[] digest) {
+        workerEventsRedisTemplate.convertAndSend(
+            redisSettings.gossipTopic(),
+            new CacheDigestEvent(localWorker, hashFunctions, digest)
+        );
+    }
+
+    public void broadcastCacheIndexInvalidation(long[] keys) {
+        workerEventsRedisTemplate.convertAndSend(
+            redisSettings.gossipTopic(),
+            new CacheIndexInvalidationEvent(localWorker, keys)
+        );
+    }
+
+    public void broadcastCacheAccesses(int minutes, int[] hashes) {
+        workerEventsRedisTemplate.convertAndSend(
+            redisSettings.gossipTopic(),
+            new CacheAccessEvent(localWorker, minutes, hashes)
+        );
+    }
+
+    private static String advertisedAddress(WorkerSettings workerSettings) {
+        String host = workerSettings.advertisedHost();
+        if (host == null || host.isBlank()) {
+            try {
+                host = InetAddress.getLocalHost().getHostAddress();
+            } catch (UnknownHostException e) {
+                throw new IllegalStateException("Couldn't resolve the address of this worker!", e);
+            }
+        }
+        return host + ":" + workerSettings.port();
+    }
+
 }
@@ -1,8 +1,13 @@
 package moe.tristan.kmdah.service.images;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.time.Instant;
 import java.util.OptionalLong;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.io.Resource;
 import org.springframework.http.MediaType;
 
@@ -20,4 +25,24 @@ public record ImageContent(
 
     CacheMode cacheMode
 
-) {}
+) {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageContent.class);
+
+    /**
+     * Releases what the resource may hold on to, like a pooled connection, for content that was found but won't be served. For example the late result
+     * of a lookup that timed out.
+     */
+    public void discard() {
+        try {
+            if (resource instanceof Closeable) {
+                ((Closeable) resource).close();
+            } else if (resource instanceof InputStreamResource) {
+                resource.getInputStream().close();
+            }
+        } catch (IOException | IllegalStateException e) {
+            LOGGER.debug("Failed discarding {}", resource, e);
+        }
+    }
+
+}
@@ -23,9 +23,12 @@ import org.springframework.stereotype.Service;
 import org.springframework.util.StreamUtils;
 
 import moe.tristan.kmdah.mangadex.image.MangadexImageService;
+import moe.tristan.kmdah.service.accesslog.AccessLog;
 import moe.tristan.kmdah.service.gossip.messages.LeaderImageServerEvent;
 import moe.tristan.kmdah.service.images.cache.CacheSettings;
 import moe.tristan.kmdah.service.images.cache.CachedImageService;
+import moe.tristan.kmdah.service.images.singleflight.FetchClaim;
+import moe.tristan.kmdah.service.images.singleflight.UpstreamFetchCoordinator;
 import moe.tristan.kmdah.service.images.validation.ImageValidationService;
 import moe.tristan.kmdah.service.metrics.CacheSearchResult;
 import moe.tristan.kmdah.service.metrics.ImageMetrics;
@@ -38,8 +41,10 @@ public class ImageService implements HealthIndicator {
 
     private final CachedImageService cachedImageService;
     private final MangadexImageService mangadexImageService;
+    private final UpstreamFetchCoordinator upstreamFetchCoordinator;
     private final ImageValidationService imageValidationService;
     private final ImageMetrics imageMetrics;
+    private final AccessLog accessLog;
     private final long abortLookupThresholdMillis;
 
     private String upstreamServerUri = null;
@@ -47,13 +52,17 @@ public class ImageService implements HealthIndicator {
     public ImageService(
         CachedImageService cachedImageService,
         MangadexImageService mangadexImageService,
+        UpstreamFetchCoordinator upstreamFetchCoordinator,
         ImageValidationService imageValidationService, ImageMetrics imageMetrics,
+        AccessLog accessLog,
         CacheSettings cacheSettings
     ) {
         this.cachedImageService = cachedImageService;
         this.mangadexImageService = mangadexImageService;
+        this.upstreamFetchCoordinator = upstreamFetchCoordinator;
         this.imageValidationService = imageValidationService;
         this.imageMetrics = imageMetrics;
+        this.accessLog = accessLog;
         this.abortLookupThresholdMillis = cacheSettings.abortLookupThresholdMillis();
     }
 
@@ -62,17 +71,19 @@ public class ImageService implements HealthIndicator {
 
         boolean aborted = false;
         Optional<ImageContent> cacheLookup;
+        CompletableFuture<Optional<ImageContent>> lookup = CompletableFuture.supplyAsync(() -> {
+            try {
+                return cachedImageService.findImage(imageSpec);
+            } catch (Exception e) {
+                LOGGER.error("Failed searching image {} in cache", imageSpec, e);
+                return Optional.empty();
+            }
+        });
         try {
-            cacheLookup = CompletableFuture.<Optional<ImageContent>>supplyAsync(() -> {
-                try {
-                    return cachedImageService.findImage(imageSpec);
-                } catch (Exception e) {
-                    LOGGER.error("Failed searching image {} in cache", imageSpec, e);
-                    return Optional.empty();
-                }
-            }).get(abortLookupThresholdMillis, TimeUnit.MILLISECONDS);
+            cacheLookup = lookup.get(abortLookupThresholdMillis, TimeUnit.MILLISECONDS);
         } catch (TimeoutException e) {
             LOGGER.error("Aborted cache lookup for {} after 300ms.", imageSpec);
+            lookup.thenAccept(late -> late.ifPresent(ImageContent::discard));
             cacheLookup = Optional.empty();
             aborted = true;
         } catch (InterruptedException | ExecutionException e) {
@@ -87,48 +98,95 @@ public class ImageService implements HealthIndicator {
         // do not schedule saving of cache misses if they're due to aborted storage lookup
         // as it would only hurt a presumably-overloaded underlying storage system
         boolean saveMissToCache = ABORTED != searchResult;
+        // nor if the cache is already falling behind on writes
+        if (saveMissToCache && cacheLookup.isEmpty()) {
+            saveMissToCache = cachedImageService.canAcceptWrites();
+        }
 
         imageMetrics.recordSearchFromCache(startSearch, searchResult);
+        long lookupNanos = System.nanoTime() - startSearch;
 
-        ImageContent imageContent = cacheLookup.orElseGet(() -> {
+        ImageContent imageContent;
+        long upstreamNanos = 0L;
+        if (cacheLookup.isPresent()) {
+            imageContent = cacheLookup.get();
+        } else {
             long startUptreamFetch = System.nanoTime();
-            ImageContent upstreamResponseContent = fetchFromUpstream(imageSpec, saveMissToCache);
-            imageMetrics.recordSearchFromUpstream(startUptreamFetch);
-            return upstreamResponseContent;
-        });
+            // another worker may already be fetching it, in which case it is served from the cache once filled
+            FetchClaim claim = saveMissToCache ? upstreamFetchCoordinator.claimOrAwait(imageSpec) : FetchClaim.gaveUp(imageSpec);
+            if (claim.isFilled()) {
+                imageContent = claim.filled();
+            } else {
+                imageContent = fetchFromUpstream(imageSpec, saveMissToCache, claim);
+                imageMetrics.recordSearchFromUpstream(startUptreamFetch);
+            }
+            upstreamNanos = System.nanoTime() - startUptreamFetch;
+        }
 
-        LOGGER.info("Cache {} for {} (content-length: {})", imageContent.cacheMode(), imageSpec, imageContent.contentLength().orElse(-1L));
+        LOGGER.debug("Cache {} for {} (content-length: {})", imageContent.cacheMode(), imageSpec, imageContent.contentLength().orElse(-1L));
         imageMetrics.recordSearch(startSearch, imageContent.cacheMode());
+        accessLog.record(
+            imageSpec,
+            imageContent.cacheMode(),
+            searchResult,
+            imageContent.contentLength().orElse(-1L),
+            lookupNanos,
+            upstreamNanos,
+            System.nanoTime() - startSearch
+        );
 
         return imageContent;
     }
 
-    private ImageContent fetchFromUpstream(ImageSpec imageSpec, boolean saveToCache) {
-        ImageContent upstreamContent = mangadexImageService.download(imageSpec, upstreamServerUri);
+    private ImageContent fetchFromUpstream(ImageSpec imageSpec, boolean saveToCache, FetchClaim claim) {
         if (!saveToCache) {
-            return upstreamContent;
+            return mangadexImageService.download(imageSpec, upstreamServerUri);
+        }
+
+        // only the request holding the claim may release it, others fetching regardless would release a lock held by another request
+        Runnable release = () -> {
+            if (claim.isClaimed()) {
+                upstreamFetchCoordinator.release(claim);
+            }
+        };
+
+        ImageContent upstreamContent;
+        try {
+            upstreamContent = mangadexImageService.download(imageSpec, upstreamServerUri);
+        } catch (RuntimeException e) {
+            release.run();
+            throw e;
         }
 
         try {
-            Consumer<byte[]> cacheSaveCallback = bytes -> {
-                if (imageValidationService.validate(imageSpec, upstreamContent.contentLength(), bytes)) {
-                    LOGGER.debug("Content of {} fully read from upstream. Triggering cache saving.", imageSpec);
-                    cachedImageService.saveImage(imageSpec, upstreamContent.contentType(), new ByteArrayInputStream(bytes));
-                }
-            };
+            // released only once saved, as other workers waiting on it would otherwise miss the cache and fetch it as well
+            Consumer<byte[]> cacheSaveCallback = bytes -> saveToCache(imageSpec, upstreamContent, bytes).whenComplete((saved, e) -> release.run());
 
             return new ImageContent(
-                new InputStreamResource(new ContentCallbackInputStream(upstreamContent.resource().getInputStream(), cacheSaveCallback)),
+                new InputStreamResource(new ContentCallbackInputStream(upstreamContent.resource().getInputStream(), cacheSaveCallback, release)),
                 upstreamContent.contentType(),
                 upstreamContent.contentLength(),
                 upstreamContent.lastModified(),
                 upstreamContent.cacheMode()
             );
         } catch (IOException e) {
+            release.run();
             throw new IllegalStateException("Cannot open upstream response for reading!", e);
         }
     }
 
+    private CompletableFuture<Void> saveToCache(ImageSpec imageSpec, ImageContent upstreamContent, byte[] bytes) {
+        try {
+            if (imageValidationService.validate(imageSpec, upstreamContent.contentLength(), bytes)) {
+                LOGGER.debug("Content of {} fully read from upstream. Triggering cache saving.", imageSpec);
+                return cachedImageService.saveImageAsync(imageSpec, upstreamContent.contentType(), new ByteArrayInputStream(bytes));
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed saving {} to cache", imageSpec, e);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
     public void preload(ImageSpec imageSpec) {
         try {
             ImageContent content = findOrFetch(imageSpec);
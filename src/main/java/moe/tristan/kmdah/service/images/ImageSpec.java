@@ -1,5 +1,9 @@
 package moe.tristan.kmdah.service.images;
 
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import moe.tristan.kmdah.mangadex.image.ImageMode;
 
 public record ImageSpec(
@@ -10,4 +14,20 @@ public record ImageSpec(
 
     String file
 
-) {}
+) {
+
+    private static final Pattern CONTENT_HASHED_FILE = Pattern.compile("^[^-]+-([0-9a-f]{64})\\.[^.]+$");
+
+    /**
+     * @return the SHA-256 of the image content, which data mode file names embed (as {@code page-sha256.ext}), and which is verified before caching
+     */
+    public Optional<String> contentHash() {
+        if (mode != ImageMode.DATA) {
+            return Optional.empty();
+        }
+
+        Matcher matcher = CONTENT_HASHED_FILE.matcher(file);
+        return matcher.matches() ? Optional.of(matcher.group(1)) : Optional.empty();
+    }
+
+}
@@ -3,6 +3,10 @@ package moe.tristan.kmdah.service.images.cache;
 public enum CacheBackend {
     FILESYSTEM,
     MONGODB,
+    PACKED,
+    S3,
+    REDIS,
+    TIERED,
     DELEGATING,
     UNSET
 }
@@ -2,6 +2,7 @@ package moe.tristan.kmdah.service.images.cache;
 
 import java.io.InputStream;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 import org.springframework.http.MediaType;
 
@@ -14,8 +15,42 @@ public interface CachedImageService {
 
     void saveImage(ImageSpec imageSpec, MediaType mediaType, InputStream inputStream);
 
+    /**
+     * Saves the image like {@link #saveImage}, completing once it can be found in the cache, or was dropped or failed to be saved. Backends saving in the
+     * background complete it later than they return.
+     */
+    default CompletableFuture<Void> saveImageAsync(ImageSpec imageSpec, MediaType mediaType, InputStream inputStream) {
+        saveImage(imageSpec, mediaType, inputStream);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Checked before fetching a cache miss upstream, so that backends falling behind on writes are not handed images they would drop anyway.
+     */
+    default boolean canAcceptWrites() {
+        return true;
+    }
+
+    /**
+     * Called on the request thread, so backends should only mark the chapter as deleted here, and leave the actual deletion to {@link #reclaim}.
+     */
     void deleteChapter(ImageSpec imageSpec);
 
+    /**
+     * Deletes, in batches, what {@link #deleteChapter} only marked as deleted.
+     */
+    default ReclaimingResult reclaim(ReclaimingRequest reclaimingRequest) {
+        return ReclaimingResult.nothing();
+    }
+
     VacuumingResult vacuum(VacuumingRequest vacuumingRequest);
 
+    /**
+     * Re-reads cached images in a stable order, starting after the request's cursor, and evicts those whose content doesn't match their name or recorded
+     * length anymore.
+     */
+    default ScrubbingResult scrub(ScrubbingRequest scrubbingRequest) {
+        return ScrubbingResult.unsupported();
+    }
+
 }
@@ -0,0 +1,70 @@
+package moe.tristan.kmdah.service.images.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Bounds the bytes of images a backend has yet to write in the background.
+ * <p>
+ * The bound is in bytes rather than in count, as images range from a few kilobytes to several megabytes. Producers are expected to check
+ * {@link #canAccept()} before fetching an image upstream, so that a backend falling behind pushes back on new fills rather than having them fetched only
+ * to be dropped, or pile up in memory.
+ * <p>
+ * Reports {@code <prefix>_write_queue_bytes}, and {@code <prefix>_write_dropped} by reason: {@code admission} for fills refused up front, and
+ * {@code queue_full} for images dropped on submission.
+ */
+public class PendingWritesBudget {
+
+    private final long maxBytes;
+    private final AtomicLong pendingBytes = new AtomicLong();
+
+    private final Counter queueFullDrops;
+    private final Counter admissionRefusals;
+
+    public PendingWritesBudget(long maxBytes, MeterRegistry meterRegistry, String metricsPrefix) {
+        this.maxBytes = maxBytes;
+
+        Gauge.builder(metricsPrefix + "_write_queue_bytes", pendingBytes, AtomicLong::get).register(meterRegistry);
+        this.queueFullDrops = meterRegistry.counter(metricsPrefix + "_write_dropped", "reason", "queue_full");
+        this.admissionRefusals = meterRegistry.counter(metricsPrefix + "_write_dropped", "reason", "admission");
+    }
+
+    /**
+     * @return whether an image fetched now is likely to be accepted by the time it is submitted
+     */
+    public boolean canAccept() {
+        if (pendingBytes.get() < maxBytes) {
+            return true;
+        }
+        admissionRefusals.increment();
+        return false;
+    }
+
+    /**
+     * @return false if the image must be dropped as too many bytes are already pending, otherwise they must be {@link #release}d once written
+     */
+    public boolean tryReserve(long bytes) {
+        if (pendingBytes.addAndGet(bytes) > maxBytes) {
+            pendingBytes.addAndGet(-bytes);
+            queueFullDrops.increment();
+            return false;
+        }
+        return true;
+    }
+
+    public void release(long bytes) {
+        pendingBytes.addAndGet(-bytes);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+}
@@ -0,0 +1,11 @@
+package moe.tristan.kmdah.service.images.cache;
+
+import moe.tristan.kmdah.util.IoBudget;
+
+public record ReclaimingRequest(
+
+    int maxFiles,
+
+    IoBudget ioBudget
+
+) {}
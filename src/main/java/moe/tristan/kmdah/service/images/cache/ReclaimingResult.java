@@ -0,0 +1,14 @@
+package moe.tristan.kmdah.service.images.cache;
+
+import org.springframework.util.unit.DataSize;
+
+public record ReclaimingResult(
+    long reclaimedFileCount,
+    DataSize freedSpace
+) {
+
+    public static ReclaimingResult nothing() {
+        return new ReclaimingResult(0L, DataSize.ofBytes(0L));
+    }
+
+}
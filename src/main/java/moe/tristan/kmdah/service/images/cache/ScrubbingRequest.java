@@ -0,0 +1,16 @@
+package moe.tristan.kmdah.service.images.cache;
+
+import moe.tristan.kmdah.util.IoBudget;
+
+/**
+ * @param cursor where the previous run stopped, or null to start a new pass
+ */
+public record ScrubbingRequest(
+
+    String cursor,
+
+    int maxImages,
+
+    IoBudget ioBudget
+
+) {}
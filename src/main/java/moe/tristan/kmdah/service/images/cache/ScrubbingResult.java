@@ -0,0 +1,25 @@
+package moe.tristan.kmdah.service.images.cache;
+
+import java.util.List;
+
+import org.springframework.util.unit.DataSize;
+
+import moe.tristan.kmdah.service.images.ImageSpec;
+
+/**
+ * @param nextCursor where the next run should resume from, or null if this run completed the pass
+ * @param evicted    the images evicted for being corrupted, which can be fetched again
+ */
+public record ScrubbingResult(
+    String nextCursor,
+    long scrubbedFileCount,
+    DataSize scrubbedSize,
+    long corruptedFileCount,
+    List<ImageSpec> evicted
+) {
+
+    public static ScrubbingResult unsupported() {
+        return new ScrubbingResult(null, 0L, DataSize.ofBytes(0L), 0L, List.of());
+    }
+
+}
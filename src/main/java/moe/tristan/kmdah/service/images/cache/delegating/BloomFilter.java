@@ -0,0 +1,116 @@
+package moe.tristan.kmdah.service.images.cache.delegating;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.codec.digest.MurmurHash3;
+
+/**
+ * A set of keys that may report keys it doesn't hold, at a rate set by its size, but never misses one it holds. Keys can be added concurrently.
+ * <p>
+ * The bits of a key are derived from the two halves of its 128-bit MurmurHash3, as {@code h1 + i * h2}.
+ */
+final class BloomFilter {
+
+    private static final double LN_2 = Math.log(2);
+
+    private final AtomicLongArray words;
+    private final long bitCount;
+    private final int hashFunctions;
+
+    private BloomFilter(AtomicLongArray words, int hashFunctions) {
+        this.words = words;
+        this.bitCount = (long) words.length() * Long.SIZE;
+        this.hashFunctions = hashFunctions;
+    }
+
+    /**
+     * @return an empty filter, sized to report keys it doesn't hold at about {@code falsePositiveRate} once holding {@code expectedKeys}
+     */
+    static BloomFilter create(int expectedKeys, double falsePositiveRate) {
+        if (expectedKeys <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Invalid sizing: " + expectedKeys + " keys at a false positive rate of " + falsePositiveRate);
+        }
+
+        long bits = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (LN_2 * LN_2));
+        int hashFunctions = Math.max(1, (int) Math.round((double) bits / expectedKeys * LN_2));
+        return new BloomFilter(new AtomicLongArray(Math.toIntExact((bits + Long.SIZE - 1) / Long.SIZE)), hashFunctions);
+    }
+
+    /**
+     * @return the filter serialized by {@link #toByteArray()}
+     */
+    static BloomFilter fromByteArray(byte[] bytes, int hashFunctions) {
+        if (bytes.length == 0 || bytes.length % Long.BYTES != 0 || hashFunctions <= 0) {
+            throw new IllegalArgumentException("Invalid filter of " + bytes.length + " bytes and " + hashFunctions + " hash functions");
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long[] words = new long[bytes.length / Long.BYTES];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = buffer.getLong();
+        }
+        return new BloomFilter(new AtomicLongArray(words), hashFunctions);
+    }
+
+    /**
+     * @return whether the key was not already held, as far as the filter can tell
+     */
+    boolean add(String key) {
+        long[] hash = MurmurHash3.hash128x64(key.getBytes(UTF_8));
+        boolean changed = false;
+        for (int i = 0; i < hashFunctions; i++) {
+            long bit = bitIndex(hash, i);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long previous = words.getAndAccumulate(word, mask, (current, added) -> current | added);
+            changed |= (previous & mask) == 0;
+        }
+        return changed;
+    }
+
+    boolean mightContain(String key) {
+        long[] hash = MurmurHash3.hash128x64(key.getBytes(UTF_8));
+        for (int i = 0; i < hashFunctions; i++) {
+            long bit = bitIndex(hash, i);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a new filter holding the keys of both, which must be sized alike
+     */
+    BloomFilter union(BloomFilter other) {
+        if (other.words.length() != words.length() || other.hashFunctions != hashFunctions) {
+            throw new IllegalArgumentException("Cannot merge filters of different sizes");
+        }
+
+        AtomicLongArray merged = new AtomicLongArray(words.length());
+        for (int i = 0; i < words.length(); i++) {
+            merged.set(i, words.get(i) | other.words.get(i));
+        }
+        return new BloomFilter(merged, hashFunctions);
+    }
+
+    byte[] toByteArray() {
+        ByteBuffer buffer = ByteBuffer.allocate(words.length() * Long.BYTES);
+        for (int i = 0; i < words.length(); i++) {
+            buffer.putLong(words.get(i));
+        }
+        return buffer.array();
+    }
+
+    int hashFunctions() {
+        return hashFunctions;
+    }
+
+    private long bitIndex(long[] hash, int i) {
+        return Math.floorMod(hash[0] + i * hash[1], bitCount);
+    }
+
+}
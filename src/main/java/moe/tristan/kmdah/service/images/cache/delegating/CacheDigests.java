@@ -0,0 +1,101 @@
+package moe.tristan.kmdah.service.images.cache.delegating;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import moe.tristan.kmdah.service.workers.WorkerInfo;
+
+/**
+ * Tracks the images held by this worker, and those the other workers advertised holding, as Bloom filters.
+ * <p>
+ * The local digest is made of the images stored or served by this worker over the last two generations of {@code rotation-minutes}, rather than of every
+ * image its storage holds, which keeps it small and focused on the images still read. Images evicted from the storage since then are still advertised,
+ * and counted as false positives by the workers trying them.
+ */
+final class CacheDigests {
+
+    private final DelegatingSettings.Digest settings;
+    private final Map<String, BloomFilter> peerDigests = new ConcurrentHashMap<>();
+    private final AtomicBoolean changed = new AtomicBoolean(false);
+
+    private volatile BloomFilter current;
+    private volatile BloomFilter previous;
+
+    CacheDigests(DelegatingSettings.Digest settings) {
+        this.settings = settings;
+        this.current = emptyDigest();
+        this.previous = emptyDigest();
+    }
+
+    void record(String key) {
+        if (current.add(key)) {
+            changed.set(true);
+        }
+    }
+
+    /**
+     * Starts a new generation, so that images not read since the start of the previous one stop being advertised.
+     */
+    void rotate() {
+        previous = current;
+        current = emptyDigest();
+        changed.set(true);
+    }
+
+    /**
+     * Makes the next {@link #takeChanges()} return the local digest, even if unchanged, for workers that just joined.
+     */
+    void markChanged() {
+        changed.set(true);
+    }
+
+    /**
+     * @return the local digest, if it changed since last taken
+     */
+    Optional<BloomFilter> takeChanges() {
+        if (!changed.getAndSet(false)) {
+            return Optional.empty();
+        }
+        return Optional.of(current.union(previous));
+    }
+
+    void updatePeer(String workerId, BloomFilter digest) {
+        peerDigests.put(workerId, digest);
+    }
+
+    /**
+     * Forgets the digests of workers that are not part of the cluster anymore.
+     */
+    void retainPeers(Collection<WorkerInfo> members) {
+        Set<String> memberIds = members.stream().map(WorkerInfo::id).collect(Collectors.toSet());
+        peerDigests.keySet().retainAll(memberIds);
+    }
+
+    /**
+     * @return the ids of the other workers whose digest holds the key
+     */
+    List<String> likelyHolders(String key) {
+        return peerDigests
+            .entrySet()
+            .stream()
+            .filter(digest -> digest.getValue().mightContain(key))
+            .map(Map.Entry::getKey)
+            .sorted()
+            .collect(Collectors.toList());
+    }
+
+    int getPeerCount() {
+        return peerDigests.size();
+    }
+
+    private BloomFilter emptyDigest() {
+        return BloomFilter.create(settings.expectedImages(), settings.falsePositiveRate());
+    }
+
+}
@@ -0,0 +1,68 @@
+package moe.tristan.kmdah.service.images.cache.delegating;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.digest.MurmurHash3;
+
+import moe.tristan.kmdah.service.workers.WorkerInfo;
+
+/**
+ * Assigns each key to a worker, such that a worker joining or leaving only moves the keys it gains or loses, about {@code 1/n} of them.
+ * <p>
+ * Each worker is placed at {@code virtual-nodes} points of the ring, which evens out the share of keys each gets, and a key belongs to the first worker
+ * found clockwise from its own hash.
+ */
+final class ConsistentHashRing {
+
+    private final Set<WorkerInfo> members;
+    private final NavigableMap<Long, WorkerInfo> ring = new TreeMap<>();
+
+    ConsistentHashRing(Collection<WorkerInfo> members, int virtualNodes) {
+        this.members = Set.copyOf(members);
+        for (WorkerInfo member : this.members) {
+            for (int i = 0; i < virtualNodes; i++) {
+                // ties are broken by id, so that every worker builds the same ring
+                ring.merge(hash(member.id() + "#" + i), member, (first, second) -> first.id().compareTo(second.id()) <= 0 ? first : second);
+            }
+        }
+    }
+
+    Optional<WorkerInfo> ownerOf(String key) {
+        if (ring.isEmpty()) {
+            return Optional.empty();
+        }
+
+        Map.Entry<Long, WorkerInfo> owner = ring.ceilingEntry(hash(key));
+        return Optional.of(owner != null ? owner.getValue() : ring.firstEntry().getValue());
+    }
+
+    Set<WorkerInfo> members() {
+        return members;
+    }
+
+    /**
+     * @return whether the ring spans exactly these workers, at the same addresses
+     */
+    boolean spans(Collection<WorkerInfo> workers) {
+        if (!members.equals(Set.copyOf(workers))) {
+            return false;
+        }
+        Map<String, String> addresses = new HashMap<>();
+        members.forEach(member -> addresses.put(member.id(), member.address()));
+        return workers.stream().allMatch(worker -> Objects.equals(addresses.get(worker.id()), worker.address()));
+    }
+
+    private static long hash(String value) {
+        return MurmurHash3.hash128x64(value.getBytes(UTF_8))[0];
+    }
+
+}
@@ -1,35 +1,455 @@
 package moe.tristan.kmdah.service.images.cache.delegating;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
 import java.io.InputStream;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.InputStreamResource;
 import org.springframework.http.MediaType;
 import org.springframework.util.unit.DataSize;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import moe.tristan.kmdah.service.gossip.messages.CacheDigestEvent;
+import moe.tristan.kmdah.service.gossip.messages.ChapterDeletionEvent;
+import moe.tristan.kmdah.service.gossip.messages.WorkerPingEvent;
+import moe.tristan.kmdah.service.gossip.messages.WorkerShutdownEvent;
+import moe.tristan.kmdah.service.gossip.messages.pub.GossipPublisher;
 import moe.tristan.kmdah.service.images.ImageContent;
 import moe.tristan.kmdah.service.images.ImageSpec;
 import moe.tristan.kmdah.service.images.cache.CachedImageService;
+import moe.tristan.kmdah.service.images.cache.ReclaimingRequest;
+import moe.tristan.kmdah.service.images.cache.ReclaimingResult;
 import moe.tristan.kmdah.service.images.cache.VacuumingRequest;
 import moe.tristan.kmdah.service.images.cache.VacuumingResult;
+import moe.tristan.kmdah.service.leader.reclaim.ReclaimSettings;
+import moe.tristan.kmdah.service.workers.WorkerInfo;
+import moe.tristan.kmdah.service.workers.WorkersRegistry;
+import moe.tristan.kmdah.util.ContentCallbackInputStream;
+import moe.tristan.kmdah.util.IoBudget;
+
+/**
+ * Spreads the cache over the local storage of all workers, so that its capacity grows with their count without any shared storage.
+ * <p>
+ * Each image is owned by one worker, as per a consistent-hash ring of the live workers. Other workers look it up from its owner, and hand their cache
+ * fills of it over to its owner. A worker joining or leaving only changes the owner of the images it gains or loses. Those are then missed until fetched
+ * again, unless still found in the local storage of their previous owner.
+ * <p>
+ * Workers also gossip digests of the images they hold, so that images missed by both their owner and this worker are looked up from the workers likely
+ * to still hold them, before being fetched from upstream. Images found that way are handed over to their owner.
+ * <p>
+ * As every worker holds part of the cache, each vacuums and reclaims its own storage, rather than only the leader.
+ */
+public class DelegatingCachedImageService implements CachedImageService, Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DelegatingCachedImageService.class);
+
+    private static final Duration RECLAIM_PERIOD = Duration.ofSeconds(30);
+    private static final Duration VACUUM_PERIOD = Duration.ofMinutes(15);
+
+    private final CachedImageService localCache;
+    private final PeerClient peerClient;
+    private final String localWorkerId;
+    private final WorkersRegistry workersRegistry;
+    private final GossipPublisher gossipPublisher;
+    private final DelegatingSettings settings;
+    private final AtomicReference<ConsistentHashRing> ring;
+    private final CacheDigests digests;
+
+    private final Timer peerHits;
+    private final Timer peerMisses;
+    private final Timer peerErrors;
+
+    private final Timer digestHits;
+    private final Timer digestFalsePositives;
+    private final Timer digestNone;
+    private final Counter digestProbeHits;
+    private final Counter digestProbeFalsePositives;
+    private final Counter digestProbeErrors;
+
+    private final ScheduledExecutorService maintenanceExecutorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "kmdah-delegating-maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    DelegatingCachedImageService(
+        CachedImageService localCache,
+        PeerClient peerClient,
+        String localWorkerId,
+        WorkersRegistry workersRegistry,
+        GossipPublisher gossipPublisher,
+        DelegatingSettings settings,
+        MeterRegistry meterRegistry
+    ) {
+        this.localCache = localCache;
+        this.peerClient = peerClient;
+        this.localWorkerId = localWorkerId;
+        this.workersRegistry = workersRegistry;
+        this.gossipPublisher = gossipPublisher;
+        this.settings = settings;
+        this.ring = new AtomicReference<>(new ConsistentHashRing(Set.of(), settings.virtualNodes()));
+        this.digests = new CacheDigests(settings.digest());
+
+        this.peerHits = peerLookups("hit", meterRegistry);
+        this.peerMisses = peerLookups("miss", meterRegistry);
+        this.peerErrors = peerLookups("error", meterRegistry);
 
-public class DelegatingCachedImageService implements CachedImageService {
+        this.digestHits = digestLookups("hit", meterRegistry);
+        this.digestFalsePositives = digestLookups("false_positive", meterRegistry);
+        this.digestNone = digestLookups("none", meterRegistry);
+        this.digestProbeHits = digestProbes("hit", meterRegistry);
+        this.digestProbeFalsePositives = digestProbes("false_positive", meterRegistry);
+        this.digestProbeErrors = digestProbes("error", meterRegistry);
+    }
+
+    /**
+     * Keeps the local storage within {@code maxSize} and reclaims its deleted chapters, as the leader would for a shared backend.
+     */
+    void startMaintenance(DataSize maxSize, ReclaimSettings reclaimSettings) {
+        IoBudget reclaimBudget = IoBudget.perSecond(reclaimSettings.filesPerSecond());
+        maintenanceExecutorService.scheduleWithFixedDelay(
+            () -> reclaimLocally(reclaimSettings.batchSize(), reclaimBudget),
+            RECLAIM_PERIOD.toSeconds(),
+            RECLAIM_PERIOD.toSeconds(),
+            TimeUnit.SECONDS
+        );
+        maintenanceExecutorService.scheduleWithFixedDelay(
+            () -> vacuumLocally(maxSize),
+            VACUUM_PERIOD.toMinutes(),
+            VACUUM_PERIOD.toMinutes(),
+            TimeUnit.MINUTES
+        );
+
+        DelegatingSettings.Digest digestSettings = settings.digest();
+        if (digestSettings.enabled()) {
+            maintenanceExecutorService.scheduleWithFixedDelay(
+                this::publishDigest,
+                digestSettings.publishPeriodSeconds(),
+                digestSettings.publishPeriodSeconds(),
+                TimeUnit.SECONDS
+            );
+            maintenanceExecutorService.scheduleWithFixedDelay(
+                digests::rotate,
+                digestSettings.rotationMinutes(),
+                digestSettings.rotationMinutes(),
+                TimeUnit.MINUTES
+            );
+        }
+    }
 
     @Override
     public Optional<ImageContent> findImage(ImageSpec imageSpec) {
-        return Optional.empty();
+        String key = keyOf(imageSpec);
+        Optional<WorkerInfo> owner = remoteOwnerOf(key);
+        if (owner.isPresent()) {
+            Optional<ImageContent> found = findFromOwner(owner.get(), imageSpec);
+            if (found.isPresent()) {
+                return found;
+            }
+        }
+
+        // it may still be there from when this worker owned it
+        Optional<ImageContent> found = findLocally(imageSpec);
+        if (found.isPresent() || !settings.digest().enabled()) {
+            return found;
+        }
+
+        return findFromLikelyHolders(imageSpec, key, owner.map(WorkerInfo::id).orElse(localWorkerId));
     }
 
     @Override
     public void saveImage(ImageSpec imageSpec, MediaType mediaType, InputStream inputStream) {
+        saveImageAsync(imageSpec, mediaType, inputStream);
+    }
+
+    /**
+     * Completes once the image is stored locally, or by its owner.
+     */
+    @Override
+    public CompletableFuture<Void> saveImageAsync(ImageSpec imageSpec, MediaType mediaType, InputStream inputStream) {
+        String key = keyOf(imageSpec);
+        Optional<WorkerInfo> owner = remoteOwnerOf(key);
+        if (owner.isEmpty()) {
+            CompletableFuture<Void> saved = localCache.saveImageAsync(imageSpec, mediaType, inputStream);
+            digests.record(key);
+            return saved;
+        }
+
+        try {
+            CompletableFuture<Void> stored = new CompletableFuture<>();
+            if (peerClient.store(owner.get(), imageSpec, mediaType, inputStream.readAllBytes(), stored)) {
+                return stored;
+            }
+        } catch (IOException e) {
+            LOGGER.error("Failed reading {} for handing it over to worker {}!", imageSpec, owner.get().id(), e);
+        }
+        return CompletableFuture.completedFuture(null);
     }
 
+    @Override
+    public boolean canAcceptWrites() {
+        return localCache.canAcceptWrites() && peerClient.canAcceptWrites();
+    }
+
+    /**
+     * Every worker may hold images of the chapter, so its deletion is broadcast to all of them, this one included.
+     */
     @Override
     public void deleteChapter(ImageSpec imageSpec) {
+        gossipPublisher.broadcastChapterDeletion(imageSpec);
+    }
+
+    @EventListener(ChapterDeletionEvent.class)
+    public void onChapterDeletion(ChapterDeletionEvent chapterDeletionEvent) {
+        localCache.deleteChapter(new ImageSpec(chapterDeletionEvent.mode(), chapterDeletionEvent.chapter(), "*"));
     }
 
+    /**
+     * Does nothing, as each worker reclaims its own storage.
+     */
+    @Override
+    public ReclaimingResult reclaim(ReclaimingRequest reclaimingRequest) {
+        return ReclaimingResult.nothing();
+    }
+
+    /**
+     * Does nothing, as each worker vacuums its own storage.
+     */
     @Override
     public VacuumingResult vacuum(VacuumingRequest vacuumingRequest) {
         return new VacuumingResult(0L, DataSize.ofBytes(0L));
     }
 
+    /**
+     * Serves lookups from other workers, which never go further than this worker's own storage.
+     */
+    Optional<ImageContent> findLocally(ImageSpec imageSpec) {
+        Optional<ImageContent> found = localCache.findImage(imageSpec);
+        if (found.isPresent()) {
+            digests.record(keyOf(imageSpec));
+        }
+        return found;
+    }
+
+    /**
+     * Stores fills handed over by other workers.
+     *
+     * @return completed once stored locally
+     */
+    CompletableFuture<Void> saveLocally(ImageSpec imageSpec, MediaType mediaType, byte[] content) {
+        CompletableFuture<Void> saved = localCache.saveImageAsync(imageSpec, mediaType, new ByteArrayInputStream(content));
+        digests.record(keyOf(imageSpec));
+        return saved;
+    }
+
+    @EventListener(CacheDigestEvent.class)
+    public void onCacheDigest(CacheDigestEvent cacheDigestEvent) {
+        String workerId = cacheDigestEvent.worker().id();
+        if (!settings.digest().enabled() || localWorkerId.equals(workerId)) {
+            return;
+        }
+
+        try {
+            digests.updatePeer(workerId, BloomFilter.fromByteArray(cacheDigestEvent.digest(), cacheDigestEvent.hashFunctions()));
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Ignored the cache digest of worker {}: {}", workerId, e.getMessage());
+        }
+    }
+
+    @EventListener({WorkerPingEvent.class, WorkerShutdownEvent.class})
+    public void onMembershipEvent() {
+        refreshRing();
+    }
+
+    void refreshRing() {
+        Set<WorkerInfo> liveWorkers = workersRegistry
+            .getLiveWorkers(Duration.ofSeconds(settings.memberTimeoutSeconds()))
+            .stream()
+            .filter(worker -> worker.address() != null)
+            .collect(Collectors.toSet());
+        if (ring.get().spans(liveWorkers)) {
+            return;
+        }
+
+        ring.set(new ConsistentHashRing(liveWorkers, settings.virtualNodes()));
+        digests.retainPeers(liveWorkers);
+        digests.markChanged();
+        LOGGER.info("Cache ring now spans {}", liveWorkers.stream().map(WorkerInfo::id).sorted().collect(Collectors.toList()));
+    }
+
+    public int getRingSize() {
+        return ring.get().members().size();
+    }
+
+    public long getPendingFillBytes() {
+        return peerClient.getPendingBytes();
+    }
+
+    public long getDroppedFills() {
+        return peerClient.getDroppedFills();
+    }
+
+    public long getFailedFills() {
+        return peerClient.getFailedFills();
+    }
+
+    public int getDigestPeers() {
+        return digests.getPeerCount();
+    }
+
+    @Override
+    public void close() {
+        maintenanceExecutorService.shutdownNow();
+    }
+
+    /**
+     * @return the owner of the image, unless it is this worker, or no ring was formed yet
+     */
+    private Optional<WorkerInfo> remoteOwnerOf(String key) {
+        return ring.get().ownerOf(key).filter(owner -> !localWorkerId.equals(owner.id()));
+    }
+
+    private Optional<ImageContent> findFromOwner(WorkerInfo owner, ImageSpec imageSpec) {
+        long startTime = System.nanoTime();
+        try {
+            Optional<ImageContent> found = peerClient.fetch(owner, imageSpec);
+            (found.isPresent() ? peerHits : peerMisses).record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+            return found;
+        } catch (IOException e) {
+            peerErrors.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+            LOGGER.warn("Failed looking up {} from worker {}: {}", imageSpec, owner.id(), e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Tries the workers whose digest holds the image, other than its owner, which was already tried.
+     */
+    private Optional<ImageContent> findFromLikelyHolders(ImageSpec imageSpec, String key, String ownerId) {
+        long startTime = System.nanoTime();
+        Map<String, WorkerInfo> members = ring.get().members().stream().collect(Collectors.toMap(WorkerInfo::id, Function.identity()));
+        List<WorkerInfo> holders = digests
+            .likelyHolders(key)
+            .stream()
+            .filter(id -> !id.equals(ownerId) && !id.equals(localWorkerId))
+            .map(members::get)
+            .filter(Objects::nonNull)
+            .collect(Collectors.toList());
+        if (holders.isEmpty()) {
+            digestNone.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+            return Optional.empty();
+        }
+
+        for (WorkerInfo holder : holders) {
+            try {
+                Optional<ImageContent> found = peerClient.fetch(holder, imageSpec);
+                if (found.isPresent()) {
+                    digestProbeHits.increment();
+                    digestHits.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+                    return Optional.of(handingOverToOwner(imageSpec, found.get()));
+                }
+                digestProbeFalsePositives.increment();
+            } catch (IOException e) {
+                digestProbeErrors.increment();
+                LOGGER.warn("Failed looking up {} from worker {}: {}", imageSpec, holder.id(), e.getMessage());
+            }
+        }
+
+        digestFalsePositives.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+        return Optional.empty();
+    }
+
+    /**
+     * Stores the image with its owner once fully served, as it would have been on a miss.
+     */
+    private ImageContent handingOverToOwner(ImageSpec imageSpec, ImageContent found) {
+        Consumer<byte[]> handOver = bytes -> saveImage(imageSpec, found.contentType(), new ByteArrayInputStream(bytes));
+        try {
+            return new ImageContent(
+                new InputStreamResource(new ContentCallbackInputStream(found.resource().getInputStream(), handOver)),
+                found.contentType(),
+                found.contentLength(),
+                found.lastModified(),
+                found.cacheMode()
+            );
+        } catch (IOException e) {
+            found.discard();
+            throw new IllegalStateException("Cannot open " + imageSpec + " found at another worker for reading!", e);
+        }
+    }
+
+    private void publishDigest() {
+        try {
+            digests.takeChanges().ifPresent(digest -> gossipPublisher.broadcastCacheDigest(digest.hashFunctions(), digest.toByteArray()));
+        } catch (Exception e) {
+            LOGGER.error("Failed publishing the cache digest", e);
+        }
+    }
+
+    private void reclaimLocally(int batchSize, IoBudget reclaimBudget) {
+        try {
+            long startTime = System.nanoTime();
+            long totalFiles = 0L;
+            ReclaimingResult result;
+            do {
+                result = localCache.reclaim(new ReclaimingRequest(batchSize, reclaimBudget));
+                totalFiles += result.reclaimedFileCount();
+            } while (result.reclaimedFileCount() >= batchSize && System.nanoTime() - startTime < RECLAIM_PERIOD.toNanos());
+
+            if (totalFiles > 0) {
+                LOGGER.info("Reclaimed {} local files of deleted chapters", totalFiles);
+            }
+        } catch (Exception e) {
+            LOGGER.error("Failed reclaiming local storage", e);
+        }
+    }
+
+    private void vacuumLocally(DataSize maxSize) {
+        try {
+            VacuumingResult result = localCache.vacuum(new VacuumingRequest(maxSize));
+            if (result.deletedFileCount() > 0) {
+                LOGGER.info("Vacuumed local storage: freed {}MB by deleting {} files", result.freedSpace().toMegabytes(), result.deletedFileCount());
+            }
+        } catch (Exception e) {
+            LOGGER.error("Failed vacuuming local storage", e);
+        }
+    }
+
+    private static String keyOf(ImageSpec imageSpec) {
+        return String.join("/", imageSpec.mode().getPathFragment(), imageSpec.chapter(), imageSpec.file());
+    }
+
+    private static Timer peerLookups(String result, MeterRegistry meterRegistry) {
+        return Timer.builder("kmdah_cache_delegating_peer_lookup").tag("result", result).register(meterRegistry);
+    }
+
+    private static Timer digestLookups(String result, MeterRegistry meterRegistry) {
+        return Timer.builder("kmdah_cache_delegating_digest_lookup").tag("result", result).register(meterRegistry);
+    }
+
+    private static Counter digestProbes(String result, MeterRegistry meterRegistry) {
+        return Counter.builder("kmdah_cache_delegating_digest_probes").tag("result", result).register(meterRegistry);
+    }
+
 }
@@ -1,18 +1,77 @@
 package moe.tristan.kmdah.service.images.cache.delegating;
 
+import java.util.Locale;
+import java.util.Map;
+
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 import org.springframework.context.annotation.Profile;
+import org.springframework.util.unit.DataSize;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 
+import moe.tristan.kmdah.mangadex.MangadexSettings;
+import moe.tristan.kmdah.service.gossip.InstanceId;
+import moe.tristan.kmdah.service.gossip.messages.pub.GossipPublisher;
+import moe.tristan.kmdah.service.images.cache.CacheBackend;
+import moe.tristan.kmdah.service.images.cache.CacheSettings;
 import moe.tristan.kmdah.service.images.cache.CachedImageService;
+import moe.tristan.kmdah.service.leader.reclaim.ReclaimSettings;
+import moe.tristan.kmdah.service.workers.WorkersRegistry;
 
+/**
+ * The local storage of each worker is set up by the configuration of its backend, as its profile is part of the {@code cache-delegating} profile group.
+ */
 @Configuration
 @Profile("cache-delegating")
+@EnableConfigurationProperties(DelegatingSettings.class)
 public class DelegatingCachedImageServiceConfiguration {
 
     @Bean
-    public CachedImageService delegatingCachedImageService() {
-        return new DelegatingCachedImageService();
+    @Primary
+    public DelegatingCachedImageService delegatingCachedImageService(
+        DelegatingSettings delegatingSettings,
+        Map<String, CachedImageService> backends,
+        InstanceId instanceId,
+        WorkersRegistry workersRegistry,
+        GossipPublisher gossipPublisher,
+        MangadexSettings mangadexSettings,
+        CacheSettings cacheSettings,
+        ReclaimSettings reclaimSettings,
+        MeterRegistry meterRegistry
+    ) {
+        CacheBackend localBackend = delegatingSettings.localBackend();
+        if (localBackend == CacheBackend.DELEGATING || localBackend == CacheBackend.TIERED || localBackend == CacheBackend.UNSET) {
+            throw new IllegalArgumentException("Unsupported backend for the local storage of workers: " + localBackend);
+        }
+
+        String backend = localBackend.name().toLowerCase(Locale.ROOT);
+        CachedImageService localCache = backends.get(backend + "CachedImageService");
+        if (localCache == null) {
+            throw new IllegalStateException("No " + backend + " backend was set up for the local storage of workers");
+        }
+
+        DelegatingCachedImageService service = new DelegatingCachedImageService(
+            localCache,
+            new PeerClient(mangadexSettings.clientSecret(), delegatingSettings),
+            instanceId.id(),
+            workersRegistry,
+            gossipPublisher,
+            delegatingSettings,
+            meterRegistry
+        );
+        service.startMaintenance(DataSize.ofGigabytes(cacheSettings.maxSizeGb()), reclaimSettings);
+
+        Gauge.builder("kmdah_cache_delegating_ring_members", service, DelegatingCachedImageService::getRingSize).register(meterRegistry);
+        Gauge.builder("kmdah_cache_delegating_fill_pending_bytes", service, DelegatingCachedImageService::getPendingFillBytes).register(meterRegistry);
+        FunctionCounter.builder("kmdah_cache_delegating_fill_dropped", service, DelegatingCachedImageService::getDroppedFills).register(meterRegistry);
+        FunctionCounter.builder("kmdah_cache_delegating_fill_failed", service, DelegatingCachedImageService::getFailedFills).register(meterRegistry);
+        Gauge.builder("kmdah_cache_delegating_digest_peers", service, DelegatingCachedImageService::getDigestPeers).register(meterRegistry);
+        return service;
     }
 
 }
@@ -0,0 +1,42 @@
+package moe.tristan.kmdah.service.images.cache.delegating;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+
+import moe.tristan.kmdah.service.images.cache.CacheBackend;
+
+@ConstructorBinding
+@ConfigurationProperties("kmdah.cache.delegating")
+public record DelegatingSettings(
+
+    CacheBackend localBackend,
+
+    int virtualNodes,
+
+    long peerTimeoutMillis,
+
+    int peerBufferMaxKb,
+
+    long memberTimeoutSeconds,
+
+    int maxPendingMb,
+
+    Digest digest
+
+) {
+
+    public record Digest(
+
+        boolean enabled,
+
+        int expectedImages,
+
+        double falsePositiveRate,
+
+        long publishPeriodSeconds,
+
+        long rotationMinutes
+
+    ) {}
+
+}
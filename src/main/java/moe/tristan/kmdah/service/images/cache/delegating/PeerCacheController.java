@@ -0,0 +1,103 @@
+package moe.tristan.kmdah.service.images.cache.delegating;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.security.MessageDigest;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+
+import moe.tristan.kmdah.mangadex.MangadexSettings;
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageContent;
+import moe.tristan.kmdah.service.images.ImageSpec;
+
+/**
+ * Lets other workers read the images this worker owns, and hand over their fills of them, only ever from and to its local storage.
+ */
+@RestController
+@Profile("cache-delegating")
+public class PeerCacheController {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PeerCacheController.class);
+
+    private final DelegatingCachedImageService delegatingCachedImageService;
+    private final String secret;
+
+    public PeerCacheController(DelegatingCachedImageService delegatingCachedImageService, MangadexSettings mangadexSettings) {
+        this.delegatingCachedImageService = delegatingCachedImageService;
+        this.secret = mangadexSettings.clientSecret();
+    }
+
+    @GetMapping(PeerClient.PATH_PREFIX + "/{image-mode}/{chapterHash}/{fileName}")
+    public ResponseEntity<Resource> find(
+        @PathVariable("image-mode") String imageMode,
+        @PathVariable String chapterHash,
+        @PathVariable String fileName,
+        @RequestHeader(name = PeerClient.SIGNATURE_HEADER, required = false) String signature,
+        HttpServletRequest request
+    ) {
+        if (!verify(signature, "GET", request.getRequestURI(), "")) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+
+        ImageSpec imageSpec = new ImageSpec(ImageMode.fromPathFragment(imageMode), chapterHash, fileName);
+        Optional<ImageContent> found = delegatingCachedImageService.findLocally(imageSpec);
+        if (found.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+
+        ImageContent imageContent = found.get();
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(imageContent.contentType());
+        headers.setLastModified(imageContent.lastModified());
+        imageContent.contentLength().ifPresent(headers::setContentLength);
+        return new ResponseEntity<>(imageContent.resource(), headers, HttpStatus.OK);
+    }
+
+    @PutMapping(PeerClient.PATH_PREFIX + "/{image-mode}/{chapterHash}/{fileName}")
+    public CompletableFuture<ResponseEntity<Void>> save(
+        @PathVariable("image-mode") String imageMode,
+        @PathVariable String chapterHash,
+        @PathVariable String fileName,
+        @RequestHeader(name = PeerClient.SIGNATURE_HEADER, required = false) String signature,
+        @RequestHeader(HttpHeaders.CONTENT_TYPE) MediaType contentType,
+        @RequestBody byte[] content,
+        HttpServletRequest request
+    ) {
+        if (!verify(signature, "PUT", request.getRequestURI(), DigestUtils.sha256Hex(content))) {
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.FORBIDDEN).build());
+        }
+
+        // answered once stored, so that the worker handing it over knows when it can be found here
+        ImageSpec imageSpec = new ImageSpec(ImageMode.fromPathFragment(imageMode), chapterHash, fileName);
+        return delegatingCachedImageService.saveLocally(imageSpec, contentType, content).thenApply(saved -> ResponseEntity.noContent().build());
+    }
+
+    private boolean verify(String signature, String method, String encodedPath, String contentSha256) {
+        String expected = PeerClient.signature(secret, method, encodedPath, contentSha256);
+        if (signature == null || !MessageDigest.isEqual(expected.getBytes(UTF_8), signature.getBytes(UTF_8))) {
+            LOGGER.warn("Rejected peer request {} {} with an invalid signature", method, encodedPath);
+            return false;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,211 @@
+package moe.tristan.kmdah.service.images.cache.delegating;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.codec.digest.HmacAlgorithms;
+import org.apache.commons.codec.digest.HmacUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.MediaType;
+import org.springframework.util.unit.DataSize;
+
+import moe.tristan.kmdah.service.images.ImageContent;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.CacheMode;
+import moe.tristan.kmdah.service.workers.WorkerInfo;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Reads images from, and hands fills over to, the workers owning them, through their {@link PeerCacheController}.
+ * <p>
+ * Requests are signed with the client secret that all workers share, over their method, path and content, as the endpoint is exposed along the public
+ * ones. Fills are sent in the background, and are dropped when more than {@code max-pending-mb} are still being sent.
+ * <p>
+ * Images found are read at once when up to {@code peer-buffer-max-kb}, which releases their connection to the pool right away. Larger ones are streamed,
+ * and hold on to their connection until read or discarded.
+ */
+class PeerClient {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PeerClient.class);
+
+    static final String PATH_PREFIX = "/__peer/images";
+    static final String SIGNATURE_HEADER = "X-Kmdah-Peer-Signature";
+
+    private final OkHttpClient httpClient;
+    private final OkHttpClient fillsHttpClient;
+    private final String secret;
+    private final long bufferMaxBytes;
+    private final long maxPendingBytes;
+
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final LongAdder droppedFills = new LongAdder();
+    private final LongAdder failedFills = new LongAdder();
+
+    PeerClient(String secret, DelegatingSettings settings) {
+        this.secret = secret;
+        this.bufferMaxBytes = DataSize.ofKilobytes(settings.peerBufferMaxKb()).toBytes();
+        this.maxPendingBytes = DataSize.ofMegabytes(settings.maxPendingMb()).toBytes();
+        this.httpClient = new OkHttpClient.Builder()
+            .connectionPool(new ConnectionPool(16, 5, TimeUnit.MINUTES))
+            .connectTimeout(Duration.ofMillis(settings.peerTimeoutMillis()))
+            .readTimeout(Duration.ofMillis(settings.peerTimeoutMillis()))
+            .build();
+        // owners may take longer to store a fill than to serve an image, and nobody waits on them
+        this.fillsHttpClient = httpClient
+            .newBuilder()
+            .readTimeout(Duration.ofSeconds(10))
+            .writeTimeout(Duration.ofSeconds(10))
+            .build();
+    }
+
+    /**
+     * @return the image if its owner has it, with its content either already read or streamed from the owner
+     */
+    Optional<ImageContent> fetch(WorkerInfo owner, ImageSpec imageSpec) throws IOException {
+        HttpUrl url = url(owner, imageSpec);
+        Request request = new Request.Builder()
+            .url(url)
+            .header(SIGNATURE_HEADER, signature(secret, "GET", url.encodedPath(), ""))
+            .build();
+
+        Response response = httpClient.newCall(request).execute();
+        if (response.code() == 404) {
+            response.close();
+            return Optional.empty();
+        }
+        if (!response.isSuccessful()) {
+            response.close();
+            throw new IOException("Worker " + owner.id() + " failed serving " + imageSpec + ": " + response.code());
+        }
+
+        long length = response.body().contentLength();
+        String contentType = response.header("Content-Type");
+        Instant lastModified = Optional.ofNullable(response.headers().getDate("Last-Modified")).map(Date::toInstant).orElseGet(Instant::now);
+
+        Resource resource;
+        if (length >= 0 && length <= bufferMaxBytes) {
+            try (response) {
+                resource = new ByteArrayResource(response.body().bytes());
+            }
+        } else {
+            resource = new InputStreamResource(response.body().byteStream());
+        }
+        return Optional.of(new ImageContent(
+            resource,
+            contentType == null ? MediaType.APPLICATION_OCTET_STREAM : MediaType.parseMediaType(contentType),
+            length < 0 ? OptionalLong.empty() : OptionalLong.of(length),
+            lastModified,
+            CacheMode.HIT
+        ));
+    }
+
+    /**
+     * @return whether the fill was accepted for sending
+     */
+    boolean store(WorkerInfo owner, ImageSpec imageSpec, MediaType mediaType, byte[] content) {
+        return store(owner, imageSpec, mediaType, content, new CompletableFuture<>());
+    }
+
+    /**
+     * @param stored completed once the owner is done with the fill, whether it stored it or not, unless it was dropped right away
+     * @return whether the fill was accepted for sending
+     */
+    boolean store(WorkerInfo owner, ImageSpec imageSpec, MediaType mediaType, byte[] content, CompletableFuture<Void> stored) {
+        // a single image is always accepted when nothing is pending, however large
+        long pending = pendingBytes.addAndGet(content.length);
+        if (pending > maxPendingBytes && pending != content.length) {
+            pendingBytes.addAndGet(-content.length);
+            droppedFills.increment();
+            LOGGER.warn("Dropped {} as too many fills to other workers are pending", imageSpec);
+            return false;
+        }
+
+        HttpUrl url = url(owner, imageSpec);
+        Request request = new Request.Builder()
+            .url(url)
+            .header(SIGNATURE_HEADER, signature(secret, "PUT", url.encodedPath(), DigestUtils.sha256Hex(content)))
+            .put(RequestBody.create(content, okhttp3.MediaType.get(mediaType.toString())))
+            .build();
+
+        fillsHttpClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                pendingBytes.addAndGet(-content.length);
+                failedFills.increment();
+                LOGGER.error("Failed handing {} over to worker {}", imageSpec, owner.id(), e);
+                stored.complete(null);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                pendingBytes.addAndGet(-content.length);
+                try (response) {
+                    if (!response.isSuccessful()) {
+                        failedFills.increment();
+                        LOGGER.error("Worker {} refused {}: {}", owner.id(), imageSpec, response.code());
+                    }
+                } finally {
+                    stored.complete(null);
+                }
+            }
+        });
+        return true;
+    }
+
+    boolean canAcceptWrites() {
+        return pendingBytes.get() < maxPendingBytes;
+    }
+
+    long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    long getDroppedFills() {
+        return droppedFills.sum();
+    }
+
+    long getFailedFills() {
+        return failedFills.sum();
+    }
+
+    /**
+     * @param contentSha256 the hex SHA-256 of the request's content, or an empty string without one
+     */
+    static String signature(String secret, String method, String encodedPath, String contentSha256) {
+        return new HmacUtils(HmacAlgorithms.HMAC_SHA_256, secret.getBytes(UTF_8)).hmacHex(String.join("\n", method, encodedPath, contentSha256));
+    }
+
+    private static HttpUrl url(WorkerInfo owner, ImageSpec imageSpec) {
+        return HttpUrl
+            .get("http://" + owner.address() + PATH_PREFIX)
+            .newBuilder()
+            .addPathSegment(imageSpec.mode().getPathFragment())
+            .addPathSegment(imageSpec.chapter())
+            .addPathSegment(imageSpec.file())
+            .build();
+    }
+
+}
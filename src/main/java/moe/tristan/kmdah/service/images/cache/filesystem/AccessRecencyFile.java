@@ -0,0 +1,126 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Compact on-disk record of when images were last accessed, used for LRU eviction instead of atime (which is usually disabled on cache mounts).
+ * <p>
+ * It is a memory-mapped array of buckets, each holding the last access time (in minutes since epoch) of all images whose key falls in it. Distinct
+ * images sharing a bucket are considered as recent as the most recently accessed of them, which is an acceptable approximation for eviction
+ * purposes. A bucket is only written to at most once per minute, so that repeated hits on popular images don't keep dirtying pages.
+ * <p>
+ * Each instance keeps its own file, which {@link AccessRecencySharing} merges the accesses of other instances into.
+ */
+public class AccessRecencyFile {
+
+    private static final AccessRecencyFile DISABLED = new AccessRecencyFile();
+
+    private final MappedByteBuffer buckets;
+    private final int mask;
+
+    private volatile IntConsumer touchListener = hash -> {};
+
+    private AccessRecencyFile() {
+        this.buckets = null;
+        this.mask = 0;
+    }
+
+    private AccessRecencyFile(Path file, int bucketCount) {
+        int capacity = Integer.highestOneBit(Math.max(2, bucketCount) - 1) << 1;
+        try {
+            Files.createDirectories(file.getParent());
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                this.buckets = channel.map(MapMode.READ_WRITE, 0, (long) capacity * Integer.BYTES);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open access recency file at " + file, e);
+        }
+        this.mask = capacity - 1;
+    }
+
+    public static AccessRecencyFile open(Path file, int bucketCount) {
+        return new AccessRecencyFile(file, bucketCount);
+    }
+
+    public static AccessRecencyFile disabled() {
+        return DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return buckets != null;
+    }
+
+    public void touch(long key) {
+        if (buckets == null) {
+            return;
+        }
+
+        int hash = hashOf(key);
+        int offset = bucketOffset(hash);
+        int nowMinutes = nowMinutes();
+        if (buckets.getInt(offset) < nowMinutes) {
+            buckets.putInt(offset, nowMinutes);
+            touchListener.accept(hash);
+        }
+    }
+
+    /**
+     * Records an access served by another instance, unless its bucket was accessed more recently already.
+     *
+     * @param hash as given to the {@link #onTouch} listener of the other instance, which maps to the same bucket whatever the amount of buckets
+     */
+    public void merge(int hash, int minutes) {
+        if (buckets == null) {
+            return;
+        }
+
+        int offset = bucketOffset(hash);
+        if (buckets.getInt(offset) < minutes) {
+            buckets.putInt(offset, minutes);
+        }
+    }
+
+    /**
+     * @param listener called with the hash of buckets as they are touched, at most once per bucket and minute
+     */
+    void onTouch(IntConsumer listener) {
+        this.touchListener = listener;
+    }
+
+    /**
+     * @return the last access time in minutes since epoch, or 0 if never recorded
+     */
+    public int lastAccessMinutes(long key) {
+        if (buckets == null) {
+            return 0;
+        }
+        return buckets.getInt(bucketOffset(hashOf(key)));
+    }
+
+    private int bucketOffset(int hash) {
+        return (hash & mask) * Integer.BYTES;
+    }
+
+    private static int hashOf(long key) {
+        // high bits, as the low ones are already used by the index for slotting
+        return (int) (key >>> 32);
+    }
+
+    static int toMinutes(long epochMillis) {
+        return (int) TimeUnit.MILLISECONDS.toMinutes(epochMillis);
+    }
+
+    private static int nowMinutes() {
+        return toMinutes(System.currentTimeMillis());
+    }
+
+}
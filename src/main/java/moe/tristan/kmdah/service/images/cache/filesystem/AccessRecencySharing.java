@@ -0,0 +1,84 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.EventListener;
+
+import moe.tristan.kmdah.service.gossip.messages.CacheAccessEvent;
+import moe.tristan.kmdah.service.gossip.messages.pub.GossipPublisher;
+
+/**
+ * Shares the accesses recorded by each worker with the others, as vacuuming runs on the leader only and would otherwise evict images by the hits it
+ * served itself. Recency buckets touched by this worker are broadcast every few seconds, in batches, and those broadcast by other workers are merged into
+ * the local recency file, so that every worker, and thus any future leader, holds the accesses of all of them.
+ */
+public class AccessRecencySharing implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AccessRecencySharing.class);
+
+    private static final int MAX_BATCH_HASHES = 16384;
+
+    private final AccessRecencyFile recency;
+    private final GossipPublisher gossipPublisher;
+    private final String localWorkerId;
+    private final Queue<Integer> pending = new ConcurrentLinkedQueue<>();
+
+    private final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "kmdah-filesystem-recency-sharing");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public AccessRecencySharing(AccessRecencyFile recency, GossipPublisher gossipPublisher, String localWorkerId) {
+        this.recency = recency;
+        this.gossipPublisher = gossipPublisher;
+        this.localWorkerId = localWorkerId;
+
+        if (recency.isEnabled()) {
+            recency.onTouch(pending::add);
+            executorService.scheduleWithFixedDelay(this::broadcast, 10, 10, TimeUnit.SECONDS);
+        }
+    }
+
+    @EventListener(CacheAccessEvent.class)
+    public void onAccesses(CacheAccessEvent accessEvent) {
+        if (localWorkerId.equals(accessEvent.worker().id())) {
+            return;
+        }
+        for (int hash : accessEvent.hashes()) {
+            recency.merge(hash, accessEvent.minutes());
+        }
+    }
+
+    void broadcast() {
+        try {
+            // touched at most a few seconds ago, which is within the minute resolution of the recency
+            int minutes = AccessRecencyFile.toMinutes(System.currentTimeMillis());
+            while (!pending.isEmpty()) {
+                int[] batch = new int[Math.min(pending.size(), MAX_BATCH_HASHES)];
+                int size = 0;
+                Integer hash;
+                while (size < batch.length && (hash = pending.poll()) != null) {
+                    batch[size++] = hash;
+                }
+                gossipPublisher.broadcastCacheAccesses(minutes, size == batch.length ? batch : Arrays.copyOf(batch, size));
+            }
+        } catch (Exception e) {
+            LOGGER.error("Failed broadcasting cache accesses, the leader may evict those images sooner than it should", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        executorService.shutdownNow();
+    }
+
+}
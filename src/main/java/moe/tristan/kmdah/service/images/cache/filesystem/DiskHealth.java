@@ -0,0 +1,110 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks how well a disk is doing from the latency and errors of the operations made on it, so that writes can avoid it when it is struggling or full.
+ * <p>
+ * Recent errors are halved every minute. They are kept as an immutable snapshot that is decayed when read, so that checking the health of a disk, which is
+ * done for every write placed on it, takes no lock.
+ */
+public class DiskHealth {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DiskHealth.class);
+
+    private static final double LATENCY_EWMA_ALPHA = 0.05;
+    private static final long ERRORS_DECAY_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final long FREE_SPACE_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final Path dir;
+    private final long degradedLatencyMicros;
+    private final int degradedErrors;
+    private final long minFreeBytes;
+
+    private volatile double latencyMicros = 0;
+    private final AtomicReference<RecentErrors> recentErrors = new AtomicReference<>(new RecentErrors(0, System.nanoTime()));
+    private volatile long freeBytes = Long.MAX_VALUE;
+    private volatile long lastFreeSpaceRefresh = 0;
+
+    public DiskHealth(Path dir, long degradedLatencyMillis, int degradedErrors, long minFreeBytes) {
+        this.dir = dir;
+        this.degradedLatencyMicros = TimeUnit.MILLISECONDS.toMicros(degradedLatencyMillis);
+        this.degradedErrors = degradedErrors;
+        this.minFreeBytes = minFreeBytes;
+    }
+
+    /**
+     * Lossy under contention, which is fine for an average.
+     */
+    public void recordLatency(long nanos) {
+        latencyMicros += LATENCY_EWMA_ALPHA * (TimeUnit.NANOSECONDS.toMicros(nanos) - latencyMicros);
+    }
+
+    public void recordError() {
+        long now = System.nanoTime();
+        recentErrors.updateAndGet(errors -> errors.decayedTo(now).incremented());
+    }
+
+    public boolean isDegraded() {
+        return (degradedLatencyMicros > 0 && latencyMicros > degradedLatencyMicros) || (degradedErrors > 0 && getRecentErrors() >= degradedErrors);
+    }
+
+    public boolean isFull() {
+        return getFreeBytes() < minFreeBytes;
+    }
+
+    public boolean canAcceptWrites() {
+        return !isDegraded() && !isFull();
+    }
+
+    public double getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    public int getRecentErrors() {
+        return recentErrors.get().countAt(System.nanoTime());
+    }
+
+    public long getFreeBytes() {
+        long now = System.nanoTime();
+        if (now - lastFreeSpaceRefresh > FREE_SPACE_REFRESH_NANOS) {
+            lastFreeSpaceRefresh = now;
+            try {
+                freeBytes = Files.getFileStore(dir).getUsableSpace();
+            } catch (IOException e) {
+                LOGGER.warn("Cannot determine free space of {}: {}", dir, e.getMessage());
+                recordError();
+            }
+        }
+        return freeBytes;
+    }
+
+    /**
+     * @param since when the count was last decayed
+     */
+    private record RecentErrors(int count, long since) {
+
+        int countAt(long now) {
+            long halvings = (now - since) / ERRORS_DECAY_NANOS;
+            return halvings >= Integer.SIZE ? 0 : count >>> halvings;
+        }
+
+        RecentErrors decayedTo(long now) {
+            long halvings = (now - since) / ERRORS_DECAY_NANOS;
+            return halvings == 0 ? this : new RecentErrors(countAt(now), since + halvings * ERRORS_DECAY_NANOS);
+        }
+
+        RecentErrors incremented() {
+            return new RecentErrors(count + 1, since);
+        }
+
+    }
+
+}
@@ -0,0 +1,378 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongConsumer;
+
+import moe.tristan.kmdah.service.images.ImageSpec;
+
+/**
+ * Off-heap index of the images present in the filesystem cache, keyed by a 64-bit hash of their spec.
+ * <p>
+ * Entries are stored in open-addressing (linear probing) tables backed by direct buffers, split in independently locked segments. Lookups use
+ * optimistic reads and thus never contend with each other. Each entry takes {@value #ENTRY_BYTES} bytes:
+ * <pre>
+ * | key (8) | size (4) | last modified, epoch seconds (4) | location (1) | media type (1) | padding (6) |
+ * </pre>
+ * A key of 0 marks an empty slot.
+ * <p>
+ * Each worker keeps its own index of the shared cache directories. Images moved or deleted by a worker are thus {@link #relocate relocated} or
+ * {@link #invalidate invalidated} through the index, which lets the other workers know to drop their entry.
+ */
+public class FilesystemCacheIndex {
+
+    private static final int ENTRY_BYTES = 24;
+    private static final int OFFSET_SIZE = 8;
+    private static final int OFFSET_LAST_MODIFIED = 12;
+    private static final int OFFSET_LOCATION = 16;
+    private static final int OFFSET_MEDIA_TYPE = 17;
+
+    private static final int SEGMENTS_BITS = 6;
+    private static final int SEGMENTS = 1 << SEGMENTS_BITS;
+    private static final int MIN_SEGMENT_CAPACITY = 1024;
+    private static final double MAX_LOAD_FACTOR = 0.75;
+
+    private final boolean enabled;
+    private final Segment[] segments;
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    private volatile boolean ready = false;
+    private volatile LongConsumer invalidationListener = key -> {};
+
+    private FilesystemCacheIndex(boolean enabled, long expectedEntries) {
+        this.enabled = enabled;
+        this.segments = new Segment[enabled ? SEGMENTS : 0];
+        if (enabled) {
+            int segmentCapacity = (int) Math.min(
+                1 << 30,
+                Math.max(MIN_SEGMENT_CAPACITY, Long.highestOneBit((long) (expectedEntries / SEGMENTS / MAX_LOAD_FACTOR)) << 1)
+            );
+            for (int i = 0; i < SEGMENTS; i++) {
+                segments[i] = new Segment(segmentCapacity);
+            }
+        }
+    }
+
+    public static FilesystemCacheIndex create(long expectedEntries) {
+        return new FilesystemCacheIndex(true, expectedEntries);
+    }
+
+    public static FilesystemCacheIndex disabled() {
+        return new FilesystemCacheIndex(false, 0);
+    }
+
+    public static long key(ImageSpec spec) {
+        long hash = 0xcbf29ce484222325L;
+        hash = fnv(hash, (byte) spec.mode().ordinal());
+        hash = fnv(hash, spec.chapter());
+        hash = fnv(hash, (byte) '/');
+        hash = fnv(hash, spec.file());
+
+        // murmur3 finalizer, so that both the low bits (slot) and high bits (segment) are well distributed
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return hash == 0L ? 1L : hash;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return whether the index fully reflects the contents of the cache directories, ie. its initial scan is done
+     */
+    public boolean isReady() {
+        return enabled && ready;
+    }
+
+    public void markReady() {
+        ready = true;
+    }
+
+    public Optional<Entry> get(long key) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        return segmentFor(key).get(key);
+    }
+
+    public void put(long key, long size, long lastModifiedMillis, int location, FilesystemMediaType mediaType) {
+        if (!enabled) {
+            return;
+        }
+        long previousSize = segmentFor(key).put(key, (int) Math.min(size, Integer.MAX_VALUE), (int) (lastModifiedMillis / 1000), location, mediaType);
+        totalBytes.addAndGet(size - previousSize);
+    }
+
+    /**
+     * Records that this worker moved an image, which other workers may have indexed at its previous location.
+     */
+    public void relocate(long key, long size, long lastModifiedMillis, int location, FilesystemMediaType mediaType) {
+        if (!enabled) {
+            return;
+        }
+        put(key, size, lastModifiedMillis, location, mediaType);
+        invalidationListener.accept(key);
+    }
+
+    /**
+     * Records that this worker deleted an image, which other workers may have indexed.
+     */
+    public void invalidate(long key) {
+        if (!enabled) {
+            return;
+        }
+        remove(key);
+        invalidationListener.accept(key);
+    }
+
+    /**
+     * @param invalidationListener called with the keys of images relocated or invalidated by this worker
+     */
+    public void onInvalidation(LongConsumer invalidationListener) {
+        this.invalidationListener = invalidationListener;
+    }
+
+    public void remove(long key) {
+        if (!enabled) {
+            return;
+        }
+        long removedSize = segmentFor(key).remove(key);
+        totalBytes.addAndGet(-removedSize);
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.count;
+        }
+        return size;
+    }
+
+    public long totalBytes() {
+        return totalBytes.get();
+    }
+
+    private Segment segmentFor(long key) {
+        return segments[(int) (key >>> (64 - SEGMENTS_BITS))];
+    }
+
+    private static long fnv(long hash, byte value) {
+        return (hash ^ (value & 0xff)) * 0x100000001b3L;
+    }
+
+    private static long fnv(long hash, String value) {
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash = fnv(hash, b);
+        }
+        return hash;
+    }
+
+    public record Entry(
+
+        long size,
+
+        long lastModifiedMillis,
+
+        int location,
+
+        FilesystemMediaType mediaType
+
+    ) {}
+
+    private static final class Segment {
+
+        private final StampedLock lock = new StampedLock();
+
+        private ByteBuffer table;
+        private int mask;
+        private volatile int count;
+
+        private Segment(int capacity) {
+            this.table = ByteBuffer.allocateDirect(capacity * ENTRY_BYTES);
+            this.mask = capacity - 1;
+        }
+
+        Optional<Entry> get(long key) {
+            long stamp = lock.tryOptimisticRead();
+            Entry entry = null;
+            if (stamp != 0L) {
+                try {
+                    entry = find(key);
+                } catch (IndexOutOfBoundsException e) {
+                    // table was swapped by a concurrent resize, validation below fails
+                }
+                if (lock.validate(stamp)) {
+                    return Optional.ofNullable(entry);
+                }
+            }
+
+            stamp = lock.readLock();
+            try {
+                return Optional.ofNullable(find(key));
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        long put(long key, int size, int lastModifiedSeconds, int location, FilesystemMediaType mediaType) {
+            long stamp = lock.writeLock();
+            try {
+                int slot = slotOf(key);
+                long previousSize = 0L;
+                if (slot < 0) {
+                    if (count + 1 > (mask + 1) * MAX_LOAD_FACTOR) {
+                        resize();
+                    }
+                    slot = -slotOf(key) - 1;
+                    count++;
+                } else {
+                    previousSize = Integer.toUnsignedLong(table.getInt(slot * ENTRY_BYTES + OFFSET_SIZE));
+                }
+
+                write(table, slot, key, size, lastModifiedSeconds, (byte) location, (byte) mediaType.ordinal());
+                return previousSize;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        long remove(long key) {
+            long stamp = lock.writeLock();
+            try {
+                int slot = slotOf(key);
+                if (slot < 0) {
+                    return 0L;
+                }
+
+                long removedSize = Integer.toUnsignedLong(table.getInt(slot * ENTRY_BYTES + OFFSET_SIZE));
+                deleteWithBackwardShift(slot);
+                count--;
+                return removedSize;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        private Entry find(long key) {
+            ByteBuffer currentTable = table;
+            int currentMask = mask;
+            int slot = (int) key & currentMask;
+            for (int probes = 0; probes <= currentMask; probes++) {
+                int offset = slot * ENTRY_BYTES;
+                long slotKey = currentTable.getLong(offset);
+                if (slotKey == 0L) {
+                    return null;
+                }
+                if (slotKey == key) {
+                    return new Entry(
+                        Integer.toUnsignedLong(currentTable.getInt(offset + OFFSET_SIZE)),
+                        Integer.toUnsignedLong(currentTable.getInt(offset + OFFSET_LAST_MODIFIED)) * 1000L,
+                        Byte.toUnsignedInt(currentTable.get(offset + OFFSET_LOCATION)),
+                        FilesystemMediaType.fromOrdinal(currentTable.get(offset + OFFSET_MEDIA_TYPE))
+                    );
+                }
+                slot = (slot + 1) & currentMask;
+            }
+            return null;
+        }
+
+        /**
+         * @return the slot holding the key if present, or {@code -(insertion slot) - 1} if absent
+         */
+        private int slotOf(long key) {
+            int slot = (int) key & mask;
+            while (true) {
+                long slotKey = table.getLong(slot * ENTRY_BYTES);
+                if (slotKey == key) {
+                    return slot;
+                }
+                if (slotKey == 0L) {
+                    return -slot - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private void deleteWithBackwardShift(int slot) {
+            int hole = slot;
+            int next = (hole + 1) & mask;
+            while (true) {
+                long nextKey = table.getLong(next * ENTRY_BYTES);
+                if (nextKey == 0L) {
+                    break;
+                }
+
+                int ideal = (int) nextKey & mask;
+                // move the entry back into the hole unless its ideal slot lies cyclically within (hole, next]
+                boolean canMove = hole <= next
+                    ? ideal <= hole || ideal > next
+                    : ideal <= hole && ideal > next;
+                if (canMove) {
+                    copySlot(next, hole);
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            clearSlot(hole);
+        }
+
+        private void copySlot(int from, int to) {
+            for (int i = 0; i < ENTRY_BYTES; i += 8) {
+                table.putLong(to * ENTRY_BYTES + i, table.getLong(from * ENTRY_BYTES + i));
+            }
+        }
+
+        private void clearSlot(int slot) {
+            for (int i = 0; i < ENTRY_BYTES; i += 8) {
+                table.putLong(slot * ENTRY_BYTES + i, 0L);
+            }
+        }
+
+        private void resize() {
+            int newCapacity = (mask + 1) << 1;
+            if (newCapacity > Integer.MAX_VALUE / ENTRY_BYTES) {
+                throw new IllegalStateException("Filesystem cache index segment cannot grow beyond " + (mask + 1) + " entries");
+            }
+
+            ByteBuffer newTable = ByteBuffer.allocateDirect(newCapacity * ENTRY_BYTES);
+            int newMask = newCapacity - 1;
+            for (int slot = 0; slot <= mask; slot++) {
+                int offset = slot * ENTRY_BYTES;
+                long key = table.getLong(offset);
+                if (key == 0L) {
+                    continue;
+                }
+
+                int newSlot = (int) key & newMask;
+                while (newTable.getLong(newSlot * ENTRY_BYTES) != 0L) {
+                    newSlot = (newSlot + 1) & newMask;
+                }
+                for (int i = 0; i < ENTRY_BYTES; i += 8) {
+                    newTable.putLong(newSlot * ENTRY_BYTES + i, table.getLong(offset + i));
+                }
+            }
+
+            table = newTable;
+            mask = newMask;
+        }
+
+        private static void write(ByteBuffer table, int slot, long key, int size, int lastModifiedSeconds, byte location, byte mediaType) {
+            int offset = slot * ENTRY_BYTES;
+            table.putLong(offset, key);
+            table.putInt(offset + OFFSET_SIZE, size);
+            table.putInt(offset + OFFSET_LAST_MODIFIED, lastModifiedSeconds);
+            table.put(offset + OFFSET_LOCATION, location);
+            table.put(offset + OFFSET_MEDIA_TYPE, mediaType);
+        }
+
+    }
+
+}
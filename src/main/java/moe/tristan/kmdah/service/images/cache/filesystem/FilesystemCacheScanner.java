@@ -0,0 +1,124 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageSpec;
+
+/**
+ * Walks the images of a cache directory, in any layout, in parallel over the top-level entries of each mode directory.
+ */
+public class FilesystemCacheScanner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FilesystemCacheScanner.class);
+
+    private final int parallelism;
+
+    public FilesystemCacheScanner(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public void scan(Path dir, ScannedImageVisitor visitor) {
+        scan(dir, visitor, (file, attributes) -> {
+        });
+    }
+
+    /**
+     * @param temporaryFileVisitor called for the leftover temporary files of (possibly still ongoing) writes
+     */
+    public void scan(Path dir, ScannedImageVisitor visitor, TemporaryFileVisitor temporaryFileVisitor) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (ImageMode mode : ImageMode.values()) {
+                Path modeDir = dir.resolve(mode.getPathFragment());
+                if (!Files.isDirectory(modeDir)) {
+                    continue;
+                }
+
+                pool.submit(() -> {
+                    try (Stream<Path> entries = Files.list(modeDir)) {
+                        entries.parallel().forEach(entry -> walk(dir, mode, entry, visitor, temporaryFileVisitor));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed scanning " + dir, e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void walk(Path dir, ImageMode mode, Path entry, ScannedImageVisitor visitor, TemporaryFileVisitor temporaryFileVisitor) {
+        try {
+            Files.walkFileTree(entry, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return FileVisitResult.TERMINATE;
+                    }
+
+                    String fileName = file.getFileName().toString();
+                    if (!attributes.isRegularFile() || fileName.startsWith(".")) {
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    if (fileName.endsWith(".tmp")) {
+                        temporaryFileVisitor.visit(file, attributes);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    Path relative = dir.relativize(file);
+                    if (relative.getNameCount() < 3) {
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    ImageSpec spec = new ImageSpec(mode, file.getParent().getFileName().toString(), fileName);
+                    visitor.visit(spec, file, attributes, relative.getNameCount() == 3);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    LOGGER.warn("Cannot visit {} during scan: {}", file, e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.error("Failed scanning {}", entry, e);
+        }
+    }
+
+    @FunctionalInterface
+    public interface ScannedImageVisitor {
+
+        /**
+         * @param legacyLayout whether the file is stored in the legacy {@code mode/chapterHash/file} layout
+         */
+        void visit(ImageSpec spec, Path file, BasicFileAttributes attributes, boolean legacyLayout);
+
+    }
+
+    @FunctionalInterface
+    public interface TemporaryFileVisitor {
+
+        void visit(Path file, BasicFileAttributes attributes);
+
+    }
+
+}
@@ -2,27 +2,30 @@ package moe.tristan.kmdah.service.images.cache.filesystem;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.OptionalLong;
 import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
 
-import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.actuate.health.Health;
 import org.springframework.boot.actuate.health.HealthIndicator;
 import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.InputStreamResource;
 import org.springframework.http.MediaType;
 import org.springframework.util.unit.DataSize;
 
@@ -30,33 +33,97 @@ import moe.tristan.kmdah.service.images.ImageContent;
 import moe.tristan.kmdah.service.images.ImageSpec;
 import moe.tristan.kmdah.service.images.cache.CacheMode;
 import moe.tristan.kmdah.service.images.cache.CachedImageService;
+import moe.tristan.kmdah.service.images.cache.ReclaimingRequest;
+import moe.tristan.kmdah.service.images.cache.ReclaimingResult;
+import moe.tristan.kmdah.service.images.cache.ScrubbingRequest;
+import moe.tristan.kmdah.service.images.cache.ScrubbingResult;
 import moe.tristan.kmdah.service.images.cache.VacuumingRequest;
 import moe.tristan.kmdah.service.images.cache.VacuumingResult;
-import moe.tristan.kmdah.util.ThrottledExecutorService;
 
 public class FilesystemCachedImageService implements CachedImageService, HealthIndicator {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(FilesystemCachedImageService.class);
 
-    private static final int NB_CORES = Runtime.getRuntime().availableProcessors();
-
-    // pool of as many threads as CPU cores, with the same amount queued
-    private static final ExecutorService WRITE_EXECUTOR_SERVICE = ThrottledExecutorService.from(NB_CORES, NB_CORES, NB_CORES);
+    static final int LOCATION_ROOT_DIR = 0;
+    static final int LOCATION_ALT_DIR = 1;
+    static final int LOCATION_LEGACY_LAYOUT_FLAG = 2;
+    // the remaining bits of a location hold the volume id
+    static final int LOCATION_VOLUME_SHIFT = 2;
 
     private final FilesystemSettings filesystemSettings;
-
-    public FilesystemCachedImageService(FilesystemSettings filesystemSettings) {
+    private final FilesystemLayout layout;
+    private final FilesystemVolumes volumes;
+    private final FilesystemCacheIndex index;
+    private final AccessRecencyFile recency;
+    private final FilesystemUsage usage;
+    private final FilesystemVacuum vacuum;
+    private final FilesystemTiering tiering;
+    private final FilesystemWritePipeline writePipeline;
+    private final FilesystemObjects objects;
+    private final FilesystemScrubber scrubber;
+    private final FilesystemTrash trash;
+    private final boolean legacyLookups;
+
+    public FilesystemCachedImageService(
+        FilesystemSettings filesystemSettings,
+        FilesystemLayout layout,
+        FilesystemVolumes volumes,
+        FilesystemCacheIndex index,
+        AccessRecencyFile recency,
+        FilesystemUsage usage,
+        FilesystemVacuum vacuum,
+        FilesystemTiering tiering,
+        FilesystemWritePipeline writePipeline,
+        FilesystemObjects objects
+    ) {
         this.filesystemSettings = filesystemSettings;
+        this.layout = layout;
+        this.volumes = volumes;
+        this.index = index;
+        this.recency = recency;
+        this.usage = usage;
+        this.vacuum = vacuum;
+        this.tiering = tiering;
+        this.writePipeline = writePipeline;
+        this.objects = objects;
+        this.scrubber = new FilesystemScrubber(filesystemSettings, volumes, index, usage, objects);
+        this.trash = new FilesystemTrash(index, usage, tiering.getColdUsage(), objects);
+        this.legacyLookups = layout.isSharded() && filesystemSettings.layout().migrate();
 
         LOGGER.info("Initializing in filesystem mode with {}", filesystemSettings);
 
         validateDirHealth(filesystemSettings.rootDir());
         LOGGER.info("Successfully validated rootDir {} for usage as cache filesystem!", filesystemSettings.rootDir());
 
+        for (FilesystemVolume volume : volumes.all().subList(1, volumes.all().size())) {
+            validateDirHealth(volume.getDir());
+            LOGGER.info("Successfully validated volume {} for usage as cache filesystem!", volume);
+        }
+
         if (filesystemSettings.useAltDir()) {
             validateDirHealth(filesystemSettings.altDir());
             LOGGER.info("Successfully validated altDir {} for usage as secondary cache filesystem!", filesystemSettings.altDir());
         }
+
+        if (!filesystemSettings.readOnly()) {
+            writePipeline.start(new FilesystemWritePipeline.Placement() {
+                @Override
+                public Optional<FilesystemWritePipeline.Target> place(ImageSpec spec) {
+                    return placeImage(spec);
+                }
+
+                @Override
+                public void committed(ImageSpec spec, FilesystemWritePipeline.Target target, long size, boolean deduplicated) {
+                    commitImage(spec, target, size, deduplicated);
+                }
+            });
+        }
+
+        if (index.isEnabled()) {
+            Thread indexingThread = new Thread(this::buildIndex, "kmdah-filesystem-index");
+            indexingThread.setDaemon(true);
+            indexingThread.start();
+        }
     }
 
     void validateDirHealth(Path dir) {
@@ -108,28 +175,57 @@ public class FilesystemCachedImageService implements CachedImageService, HealthI
 
     @Override
     public Optional<ImageContent> findImage(ImageSpec imageSpec) {
-        Path file = specToPath(filesystemSettings.rootDir(), imageSpec);
-        if (!Files.exists(file)) {
-            if (filesystemSettings.useAltDir()) {
-                file = specToPath(filesystemSettings.altDir(), imageSpec);
-                if (!Files.exists(file)) {
+        long key = FilesystemCacheIndex.key(imageSpec);
+        if (index.isReady()) {
+            Optional<FilesystemCacheIndex.Entry> indexed = index.get(key);
+            if (indexed.isPresent()) {
+                FilesystemCacheIndex.Entry entry = indexed.get();
+                Path file = pathOf(entry.location(), imageSpec);
+                // opened right away rather than checked for, which would cost a stat on every hit
+                try {
+                    InputStream content = Files.newInputStream(file);
+                    recency.touch(key);
+                    tiering.recordHit(imageSpec, key, (entry.location() & LOCATION_ALT_DIR) != 0);
+                    return Optional.of(new ImageContent(
+                        new InputStreamResource(content),
+                        resolveMediaType(entry.mediaType(), file),
+                        OptionalLong.of(entry.size()),
+                        Instant.ofEpochMilli(entry.lastModifiedMillis()),
+                        CacheMode.HIT
+                    ));
+                } catch (NoSuchFileException e) {
+                    // moved or deleted by another worker, which this one didn't hear of yet
+                    index.remove(key);
+                } catch (IOException e) {
+                    LOGGER.error("Cannot read file " + file.toAbsolutePath() + " for image " + imageSpec, e);
                     return Optional.empty();
                 }
-            } else {
+            } else if (filesystemSettings.index().authoritativeMisses()) {
                 return Optional.empty();
             }
         }
 
+        Optional<Located> found = locateOnVolumes(key, imageSpec);
+        if (found.isEmpty() && filesystemSettings.useAltDir()) {
+            found = locate(filesystemSettings.altDir(), LOCATION_ALT_DIR, imageSpec);
+        }
+        if (found.isEmpty()) {
+            return Optional.empty();
+        }
+
+        Path file = found.get().file();
         try {
-            long length = Files.size(file);
-            Instant lastModified = Files.getLastModifiedTime(file).toInstant();
-            MediaType mediaType = MediaType.parseMediaType(Files.probeContentType(file));
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            FilesystemMediaType filesystemMediaType = FilesystemMediaType.fromFileName(imageSpec.file());
+            index.put(key, attributes.size(), attributes.lastModifiedTime().toMillis(), found.get().location(), filesystemMediaType);
+            recency.touch(key);
+            tiering.recordHit(imageSpec, key, (found.get().location() & LOCATION_ALT_DIR) != 0);
 
             return Optional.of(new ImageContent(
                 new FileSystemResource(file),
-                mediaType,
-                OptionalLong.of(length),
-                lastModified,
+                resolveMediaType(filesystemMediaType, file),
+                OptionalLong.of(attributes.size()),
+                attributes.lastModifiedTime().toInstant(),
                 CacheMode.HIT
             ));
         } catch (IOException e) {
@@ -140,22 +236,39 @@ public class FilesystemCachedImageService implements CachedImageService, HealthI
 
     @Override
     public void saveImage(ImageSpec imageSpec, MediaType mediaType, InputStream inputStream) {
+        saveImageAsync(imageSpec, mediaType, inputStream);
+    }
+
+    @Override
+    public CompletableFuture<Void> saveImageAsync(ImageSpec imageSpec, MediaType mediaType, InputStream inputStream) {
         if (filesystemSettings.readOnly()) {
             LOGGER.warn("Refusing to save image {} when filesystem is set to read-only!", imageSpec);
-            return;
+            return CompletableFuture.completedFuture(null);
         }
 
+        byte[] content;
         try {
-            WRITE_EXECUTOR_SERVICE.submit(() -> {
-                try {
-                    doSaveImage(imageSpec, inputStream);
-                } catch (Exception e) {
-                    LOGGER.error("Error during cache saving of {}", imageSpec, e);
-                }
-            });
-        } catch (RejectedExecutionException e) {
-            LOGGER.error("Couldn't schedule cache save of {} due to having a full queue of files to commit already.", imageSpec);
+            content = inputStream.readAllBytes();
+        } catch (IOException e) {
+            LOGGER.error("Cannot read content of {} for cache saving", imageSpec, e);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        if (!writePipeline.submit(imageSpec, content, written)) {
+            LOGGER.warn(
+                "Couldn't schedule cache save of {} due to having {}MB of files to commit already.",
+                imageSpec,
+                DataSize.ofBytes(writePipeline.getQueuedBytes()).toMegabytes()
+            );
+            return CompletableFuture.completedFuture(null);
         }
+        return written;
+    }
+
+    @Override
+    public boolean canAcceptWrites() {
+        return !filesystemSettings.readOnly() && writePipeline.canAccept();
     }
 
     @Override
@@ -164,44 +277,90 @@ public class FilesystemCachedImageService implements CachedImageService, HealthI
             throw new IllegalArgumentException("Refusing to delete chapter when filesystem backend is set to read-only mode.");
         }
 
-        Path path = specToPath(filesystemSettings.rootDir(), imageSpec).getParent();
         try {
-            FileUtils.deleteDirectory(path.toFile());
+            for (Path dir : trashableDirs()) {
+                trash.trash(dir, imageSpec, layout.chapterDir(dir, imageSpec.mode(), imageSpec.chapter()));
+                if (legacyLookups) {
+                    trash.trash(dir, imageSpec, FilesystemLayout.legacy().chapterDir(dir, imageSpec.mode(), imageSpec.chapter()));
+                }
+            }
         } catch (IOException e) {
             throw new RuntimeException("Cannot delete " + imageSpec, e);
         }
     }
 
-    private void doSaveImage(ImageSpec imageSpec, InputStream content) throws IOException {
-        Path finalFile = specToPath(filesystemSettings.rootDir(), imageSpec);
-        Path tmpFile = finalFile.resolveSibling(imageSpec.file() + ".tmp");
+    @Override
+    public ReclaimingResult reclaim(ReclaimingRequest reclaimingRequest) {
+        if (filesystemSettings.readOnly()) {
+            return ReclaimingResult.nothing();
+        }
 
-        if (Files.exists(finalFile)) {
-            LOGGER.warn("Final file already exists at {} for image {}. Not committing response.", finalFile, imageSpec);
-            return;
+        long reclaimedFiles = 0L;
+        long freedBytes = 0L;
+        for (Path dir : trashableDirs()) {
+            boolean volume = !dir.equals(filesystemSettings.altDir());
+            ReclaimingResult reclaimed = trash.reclaim(dir, volume, reclaimingRequest.maxFiles() - reclaimedFiles, reclaimingRequest.ioBudget());
+            reclaimedFiles += reclaimed.reclaimedFileCount();
+            freedBytes += reclaimed.freedSpace().toBytes();
+        }
+        return new ReclaimingResult(reclaimedFiles, DataSize.ofBytes(freedBytes));
+    }
+
+    private List<Path> trashableDirs() {
+        List<Path> dirs = new ArrayList<>(volumes.dirs());
+        if (filesystemSettings.useAltDir()) {
+            dirs.add(filesystemSettings.altDir());
+        }
+        return dirs;
+    }
+
+    private Optional<FilesystemWritePipeline.Target> placeImage(ImageSpec imageSpec) {
+        long key = FilesystemCacheIndex.key(imageSpec);
+        Optional<Located> existing = locateOnVolumes(key, imageSpec);
+        if (existing.isPresent()) {
+            LOGGER.warn("Final file already exists at {} for image {}. Not committing response.", existing.get().file(), imageSpec);
+            return Optional.empty();
+        }
+
+        Optional<FilesystemVolume> target = volumes.forWrite(key);
+        if (target.isEmpty()) {
+            LOGGER.warn("No volume currently accepts writes, not committing {}", imageSpec);
+            return Optional.empty();
         }
 
+        FilesystemVolume volume = target.get();
+        Path finalFile = layout.resolve(volume.getDir(), imageSpec);
+        Path tmpFile = finalFile.resolveSibling(imageSpec.file() + ".tmp");
+
         if (Files.exists(tmpFile)) {
-            if (isTmpFileStale(tmpFile)) {
-                Files.delete(tmpFile);
-            } else {
+            if (!isTmpFileStale(tmpFile)) {
                 LOGGER.warn("Temporary file exists and isn't stale at {} for image {}. Dropping upstream response", tmpFile, imageSpec);
-                return;
+                return Optional.empty();
+            }
+
+            try {
+                Files.delete(tmpFile);
+            } catch (IOException e) {
+                LOGGER.error("Cannot delete stale temporary file {}", tmpFile, e);
+                return Optional.empty();
             }
         }
 
-        Files.createDirectories(finalFile.getParent());
+        return Optional.of(new FilesystemWritePipeline.Target(finalFile, volume));
+    }
 
-        try (
-            FileChannel tmpFileChannel = FileChannel.open(tmpFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
-            OutputStream tmpFileOutputStream = Channels.newOutputStream(tmpFileChannel)
-        ) {
-            content.transferTo(tmpFileOutputStream);
-            Files.move(tmpFile, finalFile);
-            LOGGER.info("Committed {} to cache", imageSpec);
-        } catch (IOException e) {
-            LOGGER.error("Couldn't commit {} to cache.", tmpFile, e);
+    private void commitImage(ImageSpec imageSpec, FilesystemWritePipeline.Target target, long size, boolean deduplicated) {
+        index.put(
+            FilesystemCacheIndex.key(imageSpec),
+            size,
+            System.currentTimeMillis(),
+            volumeLocation(target.volume()),
+            FilesystemMediaType.fromFileName(imageSpec.file())
+        );
+        if (!deduplicated) {
+            usage.added(size);
         }
+        LOGGER.debug("Committed {} to cache", imageSpec);
     }
 
     private boolean isTmpFileStale(Path tmpFile) {
@@ -228,21 +387,125 @@ public class FilesystemCachedImageService implements CachedImageService, HealthI
 
     @Override
     public VacuumingResult vacuum(VacuumingRequest vacuumingRequest) {
-        LOGGER.info("Vacuuming is not supported on {}", getClass().getSimpleName());
-        return new VacuumingResult(0L, DataSize.ofBytes(0L));
+        return vacuum.vacuum(vacuumingRequest);
+    }
+
+    @Override
+    public ScrubbingResult scrub(ScrubbingRequest scrubbingRequest) {
+        if (filesystemSettings.readOnly()) {
+            LOGGER.debug("Not scrubbing cache as it cannot evict corrupted images in read-only mode.");
+            return ScrubbingResult.unsupported();
+        }
+        return scrubber.scrub(scrubbingRequest);
+    }
+
+    static int volumeLocation(FilesystemVolume volume) {
+        return volume.getId() << LOCATION_VOLUME_SHIFT;
+    }
+
+    /**
+     * Images are looked up on their preferred volumes first, but can be on any of them until rebalanced.
+     */
+    private Optional<Located> locateOnVolumes(long key, ImageSpec spec) {
+        for (FilesystemVolume volume : volumes.placement(key)) {
+            long start = System.nanoTime();
+            Optional<Located> found = locate(volume.getDir(), volumeLocation(volume), spec);
+            volume.getHealth().recordLatency(System.nanoTime() - start);
+            if (found.isPresent()) {
+                return found;
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * While migrating to a fan-out layout, images not yet moved are still looked up in the legacy layout.
+     */
+    private Optional<Located> locate(Path dir, int location, ImageSpec spec) {
+        Path file = layout.resolve(dir, spec);
+        if (Files.exists(file)) {
+            return Optional.of(new Located(file, location));
+        }
+
+        if (legacyLookups) {
+            Path legacyFile = FilesystemLayout.legacy().resolve(dir, spec);
+            if (Files.exists(legacyFile)) {
+                return Optional.of(new Located(legacyFile, location | LOCATION_LEGACY_LAYOUT_FLAG));
+            }
+        }
+
+        return Optional.empty();
     }
 
-    private Path specToPath(Path dir, ImageSpec spec) {
-        return dir
-            .resolve(spec.mode().getPathFragment())
-            .resolve(spec.chapter())
-            .resolve(spec.file());
+    private Path pathOf(int location, ImageSpec spec) {
+        Path dir = (location & LOCATION_ALT_DIR) != 0
+            ? filesystemSettings.altDir()
+            : volumes.byId(location >>> LOCATION_VOLUME_SHIFT).getDir();
+        FilesystemLayout fileLayout = (location & LOCATION_LEGACY_LAYOUT_FLAG) != 0 ? FilesystemLayout.legacy() : layout;
+        return fileLayout.resolve(dir, spec);
+    }
+
+    private MediaType resolveMediaType(FilesystemMediaType filesystemMediaType, Path file) {
+        if (filesystemMediaType != FilesystemMediaType.UNKNOWN) {
+            return filesystemMediaType.getMediaType();
+        }
+
+        try {
+            String probedContentType = Files.probeContentType(file);
+            if (probedContentType != null) {
+                return MediaType.parseMediaType(probedContentType);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot probe content type of {}: {}", file, e.getMessage());
+        }
+        return MediaType.APPLICATION_OCTET_STREAM;
+    }
+
+    private void buildIndex() {
+        long start = System.nanoTime();
+        LOGGER.info("Building index of filesystem cache contents...");
+
+        FilesystemCacheScanner scanner = new FilesystemCacheScanner(filesystemSettings.index().scanParallelism());
+        // altDir first, so that images present in both directories are indexed at their rootDir location
+        if (filesystemSettings.useAltDir()) {
+            scanner.scan(filesystemSettings.altDir(), (spec, file, attributes, legacy) -> indexScanned(spec, attributes, LOCATION_ALT_DIR, legacy));
+        }
+        LongAdder rootDirBytes = new LongAdder();
+        for (FilesystemVolume volume : volumes.all()) {
+            scanner.scan(volume.getDir(), (spec, file, attributes, legacy) -> {
+                indexScanned(spec, attributes, volumeLocation(volume), legacy);
+                rootDirBytes.add(objects.physicalSize(spec, file, attributes.size()));
+            });
+        }
+
+        index.markReady();
+        if (!usage.isKnown()) {
+            usage.reconcile(rootDirBytes.sum());
+        }
+        LOGGER.info(
+            "Indexed {} images ({}GB) in {}s",
+            index.size(),
+            DataSize.ofBytes(index.totalBytes()).toGigabytes(),
+            TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start)
+        );
+    }
+
+    private void indexScanned(ImageSpec spec, BasicFileAttributes attributes, int location, boolean legacy) {
+        index.put(
+            FilesystemCacheIndex.key(spec),
+            attributes.size(),
+            attributes.lastModifiedTime().toMillis(),
+            legacy && layout.isSharded() ? location | LOCATION_LEGACY_LAYOUT_FLAG : location,
+            FilesystemMediaType.fromFileName(spec.file())
+        );
     }
 
     @Override
     public Health health() {
         try {
-            validateDirHealth(filesystemSettings.rootDir());
+            for (Path dir : volumes.dirs()) {
+                validateDirHealth(dir);
+            }
             if (filesystemSettings.useAltDir()) {
                 validateDirHealth(filesystemSettings.altDir());
             }
@@ -252,4 +515,6 @@ public class FilesystemCachedImageService implements CachedImageService, HealthI
         }
     }
 
+    private record Located(Path file, int location) {}
+
 }
@@ -1,9 +1,20 @@
 package moe.tristan.kmdah.service.images.cache.filesystem;
 
+import java.nio.file.Path;
+import java.util.List;
+
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
+import org.springframework.util.unit.DataSize;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import moe.tristan.kmdah.service.gossip.InstanceId;
+import moe.tristan.kmdah.service.gossip.messages.pub.GossipPublisher;
 
 @Configuration
 @Profile("cache-filesystem")
@@ -11,8 +22,226 @@ import org.springframework.context.annotation.Profile;
 public class FilesystemConfiguration {
 
     @Bean
-    FilesystemCachedImageService filesystemCachedImageService(FilesystemSettings filesystemSettings) {
-        return new FilesystemCachedImageService(filesystemSettings);
+    FilesystemLayout filesystemLayout(FilesystemSettings filesystemSettings) {
+        return FilesystemLayout.from(filesystemSettings.layout());
+    }
+
+    @Bean
+    FilesystemVolumes filesystemVolumes(FilesystemSettings filesystemSettings, MeterRegistry meterRegistry) {
+        FilesystemVolumes volumes = FilesystemVolumes.from(filesystemSettings);
+        for (FilesystemVolume volume : volumes.all()) {
+            DiskHealth health = volume.getHealth();
+            String dir = volume.getDir().toString();
+            Gauge.builder("kmdah_cache_filesystem_volume_latency_micros", health, DiskHealth::getLatencyMicros).tag("volume", dir).register(meterRegistry);
+            Gauge.builder("kmdah_cache_filesystem_volume_errors", health, DiskHealth::getRecentErrors).tag("volume", dir).register(meterRegistry);
+            Gauge.builder("kmdah_cache_filesystem_volume_free_bytes", health, DiskHealth::getFreeBytes).tag("volume", dir).register(meterRegistry);
+            Gauge.builder("kmdah_cache_filesystem_volume_degraded", health, h -> h.isDegraded() ? 1 : 0).tag("volume", dir).register(meterRegistry);
+        }
+        return volumes;
+    }
+
+    @Bean
+    FilesystemCacheIndex filesystemCacheIndex(FilesystemSettings filesystemSettings, MeterRegistry meterRegistry) {
+        if (!filesystemSettings.index().enabled()) {
+            return FilesystemCacheIndex.disabled();
+        }
+
+        FilesystemCacheIndex index = FilesystemCacheIndex.create(filesystemSettings.index().expectedEntries());
+        Gauge.builder("kmdah_cache_filesystem_index_entries", index, FilesystemCacheIndex::size).register(meterRegistry);
+        Gauge.builder("kmdah_cache_filesystem_index_bytes", index, FilesystemCacheIndex::totalBytes).register(meterRegistry);
+        return index;
+    }
+
+    @Bean
+    FilesystemIndexInvalidations filesystemIndexInvalidations(
+        FilesystemCacheIndex filesystemCacheIndex,
+        GossipPublisher gossipPublisher,
+        InstanceId instanceId
+    ) {
+        return new FilesystemIndexInvalidations(filesystemCacheIndex, gossipPublisher, instanceId.id());
+    }
+
+    @Bean
+    AccessRecencyFile accessRecencyFile(FilesystemSettings filesystemSettings) {
+        if (filesystemSettings.readOnly()) {
+            return AccessRecencyFile.disabled();
+        }
+        Path recencyFile = filesystemSettings.vacuum().recencyFile() != null
+            ? filesystemSettings.vacuum().recencyFile()
+            : defaultRecencyFile(filesystemSettings);
+        return AccessRecencyFile.open(recencyFile, filesystemSettings.vacuum().recencyBuckets());
+    }
+
+    /**
+     * Next to the data so that it survives restarts, but in a file of each instance, as memory-mapping a file shared over a network filesystem is unsafe.
+     */
+    private static Path defaultRecencyFile(FilesystemSettings filesystemSettings) {
+        try {
+            return filesystemSettings.rootDir().resolve(".recency").resolve(InstanceId.generateId(InstanceId.IdGenerationStrategy.HOSTNAME));
+        } catch (IllegalStateException e) {
+            // no stable name to tell instances apart by
+            return Path.of(System.getProperty("java.io.tmpdir"), "kmdah", "recency");
+        }
+    }
+
+    @Bean
+    AccessRecencySharing accessRecencySharing(AccessRecencyFile accessRecencyFile, GossipPublisher gossipPublisher, InstanceId instanceId) {
+        return new AccessRecencySharing(accessRecencyFile, gossipPublisher, instanceId.id());
+    }
+
+    @Bean
+    FilesystemUsage filesystemUsage(MeterRegistry meterRegistry) {
+        FilesystemUsage usage = new FilesystemUsage();
+        Gauge.builder("kmdah_cache_filesystem_used_bytes", usage, FilesystemUsage::usedBytes).tag("tier", "hot").register(meterRegistry);
+        return usage;
+    }
+
+    @Bean
+    FilesystemObjects filesystemObjects(FilesystemSettings filesystemSettings, FilesystemVolumes filesystemVolumes, MeterRegistry meterRegistry) {
+        FilesystemObjects objects = new FilesystemObjects(filesystemSettings.dedup().enabled(), filesystemVolumes.dirs());
+        if (objects.isEnabled()) {
+            FunctionCounter.builder("kmdah_cache_dedup_writes", objects, FilesystemObjects::getDeduplicatedWrites).tag("backend", "filesystem").register(meterRegistry);
+            Gauge.builder("kmdah_cache_dedup_saved_bytes", objects, FilesystemObjects::getSavedBytes).tag("backend", "filesystem").register(meterRegistry);
+        }
+        return objects;
+    }
+
+    @Bean
+    FilesystemTiering filesystemTiering(
+        FilesystemSettings filesystemSettings,
+        FilesystemLayout filesystemLayout,
+        FilesystemVolumes filesystemVolumes,
+        FilesystemCacheIndex filesystemCacheIndex,
+        FilesystemObjects filesystemObjects,
+        FilesystemUsage filesystemUsage,
+        MeterRegistry meterRegistry
+    ) {
+        FilesystemTiering tiering = new FilesystemTiering(
+            filesystemSettings,
+            filesystemLayout,
+            filesystemVolumes,
+            filesystemCacheIndex,
+            filesystemObjects,
+            filesystemUsage,
+            meterRegistry
+        );
+        if (tiering.isEnabled()) {
+            Gauge.builder("kmdah_cache_filesystem_used_bytes", tiering.getColdUsage(), FilesystemUsage::usedBytes).tag("tier", "cold").register(meterRegistry);
+        }
+        return tiering;
+    }
+
+    /**
+     * With tiering, images are only ever deleted from the cold tier, as the hot one is kept in check by demotions.
+     */
+    @Bean
+    FilesystemVacuum filesystemVacuum(
+        FilesystemSettings filesystemSettings,
+        FilesystemVolumes filesystemVolumes,
+        FilesystemCacheIndex filesystemCacheIndex,
+        FilesystemObjects filesystemObjects,
+        AccessRecencyFile accessRecencyFile,
+        FilesystemUsage filesystemUsage,
+        FilesystemTiering filesystemTiering
+    ) {
+        if (!filesystemTiering.isEnabled()) {
+            return new FilesystemVacuum(
+                filesystemSettings,
+                filesystemVolumes.dirs(),
+                accessRecencyFile,
+                filesystemUsage,
+                filesystemObjects,
+                filesystemSettings.vacuum().deletionsPerSecond(),
+                FilesystemVacuum.deleting(filesystemCacheIndex, filesystemObjects)
+            );
+        }
+
+        return new FilesystemVacuum(
+            filesystemSettings,
+            List.of(filesystemSettings.altDir()),
+            accessRecencyFile,
+            filesystemTiering.getColdUsage(),
+            FilesystemObjects.disabled(),
+            filesystemSettings.vacuum().deletionsPerSecond(),
+            FilesystemVacuum.deleting(filesystemCacheIndex, FilesystemObjects.disabled())
+        );
+    }
+
+    @Bean
+    FilesystemDemotionJob filesystemDemotionJob(
+        FilesystemSettings filesystemSettings,
+        FilesystemVolumes filesystemVolumes,
+        FilesystemObjects filesystemObjects,
+        AccessRecencyFile accessRecencyFile,
+        FilesystemUsage filesystemUsage,
+        FilesystemTiering filesystemTiering
+    ) {
+        FilesystemVacuum hotTierVacuum = new FilesystemVacuum(
+            filesystemSettings,
+            filesystemVolumes.dirs(),
+            accessRecencyFile,
+            filesystemUsage,
+            filesystemObjects,
+            DataSize.ofMegabytes(filesystemSettings.tiering().demotionMbPerSecond()).toBytes(),
+            filesystemTiering.demoting()
+        );
+        return new FilesystemDemotionJob(filesystemSettings, hotTierVacuum);
+    }
+
+    @Bean
+    FilesystemWritePipeline filesystemWritePipeline(
+        FilesystemSettings filesystemSettings,
+        FilesystemObjects filesystemObjects,
+        MeterRegistry meterRegistry
+    ) {
+        return new FilesystemWritePipeline(filesystemSettings.writes(), filesystemObjects, meterRegistry);
+    }
+
+    @Bean
+    FilesystemCachedImageService filesystemCachedImageService(
+        FilesystemSettings filesystemSettings,
+        FilesystemLayout filesystemLayout,
+        FilesystemVolumes filesystemVolumes,
+        FilesystemCacheIndex filesystemCacheIndex,
+        AccessRecencyFile accessRecencyFile,
+        FilesystemUsage filesystemUsage,
+        FilesystemVacuum filesystemVacuum,
+        FilesystemTiering filesystemTiering,
+        FilesystemWritePipeline filesystemWritePipeline,
+        FilesystemObjects filesystemObjects
+    ) {
+        return new FilesystemCachedImageService(
+            filesystemSettings,
+            filesystemLayout,
+            filesystemVolumes,
+            filesystemCacheIndex,
+            accessRecencyFile,
+            filesystemUsage,
+            filesystemVacuum,
+            filesystemTiering,
+            filesystemWritePipeline,
+            filesystemObjects
+        );
+    }
+
+    @Bean
+    FilesystemLayoutMigration filesystemLayoutMigration(
+        FilesystemSettings filesystemSettings,
+        FilesystemLayout filesystemLayout,
+        FilesystemVolumes filesystemVolumes,
+        FilesystemCacheIndex filesystemCacheIndex
+    ) {
+        return new FilesystemLayoutMigration(filesystemSettings, filesystemLayout, filesystemVolumes, filesystemCacheIndex);
+    }
+
+    @Bean
+    FilesystemRebalanceJob filesystemRebalanceJob(
+        FilesystemSettings filesystemSettings,
+        FilesystemLayout filesystemLayout,
+        FilesystemVolumes filesystemVolumes,
+        FilesystemCacheIndex filesystemCacheIndex
+    ) {
+        return new FilesystemRebalanceJob(filesystemSettings, filesystemLayout, filesystemVolumes, filesystemCacheIndex);
     }
 
 }
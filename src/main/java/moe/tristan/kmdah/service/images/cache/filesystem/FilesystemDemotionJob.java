@@ -0,0 +1,57 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import java.time.Duration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.unit.DataSize;
+
+import moe.tristan.kmdah.service.images.cache.VacuumingRequest;
+import moe.tristan.kmdah.service.images.cache.VacuumingResult;
+import moe.tristan.kmdah.service.leader.LeaderActivity;
+
+/**
+ * Keeps the hot tier under its size by demoting its least recently accessed images to the cold tier.
+ */
+public class FilesystemDemotionJob implements LeaderActivity {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FilesystemDemotionJob.class);
+
+    private final boolean enabled;
+    private final DataSize hotTierSize;
+    private final FilesystemVacuum hotTierVacuum;
+
+    public FilesystemDemotionJob(FilesystemSettings filesystemSettings, FilesystemVacuum hotTierVacuum) {
+        this.enabled = FilesystemTiering.isEnabled(filesystemSettings);
+        this.hotTierSize = DataSize.ofGigabytes(filesystemSettings.tiering().hotSizeGb());
+        this.hotTierVacuum = hotTierVacuum;
+    }
+
+    @Override
+    public String getName() {
+        return "Filesystem tier demotion";
+    }
+
+    @Override
+    public Duration getInitialDelay() {
+        return Duration.ofSeconds(20);
+    }
+
+    @Override
+    public Duration getPeriod() {
+        return Duration.ofMinutes(5);
+    }
+
+    @Override
+    public void run() {
+        if (!enabled) {
+            return;
+        }
+
+        VacuumingResult result = hotTierVacuum.vacuum(new VacuumingRequest(hotTierSize));
+        if (result.deletedFileCount() > 0) {
+            LOGGER.info("Demoted {} images ({}MB) to cold tier", result.deletedFileCount(), result.freedSpace().toMegabytes());
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.EventListener;
+
+import moe.tristan.kmdah.service.gossip.messages.CacheIndexInvalidationEvent;
+import moe.tristan.kmdah.service.gossip.messages.pub.GossipPublisher;
+
+/**
+ * Keeps the indexes of all workers in line with the shared cache directories: the keys of images moved or deleted by this worker are broadcast every
+ * second, in batches, and those broadcast by other workers are dropped from the local index, to be located again on their next lookup.
+ * <p>
+ * Lookups still fall back to locating images on disk when their indexed file is gone, as an index may be briefly out of date until the broadcast reaches
+ * it.
+ */
+public class FilesystemIndexInvalidations implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FilesystemIndexInvalidations.class);
+
+    private static final int MAX_BATCH_KEYS = 4096;
+
+    private final FilesystemCacheIndex index;
+    private final GossipPublisher gossipPublisher;
+    private final String localWorkerId;
+    private final Queue<Long> pending = new ConcurrentLinkedQueue<>();
+
+    private final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "kmdah-filesystem-index-invalidations");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public FilesystemIndexInvalidations(FilesystemCacheIndex index, GossipPublisher gossipPublisher, String localWorkerId) {
+        this.index = index;
+        this.gossipPublisher = gossipPublisher;
+        this.localWorkerId = localWorkerId;
+
+        if (index.isEnabled()) {
+            index.onInvalidation(pending::add);
+            executorService.scheduleWithFixedDelay(this::broadcast, 1, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    @EventListener(CacheIndexInvalidationEvent.class)
+    public void onInvalidation(CacheIndexInvalidationEvent invalidationEvent) {
+        if (localWorkerId.equals(invalidationEvent.worker().id())) {
+            return;
+        }
+        for (long key : invalidationEvent.keys()) {
+            index.remove(key);
+        }
+    }
+
+    void broadcast() {
+        try {
+            while (!pending.isEmpty()) {
+                long[] batch = new long[Math.min(pending.size(), MAX_BATCH_KEYS)];
+                int size = 0;
+                Long key;
+                while (size < batch.length && (key = pending.poll()) != null) {
+                    batch[size++] = key;
+                }
+                gossipPublisher.broadcastCacheIndexInvalidation(size == batch.length ? batch : Arrays.copyOf(batch, size));
+            }
+        } catch (Exception e) {
+            LOGGER.error("Failed broadcasting filesystem index invalidations, other workers will locate those images again on lookup", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        executorService.shutdownNow();
+    }
+
+}
@@ -0,0 +1,73 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import java.nio.file.Path;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageSpec;
+
+/**
+ * Maps image specs to paths in a cache directory.
+ * <p>
+ * The legacy layout is {@code mode/chapterHash/file}. With a fan-out, chapter directories are spread in intermediate directories named after
+ * prefixes of the chapter hash, for example {@code mode/ab/cd/abcd1234.../file} for a depth of 2 and width of 2, so that no single directory ends up
+ * with millions of entries.
+ */
+public final class FilesystemLayout {
+
+    private static final FilesystemLayout LEGACY = new FilesystemLayout(0, 0);
+
+    private final int fanOutDepth;
+    private final int fanOutWidth;
+
+    private FilesystemLayout(int fanOutDepth, int fanOutWidth) {
+        this.fanOutDepth = fanOutDepth;
+        this.fanOutWidth = fanOutWidth;
+    }
+
+    public static FilesystemLayout legacy() {
+        return LEGACY;
+    }
+
+    public static FilesystemLayout from(FilesystemSettings.Layout settings) {
+        if (settings == null || settings.fanOutDepth() <= 0) {
+            return LEGACY;
+        }
+        if (settings.fanOutWidth() <= 0) {
+            throw new IllegalArgumentException("Fan-out width must be strictly positive, but was " + settings.fanOutWidth());
+        }
+        return new FilesystemLayout(settings.fanOutDepth(), settings.fanOutWidth());
+    }
+
+    public boolean isSharded() {
+        return fanOutDepth > 0;
+    }
+
+    public int getFanOutWidth() {
+        return fanOutWidth;
+    }
+
+    public Path modeDir(Path dir, ImageMode mode) {
+        return dir.resolve(mode.getPathFragment());
+    }
+
+    public Path chapterDir(Path dir, ImageMode mode, String chapter) {
+        Path path = modeDir(dir, mode);
+        for (int level = 0; level < fanOutDepth; level++) {
+            path = path.resolve(shardFragment(chapter, level));
+        }
+        return path.resolve(chapter);
+    }
+
+    public Path resolve(Path dir, ImageSpec spec) {
+        return chapterDir(dir, spec.mode(), spec.chapter()).resolve(spec.file());
+    }
+
+    private String shardFragment(String chapter, int level) {
+        StringBuilder fragment = new StringBuilder(fanOutWidth);
+        for (int i = level * fanOutWidth; i < (level + 1) * fanOutWidth; i++) {
+            fragment.append(i < chapter.length() ? Character.toLowerCase(chapter.charAt(i)) : '_');
+        }
+        return fragment.toString();
+    }
+
+}
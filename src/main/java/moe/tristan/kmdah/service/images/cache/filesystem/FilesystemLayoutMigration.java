@@ -0,0 +1,183 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.leader.LeaderActivity;
+import moe.tristan.kmdah.util.IoBudget;
+
+/**
+ * Moves chapters stored in the legacy {@code mode/chapterHash} layout to the configured fan-out layout, while the cache keeps serving from both.
+ * <p>
+ * All volumes, and the alt directory, are migrated. The index entries of moved images are relocated to the new layout, on every worker.
+ */
+public class FilesystemLayoutMigration implements LeaderActivity {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FilesystemLayoutMigration.class);
+
+    private final List<MigratedDir> dirs;
+    private final FilesystemLayout layout;
+    private final FilesystemCacheIndex index;
+    private final boolean enabled;
+    private final IoBudget ioBudget;
+
+    private volatile boolean completed = false;
+
+    public FilesystemLayoutMigration(
+        FilesystemSettings filesystemSettings,
+        FilesystemLayout layout,
+        FilesystemVolumes volumes,
+        FilesystemCacheIndex index
+    ) {
+        this.dirs = new ArrayList<>();
+        for (FilesystemVolume volume : volumes.all()) {
+            dirs.add(new MigratedDir(volume.getDir(), FilesystemCachedImageService.volumeLocation(volume)));
+        }
+        if (filesystemSettings.useAltDir()) {
+            dirs.add(new MigratedDir(filesystemSettings.altDir(), FilesystemCachedImageService.LOCATION_ALT_DIR));
+        }
+        this.layout = layout;
+        this.index = index;
+        this.enabled = layout.isSharded() && filesystemSettings.layout().migrate() && !filesystemSettings.readOnly();
+        this.ioBudget = IoBudget.perSecond(filesystemSettings.layout().migrationChaptersPerSecond());
+    }
+
+    @Override
+    public String getName() {
+        return "Filesystem layout migration";
+    }
+
+    @Override
+    public Duration getInitialDelay() {
+        return Duration.ofSeconds(30);
+    }
+
+    @Override
+    public Duration getPeriod() {
+        return Duration.ofMinutes(10);
+    }
+
+    @Override
+    public void run() {
+        if (!enabled || completed) {
+            return;
+        }
+
+        long migrated = 0L;
+        for (MigratedDir dir : dirs) {
+            for (ImageMode mode : ImageMode.values()) {
+                Path modeDir = layout.modeDir(dir.path(), mode);
+                if (!Files.isDirectory(modeDir)) {
+                    continue;
+                }
+
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(modeDir, this::isLegacyChapterDir)) {
+                    for (Path legacyChapterDir : entries) {
+                        if (!ioBudget.acquire(1)) {
+                            LOGGER.info("Interrupted layout migration after moving {} chapters", migrated);
+                            return;
+                        }
+                        migrateChapter(dir, mode, legacyChapterDir);
+                        migrated++;
+                    }
+                } catch (IOException e) {
+                    LOGGER.error("Failed listing {} for layout migration, will retry later", modeDir, e);
+                    return;
+                }
+            }
+        }
+
+        if (migrated == 0L) {
+            LOGGER.info("No chapter left in legacy layout, layout migration is complete.");
+            completed = true;
+        } else {
+            LOGGER.info("Moved {} chapters to the fan-out layout", migrated);
+        }
+    }
+
+    private boolean isLegacyChapterDir(Path entry) {
+        String name = entry.getFileName().toString();
+        return !name.startsWith(".")
+            && name.length() != layout.getFanOutWidth()
+            && Files.isDirectory(entry);
+    }
+
+    private void migrateChapter(MigratedDir dir, ImageMode mode, Path legacyChapterDir) {
+        String chapter = legacyChapterDir.getFileName().toString();
+        Path target = layout.chapterDir(dir.path(), mode, chapter);
+        List<String> files;
+        try (Stream<Path> legacyFiles = Files.list(legacyChapterDir)) {
+            files = legacyFiles.map(file -> file.getFileName().toString()).collect(Collectors.toList());
+        } catch (IOException e) {
+            LOGGER.error("Failed listing {} for layout migration", legacyChapterDir, e);
+            return;
+        }
+
+        // only images that are in the new layout now, as the others are still where their index entries point to
+        List<String> migrated = new ArrayList<>(files.size());
+        try {
+            if (Files.exists(target)) {
+                // chapter was partially re-fetched in the new layout in the meantime
+                mergeChapter(legacyChapterDir, target, migrated);
+            } else {
+                Files.createDirectories(target.getParent());
+                Files.move(legacyChapterDir, target, StandardCopyOption.ATOMIC_MOVE);
+                migrated.addAll(files);
+            }
+        } catch (IOException e) {
+            LOGGER.error("Failed migrating {} to {}", legacyChapterDir, target, e);
+        }
+
+        for (String file : migrated) {
+            relocate(new ImageSpec(mode, chapter, file), dir.location());
+        }
+    }
+
+    /**
+     * Points the index entry of the image to the new layout, or lets other workers drop theirs if this one didn't index it.
+     */
+    private void relocate(ImageSpec spec, int location) {
+        long key = FilesystemCacheIndex.key(spec);
+        Optional<FilesystemCacheIndex.Entry> entry = index.get(key);
+        if (entry.isPresent() && (entry.get().location() & ~FilesystemCachedImageService.LOCATION_LEGACY_LAYOUT_FLAG) == location) {
+            index.relocate(key, entry.get().size(), entry.get().lastModifiedMillis(), location, entry.get().mediaType());
+        } else {
+            index.invalidate(key);
+        }
+    }
+
+    /**
+     * @param migrated the names of the images found in the new layout once merged, as they are
+     */
+    private void mergeChapter(Path legacyChapterDir, Path target, List<String> migrated) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(legacyChapterDir)) {
+            for (Path file : files) {
+                Path targetFile = target.resolve(file.getFileName());
+                if (Files.exists(targetFile)) {
+                    Files.delete(file);
+                } else {
+                    Files.move(file, targetFile, StandardCopyOption.ATOMIC_MOVE);
+                }
+                migrated.add(file.getFileName().toString());
+            }
+        }
+        Files.delete(legacyChapterDir);
+    }
+
+    private record MigratedDir(Path path, int location) {}
+
+}
@@ -0,0 +1,49 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import java.util.Locale;
+
+import org.springframework.http.MediaType;
+
+/**
+ * Media types of cached images, resolved from file extensions rather than by probing file contents.
+ */
+public enum FilesystemMediaType {
+
+    UNKNOWN(null),
+    PNG(MediaType.IMAGE_PNG),
+    JPEG(MediaType.IMAGE_JPEG),
+    GIF(MediaType.IMAGE_GIF),
+    WEBP(MediaType.parseMediaType("image/webp"));
+
+    private static final FilesystemMediaType[] VALUES = values();
+
+    private final MediaType mediaType;
+
+    FilesystemMediaType(MediaType mediaType) {
+        this.mediaType = mediaType;
+    }
+
+    public static FilesystemMediaType fromOrdinal(int ordinal) {
+        return ordinal >= 0 && ordinal < VALUES.length ? VALUES[ordinal] : UNKNOWN;
+    }
+
+    public static FilesystemMediaType fromFileName(String fileName) {
+        int extensionStart = fileName.lastIndexOf('.');
+        if (extensionStart < 0) {
+            return UNKNOWN;
+        }
+
+        return switch (fileName.substring(extensionStart + 1).toLowerCase(Locale.ROOT)) {
+            case "png" -> PNG;
+            case "jpg", "jpeg" -> JPEG;
+            case "gif" -> GIF;
+            case "webp" -> WEBP;
+            default -> UNKNOWN;
+        };
+    }
+
+    public MediaType getMediaType() {
+        return mediaType;
+    }
+
+}
@@ -0,0 +1,231 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import moe.tristan.kmdah.service.images.ImageSpec;
+
+/**
+ * Stores identical images once, by making each of them a hard link to a single file named after its content hash under {@code .objects}. Only data mode
+ * images are concerned, as their file names embed their (verified) SHA-256, so that the object of an image is known without reading it.
+ * <p>
+ * The link count of a file then doubles as the reference count of its content: deleting an image only frees space if it was the last reference to it, in
+ * which case its object is deleted along with it. Objects left unreferenced by concurrent deletions are removed when usage is reconciled.
+ */
+public class FilesystemObjects {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FilesystemObjects.class);
+
+    static final String OBJECTS_DIR = ".objects";
+
+    private final boolean enabled;
+    private final List<Path> dirs;
+
+    private final LongAdder deduplicatedWrites = new LongAdder();
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    public FilesystemObjects(boolean enabled, List<Path> dirs) {
+        this.enabled = enabled;
+        this.dirs = List.copyOf(dirs);
+    }
+
+    public static FilesystemObjects disabled() {
+        return new FilesystemObjects(false, List.of());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the object an image written at this path should be a link to, if deduplicated
+     */
+    public Optional<Path> objectOf(ImageSpec spec, Path file) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+
+        Optional<String> hash = spec.contentHash();
+        if (hash.isEmpty()) {
+            return Optional.empty();
+        }
+
+        return dirs
+            .stream()
+            .filter(file::startsWith)
+            .findFirst()
+            .map(dir -> dir.resolve(OBJECTS_DIR).resolve(hash.get().substring(0, 2)).resolve(hash.get().substring(2, 4)).resolve(hash.get()));
+    }
+
+    /**
+     * @return whether the file was created as a link to the existing object, in which case it doesn't need to be written
+     */
+    public boolean linkToExisting(Path object, Path file) throws IOException {
+        if (!Files.exists(object)) {
+            return false;
+        }
+
+        try {
+            Files.createLink(file, object);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        deduplicatedWrites.increment();
+        return true;
+    }
+
+    /**
+     * Makes a newly written image the object of its content.
+     */
+    public void register(Path object, Path file) {
+        try {
+            Files.createDirectories(object.getParent());
+            Files.createLink(object, file);
+        } catch (FileAlreadyExistsException e) {
+            // the same content was written concurrently, this copy just stays unshared
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.debug("Cannot register {} as object {}: {}", file, object, e.getMessage());
+        }
+    }
+
+    /**
+     * @return the amount of bytes freed by deleting this image
+     */
+    public long delete(ImageSpec spec, Path file) throws IOException {
+        long size = Files.size(file);
+        int links = enabled ? linkCount(file) : 1;
+
+        Optional<Path> object = links > 1 ? objectOf(spec, file) : Optional.empty();
+        boolean lastReference = links == 2 && object.isPresent() && isSameFile(object.get(), file);
+
+        Files.delete(file);
+        if (links <= 1) {
+            return size;
+        }
+        if (lastReference) {
+            Files.deleteIfExists(object.get());
+            return size;
+        }
+        return 0L;
+    }
+
+    /**
+     * Deletes a corrupted image, and its object first if it is one of its references, so that no new image gets linked to the corrupted content. Other
+     * references to it are as corrupted, and must be found with {@link #sharedContentKey} and evicted too.
+     *
+     * @return the amount of bytes freed by deleting this image
+     */
+    public long evict(ImageSpec spec, Path file) throws IOException {
+        Optional<Path> object = objectOf(spec, file);
+        if (object.isPresent() && isSameFile(object.get(), file)) {
+            Files.deleteIfExists(object.get());
+        }
+        return delete(spec, file);
+    }
+
+    /**
+     * @return what identifies the content of this image among the files of its directory, if it is shared with other images
+     */
+    public Optional<Object> sharedContentKey(Path file) throws IOException {
+        if (!enabled || linkCount(file) <= 1) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(Files.readAttributes(file, BasicFileAttributes.class).fileKey());
+    }
+
+    /**
+     * @return the share of the space used by this image, given that its object (if any) and other references share the same space
+     */
+    public long physicalSize(ImageSpec spec, Path file, long size) {
+        if (!enabled) {
+            return size;
+        }
+
+        int links = linkCount(file);
+        if (links <= 1) {
+            return size;
+        }
+
+        // the object of evicted content is gone, while its references may not have been evicted yet
+        boolean objectLinked = objectOf(spec, file).map(object -> isSameFile(object, file)).orElse(false);
+        return size / (objectLinked ? links - 1 : links);
+    }
+
+    /**
+     * @return the amount of bytes freed by deleting unreferenced objects in this directory
+     */
+    public long deleteOrphans(Path dir) {
+        Path objectsDir = dir.resolve(OBJECTS_DIR);
+        if (!enabled || !Files.isDirectory(objectsDir)) {
+            return 0L;
+        }
+
+        long[] freed = {0L};
+        try {
+            Files.walkFileTree(objectsDir, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path object, BasicFileAttributes attributes) {
+                    if (attributes.isRegularFile() && linkCount(object) <= 1) {
+                        try {
+                            Files.delete(object);
+                            freed[0] += attributes.size();
+                        } catch (IOException e) {
+                            LOGGER.warn("Cannot delete unreferenced object {}: {}", object, e.getMessage());
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.error("Failed deleting unreferenced objects in {}", objectsDir, e);
+        }
+        return freed[0];
+    }
+
+    public void recordSavings(long logicalBytes, long physicalBytes) {
+        savedBytes.set(Math.max(0L, logicalBytes - physicalBytes));
+    }
+
+    public long getSavedBytes() {
+        return savedBytes.get();
+    }
+
+    public long getDeduplicatedWrites() {
+        return deduplicatedWrites.sum();
+    }
+
+    private static int linkCount(Path file) {
+        try {
+            return ((Number) Files.getAttribute(file, "unix:nlink")).intValue();
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return 1;
+        }
+    }
+
+    private static boolean isSameFile(Path object, Path file) {
+        try {
+            return Files.isSameFile(object, file);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.unit.DataSize;
+
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.leader.LeaderActivity;
+import moe.tristan.kmdah.util.IoBudget;
+
+/**
+ * Moves images that are not on their preferred volume back to it, be it because they were written while it was unhealthy, because volumes were added,
+ * or because their volume is being drained.
+ * <p>
+ * After a first full pass, volumes are only walked again once some writes went to other volumes than their preferred one.
+ */
+public class FilesystemRebalanceJob implements LeaderActivity {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FilesystemRebalanceJob.class);
+
+    private final FilesystemLayout layout;
+    private final FilesystemVolumes volumes;
+    private final FilesystemCacheIndex index;
+    private final boolean enabled;
+    private final IoBudget ioBudget;
+
+    private boolean initialPassDone = false;
+
+    public FilesystemRebalanceJob(FilesystemSettings filesystemSettings, FilesystemLayout layout, FilesystemVolumes volumes, FilesystemCacheIndex index) {
+        this.layout = layout;
+        this.volumes = volumes;
+        this.index = index;
+        this.enabled = volumes.isStriped() && !filesystemSettings.readOnly();
+        this.ioBudget = IoBudget.perSecond(DataSize.ofMegabytes(filesystemSettings.stripes().rebalanceMbPerSecond()).toBytes());
+    }
+
+    @Override
+    public String getName() {
+        return "Filesystem volumes rebalancing";
+    }
+
+    @Override
+    public Duration getInitialDelay() {
+        return Duration.ofMinutes(1);
+    }
+
+    @Override
+    public Duration getPeriod() {
+        return Duration.ofMinutes(10);
+    }
+
+    @Override
+    public synchronized void run() {
+        if (!enabled || (initialPassDone && !volumes.consumeMisplacedWrites())) {
+            return;
+        }
+        initialPassDone = true;
+
+        Thread jobThread = Thread.currentThread();
+        long[] moved = {0L, 0L};
+        for (FilesystemVolume volume : volumes.all()) {
+            // images are moved as they are found, rather than after listing all of those of the volume
+            new FilesystemCacheScanner(1).scan(volume.getDir(), (spec, file, attributes, legacyLayout) -> {
+                FilesystemVolume preferred = volumes.preferred(FilesystemCacheIndex.key(spec));
+                if (preferred.getId() == volume.getId() || !preferred.canAcceptWrites() || jobThread.isInterrupted()) {
+                    return;
+                }
+                if (!ioBudget.acquire(attributes.size())) {
+                    return;
+                }
+
+                Misplaced misplaced = new Misplaced(spec, file, attributes.size(), preferred);
+                try {
+                    move(misplaced);
+                    moved[0]++;
+                    moved[1] += misplaced.size();
+                } catch (IOException e) {
+                    misplaced.target().getHealth().recordError();
+                    LOGGER.warn("Cannot move {} to {}: {}", misplaced.file(), misplaced.target(), e.getMessage());
+                }
+            });
+
+            if (jobThread.isInterrupted()) {
+                LOGGER.info("Interrupted rebalancing after moving {} images", moved[0]);
+                return;
+            }
+        }
+
+        if (moved[0] > 0) {
+            LOGGER.info("Rebalanced {} images ({}MB) across volumes", moved[0], DataSize.ofBytes(moved[1]).toMegabytes());
+        }
+    }
+
+    private void move(Misplaced misplaced) throws IOException {
+        Path target = layout.resolve(misplaced.target().getDir(), misplaced.spec());
+        if (!Files.exists(target)) {
+            FilesystemVolumes.copyAcross(misplaced.file(), target);
+        }
+
+        index.relocate(
+            FilesystemCacheIndex.key(misplaced.spec()),
+            misplaced.size(),
+            Files.getLastModifiedTime(target).toMillis(),
+            FilesystemCachedImageService.volumeLocation(misplaced.target()),
+            FilesystemMediaType.fromFileName(misplaced.spec().file())
+        );
+        Files.delete(misplaced.file());
+
+        try {
+            Files.deleteIfExists(misplaced.file().getParent());
+        } catch (DirectoryNotEmptyException e) {
+            // still has images
+        }
+    }
+
+    private record Misplaced(ImageSpec spec, Path file, long size, FilesystemVolume target) {}
+
+}
@@ -0,0 +1,258 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.unit.DataSize;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.ScrubbingRequest;
+import moe.tristan.kmdah.service.images.cache.ScrubbingResult;
+import moe.tristan.kmdah.service.images.validation.ImageIntegrity;
+
+/**
+ * Walks the images of every cache directory in lexicographic order, so that a run can resume after the last image scrubbed by the previous one.
+ * <p>
+ * The cursor is the path of that image, prefixed by the name of its directory ({@code volume id} or {@code alt}), for example
+ * {@code 0/data/ab/cd/abcd1234.../1-4f2a....png}. Only the directories along it are listed again when resuming, which stays cheap with a fan-out layout.
+ * <p>
+ * Deduplicated images are hard links to the same content, so corrupted ones are only the first found of their references. The others are found in a
+ * single walk of their volume once the run is over, which only happens when such corrupted content was found.
+ */
+class FilesystemScrubber {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FilesystemScrubber.class);
+
+    private static final String ALT_DIR_NAME = "alt";
+
+    private final FilesystemSettings settings;
+    private final FilesystemVolumes volumes;
+    private final FilesystemCacheIndex index;
+    private final FilesystemUsage usage;
+    private final FilesystemObjects objects;
+
+    FilesystemScrubber(FilesystemSettings settings, FilesystemVolumes volumes, FilesystemCacheIndex index, FilesystemUsage usage, FilesystemObjects objects) {
+        this.settings = settings;
+        this.volumes = volumes;
+        this.index = index;
+        this.usage = usage;
+        this.objects = objects;
+    }
+
+    ScrubbingResult scrub(ScrubbingRequest request) {
+        List<String> cursor = request.cursor() == null ? List.of() : Arrays.asList(request.cursor().split("/"));
+        Run run = new Run(request);
+
+        List<ScrubbedDir> dirs = scrubbedDirs();
+        int firstDir = cursor.isEmpty() ? 0 : indexOfDir(dirs, cursor.get(0));
+        if (firstDir < 0) {
+            // the directory was removed since, start over
+            cursor = List.of();
+            firstDir = 0;
+        }
+        for (int i = firstDir; i < dirs.size(); i++) {
+            ScrubbedDir dir = dirs.get(i);
+            List<String> dirCursor = i == firstDir && !cursor.isEmpty() ? cursor.subList(1, cursor.size()) : List.of();
+
+            for (ImageMode mode : ImageMode.values()) {
+                if (!dirCursor.isEmpty() && mode.ordinal() < ImageMode.fromPathFragment(dirCursor.get(0)).ordinal()) {
+                    continue;
+                }
+                List<String> modeCursor = !dirCursor.isEmpty() && mode.getPathFragment().equals(dirCursor.get(0))
+                    ? dirCursor.subList(1, dirCursor.size())
+                    : List.of();
+
+                Path modeDir = dir.path().resolve(mode.getPathFragment());
+                if (Files.isDirectory(modeDir) && !walk(run, dir, mode, modeDir, modeCursor)) {
+                    evictOtherReferences(run);
+                    return run.result(run.lastScrubbed);
+                }
+            }
+        }
+        evictOtherReferences(run);
+        return run.result(null);
+    }
+
+    private void evictOtherReferences(Run run) {
+        run.sharedCorruptedContent.forEach((dir, contentKeys) -> new FilesystemCacheScanner(1).scan(dir.path(), (spec, file, attributes, legacyLayout) -> {
+            if (contentKeys.contains(attributes.fileKey())) {
+                synchronized (run) {
+                    run.corrupted.add(spec);
+                }
+                evict(dir, spec, FilesystemCacheIndex.key(spec), file);
+            }
+        }));
+        run.sharedCorruptedContent.clear();
+    }
+
+    private List<ScrubbedDir> scrubbedDirs() {
+        List<ScrubbedDir> dirs = new ArrayList<>();
+        for (FilesystemVolume volume : volumes.all()) {
+            dirs.add(new ScrubbedDir(String.valueOf(volume.getId()), volume.getDir(), Optional.of(volume)));
+        }
+        if (settings.useAltDir()) {
+            dirs.add(new ScrubbedDir(ALT_DIR_NAME, settings.altDir(), Optional.empty()));
+        }
+        return dirs;
+    }
+
+    private static int indexOfDir(List<ScrubbedDir> dirs, String name) {
+        for (int i = 0; i < dirs.size(); i++) {
+            if (dirs.get(i).name().equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return false if the run stopped before the end of this directory
+     */
+    private boolean walk(Run run, ScrubbedDir dir, ImageMode mode, Path current, List<String> cursor) {
+        List<Path> entries;
+        try (Stream<Path> listing = Files.list(current)) {
+            entries = listing.sorted(Comparator.comparing(entry -> entry.getFileName().toString())).collect(Collectors.toList());
+        } catch (NoSuchFileException e) {
+            return true;
+        } catch (IOException e) {
+            LOGGER.warn("Cannot list {} for scrubbing: {}", current, e.getMessage());
+            return true;
+        }
+
+        String resumeAfter = cursor.isEmpty() ? null : cursor.get(0);
+        for (Path entry : entries) {
+            String name = entry.getFileName().toString();
+            if (name.startsWith(".") || name.endsWith(".tmp")) {
+                continue;
+            }
+
+            int comparison = resumeAfter == null ? 1 : name.compareTo(resumeAfter);
+            if (comparison < 0) {
+                continue;
+            }
+
+            if (Files.isDirectory(entry)) {
+                if (!walk(run, dir, mode, entry, comparison == 0 ? cursor.subList(1, cursor.size()) : List.of())) {
+                    return false;
+                }
+            } else if (comparison > 0 && dir.path().relativize(entry).getNameCount() >= 3) {
+                if (run.isDone()) {
+                    return false;
+                }
+                if (!scrubImage(run, dir, new ImageSpec(mode, current.getFileName().toString(), name), entry)) {
+                    return false;
+                }
+                run.lastScrubbed = dir.name() + "/" + dir.path().relativize(entry).toString().replace(entry.getFileSystem().getSeparator(), "/");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false if interrupted, in which case the image is left for the next run
+     */
+    private boolean scrubImage(Run run, ScrubbedDir dir, ImageSpec spec, Path file) {
+        long key = FilesystemCacheIndex.key(spec);
+        OptionalLong expectedLength = index
+            .get(key)
+            .map(entry -> OptionalLong.of(entry.size()))
+            .orElse(OptionalLong.empty());
+
+        boolean intact;
+        long size;
+        try (InputStream content = Files.newInputStream(file)) {
+            size = Files.size(file);
+            intact = ImageIntegrity.isIntact(file.toString(), spec.contentHash(), expectedLength, content, run.request.ioBudget());
+        } catch (InterruptedIOException e) {
+            return false;
+        } catch (NoSuchFileException e) {
+            // deleted since listed
+            return true;
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read {} for scrubbing, evicting it: {}", file, e.getMessage());
+            dir.volume().ifPresent(volume -> volume.getHealth().recordError());
+            size = 0L;
+            intact = false;
+        }
+
+        run.scrubbedFiles++;
+        run.scrubbedBytes += size;
+        if (!intact) {
+            run.corrupted.add(spec);
+            if (dir.volume().isPresent()) {
+                recordSharedContent(run, dir, file);
+            }
+            evict(dir, spec, key, file);
+        }
+        return true;
+    }
+
+    private void recordSharedContent(Run run, ScrubbedDir dir, Path file) {
+        try {
+            objects.sharedContentKey(file).ifPresent(contentKey -> run.sharedCorruptedContent.computeIfAbsent(dir, ignored -> new HashSet<>()).add(contentKey));
+        } catch (IOException e) {
+            LOGGER.warn("Cannot tell whether corrupted image {} is shared: {}", file, e.getMessage());
+        }
+    }
+
+    private void evict(ScrubbedDir dir, ImageSpec spec, long key, Path file) {
+        try {
+            if (dir.volume().isPresent()) {
+                usage.removed(objects.evict(spec, file));
+            } else {
+                Files.deleteIfExists(file);
+            }
+            index.invalidate(key);
+            LOGGER.warn("Evicted corrupted image {} at {}", spec, file);
+        } catch (IOException e) {
+            LOGGER.error("Cannot evict corrupted image {} at {}", spec, file, e);
+        }
+    }
+
+    private record ScrubbedDir(String name, Path path, Optional<FilesystemVolume> volume) {}
+
+    private static final class Run {
+
+        private final ScrubbingRequest request;
+        private final List<ImageSpec> corrupted = new ArrayList<>();
+        private final Map<ScrubbedDir, Set<Object>> sharedCorruptedContent = new HashMap<>();
+
+        private String lastScrubbed;
+        private long scrubbedFiles;
+        private long scrubbedBytes;
+
+        private Run(ScrubbingRequest request) {
+            this.request = request;
+            this.lastScrubbed = request.cursor();
+        }
+
+        private boolean isDone() {
+            return scrubbedFiles >= request.maxImages();
+        }
+
+        private ScrubbingResult result(String nextCursor) {
+            return new ScrubbingResult(nextCursor, scrubbedFiles, DataSize.ofBytes(scrubbedBytes), corrupted.size(), List.copyOf(corrupted));
+        }
+
+    }
+
+}
@@ -1,6 +1,7 @@
 package moe.tristan.kmdah.service.images.cache.filesystem;
 
 import java.nio.file.Path;
+import java.util.List;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.ConstructorBinding;
@@ -15,6 +16,116 @@ public record FilesystemSettings(
 
     Path altDir,
 
-    boolean readOnly
+    boolean readOnly,
 
-) {}
+    Layout layout,
+
+    Index index,
+
+    Vacuum vacuum,
+
+    Tiering tiering,
+
+    Stripes stripes,
+
+    Writes writes,
+
+    Dedup dedup
+
+) {
+
+    public record Layout(
+
+        int fanOutDepth,
+
+        int fanOutWidth,
+
+        boolean migrate,
+
+        int migrationChaptersPerSecond
+
+    ) {}
+
+    public record Index(
+
+        boolean enabled,
+
+        boolean authoritativeMisses,
+
+        long expectedEntries,
+
+        int scanParallelism
+
+    ) {}
+
+    public record Vacuum(
+
+        double highWatermark,
+
+        double lowWatermark,
+
+        int deletionsPerSecond,
+
+        int recencyBuckets,
+
+        Path recencyFile,
+
+        int reconcileEvery
+
+    ) {}
+
+    public record Tiering(
+
+        boolean enabled,
+
+        int hotSizeGb,
+
+        int promotionHits,
+
+        int promotionQueueSize,
+
+        int promotionMbPerSecond,
+
+        int demotionMbPerSecond
+
+    ) {}
+
+    public record Stripes(
+
+        List<String> volumes,
+
+        List<String> draining,
+
+        int rootWeight,
+
+        long degradedLatencyMillis,
+
+        int degradedErrors,
+
+        long minFreeMb,
+
+        int rebalanceMbPerSecond
+
+    ) {}
+
+    public record Writes(
+
+        int threads,
+
+        int maxQueuedMb,
+
+        int batchSize,
+
+        boolean fsync,
+
+        int directoryCacheSize
+
+    ) {}
+
+    public record Dedup(
+
+        boolean enabled
+
+    ) {}
+
+}
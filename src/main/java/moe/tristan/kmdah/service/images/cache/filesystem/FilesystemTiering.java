@@ -0,0 +1,214 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.unit.DataSize;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.util.IoBudget;
+
+/**
+ * Treats the root directory (and any volumes striped with it) as a fast (hot) tier in front of the alt directory as a slow (cold) one.
+ * <p>
+ * Images read from the cold tier often enough are promoted to the hot one in the background, while the hot tier is kept under its size by demoting its
+ * least recently accessed images to the cold tier (see {@link #demoting()}). Writes always go to the hot tier.
+ */
+public class FilesystemTiering {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FilesystemTiering.class);
+
+    private static final int HIT_COUNTERS = 1 << 16;
+    private static final long HIT_COUNTERS_DECAY_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private final FilesystemSettings filesystemSettings;
+    private final FilesystemLayout layout;
+    private final FilesystemVolumes volumes;
+    private final FilesystemCacheIndex index;
+    private final FilesystemObjects objects;
+    private final FilesystemUsage hotUsage;
+    private final FilesystemUsage coldUsage;
+    private final boolean enabled;
+
+    // approximate, as distinct images can share a counter
+    private final AtomicIntegerArray coldHits = new AtomicIntegerArray(HIT_COUNTERS);
+    private final BlockingQueue<ImageSpec> promotions;
+
+    private final Counter hotHitsCounter;
+    private final Counter coldHitsCounter;
+    private final Counter promotionsCounter;
+    private final Counter demotionsCounter;
+
+    public FilesystemTiering(
+        FilesystemSettings filesystemSettings,
+        FilesystemLayout layout,
+        FilesystemVolumes volumes,
+        FilesystemCacheIndex index,
+        FilesystemObjects objects,
+        FilesystemUsage hotUsage,
+        MeterRegistry meterRegistry
+    ) {
+        this.filesystemSettings = filesystemSettings;
+        this.layout = layout;
+        this.volumes = volumes;
+        this.index = index;
+        this.objects = objects;
+        this.hotUsage = hotUsage;
+        this.coldUsage = new FilesystemUsage();
+        this.enabled = isEnabled(filesystemSettings);
+        this.promotions = new LinkedBlockingQueue<>(Math.max(1, filesystemSettings.tiering().promotionQueueSize()));
+
+        this.hotHitsCounter = meterRegistry.counter("kmdah_cache_filesystem_tier_hits", "tier", "hot");
+        this.coldHitsCounter = meterRegistry.counter("kmdah_cache_filesystem_tier_hits", "tier", "cold");
+        this.promotionsCounter = meterRegistry.counter("kmdah_cache_filesystem_tier_promotions");
+        this.demotionsCounter = meterRegistry.counter("kmdah_cache_filesystem_tier_demotions");
+
+        if (enabled) {
+            Thread promotionThread = new Thread(this::promoteContinuously, "kmdah-filesystem-promotion");
+            promotionThread.setDaemon(true);
+            promotionThread.start();
+        }
+    }
+
+    public static boolean isEnabled(FilesystemSettings filesystemSettings) {
+        return filesystemSettings.tiering().enabled() && filesystemSettings.useAltDir() && !filesystemSettings.readOnly();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public FilesystemUsage getColdUsage() {
+        return coldUsage;
+    }
+
+    public void recordHit(ImageSpec spec, long key, boolean cold) {
+        if (!cold) {
+            hotHitsCounter.increment();
+            return;
+        }
+
+        coldHitsCounter.increment();
+        if (!enabled) {
+            return;
+        }
+
+        int counter = (int) (key ^ (key >>> 32)) & (HIT_COUNTERS - 1);
+        if (coldHits.incrementAndGet(counter) >= filesystemSettings.tiering().promotionHits()) {
+            coldHits.set(counter, 0);
+            if (!promotions.offer(spec)) {
+                LOGGER.debug("Promotion queue is full, not promoting {}", spec);
+            }
+        }
+    }
+
+    /**
+     * @return an evictor that moves images from the hot tier to the cold one, budgeted in bytes
+     */
+    public FilesystemVacuum.Evictor demoting() {
+        return new FilesystemVacuum.Evictor() {
+            @Override
+            public long evict(ImageSpec spec, Path file, long size) throws IOException {
+                Path target = layout.resolve(filesystemSettings.altDir(), spec);
+                if (!Files.exists(target)) {
+                    FilesystemVolumes.copyAcross(file, target);
+                    coldUsage.added(size);
+                }
+
+                index.relocate(
+                    FilesystemCacheIndex.key(spec),
+                    size,
+                    Files.getLastModifiedTime(target).toMillis(),
+                    FilesystemCachedImageService.LOCATION_ALT_DIR,
+                    FilesystemMediaType.fromFileName(spec.file())
+                );
+                long freed = objects.delete(spec, file);
+                demotionsCounter.increment();
+                return freed;
+            }
+
+            @Override
+            public long cost(long size) {
+                return size;
+            }
+        };
+    }
+
+    private void promoteContinuously() {
+        IoBudget promotionBudget = IoBudget.perSecond(DataSize.ofMegabytes(filesystemSettings.tiering().promotionMbPerSecond()).toBytes());
+        long lastDecay = System.nanoTime();
+
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                ImageSpec spec = promotions.poll(1, TimeUnit.MINUTES);
+                if (spec != null) {
+                    promote(spec, promotionBudget);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                LOGGER.error("Failed promoting image to hot tier", e);
+            }
+
+            if (System.nanoTime() - lastDecay > HIT_COUNTERS_DECAY_NANOS) {
+                for (int i = 0; i < HIT_COUNTERS; i++) {
+                    coldHits.set(i, coldHits.get(i) / 2);
+                }
+                lastDecay = System.nanoTime();
+            }
+        }
+    }
+
+    private void promote(ImageSpec spec, IoBudget promotionBudget) throws IOException {
+        Path source = layout.resolve(filesystemSettings.altDir(), spec);
+        if (!Files.exists(source)) {
+            source = FilesystemLayout.legacy().resolve(filesystemSettings.altDir(), spec);
+            if (!Files.exists(source)) {
+                return;
+            }
+        }
+
+        long key = FilesystemCacheIndex.key(spec);
+        Optional<FilesystemVolume> volume = volumes.forWrite(key);
+        if (volume.isEmpty()) {
+            return;
+        }
+
+        Path target = layout.resolve(volume.get().getDir(), spec);
+        if (Files.exists(target)) {
+            return;
+        }
+
+        long size = Files.size(source);
+        if (!promotionBudget.acquire(size)) {
+            return;
+        }
+
+        FilesystemVolumes.copyAcross(source, target);
+        index.relocate(
+            key,
+            size,
+            Files.getLastModifiedTime(target).toMillis(),
+            FilesystemCachedImageService.volumeLocation(volume.get()),
+            FilesystemMediaType.fromFileName(spec.file())
+        );
+        hotUsage.added(size);
+
+        Files.delete(source);
+        coldUsage.removed(size);
+        promotionsCounter.increment();
+        LOGGER.debug("Promoted {} to hot tier", spec);
+    }
+
+}
@@ -0,0 +1,144 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.unit.DataSize;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.ReclaimingResult;
+import moe.tristan.kmdah.util.IoBudget;
+
+/**
+ * Deletes chapters in two steps: their directory is first renamed into the {@code .trash} directory of its cache directory, which is atomic and immediately
+ * hides it from lookups, then its files are deleted in the background.
+ * <p>
+ * Trashed chapters are kept as {@code .trash/<random>/<mode>/<chapter>/<file>}, so that the spec of each file, and thus its object when deduplicated, is
+ * still known when deleting it.
+ */
+class FilesystemTrash {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FilesystemTrash.class);
+
+    static final String TRASH_DIR = ".trash";
+
+    private final FilesystemCacheIndex index;
+    private final FilesystemUsage usage;
+    private final FilesystemUsage coldUsage;
+    private final FilesystemObjects objects;
+
+    /**
+     * @param usage     of the volumes
+     * @param coldUsage of the alt directory, which is the cold tier when tiering
+     */
+    FilesystemTrash(FilesystemCacheIndex index, FilesystemUsage usage, FilesystemUsage coldUsage, FilesystemObjects objects) {
+        this.index = index;
+        this.usage = usage;
+        this.coldUsage = coldUsage;
+        this.objects = objects;
+    }
+
+    /**
+     * @param dir the cache directory the chapter directory is in
+     */
+    void trash(Path dir, ImageSpec chapter, Path chapterDir) throws IOException {
+        if (!Files.isDirectory(chapterDir)) {
+            return;
+        }
+
+        Path trashed = dir.resolve(TRASH_DIR).resolve(UUID.randomUUID().toString()).resolve(chapter.mode().getPathFragment()).resolve(chapter.chapter());
+        Files.createDirectories(trashed.getParent());
+        try {
+            Files.move(chapterDir, trashed, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            // deleted concurrently
+            return;
+        }
+
+        // the index would otherwise keep serving the old paths
+        try (Stream<Path> files = Files.list(trashed)) {
+            files.forEach(file -> index.invalidate(FilesystemCacheIndex.key(new ImageSpec(chapter.mode(), chapter.chapter(), file.getFileName().toString()))));
+        }
+    }
+
+    /**
+     * @param volume whether the directory is a volume, whose images may be deduplicated, rather than the alt directory
+     */
+    ReclaimingResult reclaim(Path dir, boolean volume, long maxFiles, IoBudget ioBudget) {
+        Path trashDir = dir.resolve(TRASH_DIR);
+        if (!Files.isDirectory(trashDir)) {
+            return ReclaimingResult.nothing();
+        }
+
+        long[] reclaimed = {0L, 0L};
+        try {
+            Files.walkFileTree(trashDir, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (reclaimed[0] >= maxFiles || !ioBudget.acquire(1)) {
+                        return FileVisitResult.TERMINATE;
+                    }
+
+                    try {
+                        long freed = volume ? objects.delete(specOf(trashDir, file), file) : deleteUndeduplicated(file, attributes);
+                        (volume ? usage : coldUsage).removed(freed);
+                        reclaimed[0]++;
+                        reclaimed[1] += freed;
+                    } catch (IOException e) {
+                        LOGGER.warn("Cannot delete trashed file {}: {}", file, e.getMessage());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path visited, IOException e) {
+                    if (!visited.equals(trashDir)) {
+                        try {
+                            Files.delete(visited);
+                        } catch (DirectoryNotEmptyException | NoSuchFileException ignored) {
+                            // left for the next run
+                        } catch (IOException deletionFailure) {
+                            LOGGER.warn("Cannot delete trashed directory {}: {}", visited, deletionFailure.getMessage());
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.error("Failed reclaiming {}", trashDir, e);
+        }
+        return new ReclaimingResult(reclaimed[0], DataSize.ofBytes(reclaimed[1]));
+    }
+
+    private static long deleteUndeduplicated(Path file, BasicFileAttributes attributes) throws IOException {
+        Files.delete(file);
+        return attributes.size();
+    }
+
+    private static ImageSpec specOf(Path trashDir, Path file) {
+        Path relative = trashDir.relativize(file);
+        if (relative.getNameCount() != 4) {
+            // not in the expected structure, so not deduplicated either
+            return new ImageSpec(ImageMode.DATA_SAVER, "", file.getFileName().toString());
+        }
+        return new ImageSpec(ImageMode.fromPathFragment(relative.getName(1).toString()), relative.getName(2).toString(), relative.getName(3).toString());
+    }
+
+}
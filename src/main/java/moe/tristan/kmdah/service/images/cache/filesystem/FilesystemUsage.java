@@ -0,0 +1,35 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running count of the bytes stored in the cache, updated on writes and deletions, and periodically reconciled with the actual directory contents.
+ */
+public class FilesystemUsage {
+
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    private volatile boolean known = false;
+
+    public void added(long bytes) {
+        usedBytes.addAndGet(bytes);
+    }
+
+    public void removed(long bytes) {
+        usedBytes.addAndGet(-bytes);
+    }
+
+    public void reconcile(long actualBytes) {
+        usedBytes.set(actualBytes);
+        known = true;
+    }
+
+    public boolean isKnown() {
+        return known;
+    }
+
+    public long usedBytes() {
+        return usedBytes.get();
+    }
+
+}
@@ -0,0 +1,275 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.unit.DataSize;
+
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.VacuumingRequest;
+import moe.tristan.kmdah.service.images.cache.VacuumingResult;
+import moe.tristan.kmdah.util.IoBudget;
+
+/**
+ * Keeps a cache directory under a given size, by evicting the least recently accessed images once usage goes above the high watermark, until it is back
+ * under the low one. Evicting usually means deleting, but can also mean moving images to a slower tier.
+ * <p>
+ * Usage is tracked by a running counter, so runs below the high watermark do not touch the filesystem at all, except every few runs to reconcile the
+ * counter with the actual directory contents (which other instances sharing it may have written to). It is also reconciled before picking victims, so
+ * that evictions are sized by the actual usage rather than by the writes of this instance only.
+ */
+public class FilesystemVacuum {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FilesystemVacuum.class);
+
+    private static final Duration STALE_TMP_FILE_AGE = Duration.ofMinutes(10);
+
+    private static final Comparator<Candidate> MOST_RECENT_FIRST = Comparator.comparingInt(Candidate::lastAccessMinutes).reversed();
+
+    private final FilesystemSettings filesystemSettings;
+    private final List<Path> dirs;
+    private final AccessRecencyFile recency;
+    private final FilesystemUsage usage;
+    private final FilesystemObjects objects;
+    private final double evictionBudgetPerSecond;
+    private final Evictor evictor;
+
+    private int runsSinceReconcile = 0;
+
+    /**
+     * @param evictionBudgetPerSecond budget of {@link Evictor#cost(long)} per second
+     */
+    public FilesystemVacuum(
+        FilesystemSettings filesystemSettings,
+        List<Path> dirs,
+        AccessRecencyFile recency,
+        FilesystemUsage usage,
+        FilesystemObjects objects,
+        double evictionBudgetPerSecond,
+        Evictor evictor
+    ) {
+        this.filesystemSettings = filesystemSettings;
+        this.dirs = List.copyOf(dirs);
+        this.recency = recency;
+        this.usage = usage;
+        this.objects = objects;
+        this.evictionBudgetPerSecond = evictionBudgetPerSecond;
+        this.evictor = evictor;
+    }
+
+    public static Evictor deleting(FilesystemCacheIndex index, FilesystemObjects objects) {
+        return (spec, file, size) -> {
+            long freed = objects.delete(spec, file);
+            index.invalidate(FilesystemCacheIndex.key(spec));
+            return freed;
+        };
+    }
+
+    public synchronized VacuumingResult vacuum(VacuumingRequest vacuumingRequest) {
+        if (filesystemSettings.readOnly()) {
+            LOGGER.info("Not vacuuming read-only filesystem cache.");
+            return new VacuumingResult(0L, DataSize.ofBytes(0L));
+        }
+
+        FilesystemSettings.Vacuum settings = filesystemSettings.vacuum();
+        long highWatermark = (long) (vacuumingRequest.targetSize().toBytes() * settings.highWatermark());
+        long lowWatermark = (long) (vacuumingRequest.targetSize().toBytes() * settings.lowWatermark());
+        IoBudget deletionBudget = IoBudget.perSecond(settings.deletionsPerSecond());
+        IoBudget evictionBudget = IoBudget.perSecond(evictionBudgetPerSecond);
+
+        long deletedFiles = 0;
+        long freedBytes = 0;
+
+        boolean reconciled = false;
+        if (!usage.isKnown() || ++runsSinceReconcile >= settings.reconcileEvery()) {
+            runsSinceReconcile = 0;
+            reconciled = true;
+            List<Path> staleTmpFiles = reconcile();
+            for (Path staleTmpFile : staleTmpFiles) {
+                long size = deleteQuietly(staleTmpFile, deletionBudget);
+                if (size >= 0) {
+                    deletedFiles++;
+                    freedBytes += size;
+                }
+            }
+        }
+
+        long usedBytes = usage.usedBytes();
+        if (usedBytes > highWatermark && !reconciled) {
+            // the running counter doesn't know of images other instances wrote or deleted since the last reconciliation
+            runsSinceReconcile = 0;
+            reconcile();
+            usedBytes = usage.usedBytes();
+        }
+        if (usedBytes <= highWatermark) {
+            LOGGER.debug("Using {}MB out of {}MB before vacuuming, nothing to evict.", toMegabytes(usedBytes), toMegabytes(highWatermark));
+            return new VacuumingResult(deletedFiles, DataSize.ofBytes(freedBytes));
+        }
+
+        long bytesToFree = usedBytes - lowWatermark;
+        LOGGER.info(
+            "Using {}MB out of {}MB in {}, evicting {}MB of least recently accessed images.",
+            toMegabytes(usedBytes),
+            toMegabytes(highWatermark),
+            dirs,
+            toMegabytes(bytesToFree)
+        );
+
+        for (Candidate victim : selectVictims(bytesToFree)) {
+            if (!evictionBudget.acquire(evictor.cost(victim.size()))) {
+                break;
+            }
+
+            long freed;
+            try {
+                freed = evictor.evict(victim.spec(), victim.file(), victim.size());
+            } catch (IOException e) {
+                LOGGER.warn("Cannot evict {} during vacuuming: {}", victim.file(), e.getMessage());
+                continue;
+            }
+
+            usage.removed(freed);
+            deletedFiles++;
+            freedBytes += freed;
+            deleteIfEmpty(victim.file().getParent());
+        }
+
+        return new VacuumingResult(deletedFiles, DataSize.ofBytes(freedBytes));
+    }
+
+    /**
+     * @return the stale temporary files found while walking the directory
+     */
+    private List<Path> reconcile() {
+        AtomicLong actualBytes = new AtomicLong();
+        AtomicLong logicalBytes = new AtomicLong();
+        List<Path> staleTmpFiles = new ArrayList<>();
+        Instant staleCutoff = Instant.now().minus(STALE_TMP_FILE_AGE);
+
+        for (Path dir : dirs) {
+            scanner().scan(
+                dir,
+                (spec, file, attributes, legacyLayout) -> {
+                    logicalBytes.addAndGet(attributes.size());
+                    actualBytes.addAndGet(objects.physicalSize(spec, file, attributes.size()));
+                },
+                (file, attributes) -> {
+                    if (attributes.lastModifiedTime().toInstant().isBefore(staleCutoff)) {
+                        synchronized (staleTmpFiles) {
+                            staleTmpFiles.add(file);
+                        }
+                    }
+                }
+            );
+            objects.deleteOrphans(dir);
+        }
+        objects.recordSavings(logicalBytes.get(), actualBytes.get());
+
+        LOGGER.info("Reconciled usage of {} from {}MB to {}MB", dirs, toMegabytes(usage.usedBytes()), toMegabytes(actualBytes.get()));
+        usage.reconcile(actualBytes.get());
+        return staleTmpFiles;
+    }
+
+    /**
+     * Keeps the least recently accessed images whose summed size covers {@code bytesToFree}, in a bounded max-heap so that memory use is proportional to
+     * the amount of victims rather than to the size of the cache.
+     */
+    private List<Candidate> selectVictims(long bytesToFree) {
+        PriorityQueue<Candidate> victims = new PriorityQueue<>(MOST_RECENT_FIRST);
+        long[] victimsBytes = {0L};
+
+        FilesystemCacheScanner.ScannedImageVisitor visitor = (spec, file, attributes, legacyLayout) -> {
+            int lastAccessMinutes = Math.max(
+                recency.lastAccessMinutes(FilesystemCacheIndex.key(spec)),
+                AccessRecencyFile.toMinutes(attributes.lastModifiedTime().toMillis())
+            );
+            Candidate candidate = new Candidate(spec, file, attributes.size(), lastAccessMinutes);
+
+            synchronized (victims) {
+                if (victimsBytes[0] >= bytesToFree && MOST_RECENT_FIRST.compare(candidate, victims.peek()) <= 0) {
+                    return;
+                }
+
+                victims.add(candidate);
+                victimsBytes[0] += candidate.size();
+                while (victimsBytes[0] - victims.peek().size() >= bytesToFree) {
+                    victimsBytes[0] -= victims.poll().size();
+                }
+            }
+        };
+        for (Path dir : dirs) {
+            scanner().scan(dir, visitor);
+        }
+
+        List<Candidate> oldestFirst = new ArrayList<>(victims);
+        oldestFirst.sort(MOST_RECENT_FIRST.reversed());
+        return oldestFirst;
+    }
+
+    /**
+     * @return the size of the deleted file, or -1 if it could not be deleted
+     */
+    private long deleteQuietly(Path file, IoBudget deletionBudget) {
+        if (!deletionBudget.acquire(1)) {
+            return -1;
+        }
+
+        try {
+            long size = Files.size(file);
+            Files.delete(file);
+            return size;
+        } catch (IOException e) {
+            LOGGER.warn("Cannot delete {} during vacuuming: {}", file, e.getMessage());
+            return -1;
+        }
+    }
+
+    private void deleteIfEmpty(Path chapterDir) {
+        try {
+            Files.deleteIfExists(chapterDir);
+        } catch (DirectoryNotEmptyException e) {
+            // still has images
+        } catch (IOException e) {
+            LOGGER.debug("Cannot delete chapter directory {}: {}", chapterDir, e.getMessage());
+        }
+    }
+
+    private FilesystemCacheScanner scanner() {
+        return new FilesystemCacheScanner(filesystemSettings.index().scanParallelism());
+    }
+
+    private static long toMegabytes(long bytes) {
+        return DataSize.ofBytes(bytes).toMegabytes();
+    }
+
+    private record Candidate(ImageSpec spec, Path file, long size, int lastAccessMinutes) {}
+
+    @FunctionalInterface
+    public interface Evictor {
+
+        /**
+         * @return the amount of bytes this freed in the directory
+         */
+        long evict(ImageSpec spec, Path file, long size) throws IOException;
+
+        /**
+         * @return the share of the eviction budget that evicting a file of this size takes
+         */
+        default long cost(long size) {
+            return 1;
+        }
+
+    }
+
+}
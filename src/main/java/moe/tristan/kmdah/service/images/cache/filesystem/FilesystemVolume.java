@@ -0,0 +1,75 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import java.nio.file.Path;
+
+/**
+ * One of the directories images are striped across, usually a disk of its own.
+ */
+public class FilesystemVolume {
+
+    private final int id;
+    private final Path dir;
+    private final int weight;
+    private final boolean draining;
+    private final long seed;
+    private final DiskHealth health;
+
+    FilesystemVolume(int id, Path dir, int weight, boolean draining, DiskHealth health) {
+        this.id = id;
+        this.dir = dir;
+        this.weight = Math.max(1, weight);
+        this.draining = draining;
+        // from the path rather than the id, so that placement doesn't change when volumes are reordered
+        this.seed = dir.toString().hashCode() * 0x9e3779b97f4a7c15L;
+        this.health = health;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Path getDir() {
+        return dir;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return whether the volume is being removed, in which case it is still read from but not written to
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+
+    public DiskHealth getHealth() {
+        return health;
+    }
+
+    public boolean canAcceptWrites() {
+        return !draining && health.canAcceptWrites();
+    }
+
+    /**
+     * Weighted rendezvous hashing score of an image on this volume, the highest scoring volume being the preferred one.
+     */
+    double score(long key) {
+        long hash = key ^ seed;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        // uniform in (0, 1)
+        double unit = ((hash >>> 11) + 0.5) / (1L << 53);
+        return weight / -Math.log(unit);
+    }
+
+    @Override
+    public String toString() {
+        return dir + " (weight " + weight + (draining ? ", draining" : "") + ")";
+    }
+
+}
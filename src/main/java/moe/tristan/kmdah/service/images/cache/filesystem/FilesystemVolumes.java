@@ -0,0 +1,145 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import org.springframework.util.unit.DataSize;
+
+/**
+ * The directories images are striped across: the root directory, and any additional volumes. Each image has a preferred volume, picked by weighted
+ * rendezvous hashing, so that images spread proportionally to volume weights and adding or removing a volume only moves the images that belong to it.
+ * <p>
+ * Writes skip volumes that are degraded, full or draining, in which case the image lands on its next preferred volume and is moved back later by
+ * {@link FilesystemRebalanceJob}. Reads try volumes in order of preference.
+ */
+public class FilesystemVolumes {
+
+    // volume ids share the index location byte with location flags
+    static final int MAX_VOLUMES = 1 << 6;
+
+    private final List<FilesystemVolume> volumes;
+    private final List<Path> dirs;
+    private final AtomicBoolean misplacedWrites = new AtomicBoolean(false);
+
+    private FilesystemVolumes(List<FilesystemVolume> volumes) {
+        if (volumes.size() > MAX_VOLUMES) {
+            throw new IllegalArgumentException("At most " + MAX_VOLUMES + " volumes are supported, but got " + volumes.size());
+        }
+        this.volumes = List.copyOf(volumes);
+        this.dirs = volumes.stream().map(FilesystemVolume::getDir).collect(Collectors.toUnmodifiableList());
+    }
+
+    public static FilesystemVolumes from(FilesystemSettings filesystemSettings) {
+        FilesystemSettings.Stripes stripes = filesystemSettings.stripes();
+        List<FilesystemVolume> volumes = new ArrayList<>();
+        volumes.add(volume(0, filesystemSettings.rootDir(), stripes.rootWeight(), false, stripes));
+
+        for (String volume : nullToEmpty(stripes.volumes())) {
+            volumes.add(parse(volumes.size(), volume, false, stripes));
+        }
+        for (String volume : nullToEmpty(stripes.draining())) {
+            volumes.add(parse(volumes.size(), volume, true, stripes));
+        }
+        return new FilesystemVolumes(volumes);
+    }
+
+    public List<FilesystemVolume> all() {
+        return volumes;
+    }
+
+    public List<Path> dirs() {
+        return dirs;
+    }
+
+    public FilesystemVolume byId(int id) {
+        return volumes.get(id);
+    }
+
+    public boolean isStriped() {
+        return volumes.size() > 1;
+    }
+
+    /**
+     * @return all volumes, from most to least preferred for this image
+     */
+    public List<FilesystemVolume> placement(long key) {
+        if (!isStriped()) {
+            return volumes;
+        }
+
+        List<FilesystemVolume> placement = new ArrayList<>(volumes);
+        placement.sort(Comparator.comparingDouble((FilesystemVolume volume) -> volume.score(key)).reversed());
+        return placement;
+    }
+
+    /**
+     * @return the volume this image belongs to when all volumes are healthy
+     */
+    public FilesystemVolume preferred(long key) {
+        return placement(key).stream().filter(volume -> !volume.isDraining()).findFirst().orElse(volumes.get(0));
+    }
+
+    /**
+     * @return the most preferred volume currently accepting writes, if any
+     */
+    public Optional<FilesystemVolume> forWrite(long key) {
+        FilesystemVolume preferred = preferred(key);
+        if (preferred.canAcceptWrites()) {
+            return Optional.of(preferred);
+        }
+
+        Optional<FilesystemVolume> fallback = placement(key).stream().filter(FilesystemVolume::canAcceptWrites).findFirst();
+        fallback.ifPresent(volume -> misplacedWrites.set(true));
+        return fallback;
+    }
+
+    /**
+     * @return whether some images were written to other volumes than their preferred one since the last call
+     */
+    public boolean consumeMisplacedWrites() {
+        return misplacedWrites.getAndSet(false);
+    }
+
+    /**
+     * Copies rather than moves, so that the image stays readable from either side throughout, and the source is only deleted once the index points to
+     * the target.
+     */
+    static void copyAcross(Path source, Path target) throws IOException {
+        Path tmpFile = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.createDirectories(target.getParent());
+        Files.copy(source, tmpFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+        Files.move(tmpFile, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static FilesystemVolume parse(int id, String volume, boolean draining, FilesystemSettings.Stripes stripes) {
+        String trimmed = volume.trim();
+        int weightSeparator = trimmed.lastIndexOf(':');
+        if (weightSeparator > 0 && weightSeparator < trimmed.length() - 1 && trimmed.substring(weightSeparator + 1).chars().allMatch(Character::isDigit)) {
+            return volume(id, Path.of(trimmed.substring(0, weightSeparator)), Integer.parseInt(trimmed.substring(weightSeparator + 1)), draining, stripes);
+        }
+        return volume(id, Path.of(trimmed), 1, draining, stripes);
+    }
+
+    private static FilesystemVolume volume(int id, Path dir, int weight, boolean draining, FilesystemSettings.Stripes stripes) {
+        DiskHealth health = new DiskHealth(
+            dir,
+            stripes.degradedLatencyMillis(),
+            stripes.degradedErrors(),
+            DataSize.ofMegabytes(stripes.minFreeMb()).toBytes()
+        );
+        return new FilesystemVolume(id, dir, weight, draining, health);
+    }
+
+    private static List<String> nullToEmpty(List<String> list) {
+        return list == null ? List.of() : list.stream().filter(entry -> !entry.isBlank()).collect(Collectors.toList());
+    }
+
+}
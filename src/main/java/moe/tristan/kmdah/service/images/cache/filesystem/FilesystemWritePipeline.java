@@ -0,0 +1,296 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.unit.DataSize;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.PendingWritesBudget;
+
+/**
+ * Commits images to disk in the background, in batches.
+ * <p>
+ * Pending writes are bounded by a {@link PendingWritesBudget}.
+ * <p>
+ * With fsync enabled, every file of a batch is synced before any of them is renamed into place, and each directory they were renamed into is then synced
+ * once for the whole batch rather than once per image.
+ * <p>
+ * Writes to a chapter trashed while they were in flight are dropped, as its directory, and the temporary files in it, are then gone. This is not an error
+ * of the disk, so it does not count against its health.
+ */
+public class FilesystemWritePipeline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FilesystemWritePipeline.class);
+
+    private final FilesystemSettings.Writes settings;
+    private final FilesystemObjects objects;
+    private final int threads;
+    private final PendingWritesBudget budget;
+
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+
+    // directories known to exist, to save a few syscalls per write; cleared rather than evicted from when full
+    private final Set<Path> knownDirectories = ConcurrentHashMap.newKeySet();
+
+    private final Timer writeLatency;
+    private final DistributionSummary batchSizes;
+
+    private volatile Placement placement;
+
+    public FilesystemWritePipeline(FilesystemSettings.Writes settings, FilesystemObjects objects, MeterRegistry meterRegistry) {
+        this.settings = settings;
+        this.objects = objects;
+        this.threads = settings.threads() > 0 ? settings.threads() : Runtime.getRuntime().availableProcessors();
+        this.budget = new PendingWritesBudget(DataSize.ofMegabytes(settings.maxQueuedMb()).toBytes(), meterRegistry, "kmdah_cache_filesystem");
+
+        Gauge.builder("kmdah_cache_filesystem_write_queue_images", queue, BlockingQueue::size).register(meterRegistry);
+        this.writeLatency = meterRegistry.timer("kmdah_cache_filesystem_write_latency");
+        this.batchSizes = meterRegistry.summary("kmdah_cache_filesystem_write_batch_size");
+    }
+
+    public synchronized void start(Placement placement) {
+        if (this.placement != null) {
+            throw new IllegalStateException("Write pipeline was already started!");
+        }
+        this.placement = placement;
+
+        for (int i = 0; i < threads; i++) {
+            Thread writerThread = new Thread(this::writeContinuously, "kmdah-filesystem-writer-" + i);
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+        LOGGER.info("Started {} filesystem writers, with up to {}MB of pending writes", threads, settings.maxQueuedMb());
+    }
+
+    /**
+     * @return whether an image fetched now is likely to be accepted by the time it is submitted
+     */
+    public boolean canAccept() {
+        return budget.canAccept();
+    }
+
+    /**
+     * @return false if the image was dropped as too many bytes are already pending
+     */
+    public boolean submit(ImageSpec spec, byte[] content) {
+        return submit(spec, content, new CompletableFuture<>());
+    }
+
+    /**
+     * @param written completed once the write is done with, whether the image was committed or not, unless it was dropped right away
+     * @return false if the image was dropped as too many bytes are already pending
+     */
+    public boolean submit(ImageSpec spec, byte[] content, CompletableFuture<Void> written) {
+        if (!budget.tryReserve(content.length)) {
+            return false;
+        }
+
+        queue.add(new PendingWrite(spec, content, System.nanoTime(), written));
+        return true;
+    }
+
+    public long getQueuedBytes() {
+        return budget.getPendingBytes();
+    }
+
+    private void writeContinuously() {
+        List<PendingWrite> batch = new ArrayList<>(settings.batchSize());
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, Math.max(0, settings.batchSize() - 1));
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                LOGGER.error("Failed writing batch of {} images", batch.size(), e);
+            } finally {
+                for (PendingWrite write : batch) {
+                    budget.release(write.content().length);
+                    write.written().complete(null);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeBatch(List<PendingWrite> batch) {
+        batchSizes.record(batch.size());
+
+        List<Staged> staged = new ArrayList<>(batch.size());
+        for (PendingWrite write : batch) {
+            Optional<Target> target = placement.place(write.spec());
+            if (target.isEmpty()) {
+                continue;
+            }
+
+            try {
+                staged.add(stage(write, target.get()));
+            } catch (NoSuchFileException e) {
+                dropTrashed(target.get());
+            } catch (IOException e) {
+                target.get().volume().getHealth().recordError();
+                LOGGER.error("Couldn't write {} to cache.", target.get().file(), e);
+            }
+        }
+
+        Set<Path> renamedInto = new LinkedHashSet<>();
+        List<Staged> renamed = new ArrayList<>(staged.size());
+        for (Staged write : staged) {
+            Target target = write.target();
+            try {
+                long startMove = System.nanoTime();
+                Files.move(write.tmpFile(), target.file());
+                target.volume().getHealth().recordLatency(System.nanoTime() - startMove);
+                renamedInto.add(target.file().getParent());
+                renamed.add(write);
+            } catch (FileAlreadyExistsException e) {
+                // written concurrently by another instance sharing the directory, which is as good as this copy
+                LOGGER.debug("{} was already in cache", target.file());
+                deleteQuietly(write.tmpFile());
+            } catch (NoSuchFileException e) {
+                dropTrashed(target);
+                deleteQuietly(write.tmpFile());
+            } catch (IOException e) {
+                target.volume().getHealth().recordError();
+                LOGGER.error("Couldn't commit {} to cache.", write.tmpFile(), e);
+                deleteQuietly(write.tmpFile());
+            }
+        }
+
+        if (settings.fsync()) {
+            for (Path dir : renamedInto) {
+                syncDirectory(dir);
+            }
+        }
+
+        for (Staged write : renamed) {
+            placement.committed(write.pending().spec(), write.target(), write.pending().content().length, write.deduplicated());
+            writeLatency.record(System.nanoTime() - write.pending().enqueuedNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private Staged stage(PendingWrite write, Target target) throws IOException {
+        Path tmpFile = target.file().resolveSibling(target.file().getFileName() + ".tmp");
+
+        Optional<Path> object = objects.objectOf(write.spec(), target.file());
+        if (object.isPresent()) {
+            ensureDirectory(tmpFile.getParent());
+            if (objects.linkToExisting(object.get(), tmpFile)) {
+                return new Staged(write, target, tmpFile, true);
+            }
+        }
+
+        try (FileChannel channel = openTmpFile(tmpFile)) {
+            ByteBuffer buffer = ByteBuffer.wrap(write.content());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (settings.fsync()) {
+                channel.force(true);
+            }
+        } catch (IOException e) {
+            deleteQuietly(tmpFile);
+            throw e;
+        }
+
+        object.ifPresent(path -> objects.register(path, tmpFile));
+        return new Staged(write, target, tmpFile, false);
+    }
+
+    private FileChannel openTmpFile(Path tmpFile) throws IOException {
+        Path dir = tmpFile.getParent();
+        ensureDirectory(dir);
+        try {
+            return FileChannel.open(tmpFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (NoSuchFileException e) {
+            // deleted since, for example by vacuuming once it became empty
+            knownDirectories.remove(dir);
+            ensureDirectory(dir);
+            return FileChannel.open(tmpFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+    }
+
+    private void dropTrashed(Target target) {
+        // chapter was deleted since the image was placed, and so should the image be
+        knownDirectories.remove(target.file().getParent());
+        LOGGER.debug("Chapter of {} was deleted while writing it, dropping it", target.file());
+    }
+
+    private void ensureDirectory(Path dir) throws IOException {
+        if (knownDirectories.contains(dir)) {
+            return;
+        }
+
+        Files.createDirectories(dir);
+        if (knownDirectories.size() >= settings.directoryCacheSize()) {
+            knownDirectories.clear();
+        }
+        knownDirectories.add(dir);
+    }
+
+    private static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not supported on every platform and filesystem
+            LOGGER.debug("Cannot sync directory {}: {}", dir, e.getMessage());
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot delete {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Decides where images go, and is told once they are there.
+     */
+    public interface Placement {
+
+        /**
+         * @return where to write the image, or empty to drop it
+         */
+        Optional<Target> place(ImageSpec spec);
+
+        /**
+         * @param deduplicated whether the image is a link to an existing copy, and so takes no additional space
+         */
+        void committed(ImageSpec spec, Target target, long size, boolean deduplicated);
+
+    }
+
+    public record Target(Path file, FilesystemVolume volume) {}
+
+    private record PendingWrite(ImageSpec spec, byte[] content, long enqueuedNanos, CompletableFuture<Void> written) {}
+
+    private record Staged(PendingWrite pending, Target target, Path tmpFile, boolean deduplicated) {}
+
+}
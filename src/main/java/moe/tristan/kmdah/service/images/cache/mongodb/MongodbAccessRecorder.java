@@ -0,0 +1,119 @@
+package moe.tristan.kmdah.service.images.cache.mongodb;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Update;
+
+/**
+ * Records when images were last served, for vacuuming to evict the least recently accessed ones rather than the oldest ones.
+ * <p>
+ * Accesses are coalesced in memory and flushed periodically, so that a popular image costs a single write per flush rather than one per hit. Images not
+ * accessed since being stored keep their upload date as last access. Recency is thus only as precise as the flush interval, which is plenty for eviction.
+ */
+public class MongodbAccessRecorder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MongodbAccessRecorder.class);
+
+    static final String INLINE_LAST_ACCESS = "lastAccess";
+    static final String GRIDFS_LAST_ACCESS = "metadata.lastAccess";
+
+    private static final int FLUSH_BATCH_SIZE = 1000;
+
+    private final MongoTemplate mongoTemplate;
+    private final MongodbSharding sharding;
+    private final String inlineCollection;
+    private final int flushSeconds;
+    private final int maxPending;
+
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final LongAdder droppedAccesses = new LongAdder();
+
+    /**
+     * @param inlineCollection the collection images are stored inline in, if any
+     */
+    public MongodbAccessRecorder(MongoTemplate mongoTemplate, MongodbSharding sharding, String inlineCollection, MongodbSettings.Access settings) {
+        this.mongoTemplate = mongoTemplate;
+        this.sharding = sharding;
+        this.inlineCollection = inlineCollection;
+        this.flushSeconds = settings.flushSeconds();
+        this.maxPending = settings.maxPending();
+    }
+
+    public boolean isEnabled() {
+        return flushSeconds > 0;
+    }
+
+    public void start() {
+        if (!isEnabled()) {
+            return;
+        }
+
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "kmdah-mongodb-access-recorder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param name the name the image is stored as, which is that of its object when deduplicated
+     */
+    public void recordAccess(String name) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        if (pending.size() >= maxPending && !pending.contains(name)) {
+            droppedAccesses.increment();
+            return;
+        }
+        pending.add(name);
+    }
+
+    public void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        List<String> accessed = new ArrayList<>(pending);
+        pending.removeAll(accessed);
+
+        Date now = new Date();
+        try {
+            for (int from = 0; from < accessed.size(); from += FLUSH_BATCH_SIZE) {
+                List<String> batch = accessed.subList(from, Math.min(from + FLUSH_BATCH_SIZE, accessed.size()));
+                mongoTemplate.updateMulti(sharding.targetFiles(query(where("filename").in(batch)), batch), Update.update(GRIDFS_LAST_ACCESS, now), "fs.files");
+                if (inlineCollection != null) {
+                    mongoTemplate.updateMulti(sharding.targetDocuments(query(where("_id").in(batch)), batch), Update.update(INLINE_LAST_ACCESS, now), inlineCollection);
+                }
+            }
+            LOGGER.debug("Recorded access to {} images", accessed.size());
+        } catch (Exception e) {
+            LOGGER.warn("Failed recording access to {} images: {}", accessed.size(), e.getMessage());
+        }
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getDroppedAccesses() {
+        return droppedAccesses.sum();
+    }
+
+}
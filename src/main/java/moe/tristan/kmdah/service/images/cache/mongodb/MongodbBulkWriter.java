@@ -0,0 +1,181 @@
+package moe.tristan.kmdah.service.images.cache.mongodb;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+
+import moe.tristan.kmdah.service.images.cache.mongodb.MongodbWriteQueue.PendingWrite;
+
+/**
+ * Stores batches of images with unordered bulk inserts, writing the GridFS chunks and files documents directly rather than one image at a time through
+ * GridFS, in the same format.
+ * <p>
+ * An image is only stored once: images already stored are skipped, inline images are keyed by name, and GridFS files of the same name stored concurrently
+ * by another instance are resolved after each batch by keeping the one with the lowest {@code _id}, which all instances agree on.
+ */
+class MongodbBulkWriter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MongodbBulkWriter.class);
+
+    // same as GridFS
+    private static final int CHUNK_SIZE = 255 * 1024;
+
+    private static final InsertManyOptions UNORDERED = new InsertManyOptions().ordered(false);
+
+    private final MongoTemplate mongoTemplate;
+    private final MongodbSharding sharding;
+    private final long inlineMaxBytes;
+
+    private final LongAdder duplicates = new LongAdder();
+
+    /**
+     * @param mongoTemplate a template with the write concern of cache writes
+     */
+    MongodbBulkWriter(MongoTemplate mongoTemplate, MongodbSharding sharding, long inlineMaxBytes) {
+        this.mongoTemplate = mongoTemplate;
+        this.sharding = sharding;
+        this.inlineMaxBytes = inlineMaxBytes;
+    }
+
+    /**
+     * @param batch images to store, keyed by the name they are stored as
+     */
+    void write(Map<String, PendingWrite> batch) {
+        Map<String, PendingWrite> toStore = new LinkedHashMap<>(batch);
+        toStore.keySet().removeAll(alreadyStored(toStore.keySet()));
+        duplicates.add(batch.size() - toStore.size());
+        if (toStore.isEmpty()) {
+            return;
+        }
+
+        Date now = new Date();
+        List<Document> inlineImages = new ArrayList<>();
+        List<Document> files = new ArrayList<>();
+        List<Document> chunks = new ArrayList<>();
+        for (Map.Entry<String, PendingWrite> image : toStore.entrySet()) {
+            String name = image.getKey();
+            PendingWrite write = image.getValue();
+            if (write.content().length <= inlineMaxBytes) {
+                inlineImages.add(new Document("_id", name)
+                    .append("data", new Binary(write.content()))
+                    .append("contentType", write.mediaType().toString())
+                    .append("length", write.content().length)
+                    .append("uploadDate", now)
+                    .append(MongodbAccessRecorder.INLINE_LAST_ACCESS, now)
+                    .append(MongodbSharding.DOCUMENTS_KEY, MongodbSharding.chapterOf(name)));
+            } else {
+                ObjectId id = new ObjectId();
+                chunks.addAll(chunksOf(id, write.content()));
+                files.add(new Document("_id", id)
+                    .append("length", (long) write.content().length)
+                    .append("chunkSize", CHUNK_SIZE)
+                    .append("uploadDate", now)
+                    .append("filename", name)
+                    .append("metadata", new Document("_contentType", write.mediaType().toString())
+                        .append("lastAccess", now)
+                        .append("chapter", MongodbSharding.chapterOf(name))));
+            }
+        }
+
+        if (!inlineImages.isEmpty()) {
+            insertIgnoringDuplicates(MongodbCachedImageService.INLINE_COLLECTION, inlineImages);
+        }
+        if (!files.isEmpty()) {
+            // chunks first, so that no lookup finds a file before its chunks
+            collection("fs.chunks").insertMany(chunks, UNORDERED);
+            collection("fs.files").insertMany(files, UNORDERED);
+            removeDuplicateFiles(files.stream().map(file -> file.getString("filename")).collect(Collectors.toList()));
+        }
+        LOGGER.debug("Stored {} images inline and {} in GridFS", inlineImages.size(), files.size());
+    }
+
+    long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    private Set<String> alreadyStored(Set<String> names) {
+        Set<String> stored = new HashSet<>();
+
+        Query storedFiles = sharding.targetFiles(query(where("filename").in(names)), names);
+        storedFiles.fields().include("filename");
+        mongoTemplate.find(storedFiles, Document.class, "fs.files").forEach(file -> stored.add(file.getString("filename")));
+
+        if (inlineMaxBytes > 0) {
+            Query storedInline = sharding.targetDocuments(query(where("_id").in(names)), names);
+            storedInline.fields().include("_id");
+            mongoTemplate.find(storedInline, Document.class, MongodbCachedImageService.INLINE_COLLECTION).forEach(inline -> stored.add(inline.getString("_id")));
+        }
+        return stored;
+    }
+
+    private static List<Document> chunksOf(ObjectId fileId, byte[] content) {
+        List<Document> chunks = new ArrayList<>();
+        for (int n = 0; n * CHUNK_SIZE < content.length; n++) {
+            byte[] data = Arrays.copyOfRange(content, n * CHUNK_SIZE, Math.min((n + 1) * CHUNK_SIZE, content.length));
+            chunks.add(new Document("files_id", fileId).append("n", n).append("data", new Binary(data)));
+        }
+        return chunks;
+    }
+
+    private void insertIgnoringDuplicates(String collection, List<Document> documents) {
+        try {
+            collection(collection).insertMany(documents, UNORDERED);
+        } catch (MongoBulkWriteException e) {
+            long duplicateKeys = e.getWriteErrors().stream().filter(error -> ErrorCategory.fromErrorCode(error.getCode()) == ErrorCategory.DUPLICATE_KEY).count();
+            duplicates.add(duplicateKeys);
+            if (duplicateKeys < e.getWriteErrors().size()) {
+                BulkWriteError error = e.getWriteErrors().get(0);
+                LOGGER.error("Failed storing {} images in {}: {}", e.getWriteErrors().size() - duplicateKeys, collection, error.getMessage());
+            }
+        }
+    }
+
+    private void removeDuplicateFiles(List<String> names) {
+        Query storedFiles = sharding.targetFiles(query(where("filename").in(names)), names).with(Sort.by(Sort.Order.asc("_id")));
+        storedFiles.fields().include("_id").include("filename");
+
+        Set<String> seen = new HashSet<>();
+        List<Object> duplicateIds = new ArrayList<>();
+        for (Document file : mongoTemplate.find(storedFiles, Document.class, "fs.files")) {
+            if (!seen.add(file.getString("filename"))) {
+                duplicateIds.add(file.get("_id"));
+            }
+        }
+
+        if (!duplicateIds.isEmpty()) {
+            mongoTemplate.remove(sharding.targetFiles(query(where("_id").in(duplicateIds)), names), "fs.files");
+            mongoTemplate.remove(query(where("files_id").in(duplicateIds)), "fs.chunks");
+            duplicates.add(duplicateIds.size());
+        }
+    }
+
+    private MongoCollection<Document> collection(String name) {
+        return mongoTemplate.getCollection(name);
+    }
+
+}
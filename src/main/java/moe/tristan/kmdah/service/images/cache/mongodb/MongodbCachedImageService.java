@@ -1,84 +1,275 @@
 package moe.tristan.kmdah.service.images.cache.mongodb;
 
-import static java.lang.Math.toIntExact;
 import static java.util.Objects.requireNonNull;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.group;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.match;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.newAggregation;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
 import static org.springframework.data.mongodb.core.query.Query.query;
 import static org.springframework.data.mongodb.gridfs.GridFsCriteria.whereFilename;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
 
 import org.bson.Document;
+import org.bson.types.Binary;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ByteArrayResource;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.domain.Sort.Order;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.aggregation.StringOperators;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
-import org.springframework.data.mongodb.gridfs.GridFsResource;
 import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.data.util.CloseableIterator;
 import org.springframework.http.MediaType;
 import org.springframework.util.unit.DataSize;
 
+import com.mongodb.MongoGridFSException;
 import com.mongodb.client.gridfs.model.GridFSFile;
 
+import moe.tristan.kmdah.mangadex.image.ImageMode;
 import moe.tristan.kmdah.service.images.ImageContent;
 import moe.tristan.kmdah.service.images.ImageSpec;
 import moe.tristan.kmdah.service.images.cache.CacheMode;
 import moe.tristan.kmdah.service.images.cache.CachedImageService;
+import moe.tristan.kmdah.service.images.cache.ReclaimingRequest;
+import moe.tristan.kmdah.service.images.cache.ReclaimingResult;
+import moe.tristan.kmdah.service.images.cache.ScrubbingRequest;
+import moe.tristan.kmdah.service.images.cache.ScrubbingResult;
 import moe.tristan.kmdah.service.images.cache.VacuumingRequest;
 import moe.tristan.kmdah.service.images.cache.VacuumingResult;
-
+import moe.tristan.kmdah.service.images.cache.mongodb.MongodbWriteQueue.PendingWrite;
+import moe.tristan.kmdah.service.images.validation.ImageIntegrity;
+
+/**
+ * Stores images in GridFS, named after their spec.
+ * <p>
+ * With deduplication, data mode images (whose file names embed their SHA-256) are instead stored once per content as {@code sha256/<hash>}, and each image
+ * is a document of the {@code refs} collection pointing to it. An object is deleted along with its last reference, and references to objects deleted by
+ * vacuuming are removed with them (or when next looked up, if a deletion raced with a new reference).
+ * <p>
+ * With inlining, images up to a configurable size are instead stored as a single document of the {@code images} collection, holding both their content and
+ * metadata, which takes a single round-trip to read or write rather than one per collection (and per chunk). Larger images still go to GridFS.
+ * <p>
+ * Deleted chapters are renamed to {@code deleted:<name>} with a single update, which hides them from lookups right away, and then deleted in bulk by
+ * {@link #reclaim}.
+ * <p>
+ * Vacuuming evicts the least recently accessed images, as recorded by {@link MongodbAccessRecorder}, so that long-lived popular images are kept.
+ * <p>
+ * On a sharded cluster, images are spread by chapter as per {@link MongodbSharding}.
+ */
 public class MongodbCachedImageService implements CachedImageService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MongodbCachedImageService.class);
 
+    static final String REFS_COLLECTION = "refs";
+    static final String OBJECT_PREFIX = "sha256/";
+    static final String DELETED_PREFIX = "deleted:";
+    static final String INLINE_COLLECTION = "images";
+    static final String INLINE_SCRUB_CURSOR = "images:";
+
+    // leaves room for the metadata under the 16MB BSON document limit
+    private static final long INLINE_MAX_BYTES_LIMIT = DataSize.ofMegabytes(15).toBytes();
+
     private final MongoTemplate mongoTemplate;
     private final GridFsTemplate gridFsTemplate;
+    private final MongoTemplate readTemplate;
+    private final MongoTemplate writeTemplate;
+    private final GridFsTemplate writeGridFsTemplate;
+    private final MongodbSharding sharding;
+    private final boolean dedup;
+    private final long inlineMaxBytes;
+    private final MongodbWriteQueue writeQueue;
+    private final MongodbBulkWriter bulkWriter;
+    private final MongodbGridfsReader gridfsReader;
+    private final MongodbAccessRecorder accessRecorder;
+    private final MongodbVacuum vacuum;
+
+    private final LongAdder deduplicatedWrites = new LongAdder();
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    public MongodbCachedImageService(
+        MongodbTemplates templates,
+        MongodbSharding sharding,
+        boolean dedup,
+        DataSize inlineMaxSize,
+        MongodbWriteQueue writeQueue,
+        MongodbAccessRecorder accessRecorder,
+        MongodbSettings.Vacuum vacuumSettings,
+        MongodbSettings.Reads readSettings
+    ) {
+        this.mongoTemplate = templates.primary();
+        this.gridFsTemplate = templates.primaryGridFs();
+        this.readTemplate = templates.reads();
+        this.writeTemplate = templates.writes();
+        this.writeGridFsTemplate = templates.writesGridFs();
+        this.sharding = sharding;
+        this.dedup = dedup;
+        this.inlineMaxBytes = inlineMaxSize.toBytes();
+        this.writeQueue = writeQueue;
+        this.gridfsReader = new MongodbGridfsReader(templates.reads(), templates.readsGridFs(), templates.readsReactiveGridFs(), sharding, readSettings);
+        this.bulkWriter = new MongodbBulkWriter(templates.writes(), sharding, inlineMaxBytes);
+        this.accessRecorder = accessRecorder;
+        this.vacuum = new MongodbVacuum(mongoTemplate, sharding, dedup, isInlining(), vacuumSettings);
+
+        if (inlineMaxBytes > INLINE_MAX_BYTES_LIMIT) {
+            throw new IllegalArgumentException("Cannot inline images of up to " + inlineMaxSize.toMegabytes() + "MB, the maximum is 15MB");
+        }
 
-    public MongodbCachedImageService(MongoTemplate mongoTemplate, GridFsTemplate gridFsTemplate) {
-        this.mongoTemplate = mongoTemplate;
-        this.gridFsTemplate = gridFsTemplate;
+        sharding.shardCollections(mongoTemplate, dedup, isInlining());
+        if (dedup) {
+            mongoTemplate.indexOps(REFS_COLLECTION).ensureIndex(new Index("object", Sort.Direction.ASC));
+        }
+        if (isInlining()) {
+            mongoTemplate.indexOps(INLINE_COLLECTION).ensureIndex(new Index("uploadDate", Sort.Direction.ASC));
+            mongoTemplate.indexOps(INLINE_COLLECTION).ensureIndex(new Index(MongodbAccessRecorder.INLINE_LAST_ACCESS, Sort.Direction.ASC));
+        }
+        mongoTemplate.indexOps("fs.files").ensureIndex(new Index(MongodbAccessRecorder.GRIDFS_LAST_ACCESS, Sort.Direction.ASC));
+        accessRecorder.start();
+        if (writeQueue.isAsync()) {
+            writeQueue.start(this::storeBatch);
+        }
     }
 
     @Override
     public Optional<ImageContent> findImage(ImageSpec imageSpec) {
         String filename = specToFilename(imageSpec);
 
-        GridFSFile gridFsFile = gridFsTemplate.find(query(whereFilename().is(filename)).limit(1)).first();
-
-        if (gridFsFile == null) {
-            return Optional.empty();
+        Optional<String> hash = dedupHash(imageSpec);
+        if (hash.isPresent()) {
+            Document ref = readTemplate.findOne(byId(filename), Document.class, REFS_COLLECTION);
+            if (ref != null) {
+                Optional<ImageContent> object = findStored(OBJECT_PREFIX + ref.getString("object"));
+                if (object.isEmpty()) {
+                    LOGGER.debug("Object of {} was deleted, removing dangling reference", imageSpec);
+                    mongoTemplate.remove(byId(filename), REFS_COLLECTION);
+                }
+                return object;
+            }
         }
 
-        OptionalLong contentLength = OptionalLong.of(gridFsFile.getLength());
+        return findStored(filename);
+    }
 
-        String mediaType = requireNonNull(gridFsFile.getMetadata()).getString("_contentType");
-        Instant lastModified = gridFsFile.getUploadDate().toInstant();
+    private Optional<ImageContent> findStored(String name) {
+        if (isInlining()) {
+            Document inline = readTemplate.findOne(byId(name), Document.class, INLINE_COLLECTION);
+            if (inline != null) {
+                accessRecorder.recordAccess(name);
+                return Optional.of(new ImageContent(
+                    new ByteArrayResource(inline.get("data", Binary.class).getData()),
+                    MediaType.parseMediaType(inline.getString("contentType")),
+                    OptionalLong.of(inline.get("length", Number.class).longValue()),
+                    inline.getDate("uploadDate").toInstant(),
+                    CacheMode.HIT
+                ));
+            }
+        }
 
-        return Optional.of(new ImageContent(
-            gridFsTemplate.getResource(gridFsFile),
-            MediaType.parseMediaType(mediaType),
-            contentLength,
-            lastModified,
-            CacheMode.HIT
-        ));
+        Optional<ImageContent> stored = gridfsReader.find(name);
+        if (stored.isPresent()) {
+            accessRecorder.recordAccess(name);
+        }
+        return stored;
     }
 
     @Override
     public void saveImage(ImageSpec imageSpec, MediaType mediaType, InputStream inputStream) {
+        saveImageAsync(imageSpec, mediaType, inputStream);
+    }
+
+    @Override
+    public CompletableFuture<Void> saveImageAsync(ImageSpec imageSpec, MediaType mediaType, InputStream inputStream) {
+        if (!writeQueue.isAsync()) {
+            storeImage(imageSpec, mediaType, inputStream);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        try {
+            CompletableFuture<Void> written = new CompletableFuture<>();
+            if (writeQueue.submit(imageSpec, mediaType, inputStream.readAllBytes(), written)) {
+                return written;
+            }
+            LOGGER.warn("Dropped {} as too many writes to MongoDB are pending", imageSpec);
+        } catch (IOException e) {
+            LOGGER.error("Failed reading {} for storing in mongodb!", imageSpec, e);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public boolean canAcceptWrites() {
+        return writeQueue.canAccept();
+    }
+
+    /**
+     * Deduplicated images are stored one at a time, as each needs its reference to be written along with, or instead of, its object.
+     */
+    private void storeBatch(List<PendingWrite> batch) {
+        Map<String, PendingWrite> bulk = new LinkedHashMap<>();
+        for (PendingWrite write : batch) {
+            if (dedupHash(write.spec()).isPresent()) {
+                storeImage(write.spec(), write.mediaType(), new ByteArrayInputStream(write.content()));
+            } else {
+                bulk.putIfAbsent(specToFilename(write.spec()), write);
+            }
+        }
+        if (!bulk.isEmpty()) {
+            bulkWriter.write(bulk);
+        }
+    }
+
+    private void storeImage(ImageSpec imageSpec, MediaType mediaType, InputStream inputStream) {
         String filename = specToFilename(imageSpec);
 
+        Optional<String> hash = dedupHash(imageSpec);
+        if (hash.isPresent()) {
+            saveDeduplicated(imageSpec, filename, hash.get(), mediaType, inputStream);
+            return;
+        }
+
+        if (isInlining()) {
+            try {
+                storeContent(filename, mediaType, inputStream.readAllBytes());
+            } catch (IOException e) {
+                LOGGER.error("Failed reading {} for storing in mongodb!", imageSpec, e);
+            } catch (Exception e) {
+                LOGGER.error("Failed storing {} in mongodb!", imageSpec, e);
+            }
+            return;
+        }
+
         LOGGER.debug("Storing {} in MongoDB~GridFS as {} with content type: {}", imageSpec, filename, mediaType);
 
         try {
-            ObjectId storedObject = gridFsTemplate.store(
+            ObjectId storedObject = writeGridFsTemplate.store(
                 inputStream,
                 filename,
-                mediaType.toString()
+                mediaType.toString(),
+                storedMetadata(filename)
             );
 
             LOGGER.debug(
@@ -90,76 +281,392 @@ public class MongodbCachedImageService implements CachedImageService {
             );
         } catch (Exception e) {
             LOGGER.error("Failed storing {} in mongodb!", imageSpec, e);
-            gridFsTemplate.delete(query(whereFilename().is(filename)));
+            gridFsTemplate.delete(byFilename(filename));
+        }
+
+    }
+
+    private void saveDeduplicated(ImageSpec imageSpec, String filename, String hash, MediaType mediaType, InputStream inputStream) {
+        try {
+            byte[] content = inputStream.readAllBytes();
+            if (!objectExists(hash)) {
+                storeContent(OBJECT_PREFIX + hash, mediaType, content);
+            } else {
+                deduplicatedWrites.increment();
+            }
+
+            Document ref = new Document("_id", filename)
+                .append("object", hash)
+                .append(MongodbSharding.DOCUMENTS_KEY, MongodbSharding.chapterOf(filename))
+                .append("length", content.length)
+                .append("uploadDate", new Date());
+            writeTemplate.save(ref, REFS_COLLECTION);
+            LOGGER.debug("Stored {} in MongoDB~GridFS as a reference to {}", imageSpec, hash);
+        } catch (IOException e) {
+            LOGGER.error("Failed reading {} for storing in mongodb!", imageSpec, e);
+        } catch (Exception e) {
+            LOGGER.error("Failed storing {} in mongodb!", imageSpec, e);
+        }
+    }
+
+    /**
+     * Images start out as recent as their upload, so that they aren't evicted before having had a chance to be accessed.
+     */
+    private static Document storedMetadata(String name) {
+        return new Document("lastAccess", new Date()).append("chapter", MongodbSharding.chapterOf(name));
+    }
+
+    private void storeContent(String name, MediaType mediaType, byte[] content) {
+        if (content.length > inlineMaxBytes) {
+            writeGridFsTemplate.store(new ByteArrayInputStream(content), name, mediaType.toString(), storedMetadata(name));
+            return;
         }
 
+        Date now = new Date();
+        Document inline = new Document("_id", name)
+            .append("data", new Binary(content))
+            .append("contentType", mediaType.toString())
+            .append("length", content.length)
+            .append("uploadDate", now)
+            .append(MongodbAccessRecorder.INLINE_LAST_ACCESS, now)
+            .append(MongodbSharding.DOCUMENTS_KEY, MongodbSharding.chapterOf(name));
+        writeTemplate.save(inline, INLINE_COLLECTION);
+        LOGGER.debug("Stored {} inline in MongoDB", name);
     }
 
     @Override
     public void deleteChapter(ImageSpec imageSpec) {
-        String filename = specToFilename(imageSpec); // for chapters, the spec has * as filename so will match the whole chapter
-        for (GridFsResource resource : gridFsTemplate.getResources(filename)) {
-            LOGGER.info("Deleting {}", resource.getFilename());
-            gridFsTemplate.delete(query(whereFilename().is(resource.getFilename())));
+        String chapterPrefix = String.join("/", imageSpec.chapter(), imageSpec.mode().name(), "");
+
+        if (dedup) {
+            Query refsQuery = sharding.targetDocuments(query(where("_id").regex("^" + Pattern.quote(chapterPrefix))), List.of(chapterPrefix));
+            Set<String> referencedObjects = mongoTemplate
+                .findAllAndRemove(refsQuery, Document.class, REFS_COLLECTION)
+                .stream()
+                .map(ref -> ref.getString("object"))
+                .collect(Collectors.toSet());
+            referencedObjects.forEach(this::releaseObject);
+        }
+
+        // small enough to be deleted right away, and regardless of whether inlining is currently enabled
+        Query inlineQuery = sharding.targetDocuments(query(where("_id").regex("^" + Pattern.quote(chapterPrefix))), List.of(chapterPrefix));
+        long deletedInline = mongoTemplate.remove(inlineQuery, INLINE_COLLECTION).getDeletedCount();
+        long deleted = markDeleted(sharding.targetFiles(query(where("filename").regex("^" + Pattern.quote(chapterPrefix))), List.of(chapterPrefix)));
+        gridfsReader.invalidatePrefix(chapterPrefix);
+        LOGGER.info("Deleted {} inline images and marked {} files of {} as deleted", deletedInline, deleted, chapterPrefix);
+    }
+
+    /**
+     * Deletes an object once no image references it anymore.
+     */
+    private void releaseObject(String hash) {
+        if (!mongoTemplate.exists(query(where("object").is(hash)), REFS_COLLECTION)) {
+            mongoTemplate.remove(byId(OBJECT_PREFIX + hash), INLINE_COLLECTION);
+            markDeleted(byFilename(OBJECT_PREFIX + hash));
+            gridfsReader.invalidate(OBJECT_PREFIX + hash);
+        }
+    }
+
+    private long markDeleted(Query filesQuery) {
+        AggregationUpdate rename = AggregationUpdate.update().set("filename").toValue(StringOperators.Concat.stringValue(DELETED_PREFIX).concatValueOf("filename"));
+        return mongoTemplate.updateMulti(filesQuery, rename, "fs.files").getModifiedCount();
+    }
+
+    /**
+     * Chunks are deleted before their files, so that an interrupted run leaves files without chunks, still marked as deleted and so retried, rather than
+     * chunks without files.
+     */
+    @Override
+    public ReclaimingResult reclaim(ReclaimingRequest reclaimingRequest) {
+        Query deletedFiles = query(where("filename").regex("^" + Pattern.quote(DELETED_PREFIX))).limit(reclaimingRequest.maxFiles());
+        deletedFiles.fields().include("_id").include("filename").include("length");
+
+        List<Document> files = mongoTemplate.find(deletedFiles, Document.class, "fs.files");
+        if (files.isEmpty() || !reclaimingRequest.ioBudget().acquire(files.size())) {
+            return ReclaimingResult.nothing();
+        }
+
+        List<Object> ids = files.stream().map(file -> file.get("_id")).collect(Collectors.toList());
+        long freedBytes = files.stream().mapToLong(file -> file.get("length", Number.class).longValue()).sum();
+
+        List<String> names = files.stream().map(file -> file.getString("filename")).collect(Collectors.toList());
+
+        mongoTemplate.remove(query(where("files_id").in(ids)), "fs.chunks");
+        mongoTemplate.remove(sharding.targetFiles(query(where("_id").in(ids)), names), "fs.files");
+        return new ReclaimingResult(ids.size(), DataSize.ofBytes(freedBytes));
+    }
+
+    private boolean objectExists(String hash) {
+        if (isInlining() && mongoTemplate.exists(byId(OBJECT_PREFIX + hash), INLINE_COLLECTION)) {
+            return true;
         }
+        return gridFsTemplate.find(byFilename(OBJECT_PREFIX + hash).limit(1)).first() != null;
+    }
+
+    private Query byId(String name) {
+        return sharding.targetDocuments(query(where("_id").is(name)), List.of(name));
+    }
+
+    private Query byFilename(String name) {
+        return sharding.targetFiles(query(whereFilename().is(name)), List.of(name));
+    }
+
+    private boolean isInlining() {
+        return inlineMaxBytes > 0;
+    }
+
+    private Optional<String> dedupHash(ImageSpec imageSpec) {
+        return dedup ? imageSpec.contentHash() : Optional.empty();
     }
 
     @Override
     public VacuumingResult vacuum(VacuumingRequest vacuumingRequest) {
-        Document collStats = mongoTemplate.executeCommand(
-            """
-                {
-                    "collStats": "fs.chunks"
-                }
-                """
+        if (dedup) {
+            recordSavings();
+        }
+        return vacuum.vacuum(vacuumingRequest);
+    }
+
+    /**
+     * GridFS files are scrubbed first, then inline images, each in {@code _id} order. For GridFS files, that is their insertion order, so the cursor is the
+     * {@code _id} of the last file scrubbed. For inline images, it is their name, prefixed by {@link #INLINE_SCRUB_CURSOR} so that the pass carries on with
+     * them. Missing or short chunks are reported by GridFS when reading, and are as much a corruption as wrong content.
+     */
+    @Override
+    public ScrubbingResult scrub(ScrubbingRequest scrubbingRequest) {
+        String cursor = scrubbingRequest.cursor();
+        if (cursor != null && cursor.startsWith(INLINE_SCRUB_CURSOR)) {
+            return scrubInline(cursor.substring(INLINE_SCRUB_CURSOR.length()), scrubbingRequest);
+        }
+
+        ScrubbingResult scrubbedFiles = scrubFiles(scrubbingRequest);
+        if (scrubbedFiles.nextCursor() != null) {
+            return scrubbedFiles;
+        }
+
+        // regardless of whether inlining is currently enabled, as images may have been inlined before
+        return new ScrubbingResult(
+            INLINE_SCRUB_CURSOR,
+            scrubbedFiles.scrubbedFileCount(),
+            scrubbedFiles.scrubbedSize(),
+            scrubbedFiles.corruptedFileCount(),
+            scrubbedFiles.evicted()
         );
+    }
+
+    private ScrubbingResult scrubFiles(ScrubbingRequest scrubbingRequest) {
+        Query query = new Query().with(Sort.by(Order.asc("_id"))).limit(scrubbingRequest.maxImages());
+        if (scrubbingRequest.cursor() != null) {
+            query.addCriteria(where("_id").gt(new ObjectId(scrubbingRequest.cursor())));
+        }
 
-        Number numBytesStorageAllocated = collStats.get("totalSize", Number.class);
+        String lastScrubbed = scrubbingRequest.cursor();
+        long scrubbedFiles = 0L;
+        long scrubbedBytes = 0L;
+        long corruptedFiles = 0L;
+        List<ImageSpec> evicted = new ArrayList<>();
+        int listedFiles = 0;
+        for (GridFSFile file : gridFsTemplate.find(query)) {
+            listedFiles++;
+            String filename = file.getFilename();
+            if (filename.startsWith(DELETED_PREFIX)) {
+                lastScrubbed = file.getObjectId().toHexString();
+                continue;
+            }
+
+            boolean isObject = filename.startsWith(OBJECT_PREFIX);
+            Optional<ImageSpec> spec = isObject ? Optional.empty() : filenameToSpec(filename);
+            Optional<String> hash = isObject ? Optional.of(filename.substring(OBJECT_PREFIX.length())) : spec.flatMap(ImageSpec::contentHash);
+
+            boolean intact;
+            try (InputStream content = gridFsTemplate.getResource(file).getInputStream()) {
+                intact = ImageIntegrity.isIntact(filename, hash, OptionalLong.of(file.getLength()), content, scrubbingRequest.ioBudget());
+            } catch (InterruptedIOException e) {
+                return new ScrubbingResult(lastScrubbed, scrubbedFiles, DataSize.ofBytes(scrubbedBytes), corruptedFiles, evicted);
+            } catch (MongoGridFSException | IOException e) {
+                LOGGER.warn("Cannot read {} for scrubbing, evicting it: {}", filename, e.getMessage());
+                intact = false;
+            }
+
+            lastScrubbed = file.getObjectId().toHexString();
+            scrubbedFiles++;
+            scrubbedBytes += file.getLength();
+            if (!intact) {
+                corruptedFiles++;
+                evicted.addAll(evictCorrupted(file, spec, isObject));
+            }
+        }
 
-        long usedBytesCount = numBytesStorageAllocated.longValue();
-        if (collStats.containsKey("freeStorageSize")) {
-            Number numBytesReusableStorage = collStats.get("freeStorageSize", Number.class);
-            long reusableBytesCount = numBytesReusableStorage.longValue();
+        String nextCursor = listedFiles < scrubbingRequest.maxImages() ? null : lastScrubbed;
+        return new ScrubbingResult(nextCursor, scrubbedFiles, DataSize.ofBytes(scrubbedBytes), corruptedFiles, evicted);
+    }
 
-            LOGGER.info(
-                "MongoDB has allocated a total of {}GB on disk, but {}GB are unused and will be automatically reused.",
-                DataSize.ofBytes(usedBytesCount).toGigabytes(),
-                DataSize.ofBytes(reusableBytesCount).toGigabytes()
-            );
-            usedBytesCount -= reusableBytesCount;
+    /**
+     * Inline images are streamed rather than listed, as each holds its content.
+     *
+     * @param after the name of the last inline image scrubbed, or empty to start with the first one
+     */
+    private ScrubbingResult scrubInline(String after, ScrubbingRequest scrubbingRequest) {
+        Query query = new Query().with(Sort.by(Order.asc("_id"))).limit(scrubbingRequest.maxImages());
+        if (!after.isEmpty()) {
+            query.addCriteria(where("_id").gt(after));
         }
 
-        DataSize current = DataSize.ofBytes(usedBytesCount);
-        DataSize max = vacuumingRequest.targetSize();
+        String lastScrubbed = after;
+        long scrubbedImages = 0L;
+        long scrubbedBytes = 0L;
+        long corruptedImages = 0L;
+        List<ImageSpec> evicted = new ArrayList<>();
+        int listedImages = 0;
+        try (CloseableIterator<Document> inlines = mongoTemplate.stream(query, Document.class, INLINE_COLLECTION)) {
+            while (inlines.hasNext()) {
+                Document inline = inlines.next();
+                listedImages++;
+                String name = inline.getString("_id");
+                if (name.startsWith(DELETED_PREFIX)) {
+                    lastScrubbed = name;
+                    continue;
+                }
 
-        double loadFactor = (double) current.toBytes() / (double) max.toBytes();
-        LOGGER.info("Cache fill factor: {}% ({}/{}GB)", (int) (loadFactor * 100), current.toGigabytes(), max.toGigabytes());
+                boolean isObject = name.startsWith(OBJECT_PREFIX);
+                Optional<ImageSpec> spec = isObject ? Optional.empty() : filenameToSpec(name);
+                Optional<String> hash = isObject ? Optional.of(name.substring(OBJECT_PREFIX.length())) : spec.flatMap(ImageSpec::contentHash);
+
+                Binary data = inline.get("data", Binary.class);
+                Number length = inline.get("length", Number.class);
+                boolean intact;
+                if (data == null || length == null) {
+                    LOGGER.warn("Inline image {} has no content or length, evicting it", name);
+                    intact = false;
+                } else {
+                    try (InputStream content = new ByteArrayInputStream(data.getData())) {
+                        intact = ImageIntegrity.isIntact(name, hash, OptionalLong.of(length.longValue()), content, scrubbingRequest.ioBudget());
+                    } catch (InterruptedIOException e) {
+                        return new ScrubbingResult(INLINE_SCRUB_CURSOR + lastScrubbed, scrubbedImages, DataSize.ofBytes(scrubbedBytes), corruptedImages, evicted);
+                    } catch (IOException e) {
+                        LOGGER.warn("Cannot read inline image {} for scrubbing, evicting it: {}", name, e.getMessage());
+                        intact = false;
+                    }
+                }
 
-        if (loadFactor < 1.) {
-            LOGGER.info("No need for vacuuming");
-            return new VacuumingResult(0L, DataSize.ofBytes(0L));
+                lastScrubbed = name;
+                scrubbedImages++;
+                scrubbedBytes += data == null ? 0L : data.length();
+                if (!intact) {
+                    corruptedImages++;
+                    evicted.addAll(evictCorruptedInline(name, spec, isObject));
+                }
+            }
         }
 
-        long totalFileCount = mongoTemplate.estimatedCount("fs.files");
-        LOGGER.info("Estimated file count is {}", totalFileCount);
+        String nextCursor = listedImages < scrubbingRequest.maxImages() ? null : INLINE_SCRUB_CURSOR + lastScrubbed;
+        return new ScrubbingResult(nextCursor, scrubbedImages, DataSize.ofBytes(scrubbedBytes), corruptedImages, evicted);
+    }
 
-        long toDeleteCount = (long) (totalFileCount - (totalFileCount / loadFactor));
-        LOGGER.info("Vacuum will delete {} files", toDeleteCount);
+    /**
+     * @return the images that were served from this file
+     */
+    private List<ImageSpec> evictCorrupted(GridFSFile file, Optional<ImageSpec> spec, boolean isObject) {
+        LOGGER.warn("Evicting corrupted {}", file.getFilename());
+        gridFsTemplate.delete(query(where("_id").is(file.getObjectId())));
+        gridfsReader.invalidate(file.getFilename());
+        if (!isObject) {
+            return spec.map(List::of).orElse(List.of());
+        }
+        return removeReferences(file.getFilename().substring(OBJECT_PREFIX.length()));
+    }
+
+    /**
+     * @return the images that were served from this inline image
+     */
+    private List<ImageSpec> evictCorruptedInline(String name, Optional<ImageSpec> spec, boolean isObject) {
+        LOGGER.warn("Evicting corrupted inline image {}", name);
+        mongoTemplate.remove(byId(name), INLINE_COLLECTION);
+        if (!isObject) {
+            return spec.map(List::of).orElse(List.of());
+        }
+        return removeReferences(name.substring(OBJECT_PREFIX.length()));
+    }
 
-        deleteRandomGridfsFiles(toIntExact(toDeleteCount));
+    private List<ImageSpec> removeReferences(String hash) {
+        List<ImageSpec> references = new ArrayList<>();
+        for (Document ref : mongoTemplate.findAllAndRemove(query(where("object").is(hash)), Document.class, REFS_COLLECTION)) {
+            filenameToSpec(ref.getString("_id")).ifPresent(references::add);
+        }
+        return references;
+    }
 
-        return new VacuumingResult(toDeleteCount, DataSize.ofBytes(current.toBytes() - max.toBytes()));
+    private Optional<ImageSpec> filenameToSpec(String filename) {
+        String[] parts = filename.split("/", 3);
+        if (parts.length != 3) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(new ImageSpec(ImageMode.valueOf(parts[1]), parts[0], parts[2]));
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
     }
 
     private String specToFilename(ImageSpec spec) {
         return String.join("/", spec.chapter(), spec.mode().name(), spec.file());
     }
 
-    private void deleteRandomGridfsFiles(int n) {
-        Query query = query(whereFilename().exists(true))
-            .with(Sort.by(Order.asc("uploadDate")))
-            .limit(n);
-        gridFsTemplate.delete(query);
+    private void recordSavings() {
+        long referencedBytes = sumLengths(newAggregation(group().sum("length").as("total")), REFS_COLLECTION);
+        long storedBytes = sumLengths(
+            newAggregation(match(Criteria.where("filename").regex("^" + Pattern.quote(OBJECT_PREFIX))), group().sum("length").as("total")),
+            "fs.files"
+        );
+        if (isInlining()) {
+            storedBytes += sumLengths(
+                newAggregation(match(Criteria.where("_id").regex("^" + Pattern.quote(OBJECT_PREFIX))), group().sum("length").as("total")),
+                INLINE_COLLECTION
+            );
+        }
+        savedBytes.set(Math.max(0L, referencedBytes - storedBytes));
+        LOGGER.info("Deduplication saves {}MB", DataSize.ofBytes(savedBytes.get()).toMegabytes());
+    }
+
+    private long sumLengths(Aggregation aggregation, String collection) {
+        Document result = mongoTemplate.aggregate(aggregation, collection, Document.class).getUniqueMappedResult();
+        return result == null ? 0L : result.get("total", Number.class).longValue();
+    }
+
+    public long getSavedBytes() {
+        return savedBytes.get();
+    }
+
+    public long getMetadataCacheHits() {
+        return gridfsReader.getMetadataHits();
+    }
+
+    public long getMetadataCacheMisses() {
+        return gridfsReader.getMetadataMisses();
+    }
+
+    public long getDuplicateWrites() {
+        return bulkWriter.getDuplicates();
+    }
+
+    public long getVacuumEvictions() {
+        return vacuum.getEvictions();
+    }
+
+    public long getVacuumFreedBytes() {
+        return vacuum.getFreedBytes();
+    }
+
+    public long getVacuumRemainingBytes() {
+        return vacuum.getRemainingBytes();
+    }
+
+    public long getEvictionHorizonSeconds() {
+        return vacuum.getEvictionHorizonSeconds();
+    }
+
+    public long getDeduplicatedWrites() {
+        return deduplicatedWrites.sum();
     }
 
 }
@@ -1,14 +1,35 @@
 package moe.tristan.kmdah.service.images.cache.mongodb;
 
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.autoconfigure.data.mongo.MongoDataAutoConfiguration;
+import org.springframework.boot.autoconfigure.data.mongo.MongoReactiveDataAutoConfiguration;
 import org.springframework.boot.autoconfigure.mongo.MongoAutoConfiguration;
+import org.springframework.boot.autoconfigure.mongo.MongoClientSettingsBuilderCustomizer;
+import org.springframework.boot.autoconfigure.mongo.MongoReactiveAutoConfiguration;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.MongoDatabaseFactory;
+import org.springframework.data.mongodb.ReactiveMongoDatabaseFactory;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
 import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
+import org.springframework.util.unit.DataSize;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 
 @Configuration
 @Profile("cache-mongodb")
@@ -20,8 +41,121 @@ import org.springframework.data.mongodb.gridfs.GridFsTemplate;
 public class MongodbConfiguration {
 
     @Bean
-    MongodbCachedImageService mongodbCachedImageService(MongoTemplate mongoTemplate, GridFsTemplate gridFsTemplate) {
-        return new MongodbCachedImageService(mongoTemplate, gridFsTemplate);
+    MongoClientSettingsBuilderCustomizer mongodbRoutingCustomizer(MongodbSettings mongodbSettings, ObjectProvider<MeterRegistry> meterRegistry) {
+        return builder -> {
+            String replicaSet = mongodbSettings.routing().replicaSet();
+            if (replicaSet != null && !replicaSet.isBlank()) {
+                builder.applyToClusterSettings(cluster -> cluster.requiredReplicaSetName(replicaSet));
+            }
+            meterRegistry.ifAvailable(registry -> builder.applyToServerSettings(server -> server.addServerListener(new MongodbMemberMetrics(registry))));
+        };
+    }
+
+    @Bean
+    MongodbCachedImageService mongodbCachedImageService(
+        MongodbSettings mongodbSettings,
+        MongoDatabaseFactory mongoDatabaseFactory,
+        MongoConverter mongoConverter,
+        MongoTemplate mongoTemplate,
+        GridFsTemplate gridFsTemplate,
+        ObjectProvider<ReactiveMongoDatabaseFactory> reactiveMongoDatabaseFactory,
+        ObjectProvider<MeterRegistry> meterRegistry
+    ) {
+        MongodbWriteQueue writeQueue = new MongodbWriteQueue(mongodbSettings.writes(), meterRegistry.getIfAvailable(SimpleMeterRegistry::new));
+
+        ReadPreference readPreference = readPreference(mongodbSettings.routing());
+        MongoDatabaseFactory readFactory = new MongodbRoutedDatabaseFactory(mongoDatabaseFactory, readPreference, WriteConcern.ACKNOWLEDGED);
+        ReactiveGridFsTemplate readsReactiveGridFs = null;
+        if (mongodbSettings.reads().reactive()) {
+            ReactiveMongoDatabaseFactory reactiveReadFactory = new MongodbReactiveRoutedDatabaseFactory(
+                reactiveMongoDatabaseFactory.getObject(),
+                readPreference,
+                WriteConcern.ACKNOWLEDGED
+            );
+            readsReactiveGridFs = new ReactiveGridFsTemplate(reactiveReadFactory, mongoConverter);
+        }
+        MongoDatabaseFactory writeFactory = new MongodbRoutedDatabaseFactory(mongoDatabaseFactory, ReadPreference.primary(), writeQueue.getWriteConcern());
+        MongodbTemplates templates = new MongodbTemplates(
+            mongoTemplate,
+            gridFsTemplate,
+            new MongoTemplate(readFactory, mongoConverter),
+            new GridFsTemplate(readFactory, mongoConverter),
+            readsReactiveGridFs,
+            new MongoTemplate(writeFactory, mongoConverter),
+            new GridFsTemplate(writeFactory, mongoConverter)
+        );
+
+        MongodbSharding sharding = new MongodbSharding(mongodbSettings.sharding().enabled());
+        DataSize inlineMaxSize = DataSize.ofKilobytes(mongodbSettings.inlineMaxKb());
+        MongodbAccessRecorder accessRecorder = new MongodbAccessRecorder(
+            mongoTemplate,
+            sharding,
+            inlineMaxSize.toBytes() > 0 ? MongodbCachedImageService.INLINE_COLLECTION : null,
+            mongodbSettings.access()
+        );
+
+        MongodbCachedImageService service = new MongodbCachedImageService(
+            templates,
+            sharding,
+            mongodbSettings.dedup(),
+            inlineMaxSize,
+            writeQueue,
+            accessRecorder,
+            mongodbSettings.vacuum(),
+            mongodbSettings.reads()
+        );
+        meterRegistry.ifAvailable(registry -> {
+            FunctionCounter
+                .builder("kmdah_cache_mongodb_metadata_cache", service, MongodbCachedImageService::getMetadataCacheHits)
+                .tag("result", "hit")
+                .register(registry);
+            FunctionCounter
+                .builder("kmdah_cache_mongodb_metadata_cache", service, MongodbCachedImageService::getMetadataCacheMisses)
+                .tag("result", "miss")
+                .register(registry);
+            FunctionCounter.builder("kmdah_cache_mongodb_write_duplicates", service, MongodbCachedImageService::getDuplicateWrites).register(registry);
+            FunctionCounter.builder("kmdah_cache_mongodb_vacuum_evictions", service, MongodbCachedImageService::getVacuumEvictions).register(registry);
+            FunctionCounter.builder("kmdah_cache_mongodb_vacuum_freed_bytes", service, MongodbCachedImageService::getVacuumFreedBytes).register(registry);
+            Gauge.builder("kmdah_cache_mongodb_vacuum_remaining_bytes", service, MongodbCachedImageService::getVacuumRemainingBytes).register(registry);
+            Gauge.builder("kmdah_cache_mongodb_vacuum_horizon_seconds", service, MongodbCachedImageService::getEvictionHorizonSeconds).register(registry);
+            Gauge.builder("kmdah_cache_mongodb_access_pending", accessRecorder, MongodbAccessRecorder::getPendingCount).register(registry);
+            FunctionCounter
+                .builder("kmdah_cache_mongodb_access_dropped", accessRecorder, MongodbAccessRecorder::getDroppedAccesses)
+                .register(registry);
+        });
+        if (mongodbSettings.dedup()) {
+            meterRegistry.ifAvailable(registry -> {
+                FunctionCounter
+                    .builder("kmdah_cache_dedup_writes", service, MongodbCachedImageService::getDeduplicatedWrites)
+                    .tag("backend", "mongodb")
+                    .register(registry);
+                Gauge.builder("kmdah_cache_dedup_saved_bytes", service, MongodbCachedImageService::getSavedBytes).tag("backend", "mongodb").register(registry);
+            });
+        }
+        return service;
+    }
+
+    /**
+     * Max staleness keeps lagging secondaries from serving lookups, which would then miss images that were recently stored on the primary.
+     */
+    private static ReadPreference readPreference(MongodbSettings.Routing routing) {
+        if (routing.maxStalenessSeconds() <= 0 || "primary".equalsIgnoreCase(routing.readPreference())) {
+            return ReadPreference.valueOf(routing.readPreference());
+        }
+        return ReadPreference.valueOf(routing.readPreference(), List.of(), routing.maxStalenessSeconds(), TimeUnit.SECONDS);
+    }
+
+    /**
+     * The reactive driver runs its own connection pool and event loop, so it is only set up when reactive reads are enabled.
+     */
+    @Configuration
+    @ConditionalOnProperty("kmdah.cache.mongodb.reads.reactive")
+    @Import(value = {
+        MongoReactiveAutoConfiguration.class,
+        MongoReactiveDataAutoConfiguration.class
+    })
+    static class ReactiveReadsConfiguration {
+
     }
 
 }
@@ -0,0 +1,415 @@
+package moe.tristan.kmdah.service.images.cache.mongodb;
+
+import static java.util.Objects.requireNonNull;
+import static org.springframework.data.mongodb.core.query.Query.query;
+import static org.springframework.data.mongodb.gridfs.GridFsCriteria.whereFilename;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsResource;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
+import org.springframework.http.MediaType;
+
+import com.mongodb.MongoGridFSException;
+import com.mongodb.client.gridfs.model.GridFSFile;
+
+import reactor.core.publisher.Flux;
+
+import moe.tristan.kmdah.service.images.ImageContent;
+import moe.tristan.kmdah.service.images.cache.CacheMode;
+
+/**
+ * Reads images from GridFS, optionally with two optimizations for repeated hits on large images.
+ * <p>
+ * The metadata of recently found files is kept in a bounded cache, so that a hit on one of them skips the {@code fs.files} query. Its first chunk is then
+ * fetched before returning, which is needed anyway and tells whether the file was deleted since it was cached. Deleting a chapter only renames its files
+ * until they are reclaimed though, so other instances may keep serving it for up to {@code metadata-cache-seconds}.
+ * <p>
+ * With prefetching, the next chunks of an image are fetched in parallel while earlier ones are written out, rather than one after another through a
+ * cursor.
+ * <p>
+ * With reactive reads, chunks are downloaded through the reactive driver instead, and handed to the response as they arrive, with up to
+ * {@code prefetch-chunks} of them requested ahead of it and without a prefetching thread pool. This is bridged to the blocking servlet stack rather than
+ * freeing threads: the serving thread still blocks on the lookup of the file, and on each chunk the response has caught up with. A cached file is still
+ * looked up by id before its chunks are streamed, which is a cheaper query than by name.
+ */
+class MongodbGridfsReader {
+
+    private final MongoTemplate mongoTemplate;
+    private final GridFsTemplate gridFsTemplate;
+    private final ReactiveGridFsTemplate reactiveGridFsTemplate;
+    private final MongodbSharding sharding;
+    private final MongodbSettings.Reads settings;
+
+    private final Map<String, CachedFile> metadataCache;
+    private final ExecutorService prefetchExecutor;
+
+    private final LongAdder metadataHits = new LongAdder();
+    private final LongAdder metadataMisses = new LongAdder();
+
+    /**
+     * @param reactiveGridFsTemplate only used, and thus only required, with reactive reads
+     */
+    MongodbGridfsReader(
+        MongoTemplate mongoTemplate,
+        GridFsTemplate gridFsTemplate,
+        ReactiveGridFsTemplate reactiveGridFsTemplate,
+        MongodbSharding sharding,
+        MongodbSettings.Reads settings
+    ) {
+        this.mongoTemplate = mongoTemplate;
+        this.gridFsTemplate = gridFsTemplate;
+        this.reactiveGridFsTemplate = settings.reactive() ? requireNonNull(reactiveGridFsTemplate) : null;
+        this.sharding = sharding;
+        this.settings = settings;
+
+        int maxEntries = settings.metadataCacheSize();
+        this.metadataCache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedFile> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.prefetchExecutor = settings.prefetchChunks() > 0 && !settings.reactive() ? Executors.newFixedThreadPool(settings.prefetchThreads(), runnable -> {
+            Thread thread = new Thread(runnable, "kmdah-mongodb-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    Optional<ImageContent> find(String name) {
+        Optional<GridFSFile> cached = cachedFile(name);
+        if (cached.isPresent()) {
+            Optional<ImageContent> content = reactiveGridFsTemplate != null ? findReactive(cached.get()) : findFromFirstChunk(cached.get());
+            if (content.isPresent()) {
+                metadataHits.increment();
+                return content;
+            }
+            invalidate(name);
+        }
+
+        Query byName = sharding.targetFiles(query(whereFilename().is(name)), List.of(name)).limit(1);
+        // blocking either way, as the serving thread cannot respond before knowing whether the image is there
+        GridFSFile file = reactiveGridFsTemplate != null ? reactiveGridFsTemplate.findFirst(byName).block() : gridFsTemplate.find(byName).first();
+        if (file == null) {
+            return Optional.empty();
+        }
+
+        if (settings.metadataCacheSize() > 0) {
+            metadataMisses.increment();
+            synchronized (metadataCache) {
+                metadataCache.put(name, new CachedFile(file, System.nanoTime()));
+            }
+        }
+        if (reactiveGridFsTemplate != null) {
+            return findReactive(file);
+        }
+        if (prefetchExecutor == null) {
+            return Optional.of(toContent(file));
+        }
+        return Optional.of(toContent(file, new ChunkInputStream(file, null)));
+    }
+
+    void invalidate(String name) {
+        synchronized (metadataCache) {
+            metadataCache.remove(name);
+        }
+    }
+
+    void invalidatePrefix(String prefix) {
+        synchronized (metadataCache) {
+            metadataCache.keySet().removeIf(name -> name.startsWith(prefix));
+        }
+    }
+
+    long getMetadataHits() {
+        return metadataHits.sum();
+    }
+
+    long getMetadataMisses() {
+        return metadataMisses.sum();
+    }
+
+    private Optional<GridFSFile> cachedFile(String name) {
+        if (settings.metadataCacheSize() <= 0) {
+            return Optional.empty();
+        }
+
+        CachedFile cached;
+        synchronized (metadataCache) {
+            cached = metadataCache.get(name);
+        }
+        if (cached == null) {
+            return Optional.empty();
+        }
+        if (System.nanoTime() - cached.cachedAtNanos() > Duration.ofSeconds(settings.metadataCacheSeconds()).toNanos()) {
+            invalidate(name);
+            return Optional.empty();
+        }
+        return Optional.of(cached.file());
+    }
+
+    private Optional<ImageContent> findFromFirstChunk(GridFSFile file) {
+        Optional<byte[]> firstChunk = file.getLength() == 0 ? Optional.of(new byte[0]) : fetchChunk(file, 0);
+        return firstChunk.map(chunk -> toContent(file, new ChunkInputStream(file, chunk)));
+    }
+
+    /**
+     * @return empty if the file was deleted, which is only known once its first chunk is requested
+     */
+    private Optional<ImageContent> findReactive(GridFSFile file) {
+        Flux<byte[]> chunks = reactiveGridFsTemplate
+            .getResource(file)
+            .flatMapMany(ReactiveGridFsResource::getDownloadStream)
+            .map(MongodbGridfsReader::toBytes)
+            .doOnDiscard(DataBuffer.class, DataBufferUtils::release);
+
+        ReactiveChunkInputStream content = new ReactiveChunkInputStream(chunks, Math.max(1, settings.prefetchChunks()));
+        try {
+            content.awaitFirstChunk();
+        } catch (MongoGridFSException e) {
+            content.close();
+            return Optional.empty();
+        }
+        return Optional.of(toContent(file, content));
+    }
+
+    private static byte[] toBytes(DataBuffer buffer) {
+        try {
+            byte[] bytes = new byte[buffer.readableByteCount()];
+            buffer.read(bytes);
+            return bytes;
+        } finally {
+            DataBufferUtils.release(buffer);
+        }
+    }
+
+    private ImageContent toContent(GridFSFile file, InputStream content) {
+        return new ImageContent(new InputStreamResource(content), mediaType(file), OptionalLong.of(file.getLength()), file.getUploadDate().toInstant(), CacheMode.HIT);
+    }
+
+    private ImageContent toContent(GridFSFile file) {
+        return new ImageContent(gridFsTemplate.getResource(file), mediaType(file), OptionalLong.of(file.getLength()), file.getUploadDate().toInstant(), CacheMode.HIT);
+    }
+
+    private static MediaType mediaType(GridFSFile file) {
+        return MediaType.parseMediaType(requireNonNull(file.getMetadata()).getString("_contentType"));
+    }
+
+    /**
+     * @return empty if the chunk doesn't exist, as its file was deleted
+     */
+    private Optional<byte[]> fetchChunk(GridFSFile file, int n) {
+        Document chunk = mongoTemplate
+            .getCollection("fs.chunks")
+            .find(new Document("files_id", file.getObjectId()).append("n", n))
+            .first();
+        return Optional.ofNullable(chunk).map(found -> found.get("data", Binary.class).getData());
+    }
+
+    private static int chunkCount(GridFSFile file) {
+        return (int) ((file.getLength() + file.getChunkSize() - 1) / file.getChunkSize());
+    }
+
+    /**
+     * Reads the chunks of a file in order, keeping up to {@code prefetch-chunks} of the next ones being fetched.
+     */
+    private final class ChunkInputStream extends InputStream {
+
+        private final GridFSFile file;
+        private final int chunkCount;
+        private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+        private int nextToFetch;
+        private int nextToRead;
+        private byte[] current = new byte[0];
+        private int position;
+
+        /**
+         * @param firstChunk the first chunk, if already fetched
+         */
+        private ChunkInputStream(GridFSFile file, byte[] firstChunk) {
+            this.file = file;
+            this.chunkCount = chunkCount(file);
+            if (firstChunk != null && chunkCount > 0) {
+                pending.add(CompletableFuture.completedFuture(firstChunk));
+                nextToFetch = 1;
+            }
+            // starts fetching while the response headers are sent
+            requestChunks();
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!ensureAvailable()) {
+                return -1;
+            }
+            return current[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!ensureAvailable()) {
+                return -1;
+            }
+            int read = Math.min(length, current.length - position);
+            System.arraycopy(current, position, buffer, offset, read);
+            position += read;
+            return read;
+        }
+
+        @Override
+        public void close() {
+            pending.forEach(future -> future.cancel(true));
+            pending.clear();
+        }
+
+        private boolean ensureAvailable() throws IOException {
+            while (position >= current.length) {
+                if (nextToRead >= chunkCount) {
+                    return false;
+                }
+                requestChunks();
+                current = awaitChunk(nextToRead);
+                position = 0;
+                nextToRead++;
+            }
+            return true;
+        }
+
+        private void requestChunks() {
+            int depth = Math.max(1, settings.prefetchChunks());
+            while (nextToFetch < chunkCount && pending.size() < depth) {
+                int n = nextToFetch++;
+                if (prefetchExecutor == null) {
+                    pending.add(CompletableFuture.completedFuture(fetchExpectedChunk(n)));
+                } else {
+                    pending.add(prefetchExecutor.submit(() -> fetchExpectedChunk(n)));
+                }
+            }
+        }
+
+        private byte[] awaitChunk(int n) throws IOException {
+            try {
+                return requireNonNull(pending.poll()).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading chunk " + n + " of " + file.getFilename(), e);
+            } catch (ExecutionException e) {
+                throw new IOException("Failed reading chunk " + n + " of " + file.getFilename(), e.getCause());
+            }
+        }
+
+        private byte[] fetchExpectedChunk(int n) {
+            byte[] chunk = fetchChunk(file, n).orElseThrow(() -> new UncheckedIOException(new IOException("Missing chunk " + n + " of " + file.getFilename())));
+
+            long expectedSize = Math.min(file.getChunkSize(), file.getLength() - (long) n * file.getChunkSize());
+            if (chunk.length != expectedSize) {
+                throw new UncheckedIOException(new IOException("Chunk " + n + " of " + file.getFilename() + " has " + chunk.length + " bytes instead of " + expectedSize));
+            }
+            return chunk;
+        }
+
+    }
+
+    /**
+     * Hands out chunks as the driver delivers them, blocking the reading thread whenever the response has caught up with them. Closing it cancels the
+     * download.
+     */
+    private static final class ReactiveChunkInputStream extends InputStream {
+
+        private final Stream<byte[]> chunks;
+        private final Iterator<byte[]> iterator;
+
+        private byte[] current = new byte[0];
+        private int position;
+
+        private ReactiveChunkInputStream(Flux<byte[]> chunks, int prefetch) {
+            // subscribes on first use, then blocks on each chunk not yet delivered
+            this.chunks = chunks.toStream(prefetch);
+            this.iterator = this.chunks.iterator();
+        }
+
+        /**
+         * Subscribes to the download, so that its first chunk is requested right away.
+         */
+        private void awaitFirstChunk() {
+            iterator.hasNext();
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!ensureAvailable()) {
+                return -1;
+            }
+            return current[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!ensureAvailable()) {
+                return -1;
+            }
+            int read = Math.min(length, current.length - position);
+            System.arraycopy(current, position, buffer, offset, read);
+            position += read;
+            return read;
+        }
+
+        @Override
+        public void close() {
+            chunks.close();
+        }
+
+        private boolean ensureAvailable() throws IOException {
+            try {
+                while (position >= current.length) {
+                    if (!iterator.hasNext()) {
+                        return false;
+                    }
+                    current = iterator.next();
+                    position = 0;
+                }
+                return true;
+            } catch (RuntimeException e) {
+                throw new IOException("Failed reading chunks", e);
+            }
+        }
+
+    }
+
+    private record CachedFile(GridFSFile file, long cachedAtNanos) {}
+
+}
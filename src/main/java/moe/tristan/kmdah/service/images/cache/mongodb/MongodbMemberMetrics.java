@@ -0,0 +1,47 @@
+package moe.tristan.kmdah.service.images.cache.mongodb;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mongodb.connection.ServerDescription;
+import com.mongodb.event.ServerDescriptionChangedEvent;
+import com.mongodb.event.ServerListener;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Reports the round-trip time and role of each replica set member, as measured by the driver's monitoring, which is also what it selects members by for
+ * reads that don't require the primary.
+ */
+class MongodbMemberMetrics implements ServerListener {
+
+    private final MeterRegistry meterRegistry;
+
+    private final Map<String, Member> members = new ConcurrentHashMap<>();
+
+    MongodbMemberMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public void serverDescriptionChanged(ServerDescriptionChangedEvent event) {
+        ServerDescription description = event.getNewDescription();
+        Member member = members.computeIfAbsent(description.getAddress().toString(), this::register);
+
+        member.latencyMicros().set(TimeUnit.NANOSECONDS.toMicros(description.getRoundTripTimeNanos()));
+        member.primary().set(description.isPrimary() ? 1 : 0);
+    }
+
+    private Member register(String address) {
+        Member member = new Member(new AtomicLong(), new AtomicLong());
+        Gauge.builder("kmdah_cache_mongodb_member_latency_micros", member.latencyMicros(), AtomicLong::get).tag("member", address).register(meterRegistry);
+        Gauge.builder("kmdah_cache_mongodb_member_primary", member.primary(), AtomicLong::get).tag("member", address).register(meterRegistry);
+        return member;
+    }
+
+    private record Member(AtomicLong latencyMicros, AtomicLong primary) {}
+
+}
@@ -0,0 +1,70 @@
+package moe.tristan.kmdah.service.images.cache.mongodb;
+
+import org.bson.codecs.configuration.CodecRegistry;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.support.PersistenceExceptionTranslator;
+import org.springframework.data.mongodb.ReactiveMongoDatabaseFactory;
+
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.mongodb.reactivestreams.client.ClientSession;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Reactive counterpart of {@link MongodbRoutedDatabaseFactory}.
+ */
+class MongodbReactiveRoutedDatabaseFactory implements ReactiveMongoDatabaseFactory {
+
+    private final ReactiveMongoDatabaseFactory delegate;
+    private final ReadPreference readPreference;
+    private final WriteConcern writeConcern;
+
+    MongodbReactiveRoutedDatabaseFactory(ReactiveMongoDatabaseFactory delegate, ReadPreference readPreference, WriteConcern writeConcern) {
+        this.delegate = delegate;
+        this.readPreference = readPreference;
+        this.writeConcern = writeConcern;
+    }
+
+    @Override
+    public Mono<MongoDatabase> getMongoDatabase() throws DataAccessException {
+        return delegate.getMongoDatabase().map(this::route);
+    }
+
+    @Override
+    public Mono<MongoDatabase> getMongoDatabase(String dbName) throws DataAccessException {
+        return delegate.getMongoDatabase(dbName).map(this::route);
+    }
+
+    @Override
+    public PersistenceExceptionTranslator getExceptionTranslator() {
+        return delegate.getExceptionTranslator();
+    }
+
+    @Override
+    public CodecRegistry getCodecRegistry() {
+        return delegate.getCodecRegistry();
+    }
+
+    @Override
+    public Mono<ClientSession> getSession(ClientSessionOptions options) {
+        return delegate.getSession(options);
+    }
+
+    @Override
+    public ReactiveMongoDatabaseFactory withSession(ClientSession session) {
+        return new MongodbReactiveRoutedDatabaseFactory(delegate.withSession(session), readPreference, writeConcern);
+    }
+
+    @Override
+    public boolean isTransactionActive() {
+        return delegate.isTransactionActive();
+    }
+
+    private MongoDatabase route(MongoDatabase database) {
+        return database.withReadPreference(readPreference).withWriteConcern(writeConcern);
+    }
+
+}
@@ -0,0 +1,69 @@
+package moe.tristan.kmdah.service.images.cache.mongodb;
+
+import org.bson.codecs.configuration.CodecRegistry;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.support.PersistenceExceptionTranslator;
+import org.springframework.data.mongodb.MongoDatabaseFactory;
+
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Applies a read preference and a write concern to every database it hands out, which is how templates (and GridFS buckets, which have no such setting of
+ * their own) built on it route their operations.
+ */
+class MongodbRoutedDatabaseFactory implements MongoDatabaseFactory {
+
+    private final MongoDatabaseFactory delegate;
+    private final ReadPreference readPreference;
+    private final WriteConcern writeConcern;
+
+    MongodbRoutedDatabaseFactory(MongoDatabaseFactory delegate, ReadPreference readPreference, WriteConcern writeConcern) {
+        this.delegate = delegate;
+        this.readPreference = readPreference;
+        this.writeConcern = writeConcern;
+    }
+
+    @Override
+    public MongoDatabase getMongoDatabase() throws DataAccessException {
+        return route(delegate.getMongoDatabase());
+    }
+
+    @Override
+    public MongoDatabase getMongoDatabase(String dbName) throws DataAccessException {
+        return route(delegate.getMongoDatabase(dbName));
+    }
+
+    @Override
+    public PersistenceExceptionTranslator getExceptionTranslator() {
+        return delegate.getExceptionTranslator();
+    }
+
+    @Override
+    public CodecRegistry getCodecRegistry() {
+        return delegate.getCodecRegistry();
+    }
+
+    @Override
+    public ClientSession getSession(ClientSessionOptions options) {
+        return delegate.getSession(options);
+    }
+
+    @Override
+    public MongoDatabaseFactory withSession(ClientSession session) {
+        return new MongodbRoutedDatabaseFactory(delegate.withSession(session), readPreference, writeConcern);
+    }
+
+    @Override
+    public boolean isTransactionActive() {
+        return delegate.isTransactionActive();
+    }
+
+    private MongoDatabase route(MongoDatabase database) {
+        return database.withReadPreference(readPreference).withWriteConcern(writeConcern);
+    }
+
+}
@@ -15,6 +15,84 @@ public record MongodbSettings(
 
     String username,
 
-    String password
+    String password,
 
-) {}
+    boolean dedup,
+
+    int inlineMaxKb,
+
+    Writes writes,
+
+    Access access,
+
+    Vacuum vacuum,
+
+    Reads reads,
+
+    Routing routing,
+
+    Sharding sharding
+
+) {
+
+    public record Writes(
+
+        int threads,
+
+        int maxQueuedMb,
+
+        int batchMaxKb,
+
+        int lingerMillis,
+
+        String writeConcern
+
+    ) {}
+
+    public record Access(
+
+        int flushSeconds,
+
+        int maxPending
+
+    ) {}
+
+    public record Vacuum(
+
+        int deletionsPerSecond,
+
+        int batchSize
+
+    ) {}
+
+    public record Reads(
+
+        int metadataCacheSize,
+
+        int metadataCacheSeconds,
+
+        int prefetchChunks,
+
+        int prefetchThreads,
+
+        boolean reactive
+
+    ) {}
+
+    public record Routing(
+
+        String replicaSet,
+
+        String readPreference,
+
+        int maxStalenessSeconds
+
+    ) {}
+
+    public record Sharding(
+
+        boolean enabled
+
+    ) {}
+
+}
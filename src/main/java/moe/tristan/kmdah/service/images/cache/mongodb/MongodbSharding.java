@@ -0,0 +1,173 @@
+package moe.tristan.kmdah.service.images.cache.mongodb;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.HashedIndex;
+import org.springframework.data.mongodb.core.query.Query;
+
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.result.UpdateResult;
+
+/**
+ * Spreads the cache over a sharded cluster by the hash of the chapter images belong to, which all instances derive from image names alone.
+ * <p>
+ * Every document carries its chapter (the hash of its content for deduplicated objects), which is the hashed shard key of the files, inline images and
+ * references collections, while chunks are sharded by the hash of their file's id. Queries by name then also filter on it, so that the cluster routes them
+ * to the single shard owning it rather than to every shard, and a chapter deletion only involves one shard.
+ * <p>
+ * Since a name always maps to the same chapter, {@code _id} uniqueness, which is only enforced per shard, still holds across the cluster.
+ * <p>
+ * Documents stored before sharding was enabled are given their chapter before the collections are sharded, as targeted queries would otherwise never
+ * find them again.
+ */
+public class MongodbSharding {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MongodbSharding.class);
+
+    static final String FILES_KEY = "metadata.chapter";
+    static final String DOCUMENTS_KEY = "chapter";
+
+    private final boolean enabled;
+
+    public MongodbSharding(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param name the name an image is stored as, possibly marked as deleted
+     *
+     * @return the chapter the image belongs to, or the content hash of a deduplicated object
+     */
+    static String chapterOf(String name) {
+        String stored = name.startsWith(MongodbCachedImageService.DELETED_PREFIX) ? name.substring(MongodbCachedImageService.DELETED_PREFIX.length()) : name;
+        if (stored.startsWith(MongodbCachedImageService.OBJECT_PREFIX)) {
+            return stored.substring(MongodbCachedImageService.OBJECT_PREFIX.length());
+        }
+        int separator = stored.indexOf('/');
+        return separator < 0 ? stored : stored.substring(0, separator);
+    }
+
+    /**
+     * Restricts a query on {@code fs.files} to the shards owning the given names.
+     */
+    Query targetFiles(Query query, Collection<String> names) {
+        return target(query, FILES_KEY, names);
+    }
+
+    /**
+     * Restricts a query on the inline images or references collections to the shards owning the given names.
+     */
+    Query targetDocuments(Query query, Collection<String> names) {
+        return target(query, DOCUMENTS_KEY, names);
+    }
+
+    private Query target(Query query, String key, Collection<String> names) {
+        if (!enabled) {
+            return query;
+        }
+
+        Set<String> chapters = new LinkedHashSet<>();
+        names.forEach(name -> chapters.add(chapterOf(name)));
+        return query.addCriteria(chapters.size() == 1 ? where(key).is(chapters.iterator().next()) : where(key).in(chapters));
+    }
+
+    /**
+     * Shards the cache collections of the database, which requires cluster administration privileges. Collections already sharded are left as they are.
+     */
+    void shardCollections(MongoTemplate mongoTemplate, boolean dedup, boolean inlining) {
+        if (!enabled) {
+            return;
+        }
+
+        backfillChapters(mongoTemplate, dedup, inlining);
+
+        String database = mongoTemplate.getDb().getName();
+        MongoDatabase admin = mongoTemplate.getMongoDatabaseFactory().getMongoDatabase("admin");
+        admin.runCommand(new Document("enableSharding", database));
+
+        shardCollection(mongoTemplate, admin, "fs.files", FILES_KEY);
+        shardCollection(mongoTemplate, admin, "fs.chunks", "files_id");
+        if (inlining) {
+            shardCollection(mongoTemplate, admin, MongodbCachedImageService.INLINE_COLLECTION, DOCUMENTS_KEY);
+        }
+        if (dedup) {
+            shardCollection(mongoTemplate, admin, MongodbCachedImageService.REFS_COLLECTION, DOCUMENTS_KEY);
+        }
+    }
+
+    /**
+     * Sets the chapter of documents stored without one, derived from their name server-side like {@link #chapterOf} does, which requires MongoDB 4.2.
+     */
+    static void backfillChapters(MongoTemplate mongoTemplate, boolean dedup, boolean inlining) {
+        backfillChapters(mongoTemplate, "fs.files", FILES_KEY, "filename");
+        if (inlining) {
+            backfillChapters(mongoTemplate, MongodbCachedImageService.INLINE_COLLECTION, DOCUMENTS_KEY, "_id");
+        }
+        if (dedup) {
+            backfillChapters(mongoTemplate, MongodbCachedImageService.REFS_COLLECTION, DOCUMENTS_KEY, "_id");
+        }
+    }
+
+    private static void backfillChapters(MongoTemplate mongoTemplate, String collection, String key, String nameField) {
+        UpdateResult backfilled = mongoTemplate.getCollection(collection).updateMany(
+            new Document(key, new Document("$exists", false)),
+            List.of(new Document("$set", new Document(key, chapterExpression("$" + nameField))))
+        );
+        if (backfilled.getModifiedCount() > 0) {
+            LOGGER.info("Set {} of {} documents of {} stored before sharding", key, backfilled.getModifiedCount(), collection);
+        }
+    }
+
+    /**
+     * @param name a field holding the name an image is stored as
+     */
+    private static Document chapterExpression(String name) {
+        Document stored = new Document("$cond", List.of(
+            startsWith(name, MongodbCachedImageService.DELETED_PREFIX),
+            substringAfter(name, MongodbCachedImageService.DELETED_PREFIX.length()),
+            name
+        ));
+        Document separator = new Document("$indexOfCP", List.of("$$stored", "/"));
+        Document chapter = new Document("$cond", List.of(
+            startsWith("$$stored", MongodbCachedImageService.OBJECT_PREFIX),
+            substringAfter("$$stored", MongodbCachedImageService.OBJECT_PREFIX.length()),
+            new Document("$cond", List.of(
+                new Document("$lt", List.of(separator, 0)),
+                "$$stored",
+                new Document("$substrCP", List.of("$$stored", 0, separator))
+            ))
+        ));
+        return new Document("$let", new Document("vars", new Document("stored", stored)).append("in", chapter));
+    }
+
+    private static Document startsWith(String string, String prefix) {
+        return new Document("$eq", List.of(new Document("$indexOfCP", List.of(string, prefix)), 0));
+    }
+
+    private static Document substringAfter(String string, int start) {
+        return new Document("$substrCP", List.of(string, start, new Document("$strLenCP", string)));
+    }
+
+    private static void shardCollection(MongoTemplate mongoTemplate, MongoDatabase admin, String collection, String key) {
+        // needed for collections that already hold images, which were backfilled with their chapter
+        mongoTemplate.indexOps(collection).ensureIndex(HashedIndex.hashed(key));
+
+        String namespace = mongoTemplate.getDb().getName() + "." + collection;
+        admin.runCommand(new Document("shardCollection", namespace).append("key", new Document(key, "hashed")));
+        LOGGER.info("Sharded {} by hashed {}", namespace, key);
+    }
+
+}
@@ -0,0 +1,29 @@
+package moe.tristan.kmdah.service.images.cache.mongodb;
+
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
+
+/**
+ * Templates by kind of operation: image lookups can be served by secondaries, and cache fills can use a weaker write concern than deletions and
+ * maintenance, which stay on the primary with default settings.
+ * <p>
+ * The reactive template for reads is only set when reactive reads are enabled.
+ */
+public record MongodbTemplates(
+
+    MongoTemplate primary,
+
+    GridFsTemplate primaryGridFs,
+
+    MongoTemplate reads,
+
+    GridFsTemplate readsGridFs,
+
+    ReactiveGridFsTemplate readsReactiveGridFs,
+
+    MongoTemplate writes,
+
+    GridFsTemplate writesGridFs
+
+) {}
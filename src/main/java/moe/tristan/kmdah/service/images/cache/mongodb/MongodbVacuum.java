@@ -0,0 +1,237 @@
+package moe.tristan.kmdah.service.images.cache.mongodb;
+
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.group;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.match;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.newAggregation;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.domain.Sort.Order;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.util.unit.DataSize;
+
+import moe.tristan.kmdah.service.images.cache.VacuumingRequest;
+import moe.tristan.kmdah.service.images.cache.VacuumingResult;
+import moe.tristan.kmdah.util.IoBudget;
+
+/**
+ * Keeps the cache under its target size by evicting the least recently accessed images, in small batches at a bounded rate, so that the primary keeps
+ * serving reads while it runs.
+ * <p>
+ * Usage is the summed length of stored images, which unlike collection statistics is exact right after deletions. Nothing is kept between runs: if a run
+ * is interrupted, for example by a leadership change, the next one picks up from the current usage and least recently accessed images.
+ * <p>
+ * On a sharded cluster, both usage and least recently accessed images are merged across shards by the cluster itself, so that the target size applies to
+ * the cache as a whole rather than per shard, while deletions only go to the shards owning evicted images.
+ */
+class MongodbVacuum {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MongodbVacuum.class);
+
+    private static final Comparator<Victim> LEAST_RECENT_FIRST = Comparator.comparing(Victim::lastAccess, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    private final MongoTemplate mongoTemplate;
+    private final MongodbSharding sharding;
+    private final boolean dedup;
+    private final boolean inlining;
+    private final MongodbSettings.Vacuum settings;
+
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder freedBytes = new LongAdder();
+    private final AtomicLong remainingBytes = new AtomicLong();
+    private final AtomicLong evictionHorizonSeconds = new AtomicLong();
+
+    MongodbVacuum(MongoTemplate mongoTemplate, MongodbSharding sharding, boolean dedup, boolean inlining, MongodbSettings.Vacuum settings) {
+        this.mongoTemplate = mongoTemplate;
+        this.sharding = sharding;
+        this.dedup = dedup;
+        this.inlining = inlining;
+        this.settings = settings;
+    }
+
+    VacuumingResult vacuum(VacuumingRequest vacuumingRequest) {
+        long usedBytes = usedBytes();
+        long maxBytes = vacuumingRequest.targetSize().toBytes();
+        LOGGER.info("Cache fill factor: {}% ({}/{}GB)", (int) (usedBytes * 100. / maxBytes), DataSize.ofBytes(usedBytes).toGigabytes(), vacuumingRequest.targetSize().toGigabytes());
+
+        if (usedBytes <= maxBytes) {
+            LOGGER.info("No need for vacuuming");
+            remainingBytes.set(0L);
+            return new VacuumingResult(0L, DataSize.ofBytes(0L));
+        }
+
+        long bytesToFree = usedBytes - maxBytes;
+        LOGGER.info("Vacuum will evict {}MB of least recently accessed images", DataSize.ofBytes(bytesToFree).toMegabytes());
+
+        IoBudget deletionBudget = IoBudget.perSecond(settings.deletionsPerSecond());
+        Instant now = Instant.now();
+        long runEvictions = 0L;
+        long runFreedBytes = 0L;
+        while (runFreedBytes < bytesToFree) {
+            remainingBytes.set(bytesToFree - runFreedBytes);
+
+            List<Victim> batch = nextBatch(bytesToFree - runFreedBytes);
+            if (batch.isEmpty() || !deletionBudget.acquire(batch.size())) {
+                break;
+            }
+
+            delete(batch);
+            for (Victim victim : batch) {
+                recordEviction(victim, now);
+                runFreedBytes += victim.length();
+            }
+            runEvictions += batch.size();
+        }
+        remainingBytes.set(Math.max(0L, bytesToFree - runFreedBytes));
+
+        return new VacuumingResult(runEvictions, DataSize.ofBytes(runFreedBytes));
+    }
+
+    /**
+     * Excludes chapters already marked as deleted, as they are about to be reclaimed anyway.
+     */
+    long usedBytes() {
+        long used = sumLengths(
+            newAggregation(match(where("filename").not().regex("^" + Pattern.quote(MongodbCachedImageService.DELETED_PREFIX))), group().sum("length").as("total")),
+            "fs.files"
+        );
+        if (inlining) {
+            used += sumLengths(newAggregation(group().sum("length").as("total")), MongodbCachedImageService.INLINE_COLLECTION);
+        }
+        return used;
+    }
+
+    /**
+     * @return the least recently accessed images across GridFS and inline images, up to the batch size and just enough to free the given amount of bytes
+     */
+    private List<Victim> nextBatch(long bytesToFree) {
+        Query gridfsQuery = query(where("filename").not().regex("^" + Pattern.quote(MongodbCachedImageService.DELETED_PREFIX)))
+            .with(Sort.by(Order.asc(MongodbAccessRecorder.GRIDFS_LAST_ACCESS)))
+            .limit(settings.batchSize());
+        gridfsQuery.fields().include("_id").include("filename").include("length").include(MongodbAccessRecorder.GRIDFS_LAST_ACCESS);
+
+        List<Victim> candidates = new ArrayList<>();
+        for (Document file : mongoTemplate.find(gridfsQuery, Document.class, "fs.files")) {
+            Document metadata = file.get("metadata", Document.class);
+            candidates.add(new Victim(
+                false,
+                file.get("_id"),
+                file.getString("filename"),
+                file.get("length", Number.class).longValue(),
+                metadata == null ? null : metadata.getDate("lastAccess")
+            ));
+        }
+
+        if (inlining) {
+            Query inlineQuery = new Query().with(Sort.by(Order.asc(MongodbAccessRecorder.INLINE_LAST_ACCESS))).limit(settings.batchSize());
+            inlineQuery.fields().include("_id").include("length").include(MongodbAccessRecorder.INLINE_LAST_ACCESS);
+            for (Document inline : mongoTemplate.find(inlineQuery, Document.class, MongodbCachedImageService.INLINE_COLLECTION)) {
+                candidates.add(new Victim(
+                    true,
+                    inline.get("_id"),
+                    String.valueOf(inline.get("_id")),
+                    inline.get("length", Number.class).longValue(),
+                    inline.getDate(MongodbAccessRecorder.INLINE_LAST_ACCESS)
+                ));
+            }
+        }
+
+        candidates.sort(LEAST_RECENT_FIRST);
+
+        List<Victim> batch = new ArrayList<>();
+        long batchBytes = 0L;
+        for (Victim candidate : candidates) {
+            if (batch.size() >= settings.batchSize() || batchBytes >= bytesToFree) {
+                break;
+            }
+            batch.add(candidate);
+            batchBytes += candidate.length();
+        }
+        return batch;
+    }
+
+    private void delete(List<Victim> batch) {
+        List<Victim> gridfsVictims = batch.stream().filter(victim -> !victim.inline()).collect(Collectors.toList());
+        if (!gridfsVictims.isEmpty()) {
+            List<Object> gridfsIds = gridfsVictims.stream().map(Victim::id).collect(Collectors.toList());
+            List<String> gridfsNames = gridfsVictims.stream().map(Victim::name).collect(Collectors.toList());
+            // files first, so that no lookup finds a file whose chunks are gone
+            mongoTemplate.remove(sharding.targetFiles(query(where("_id").in(gridfsIds)), gridfsNames), "fs.files");
+            mongoTemplate.remove(query(where("files_id").in(gridfsIds)), "fs.chunks");
+        }
+
+        List<Victim> inlineVictims = batch.stream().filter(Victim::inline).collect(Collectors.toList());
+        if (!inlineVictims.isEmpty()) {
+            List<Object> inlineIds = inlineVictims.stream().map(Victim::id).collect(Collectors.toList());
+            List<String> inlineNames = inlineVictims.stream().map(Victim::name).collect(Collectors.toList());
+            mongoTemplate.remove(sharding.targetDocuments(query(where("_id").in(inlineIds)), inlineNames), MongodbCachedImageService.INLINE_COLLECTION);
+        }
+
+        if (dedup) {
+            Set<String> deletedObjects = new HashSet<>();
+            for (Victim victim : batch) {
+                if (victim.name().startsWith(MongodbCachedImageService.OBJECT_PREFIX)) {
+                    deletedObjects.add(victim.name().substring(MongodbCachedImageService.OBJECT_PREFIX.length()));
+                }
+            }
+            if (!deletedObjects.isEmpty()) {
+                mongoTemplate.remove(query(where("object").in(deletedObjects)), MongodbCachedImageService.REFS_COLLECTION);
+            }
+        }
+    }
+
+    /**
+     * Evictions happen in order of last access, so the last access of the latest evicted image is the horizon past which images were evicted. The closer it
+     * is to now, the more likely evicted images are to be requested again.
+     */
+    private void recordEviction(Victim victim, Instant now) {
+        evictions.increment();
+        freedBytes.add(victim.length());
+        // null for images stored before access was recorded
+        if (victim.lastAccess() != null) {
+            evictionHorizonSeconds.set(Math.max(0L, now.getEpochSecond() - victim.lastAccess().toInstant().getEpochSecond()));
+        }
+    }
+
+    private long sumLengths(Aggregation aggregation, String collection) {
+        Document result = mongoTemplate.aggregate(aggregation, collection, Document.class).getUniqueMappedResult();
+        return result == null ? 0L : result.get("total", Number.class).longValue();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    long getFreedBytes() {
+        return freedBytes.sum();
+    }
+
+    long getRemainingBytes() {
+        return remainingBytes.get();
+    }
+
+    long getEvictionHorizonSeconds() {
+        return evictionHorizonSeconds.get();
+    }
+
+    private record Victim(boolean inline, Object id, String name, long length, Date lastAccess) {}
+
+}
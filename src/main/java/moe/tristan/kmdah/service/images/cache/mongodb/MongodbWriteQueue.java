@@ -0,0 +1,184 @@
+package moe.tristan.kmdah.service.images.cache.mongodb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+import org.springframework.util.unit.DataSize;
+
+import com.mongodb.WriteConcern;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.PendingWritesBudget;
+
+/**
+ * Takes cache writes off the serving threads, which would otherwise wait for GridFS to acknowledge every chunk of a cache miss before completing its
+ * response.
+ * <p>
+ * Pending writes are bounded by a {@link PendingWritesBudget}.
+ * <p>
+ * Each writer hands over pending writes in batches, collected for up to {@code linger-millis} after the first one or until {@code batch-max-kb} is
+ * reached, so that a burst of misses costs a few bulk inserts rather than round-trips for every image.
+ */
+public class MongodbWriteQueue {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MongodbWriteQueue.class);
+
+    private final int threads;
+    private final PendingWritesBudget budget;
+    private final long batchMaxBytes;
+    private final long lingerNanos;
+    private final WriteConcern writeConcern;
+
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+
+    private final Timer writeLatency;
+    private final Timer batchLatency;
+    private final DistributionSummary batchSizes;
+
+    private volatile Writer writer;
+
+    public MongodbWriteQueue(MongodbSettings.Writes settings, MeterRegistry meterRegistry) {
+        this.threads = settings.threads();
+        this.budget = new PendingWritesBudget(DataSize.ofMegabytes(settings.maxQueuedMb()).toBytes(), meterRegistry, "kmdah_cache_mongodb");
+        this.batchMaxBytes = DataSize.ofKilobytes(settings.batchMaxKb()).toBytes();
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(settings.lingerMillis());
+        this.writeConcern = WriteConcern.valueOf(settings.writeConcern());
+        if (writeConcern == null) {
+            throw new IllegalArgumentException("Unknown write concern: " + settings.writeConcern());
+        }
+
+        Gauge.builder("kmdah_cache_mongodb_write_queue_images", queue, BlockingQueue::size).register(meterRegistry);
+        this.writeLatency = meterRegistry.timer("kmdah_cache_mongodb_write_latency");
+        this.batchLatency = meterRegistry.timer("kmdah_cache_mongodb_write_batch_latency");
+        this.batchSizes = meterRegistry.summary("kmdah_cache_mongodb_write_batch_size");
+    }
+
+    /**
+     * @return whether writes are done in the background, rather than by the thread saving the image
+     */
+    public boolean isAsync() {
+        return threads > 0;
+    }
+
+    public synchronized void start(Writer writer) {
+        if (this.writer != null) {
+            throw new IllegalStateException("Write queue was already started!");
+        }
+        this.writer = writer;
+
+        for (int i = 0; i < threads; i++) {
+            Thread writerThread = new Thread(this::writeContinuously, "kmdah-mongodb-writer-" + i);
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+        LOGGER.info("Started {} MongoDB writers, with up to {}MB of pending writes", threads, DataSize.ofBytes(budget.getMaxBytes()).toMegabytes());
+    }
+
+    /**
+     * @return whether an image fetched now is likely to be accepted by the time it is submitted
+     */
+    public boolean canAccept() {
+        return !isAsync() || budget.canAccept();
+    }
+
+    /**
+     * @return false if the image was dropped as too many bytes are already pending
+     */
+    public boolean submit(ImageSpec spec, MediaType mediaType, byte[] content) {
+        return submit(spec, mediaType, content, new CompletableFuture<>());
+    }
+
+    /**
+     * @param written completed once the write is done with, whether the image was stored or not, unless it was dropped right away
+     * @return false if the image was dropped as too many bytes are already pending
+     */
+    public boolean submit(ImageSpec spec, MediaType mediaType, byte[] content, CompletableFuture<Void> written) {
+        if (!budget.tryReserve(content.length)) {
+            return false;
+        }
+
+        queue.add(new PendingWrite(spec, mediaType, content, System.nanoTime(), written));
+        return true;
+    }
+
+    /**
+     * @return the write concern of cache writes, which can be weaker than that of other writes as cached images can always be fetched again
+     */
+    public WriteConcern getWriteConcern() {
+        return writeConcern;
+    }
+
+    public long getQueuedBytes() {
+        return budget.getPendingBytes();
+    }
+
+    private void writeContinuously() {
+        while (!Thread.currentThread().isInterrupted()) {
+            List<PendingWrite> batch = new ArrayList<>();
+            try {
+                collectBatch(batch);
+
+                long batchStart = System.nanoTime();
+                writer.write(batch);
+                long batchEnd = System.nanoTime();
+
+                batchLatency.record(batchEnd - batchStart, TimeUnit.NANOSECONDS);
+                batchSizes.record(batch.size());
+                for (PendingWrite write : batch) {
+                    writeLatency.record(batchEnd - write.enqueuedNanos(), TimeUnit.NANOSECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                LOGGER.error("Failed writing {} images to MongoDB", batch.size(), e);
+            } finally {
+                for (PendingWrite write : batch) {
+                    budget.release(write.content().length);
+                    write.written().complete(null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for a first write, then for more until the batch is full or has waited long enough.
+     */
+    private void collectBatch(List<PendingWrite> batch) throws InterruptedException {
+        PendingWrite first = queue.take();
+        batch.add(first);
+
+        long batchBytes = first.content().length;
+        long deadline = System.nanoTime() + lingerNanos;
+        while (batchBytes < batchMaxBytes) {
+            long remaining = deadline - System.nanoTime();
+            PendingWrite next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+            batchBytes += next.content().length;
+        }
+    }
+
+    @FunctionalInterface
+    public interface Writer {
+
+        void write(List<PendingWrite> batch);
+
+    }
+
+    public record PendingWrite(ImageSpec spec, MediaType mediaType, byte[] content, long enqueuedNanos, CompletableFuture<Void> written) {}
+
+}
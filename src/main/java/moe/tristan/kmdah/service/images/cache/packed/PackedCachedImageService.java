@@ -0,0 +1,162 @@
+package moe.tristan.kmdah.service.images.cache.packed;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.http.MediaType;
+import org.springframework.util.unit.DataSize;
+
+import moe.tristan.kmdah.service.images.ImageContent;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.CacheMode;
+import moe.tristan.kmdah.service.images.cache.CachedImageService;
+import moe.tristan.kmdah.service.images.cache.ReclaimingRequest;
+import moe.tristan.kmdah.service.images.cache.ReclaimingResult;
+import moe.tristan.kmdah.service.images.cache.VacuumingRequest;
+import moe.tristan.kmdah.service.images.cache.VacuumingResult;
+import moe.tristan.kmdah.util.ThrottledExecutorService;
+
+public class PackedCachedImageService implements CachedImageService, HealthIndicator, Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PackedCachedImageService.class);
+
+    private static final int NB_CORES = Runtime.getRuntime().availableProcessors();
+
+    // appends are serialized by the store anyway, so threads only serve to buffer upstream responses
+    private final ExecutorService writeExecutorService = ThrottledExecutorService.from(NB_CORES, NB_CORES, NB_CORES);
+
+    private final ScheduledExecutorService compactionExecutorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "kmdah-packed-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final PackedSegmentStore store;
+
+    public PackedCachedImageService(PackedSettings packedSettings, PackedSegmentStore store) {
+        this.store = store;
+
+        LOGGER.info("Initializing in packed mode with {}", packedSettings);
+
+        long compactionInterval = packedSettings.compactionIntervalMinutes();
+        compactionExecutorService.scheduleWithFixedDelay(this::compact, compactionInterval, compactionInterval, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public Optional<ImageContent> findImage(ImageSpec imageSpec) {
+        return store.find(imageSpec).map(image -> new ImageContent(
+            image,
+            image.getMediaType(),
+            OptionalLong.of(image.contentLength()),
+            image.getLastModified(),
+            CacheMode.HIT
+        ));
+    }
+
+    @Override
+    public void saveImage(ImageSpec imageSpec, MediaType mediaType, InputStream inputStream) {
+        saveImageAsync(imageSpec, mediaType, inputStream);
+    }
+
+    @Override
+    public CompletableFuture<Void> saveImageAsync(ImageSpec imageSpec, MediaType mediaType, InputStream inputStream) {
+        try {
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    if (store.put(imageSpec, inputStream.readAllBytes())) {
+                        LOGGER.debug("Committed {} to cache", imageSpec);
+                    }
+                } catch (Exception e) {
+                    LOGGER.error("Error during cache saving of {}", imageSpec, e);
+                }
+            }, writeExecutorService);
+        } catch (RejectedExecutionException e) {
+            LOGGER.error("Couldn't schedule cache save of {} due to having a full queue of files to commit already.", imageSpec);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    @Override
+    public void deleteChapter(ImageSpec imageSpec) {
+        try {
+            store.deleteChapter(imageSpec.mode(), imageSpec.chapter());
+            LOGGER.info("Marked chapter {} as deleted", imageSpec.chapter());
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot delete " + imageSpec, e);
+        }
+    }
+
+    /**
+     * Only drops the images of deleted chapters from the index, as the space they use is reclaimed by compaction.
+     */
+    @Override
+    public ReclaimingResult reclaim(ReclaimingRequest reclaimingRequest) {
+        try {
+            return new ReclaimingResult(store.purgeDeletedChapters(), DataSize.ofBytes(0L));
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot purge deleted chapters of packed store", e);
+        }
+    }
+
+    @Override
+    public VacuumingResult vacuum(VacuumingRequest vacuumingRequest) {
+        try {
+            return store.evictOldestSegments(vacuumingRequest.targetSize());
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot vacuum packed store", e);
+        }
+    }
+
+    @Override
+    public Health health() {
+        return Health.up()
+            .withDetail("images", store.imageCount())
+            .withDetail("segments", store.segmentCount())
+            .withDetail("garbageMb", DataSize.ofBytes(store.deadBytes()).toMegabytes())
+            .build();
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactionExecutorService.shutdownNow();
+        writeExecutorService.shutdown();
+        try {
+            if (!writeExecutorService.awaitTermination(10, TimeUnit.SECONDS)) {
+                LOGGER.warn("Dropping pending cache saves on shutdown");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        store.close();
+    }
+
+    private void compact() {
+        try {
+            int purged = store.purgeDeletedChapters();
+            if (purged > 0) {
+                LOGGER.info("Purged {} images of deleted chapters", purged);
+            }
+
+            long reclaimed = store.compact();
+            if (reclaimed > 0) {
+                LOGGER.info("Compaction reclaimed {}MB", DataSize.ofBytes(reclaimed).toMegabytes());
+            }
+        } catch (Exception e) {
+            LOGGER.error("Compaction of packed store failed", e);
+        }
+    }
+
+}
@@ -0,0 +1,28 @@
+package moe.tristan.kmdah.service.images.cache.packed;
+
+import java.io.IOException;
+
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+@Configuration
+@Profile("cache-packed")
+@EnableConfigurationProperties(PackedSettings.class)
+public class PackedConfiguration {
+
+    @Bean
+    PackedCachedImageService packedCachedImageService(PackedSettings packedSettings, MeterRegistry meterRegistry) throws IOException {
+        PackedSegmentStore store = PackedSegmentStore.open(packedSettings);
+        Gauge.builder("kmdah_cache_packed_images", store, PackedSegmentStore::imageCount).register(meterRegistry);
+        Gauge.builder("kmdah_cache_packed_segments", store, PackedSegmentStore::segmentCount).register(meterRegistry);
+        Gauge.builder("kmdah_cache_packed_bytes", store, PackedSegmentStore::totalBytes).register(meterRegistry);
+        Gauge.builder("kmdah_cache_packed_garbage_bytes", store, PackedSegmentStore::deadBytes).register(meterRegistry);
+        return new PackedCachedImageService(packedSettings, store);
+    }
+
+}
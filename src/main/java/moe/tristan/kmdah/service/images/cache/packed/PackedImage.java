@@ -0,0 +1,114 @@
+package moe.tristan.kmdah.service.images.cache.packed;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.time.Instant;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.http.MediaType;
+
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.filesystem.FilesystemMediaType;
+
+/**
+ * An image stored in a segment, read with positional reads on the segment's channel, so that any amount of them can be read concurrently.
+ */
+public class PackedImage extends AbstractResource {
+
+    private final PackedSegment segment;
+    private final PackedIndex.Location location;
+
+    PackedImage(PackedSegment segment, PackedIndex.Location location) {
+        this.segment = segment;
+        this.location = location;
+    }
+
+    public MediaType getMediaType() {
+        FilesystemMediaType mediaType = location.mediaType();
+        return mediaType == FilesystemMediaType.UNKNOWN ? MediaType.APPLICATION_OCTET_STREAM : mediaType.getMediaType();
+    }
+
+    public Instant getLastModified() {
+        return Instant.ofEpochMilli(location.lastModifiedMillis());
+    }
+
+    ImageSpec readSpec() throws IOException {
+        ByteBuffer spec = ByteBuffer.allocate(location.specLength());
+        segment.read(spec, location.offset() + PackedRecord.HEADER_BYTES);
+        return PackedRecord.decodeSpec(spec.array()).orElseThrow(() -> new IOException("Invalid spec in " + getDescription()));
+    }
+
+    @Override
+    public long contentLength() {
+        return location.dataLength();
+    }
+
+    @Override
+    public long lastModified() {
+        return location.lastModifiedMillis();
+    }
+
+    @Override
+    public boolean exists() {
+        return segment.channel().isOpen();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return Channels.newInputStream(readableChannel());
+    }
+
+    @Override
+    public ReadableByteChannel readableChannel() {
+        return new SliceChannel(location.dataPosition(), location.dataPosition() + location.dataLength());
+    }
+
+    @Override
+    public String getDescription() {
+        return "segment " + segment + " at " + location.offset();
+    }
+
+    private final class SliceChannel implements ReadableByteChannel {
+
+        private final long end;
+
+        private long position;
+        private boolean open = true;
+
+        private SliceChannel(long start, long end) {
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read(ByteBuffer destination) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+
+            ByteBuffer slice = destination.slice();
+            slice.limit((int) Math.min(slice.remaining(), end - position));
+            int read = segment.channel().read(slice, position);
+            if (read > 0) {
+                position += read;
+                destination.position(destination.position() + read);
+            }
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+    }
+
+}
@@ -0,0 +1,135 @@
+package moe.tristan.kmdah.service.images.cache.packed;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import moe.tristan.kmdah.service.images.cache.filesystem.FilesystemMediaType;
+
+/**
+ * Memory-mapped index from image keys to their location in segments, so that it survives restarts without having to re-read the segments.
+ * <p>
+ * A single mapping is limited to 2GB, so the index is split by the high bits of keys across {@value #PARTITIONS} files, each a
+ * {@link PackedIndexPartition} growing on its own. It is only reused if all of them were cleanly closed, as it can otherwise be out of sync with the
+ * segments.
+ * <p>
+ * This class is not thread-safe, access is guarded by the store.
+ */
+final class PackedIndex implements Closeable {
+
+    private static final int PARTITION_BITS = 6;
+    private static final int PARTITIONS = 1 << PARTITION_BITS;
+
+    private final PackedIndexPartition[] partitions = new PackedIndexPartition[PARTITIONS];
+    private final boolean recovered;
+
+    private PackedIndex(Path dir, long expectedEntries) throws IOException {
+        // single-file index of previous versions, which is rebuilt as partitions
+        Files.deleteIfExists(dir.resolve("index"));
+
+        long expectedEntriesPerPartition = expectedEntries / PARTITIONS;
+        boolean allRecovered = true;
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            partitions[partition] = PackedIndexPartition.open(partitionFile(dir, partition), expectedEntriesPerPartition, true);
+            allRecovered &= partitions[partition].isRecovered();
+        }
+
+        if (!allRecovered) {
+            for (int partition = 0; partition < PARTITIONS; partition++) {
+                if (partitions[partition].isRecovered()) {
+                    // rebuilt along with the others, from a new table rather than the one still open
+                    partitions[partition].close();
+                    partitions[partition] = PackedIndexPartition.open(partitionFile(dir, partition), expectedEntriesPerPartition, false);
+                }
+            }
+        }
+        this.recovered = allRecovered;
+    }
+
+    static PackedIndex open(Path dir, long expectedEntries) throws IOException {
+        return new PackedIndex(dir, expectedEntries);
+    }
+
+    /**
+     * @return whether the index was cleanly closed previously, and thus doesn't need to be rebuilt from the segments
+     */
+    boolean isRecovered() {
+        return recovered;
+    }
+
+    long size() {
+        long size = 0L;
+        for (PackedIndexPartition partition : partitions) {
+            size += partition.size();
+        }
+        return size;
+    }
+
+    Optional<Location> get(long key) {
+        return partitionFor(key).get(key);
+    }
+
+    /**
+     * @return the previous location of the key, if any
+     */
+    Optional<Location> put(long key, Location location) throws IOException {
+        return partitionFor(key).put(key, location);
+    }
+
+    Optional<Location> remove(long key) {
+        return partitionFor(key).remove(key);
+    }
+
+    void forEach(EntryVisitor visitor) {
+        for (PackedIndexPartition partition : partitions) {
+            partition.forEach(visitor);
+        }
+    }
+
+    void force() {
+        for (PackedIndexPartition partition : partitions) {
+            partition.force();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (PackedIndexPartition partition : partitions) {
+            partition.close();
+        }
+    }
+
+    private PackedIndexPartition partitionFor(long key) {
+        // high bits, as the low ones are used for slotting within partitions
+        return partitions[(int) (key >>> (Long.SIZE - PARTITION_BITS))];
+    }
+
+    private static Path partitionFile(Path dir, int partition) {
+        return dir.resolve(String.format("index.%02d", partition));
+    }
+
+    /**
+     * @param offset offset of the record in its segment
+     */
+    record Location(int segment, long offset, int specLength, int dataLength, int chapterHash, long lastModifiedMillis, FilesystemMediaType mediaType) {
+
+        long recordLength() {
+            return PackedRecord.HEADER_BYTES + specLength + (long) dataLength;
+        }
+
+        long dataPosition() {
+            return offset + PackedRecord.HEADER_BYTES + specLength;
+        }
+
+    }
+
+    @FunctionalInterface
+    interface EntryVisitor {
+
+        void visit(long key, Location location);
+
+    }
+
+}
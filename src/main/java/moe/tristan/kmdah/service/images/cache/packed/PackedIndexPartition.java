@@ -0,0 +1,313 @@
+package moe.tristan.kmdah.service.images.cache.packed;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import moe.tristan.kmdah.service.images.cache.filesystem.FilesystemMediaType;
+
+/**
+ * Memory-mapped open-addressing (linear probing) table from image keys to their location in segments, for one partition of the {@link PackedIndex}. Each
+ * entry takes {@value #ENTRY_BYTES} bytes:
+ * <pre>
+ * | key (8) | segment (4) | offset (4) | data length (4) | chapter hash (4) | last modified, epoch seconds (4) | media type (1) | padding (1) | spec length (2) |
+ * </pre>
+ * A key of 0 marks an empty slot. The header records whether the table was cleanly closed, as it can otherwise be out of sync with the segments.
+ * <p>
+ * This class is not thread-safe, access is guarded by the store.
+ */
+final class PackedIndexPartition implements Closeable {
+
+    private static final long MAGIC = 0x4b4d44414850494eL;
+
+    private static final int HEADER_BYTES = 64;
+    private static final int HEADER_OFFSET_CAPACITY = 8;
+    private static final int HEADER_OFFSET_CLEAN = 12;
+
+    private static final int ENTRY_BYTES = 32;
+    private static final int OFFSET_SEGMENT = 8;
+    private static final int OFFSET_OFFSET = 12;
+    private static final int OFFSET_DATA_LENGTH = 16;
+    private static final int OFFSET_CHAPTER_HASH = 20;
+    private static final int OFFSET_LAST_MODIFIED = 24;
+    private static final int OFFSET_MEDIA_TYPE = 28;
+    private static final int OFFSET_SPEC_LENGTH = 30;
+
+    private static final int MIN_CAPACITY = 1024;
+    // a single mapping is limited to 2GB
+    private static final int MAX_CAPACITY = 1 << 25;
+    private static final double MAX_LOAD_FACTOR = 0.7;
+
+    private final Path file;
+    private final boolean recovered;
+
+    private MappedByteBuffer table;
+    private int capacity;
+    private int mask;
+    private long size;
+
+    private PackedIndexPartition(Path file, long expectedEntries, boolean reuse) throws IOException {
+        this.file = file;
+
+        boolean reusable = false;
+        if (reuse && Files.exists(file) && Files.size(file) >= HEADER_BYTES) {
+            MappedByteBuffer existing = map(file, Files.size(file));
+            reusable = existing.getLong(0) == MAGIC && existing.get(HEADER_OFFSET_CLEAN) == 1
+                && Files.size(file) == HEADER_BYTES + (long) existing.getInt(HEADER_OFFSET_CAPACITY) * ENTRY_BYTES;
+            if (reusable) {
+                this.table = existing;
+                this.capacity = existing.getInt(HEADER_OFFSET_CAPACITY);
+            }
+        }
+
+        if (!reusable) {
+            Files.deleteIfExists(file);
+            this.capacity = capacityFor(expectedEntries);
+            this.table = create(file, capacity);
+        }
+
+        this.recovered = reusable;
+        this.mask = capacity - 1;
+        this.size = countEntries();
+
+        // considered dirty until closed, so that a crash leads to rebuilding it
+        table.put(HEADER_OFFSET_CLEAN, (byte) 0);
+        table.force();
+    }
+
+    /**
+     * @param reuse whether to reuse the existing table if it was cleanly closed, rather than starting from an empty one
+     */
+    static PackedIndexPartition open(Path file, long expectedEntries, boolean reuse) throws IOException {
+        return new PackedIndexPartition(file, expectedEntries, reuse);
+    }
+
+    /**
+     * @return whether the partition was cleanly closed previously, and reused as is
+     */
+    boolean isRecovered() {
+        return recovered;
+    }
+
+    long size() {
+        return size;
+    }
+
+    Optional<PackedIndex.Location> get(long key) {
+        int slot = findSlot(key);
+        if (slot < 0) {
+            return Optional.empty();
+        }
+        return Optional.of(readLocation(slot));
+    }
+
+    /**
+     * @return the previous location of the key, if any
+     */
+    Optional<PackedIndex.Location> put(long key, PackedIndex.Location location) throws IOException {
+        int slot = findSlot(key);
+        if (slot >= 0) {
+            PackedIndex.Location previous = readLocation(slot);
+            writeEntry(slot, key, location);
+            return Optional.of(previous);
+        }
+
+        if (size + 1 > capacity * MAX_LOAD_FACTOR) {
+            grow();
+        }
+
+        int index = (int) key & mask;
+        while (table.getLong(entryOffset(index)) != 0L) {
+            index = (index + 1) & mask;
+        }
+        writeEntry(index, key, location);
+        size++;
+        return Optional.empty();
+    }
+
+    Optional<PackedIndex.Location> remove(long key) {
+        int slot = findSlot(key);
+        if (slot < 0) {
+            return Optional.empty();
+        }
+
+        PackedIndex.Location previous = readLocation(slot);
+        deleteSlot(slot);
+        size--;
+        return Optional.of(previous);
+    }
+
+    void forEach(PackedIndex.EntryVisitor visitor) {
+        for (int slot = 0; slot < capacity; slot++) {
+            long key = table.getLong(entryOffset(slot));
+            if (key != 0L) {
+                visitor.visit(key, readLocation(slot));
+            }
+        }
+    }
+
+    void force() {
+        table.force();
+    }
+
+    @Override
+    public void close() {
+        table.put(HEADER_OFFSET_CLEAN, (byte) 1);
+        table.force();
+    }
+
+    private int findSlot(long key) {
+        int index = (int) key & mask;
+        for (int probes = 0; probes < capacity; probes++) {
+            long slotKey = table.getLong(entryOffset(index));
+            if (slotKey == key) {
+                return index;
+            } else if (slotKey == 0L) {
+                return -1;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Backward-shift deletion, which keeps probe sequences intact without tombstones.
+     */
+    private void deleteSlot(int slot) {
+        int hole = slot;
+        int index = (slot + 1) & mask;
+        while (true) {
+            long key = table.getLong(entryOffset(index));
+            if (key == 0L) {
+                break;
+            }
+
+            int home = (int) key & mask;
+            boolean movable = hole <= index ? (home <= hole || home > index) : (home <= hole && home > index);
+            if (movable) {
+                copySlot(index, hole);
+                hole = index;
+            }
+            index = (index + 1) & mask;
+        }
+        clearSlot(hole);
+    }
+
+    private void grow() throws IOException {
+        if (capacity >= MAX_CAPACITY) {
+            throw new IllegalStateException("Packed index partition " + file + " is full with " + size + " entries");
+        }
+
+        int newCapacity = capacity << 1;
+        int newMask = newCapacity - 1;
+        Path growing = file.resolveSibling(file.getFileName() + ".grow");
+        Files.deleteIfExists(growing);
+        MappedByteBuffer grown = create(growing, newCapacity);
+
+        for (int slot = 0; slot < capacity; slot++) {
+            int from = entryOffset(slot);
+            long key = table.getLong(from);
+            if (key == 0L) {
+                continue;
+            }
+
+            int index = (int) key & newMask;
+            while (grown.getLong(HEADER_BYTES + index * ENTRY_BYTES) != 0L) {
+                index = (index + 1) & newMask;
+            }
+            copyEntry(table, from, grown, HEADER_BYTES + index * ENTRY_BYTES);
+        }
+
+        grown.put(HEADER_OFFSET_CLEAN, (byte) 0);
+        grown.force();
+        Files.move(growing, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        this.table = grown;
+        this.capacity = newCapacity;
+        this.mask = newMask;
+    }
+
+    private long countEntries() {
+        long count = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            if (table.getLong(entryOffset(slot)) != 0L) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private PackedIndex.Location readLocation(int slot) {
+        int offset = entryOffset(slot);
+        return new PackedIndex.Location(
+            table.getInt(offset + OFFSET_SEGMENT),
+            Integer.toUnsignedLong(table.getInt(offset + OFFSET_OFFSET)),
+            Short.toUnsignedInt(table.getShort(offset + OFFSET_SPEC_LENGTH)),
+            table.getInt(offset + OFFSET_DATA_LENGTH),
+            table.getInt(offset + OFFSET_CHAPTER_HASH),
+            TimeUnit.SECONDS.toMillis(Integer.toUnsignedLong(table.getInt(offset + OFFSET_LAST_MODIFIED))),
+            FilesystemMediaType.fromOrdinal(table.get(offset + OFFSET_MEDIA_TYPE))
+        );
+    }
+
+    private void writeEntry(int slot, long key, PackedIndex.Location location) {
+        int offset = entryOffset(slot);
+        table.putInt(offset + OFFSET_SEGMENT, location.segment());
+        table.putInt(offset + OFFSET_OFFSET, (int) location.offset());
+        table.putInt(offset + OFFSET_DATA_LENGTH, location.dataLength());
+        table.putInt(offset + OFFSET_CHAPTER_HASH, location.chapterHash());
+        table.putInt(offset + OFFSET_LAST_MODIFIED, (int) TimeUnit.MILLISECONDS.toSeconds(location.lastModifiedMillis()));
+        table.put(offset + OFFSET_MEDIA_TYPE, (byte) location.mediaType().ordinal());
+        table.putShort(offset + OFFSET_SPEC_LENGTH, (short) location.specLength());
+        // key last, so that a crash never leaves a key pointing at a half-written location
+        table.putLong(offset, key);
+    }
+
+    private void copySlot(int from, int to) {
+        copyEntry(table, entryOffset(from), table, entryOffset(to));
+    }
+
+    private static void copyEntry(MappedByteBuffer source, int sourceOffset, MappedByteBuffer destination, int destinationOffset) {
+        for (int i = 0; i < ENTRY_BYTES; i += Long.BYTES) {
+            destination.putLong(destinationOffset + i, source.getLong(sourceOffset + i));
+        }
+    }
+
+    private void clearSlot(int slot) {
+        int offset = entryOffset(slot);
+        for (int i = 0; i < ENTRY_BYTES; i += Long.BYTES) {
+            table.putLong(offset + i, 0L);
+        }
+    }
+
+    private static int entryOffset(int slot) {
+        return HEADER_BYTES + slot * ENTRY_BYTES;
+    }
+
+    private static int capacityFor(long expectedEntries) {
+        long wanted = Math.max(MIN_CAPACITY, (long) (expectedEntries / MAX_LOAD_FACTOR));
+        return (int) Math.min(MAX_CAPACITY, Long.highestOneBit(wanted - 1) << 1);
+    }
+
+    private static MappedByteBuffer create(Path file, int capacity) throws IOException {
+        MappedByteBuffer table = map(file, HEADER_BYTES + (long) capacity * ENTRY_BYTES);
+        table.putLong(0, MAGIC);
+        table.putInt(HEADER_OFFSET_CAPACITY, capacity);
+        return table;
+    }
+
+    private static MappedByteBuffer map(Path file, long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(MapMode.READ_WRITE, 0, length);
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+package moe.tristan.kmdah.service.images.cache.packed;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.filesystem.FilesystemMediaType;
+
+/**
+ * A record of a segment file, either an image or the tombstone of a deleted one. Records are laid out as:
+ * <pre>
+ * | magic (4) | type (1) | media type (1) | spec length (2) | key (8) | data length (4) | last modified, epoch seconds (4) | crc32 (4) | spec | data |
+ * </pre>
+ * where the spec is {@code mode/chapter/file} in UTF-8, and the checksum covers both the spec and data. It allows detecting the torn tail of a segment
+ * after a crash.
+ */
+record PackedRecord(
+
+    byte type,
+
+    long key,
+
+    ImageSpec spec,
+
+    FilesystemMediaType mediaType,
+
+    int specLength,
+
+    int dataLength,
+
+    long lastModifiedMillis
+
+) {
+
+    static final int HEADER_BYTES = 28;
+
+    static final byte TYPE_IMAGE = 1;
+    static final byte TYPE_TOMBSTONE = 2;
+
+    private static final int MAGIC = 0x4b4d5044;
+
+    static ByteBuffer encode(byte type, long key, ImageSpec spec, FilesystemMediaType mediaType, long lastModifiedMillis, byte[] data) {
+        byte[] specBytes = encodeSpec(spec);
+
+        CRC32 crc = new CRC32();
+        crc.update(specBytes);
+        crc.update(data);
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + specBytes.length + data.length);
+        record.putInt(MAGIC);
+        record.put(type);
+        record.put((byte) mediaType.ordinal());
+        record.putShort((short) specBytes.length);
+        record.putLong(key);
+        record.putInt(data.length);
+        record.putInt((int) TimeUnit.MILLISECONDS.toSeconds(lastModifiedMillis));
+        record.putInt((int) crc.getValue());
+        record.put(specBytes);
+        record.put(data);
+        return record.flip();
+    }
+
+    /**
+     * @return the record's header, if {@code header} holds a plausible one
+     */
+    static Optional<Header> decodeHeader(ByteBuffer header) {
+        if (header.remaining() < HEADER_BYTES || header.getInt(0) != MAGIC) {
+            return Optional.empty();
+        }
+
+        byte type = header.get(4);
+        if (type != TYPE_IMAGE && type != TYPE_TOMBSTONE) {
+            return Optional.empty();
+        }
+
+        int specLength = Short.toUnsignedInt(header.getShort(6));
+        int dataLength = header.getInt(16);
+        if (dataLength < 0) {
+            return Optional.empty();
+        }
+
+        return Optional.of(new Header(
+            type,
+            FilesystemMediaType.fromOrdinal(header.get(5)),
+            specLength,
+            header.getLong(8),
+            dataLength,
+            TimeUnit.SECONDS.toMillis(Integer.toUnsignedLong(header.getInt(20))),
+            header.getInt(24)
+        ));
+    }
+
+    /**
+     * @param body the spec and data of the record
+     * @return the full record, if its checksum matches
+     */
+    static Optional<PackedRecord> decode(Header header, ByteBuffer body) {
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != header.crc()) {
+            return Optional.empty();
+        }
+
+        byte[] specBytes = new byte[header.specLength()];
+        body.duplicate().get(specBytes);
+        return decodeSpec(specBytes).map(spec -> new PackedRecord(
+            header.type(),
+            header.key(),
+            spec,
+            header.mediaType(),
+            header.specLength(),
+            header.dataLength(),
+            header.lastModifiedMillis()
+        ));
+    }
+
+    static byte[] encodeSpec(ImageSpec spec) {
+        return (spec.mode().getPathFragment() + "/" + spec.chapter() + "/" + spec.file()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    static Optional<ImageSpec> decodeSpec(byte[] specBytes) {
+        String[] parts = new String(specBytes, StandardCharsets.UTF_8).split("/", 3);
+        if (parts.length != 3) {
+            return Optional.empty();
+        }
+
+        try {
+            return Optional.of(new ImageSpec(ImageMode.fromPathFragment(parts[0]), parts[1], parts[2]));
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+    }
+
+    long length() {
+        return HEADER_BYTES + specLength + (long) dataLength;
+    }
+
+    record Header(byte type, FilesystemMediaType mediaType, int specLength, long key, int dataLength, long lastModifiedMillis, int crc) {
+
+        long bodyLength() {
+            return specLength + (long) dataLength;
+        }
+
+    }
+
+}
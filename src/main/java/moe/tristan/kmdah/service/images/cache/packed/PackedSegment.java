@@ -0,0 +1,165 @@
+package moe.tristan.kmdah.service.images.cache.packed;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An append-only file of {@link PackedRecord}s. Appends are serialized by the store, while reads are positional and can thus happen concurrently.
+ */
+final class PackedSegment implements Closeable {
+
+    private static final String EXTENSION = ".pack";
+
+    private final int id;
+    private final Path file;
+    private final FileChannel channel;
+    private final AtomicLong size;
+    private final AtomicLong deadBytes = new AtomicLong();
+
+    private PackedSegment(int id, Path file, FileChannel channel) throws IOException {
+        this.id = id;
+        this.file = file;
+        this.channel = channel;
+        this.size = new AtomicLong(channel.size());
+    }
+
+    static PackedSegment open(Path dir, int id) throws IOException {
+        Path file = dir.resolve(String.format("%010d%s", id, EXTENSION));
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new PackedSegment(id, file, channel);
+    }
+
+    static Optional<Integer> idOf(Path file) {
+        String fileName = file.getFileName().toString();
+        if (!fileName.endsWith(EXTENSION)) {
+            return Optional.empty();
+        }
+
+        try {
+            return Optional.of(Integer.parseInt(fileName.substring(0, fileName.length() - EXTENSION.length())));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    int id() {
+        return id;
+    }
+
+    long size() {
+        return size.get();
+    }
+
+    long deadBytes() {
+        return deadBytes.get();
+    }
+
+    void markDead(long bytes) {
+        deadBytes.addAndGet(bytes);
+    }
+
+    /**
+     * @return the offset of the appended record
+     */
+    long append(ByteBuffer record) throws IOException {
+        long offset = size.get();
+        long position = offset;
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+        size.set(position);
+        return offset;
+    }
+
+    void read(ByteBuffer destination, long position) throws IOException {
+        long readPosition = position;
+        while (destination.hasRemaining()) {
+            int read = channel.read(destination, readPosition);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of segment " + file + " at " + readPosition);
+            }
+            readPosition += read;
+        }
+    }
+
+    /**
+     * Visits records in order, stopping at the first invalid one.
+     *
+     * @return the offset up to which records were valid
+     */
+    long scan(RecordVisitor visitor) throws IOException {
+        long offset = 0;
+        long end = size.get();
+        ByteBuffer headerBuffer = ByteBuffer.allocate(PackedRecord.HEADER_BYTES);
+
+        while (offset + PackedRecord.HEADER_BYTES <= end) {
+            headerBuffer.clear();
+            read(headerBuffer, offset);
+            Optional<PackedRecord.Header> header = PackedRecord.decodeHeader(headerBuffer.flip());
+            if (header.isEmpty() || offset + PackedRecord.HEADER_BYTES + header.get().bodyLength() > end) {
+                break;
+            }
+
+            ByteBuffer body = ByteBuffer.allocate((int) header.get().bodyLength());
+            read(body, offset + PackedRecord.HEADER_BYTES);
+            Optional<PackedRecord> record = PackedRecord.decode(header.get(), body.flip());
+            if (record.isEmpty()) {
+                break;
+            }
+
+            visitor.visit(record.get(), offset, ByteBuffer.allocate(PackedRecord.HEADER_BYTES + body.limit()).put(headerBuffer.rewind()).put(body).flip());
+            offset += record.get().length();
+        }
+
+        return offset;
+    }
+
+    /**
+     * Drops a torn tail left by a crash while appending.
+     */
+    void truncate(long validSize) throws IOException {
+        channel.truncate(validSize);
+        size.set(validSize);
+    }
+
+    FileChannel channel() {
+        return channel;
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+
+    @FunctionalInterface
+    interface RecordVisitor {
+
+        /**
+         * @param rawRecord the whole record, as stored
+         */
+        void visit(PackedRecord record, long offset, ByteBuffer rawRecord) throws IOException;
+
+    }
+
+}
@@ -0,0 +1,485 @@
+package moe.tristan.kmdah.service.images.cache.packed;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.unit.DataSize;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.VacuumingResult;
+import moe.tristan.kmdah.service.images.cache.filesystem.FilesystemCacheIndex;
+import moe.tristan.kmdah.service.images.cache.filesystem.FilesystemMediaType;
+
+/**
+ * Stores images by appending them to large segment files, rather than as one file each, and keeps track of where each image is in a memory-mapped index.
+ * <p>
+ * Deletions append tombstones and leave the image's bytes as garbage in its segment, which is reclaimed by compaction: segments with enough garbage have
+ * their live records copied to the active segment before being deleted. Vacuuming drops whole segments, oldest first.
+ * <p>
+ * Finding the images of a chapter takes a scan of the index, so deleted chapters are only recorded (and hidden from reads) at first, and their images
+ * deleted later on in a single scan for all of them.
+ * <p>
+ * The store expects to be the only one writing to its directory.
+ */
+public class PackedSegmentStore implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PackedSegmentStore.class);
+
+    private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    // segments stay open a bit after being deleted, for reads that started before
+    private static final long RETIRED_SEGMENT_GRACE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final Path dir;
+    private final long segmentSize;
+    private final double compactionThreshold;
+    private final PackedIndex index;
+    private final Path deletedChaptersFile;
+    private final Set<DeletedChapter> deletedChapters = ConcurrentHashMap.newKeySet();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ConcurrentSkipListMap<Integer, PackedSegment> segments = new ConcurrentSkipListMap<>();
+    private final List<RetiredSegment> retiredSegments = new ArrayList<>();
+
+    private volatile PackedSegment activeSegment;
+    private boolean closed = false;
+
+    private PackedSegmentStore(PackedSettings settings) throws IOException {
+        this.dir = settings.rootDir();
+        this.segmentSize = Math.min(MAX_SEGMENT_SIZE, DataSize.ofMegabytes(settings.segmentSizeMb()).toBytes());
+        this.compactionThreshold = settings.compactionThreshold();
+
+        Files.createDirectories(dir);
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Optional<Integer> id = PackedSegment.idOf(file);
+                if (id.isPresent()) {
+                    segments.put(id.get(), PackedSegment.open(dir, id.get()));
+                }
+            }
+        }
+
+        this.deletedChaptersFile = dir.resolve("deleted-chapters");
+        if (Files.exists(deletedChaptersFile)) {
+            for (String line : Files.readAllLines(deletedChaptersFile)) {
+                String[] parts = line.split(" ", 2);
+                deletedChapters.add(new DeletedChapter(ImageMode.valueOf(parts[0]), parts[1]));
+            }
+        }
+
+        this.index = PackedIndex.open(dir, settings.expectedEntries());
+        if (index.isRecovered()) {
+            computeDeadBytes();
+        } else {
+            rebuildIndex();
+        }
+
+        this.activeSegment = segments.isEmpty() ? openSegment(0) : segments.lastEntry().getValue();
+        LOGGER.info("Opened packed store in {} with {} images in {} segments", dir, index.size(), segments.size());
+    }
+
+    public static PackedSegmentStore open(PackedSettings settings) throws IOException {
+        return new PackedSegmentStore(settings);
+    }
+
+    public Optional<PackedImage> find(ImageSpec spec) {
+        if (deletedChapters.contains(new DeletedChapter(spec.mode(), spec.chapter()))) {
+            return Optional.empty();
+        }
+
+        lock.readLock().lock();
+        try {
+            return index.get(FilesystemCacheIndex.key(spec)).map(location -> new PackedImage(segments.get(location.segment()), location));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return false if the image was already stored
+     */
+    public boolean put(ImageSpec spec, byte[] data) throws IOException {
+        long key = FilesystemCacheIndex.key(spec);
+        FilesystemMediaType mediaType = FilesystemMediaType.fromFileName(spec.file());
+        ByteBuffer record = PackedRecord.encode(PackedRecord.TYPE_IMAGE, key, spec, mediaType, System.currentTimeMillis(), data);
+        int specLength = Short.toUnsignedInt(record.getShort(6));
+
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            if (index.get(key).isPresent() || deletedChapters.contains(new DeletedChapter(spec.mode(), spec.chapter()))) {
+                return false;
+            }
+
+            PackedSegment segment = segmentFor(record.remaining());
+            long offset = segment.append(record);
+            index.put(key, new PackedIndex.Location(
+                segment.id(),
+                offset,
+                specLength,
+                data.length,
+                chapterHash(spec.mode(), spec.chapter()),
+                System.currentTimeMillis(),
+                mediaType
+            ));
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Hides the images of the chapter right away, but only deletes them on the next {@link #purgeDeletedChapters}.
+     */
+    public void deleteChapter(ImageMode mode, String chapter) throws IOException {
+        synchronized (deletedChapters) {
+            if (deletedChapters.add(new DeletedChapter(mode, chapter))) {
+                writeDeletedChapters();
+            }
+        }
+    }
+
+    /**
+     * @return the amount of deleted images
+     */
+    public int purgeDeletedChapters() throws IOException {
+        Set<DeletedChapter> purged = Set.copyOf(deletedChapters);
+        if (purged.isEmpty()) {
+            return 0;
+        }
+
+        Set<Integer> chapterHashes = purged.stream().map(DeletedChapter::hash).collect(Collectors.toSet());
+        List<Long> candidates = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            index.forEach((key, location) -> {
+                if (chapterHashes.contains(location.chapterHash())) {
+                    candidates.add(key);
+                }
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        int deleted = 0;
+        for (long key : candidates) {
+            Optional<PackedImage> image = findByKey(key);
+            if (image.isEmpty()) {
+                continue;
+            }
+
+            // chapter hashes can collide, so check against the actual spec
+            ImageSpec spec = image.get().readSpec();
+            if (purged.contains(new DeletedChapter(spec.mode(), spec.chapter())) && delete(spec)) {
+                deleted++;
+            }
+        }
+
+        synchronized (deletedChapters) {
+            deletedChapters.removeAll(purged);
+            writeDeletedChapters();
+        }
+        return deleted;
+    }
+
+    public boolean delete(ImageSpec spec) throws IOException {
+        long key = FilesystemCacheIndex.key(spec);
+        ByteBuffer tombstone = PackedRecord.encode(PackedRecord.TYPE_TOMBSTONE, key, spec, FilesystemMediaType.UNKNOWN, System.currentTimeMillis(), new byte[0]);
+
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            Optional<PackedIndex.Location> removed = index.remove(key);
+            if (removed.isEmpty()) {
+                return false;
+            }
+
+            segments.get(removed.get().segment()).markDead(removed.get().recordLength());
+            segmentFor(tombstone.remaining()).append(tombstone);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the live records of segments whose share of garbage is above the compaction threshold into the active segment, and deletes them.
+     *
+     * @return the amount of reclaimed bytes
+     */
+    public long compact() throws IOException {
+        closeRetiredSegments();
+
+        long reclaimed = 0;
+        for (PackedSegment segment : List.copyOf(segments.values())) {
+            if (segment == activeSegment || segment.size() == 0 || (double) segment.deadBytes() / segment.size() < compactionThreshold) {
+                continue;
+            }
+
+            long sizeBefore = segment.size();
+            long liveBytes = compact(segment);
+            reclaimed += sizeBefore - liveBytes;
+            LOGGER.info("Compacted segment {}, reclaiming {}MB", segment, DataSize.ofBytes(sizeBefore - liveBytes).toMegabytes());
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Drops the oldest segments, and the images in them, until the store is under {@code targetSize}.
+     */
+    public VacuumingResult evictOldestSegments(DataSize targetSize) throws IOException {
+        closeRetiredSegments();
+
+        long deletedImages = 0;
+        long freedBytes = 0;
+        while (totalBytes() > targetSize.toBytes() && segments.size() > 1) {
+            lock.writeLock().lock();
+            try {
+                ensureOpen();
+                PackedSegment oldest = segments.firstEntry().getValue();
+                if (oldest == activeSegment) {
+                    break;
+                }
+
+                List<Long> keys = new ArrayList<>();
+                index.forEach((key, location) -> {
+                    if (location.segment() == oldest.id()) {
+                        keys.add(key);
+                    }
+                });
+                keys.forEach(index::remove);
+
+                deletedImages += keys.size();
+                freedBytes += oldest.size();
+                retire(oldest);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        return new VacuumingResult(deletedImages, DataSize.ofBytes(freedBytes));
+    }
+
+    public long totalBytes() {
+        return segments.values().stream().mapToLong(PackedSegment::size).sum();
+    }
+
+    public long deadBytes() {
+        return segments.values().stream().mapToLong(PackedSegment::deadBytes).sum();
+    }
+
+    public long imageCount() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            for (PackedSegment segment : segments.values()) {
+                segment.force();
+                segment.close();
+            }
+            for (RetiredSegment retired : retiredSegments) {
+                retired.segment().close();
+            }
+            index.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private long compact(PackedSegment segment) throws IOException {
+        long[] liveBytes = {0L};
+        segment.scan((record, offset, rawRecord) -> {
+            lock.writeLock().lock();
+            try {
+                ensureOpen();
+                if (record.type() == PackedRecord.TYPE_IMAGE) {
+                    Optional<PackedIndex.Location> location = index.get(record.key());
+                    if (location.isPresent() && location.get().segment() == segment.id() && location.get().offset() == offset) {
+                        PackedSegment destination = segmentFor(rawRecord.remaining());
+                        long newOffset = destination.append(rawRecord);
+                        index.put(record.key(), new PackedIndex.Location(
+                            destination.id(),
+                            newOffset,
+                            location.get().specLength(),
+                            location.get().dataLength(),
+                            location.get().chapterHash(),
+                            location.get().lastModifiedMillis(),
+                            location.get().mediaType()
+                        ));
+                        liveBytes[0] += record.length();
+                    }
+                } else if (segments.firstKey() < segment.id() && index.get(record.key()).isEmpty()) {
+                    // tombstones only matter while older segments may still hold the image they deleted
+                    segmentFor(rawRecord.remaining()).append(rawRecord);
+                    liveBytes[0] += record.length();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        });
+
+        lock.writeLock().lock();
+        try {
+            activeSegment.force();
+            index.force();
+            retire(segment);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return liveBytes[0];
+    }
+
+    private Optional<PackedImage> findByKey(long key) {
+        lock.readLock().lock();
+        try {
+            return index.get(key).map(location -> new PackedImage(segments.get(location.segment()), location));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private PackedSegment segmentFor(long recordLength) throws IOException {
+        if (activeSegment.size() > 0 && activeSegment.size() + recordLength > segmentSize) {
+            activeSegment.force();
+            activeSegment = openSegment(activeSegment.id() + 1);
+        }
+        return activeSegment;
+    }
+
+    private PackedSegment openSegment(int id) throws IOException {
+        PackedSegment segment = PackedSegment.open(dir, id);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private void retire(PackedSegment segment) throws IOException {
+        segments.remove(segment.id());
+        segment.delete();
+        retiredSegments.add(new RetiredSegment(segment, System.nanoTime()));
+    }
+
+    private void closeRetiredSegments() throws IOException {
+        lock.writeLock().lock();
+        try {
+            Iterator<RetiredSegment> iterator = retiredSegments.iterator();
+            while (iterator.hasNext()) {
+                RetiredSegment retired = iterator.next();
+                if (System.nanoTime() - retired.retiredAtNanos() > RETIRED_SEGMENT_GRACE_NANOS) {
+                    retired.segment().close();
+                    iterator.remove();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void rebuildIndex() throws IOException {
+        long start = System.nanoTime();
+        LOGGER.warn("Packed index in {} was not cleanly closed, rebuilding it from segments...", dir);
+
+        for (PackedSegment segment : segments.values()) {
+            long validSize = segment.scan((record, offset, rawRecord) -> {
+                if (record.type() == PackedRecord.TYPE_IMAGE) {
+                    Optional<PackedIndex.Location> previous = index.put(record.key(), new PackedIndex.Location(
+                        segment.id(),
+                        offset,
+                        record.specLength(),
+                        record.dataLength(),
+                        chapterHash(record.spec().mode(), record.spec().chapter()),
+                        record.lastModifiedMillis(),
+                        record.mediaType()
+                    ));
+                    previous.ifPresent(location -> segments.get(location.segment()).markDead(location.recordLength()));
+                } else {
+                    index.remove(record.key()).ifPresent(location -> segments.get(location.segment()).markDead(location.recordLength()));
+                }
+            });
+
+            if (validSize < segment.size()) {
+                LOGGER.warn("Truncating segment {} from {} to {} bytes after its last valid record", segment, segment.size(), validSize);
+                segment.truncate(validSize);
+            }
+        }
+
+        index.force();
+        LOGGER.info("Rebuilt packed index with {} images in {}s", index.size(), TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+    }
+
+    /**
+     * Anything in a segment that the index doesn't point to is garbage (tombstones included, which is fine as an approximation).
+     */
+    private void computeDeadBytes() {
+        Map<Integer, Long> liveBytes = new ConcurrentSkipListMap<>();
+        index.forEach((key, location) -> liveBytes.merge(location.segment(), location.recordLength(), Long::sum));
+        for (PackedSegment segment : segments.values()) {
+            segment.markDead(segment.size() - liveBytes.getOrDefault(segment.id(), 0L));
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Packed store in " + dir + " is closed");
+        }
+    }
+
+    /**
+     * Recorded on disk, so that deletions survive restarts until purged.
+     */
+    private void writeDeletedChapters() throws IOException {
+        List<String> lines = deletedChapters.stream().map(deleted -> deleted.mode().name() + " " + deleted.chapter()).collect(Collectors.toList());
+        Path writing = deletedChaptersFile.resolveSibling(deletedChaptersFile.getFileName() + ".tmp");
+        Files.write(writing, lines);
+        Files.move(writing, deletedChaptersFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int chapterHash(ImageMode mode, String chapter) {
+        return 31 * mode.ordinal() + chapter.hashCode();
+    }
+
+    private record RetiredSegment(PackedSegment segment, long retiredAtNanos) {}
+
+    private record DeletedChapter(ImageMode mode, String chapter) {
+
+        int hash() {
+            return chapterHash(mode, chapter);
+        }
+
+    }
+
+}
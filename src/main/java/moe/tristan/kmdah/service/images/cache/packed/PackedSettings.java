@@ -0,0 +1,22 @@
+package moe.tristan.kmdah.service.images.cache.packed;
+
+import java.nio.file.Path;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+
+@ConstructorBinding
+@ConfigurationProperties("kmdah.cache.packed")
+public record PackedSettings(
+
+    Path rootDir,
+
+    int segmentSizeMb,
+
+    long expectedEntries,
+
+    double compactionThreshold,
+
+    int compactionIntervalMinutes
+
+) {}
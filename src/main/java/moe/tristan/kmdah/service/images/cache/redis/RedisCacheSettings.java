@@ -0,0 +1,18 @@
+package moe.tristan.kmdah.service.images.cache.redis;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+
+@ConstructorBinding
+@ConfigurationProperties("kmdah.cache.redis")
+public record RedisCacheSettings(
+
+    String keyPrefix,
+
+    int maxImageKb,
+
+    long ttlSeconds,
+
+    boolean dataSaverOnly
+
+) {}
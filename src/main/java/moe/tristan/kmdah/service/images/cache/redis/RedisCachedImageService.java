@@ -0,0 +1,310 @@
+package moe.tristan.kmdah.service.images.cache.redis;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.http.MediaType;
+import org.springframework.util.unit.DataSize;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageContent;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.CacheMode;
+import moe.tristan.kmdah.service.images.cache.CachedImageService;
+import moe.tristan.kmdah.service.images.cache.ReclaimingRequest;
+import moe.tristan.kmdah.service.images.cache.ReclaimingResult;
+import moe.tristan.kmdah.service.images.cache.VacuumingRequest;
+import moe.tristan.kmdah.service.images.cache.VacuumingResult;
+
+/**
+ * Stores small images as Redis hashes, keyed {@code <prefix>:<mode>:<chapter>:<file>}, for a low-latency cache shared by all instances.
+ * <p>
+ * A lookup is a single script round-trip, which checks that its chapter wasn't deleted, reads the image and, with a TTL, pushes its expiry back.
+ * Images thus expire after going unrequested for {@code ttl-seconds}, or are left to Redis' {@code maxmemory-policy} without one.
+ * <p>
+ * Deleting a chapter only writes a tombstone, which hides its images right away until {@link #reclaim} unlinks them. Their expiry is no longer pushed
+ * back, so that they are gone by the time the tombstone expires.
+ */
+public class RedisCachedImageService implements CachedImageService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RedisCachedImageService.class);
+
+    private static final String DATA_FIELD = "data";
+    private static final String CONTENT_TYPE_FIELD = "type";
+    private static final String LAST_MODIFIED_FIELD = "modified";
+
+    private static final long SCAN_COUNT = 1000L;
+
+    /**
+     * Returns nothing for images of deleted chapters, and otherwise the fields of the image, if any, pushing its expiry back by {@code ARGV[1]} seconds
+     * unless 0.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> LOOKUP_SCRIPT = RedisScript.of(
+        "if redis.call('exists', KEYS[2]) == 1 then return {} end "
+            + "local fields = redis.call('hgetall', KEYS[1]) "
+            + "if #fields > 0 and ARGV[1] ~= '0' then redis.call('expire', KEYS[1], ARGV[1]) end "
+            + "return fields",
+        List.class
+    );
+
+    private final RedisTemplate<String, byte[]> redisTemplate;
+    private final String imagesPrefix;
+    private final String tombstonesPrefix;
+    private final long maxImageBytes;
+    private final Duration ttl;
+    private final boolean dataSaverOnly;
+
+    private final Timer hits;
+    private final Timer misses;
+    private final Counter stored;
+    private final Counter skipped;
+
+    public RedisCachedImageService(RedisConnectionFactory redisConnectionFactory, RedisCacheSettings settings, MeterRegistry meterRegistry) {
+        this.redisTemplate = new RedisTemplate<>();
+        redisTemplate.setConnectionFactory(redisConnectionFactory);
+        redisTemplate.setKeySerializer(RedisSerializer.string());
+        redisTemplate.setValueSerializer(RedisSerializer.byteArray());
+        redisTemplate.setHashKeySerializer(RedisSerializer.string());
+        redisTemplate.setHashValueSerializer(RedisSerializer.byteArray());
+        redisTemplate.afterPropertiesSet();
+
+        this.imagesPrefix = settings.keyPrefix() + ":";
+        this.tombstonesPrefix = settings.keyPrefix() + "-deleted:";
+        this.maxImageBytes = DataSize.ofKilobytes(settings.maxImageKb()).toBytes();
+        this.ttl = settings.ttlSeconds() > 0 ? Duration.ofSeconds(settings.ttlSeconds()) : null;
+        this.dataSaverOnly = settings.dataSaverOnly();
+
+        this.hits = Timer.builder("kmdah_cache_redis_lookup").tag("result", "hit").register(meterRegistry);
+        this.misses = Timer.builder("kmdah_cache_redis_lookup").tag("result", "miss").register(meterRegistry);
+        this.stored = Counter.builder("kmdah_cache_redis_writes").tag("result", "stored").register(meterRegistry);
+        this.skipped = Counter.builder("kmdah_cache_redis_writes").tag("result", "skipped").register(meterRegistry);
+    }
+
+    @Override
+    public Optional<ImageContent> findImage(ImageSpec imageSpec) {
+        if (!accepts(imageSpec)) {
+            return Optional.empty();
+        }
+
+        long startTime = System.nanoTime();
+        List<?> results = redisTemplate.execute(
+            LOOKUP_SCRIPT,
+            List.of(key(imageSpec), tombstone(imageSpec)),
+            Long.toString(ttl == null ? 0L : ttl.toSeconds()).getBytes(UTF_8)
+        );
+
+        Map<String, byte[]> fields = new HashMap<>();
+        for (int i = 0; results != null && i + 1 < results.size(); i += 2) {
+            fields.put(new String((byte[]) results.get(i), UTF_8), (byte[]) results.get(i + 1));
+        }
+        if (!fields.containsKey(DATA_FIELD)) {
+            misses.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+            return Optional.empty();
+        }
+
+        byte[] data = fields.get(DATA_FIELD);
+        byte[] contentType = fields.get(CONTENT_TYPE_FIELD);
+        byte[] lastModified = fields.get(LAST_MODIFIED_FIELD);
+        hits.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+        return Optional.of(new ImageContent(
+            new ByteArrayResource(data),
+            contentType == null ? MediaType.APPLICATION_OCTET_STREAM : MediaType.parseMediaType(new String(contentType, UTF_8)),
+            OptionalLong.of(data.length),
+            lastModified == null ? Instant.now() : Instant.ofEpochMilli(Long.parseLong(new String(lastModified, UTF_8))),
+            CacheMode.HIT
+        ));
+    }
+
+    @Override
+    public void saveImage(ImageSpec imageSpec, MediaType mediaType, InputStream inputStream) {
+        if (!accepts(imageSpec)) {
+            return;
+        }
+
+        byte[] content;
+        try {
+            content = inputStream.readAllBytes();
+        } catch (IOException e) {
+            LOGGER.error("Failed reading {} for storing in Redis!", imageSpec, e);
+            return;
+        }
+
+        if (content.length > maxImageBytes) {
+            skipped.increment();
+            LOGGER.debug("Not storing {} in Redis as it is larger than {}KB", imageSpec, DataSize.ofBytes(maxImageBytes).toKilobytes());
+            return;
+        }
+
+        String key = key(imageSpec);
+        Map<String, byte[]> fields = Map.of(
+            DATA_FIELD, content,
+            CONTENT_TYPE_FIELD, mediaType.toString().getBytes(UTF_8),
+            LAST_MODIFIED_FIELD, Long.toString(Instant.now().toEpochMilli()).getBytes(UTF_8)
+        );
+        try {
+            redisTemplate.executePipelined(new SessionCallback<>() {
+                @Override
+                @SuppressWarnings({"unchecked", "rawtypes"})
+                public Object execute(RedisOperations operations) {
+                    operations.opsForHash().putAll(key, fields);
+                    if (ttl != null) {
+                        operations.expire(key, ttl);
+                    }
+                    return null;
+                }
+            });
+            stored.increment();
+            LOGGER.debug("Stored {} in Redis as {}", imageSpec, key);
+        } catch (DataAccessException e) {
+            LOGGER.error("Failed storing {} in Redis!", imageSpec, e);
+        }
+    }
+
+    @Override
+    public void deleteChapter(ImageSpec imageSpec) {
+        String tombstone = tombstone(imageSpec);
+        if (ttl != null) {
+            // its images are all expired by then, unless requested in the meantime, in which case reclaiming removes them
+            redisTemplate.opsForValue().set(tombstone, new byte[0], ttl);
+        } else {
+            redisTemplate.opsForValue().set(tombstone, new byte[0]);
+        }
+        LOGGER.info("Marked {} as deleted", tombstone);
+    }
+
+    /**
+     * Only scans the keys of deleted chapters, and unlinks the tombstone of those that were scanned to the end.
+     */
+    @Override
+    public ReclaimingResult reclaim(ReclaimingRequest reclaimingRequest) {
+        List<String> tombstones = scan(tombstonesPrefix + "*", reclaimingRequest.maxFiles());
+        if (tombstones.isEmpty()) {
+            return ReclaimingResult.nothing();
+        }
+
+        List<String> batch = new ArrayList<>();
+        List<String> reclaimedTombstones = new ArrayList<>();
+        for (String tombstone : tombstones) {
+            int remaining = reclaimingRequest.maxFiles() - batch.size();
+            if (remaining <= 0) {
+                break;
+            }
+
+            String chapter = tombstone.substring(tombstonesPrefix.length());
+            List<String> keys = scan(escapeGlob(imagesPrefix + chapter + ":") + "*", remaining);
+            batch.addAll(keys);
+            if (keys.size() < remaining) {
+                reclaimedTombstones.add(tombstone);
+            }
+        }
+        if (!batch.isEmpty()) {
+            if (!reclaimingRequest.ioBudget().acquire(batch.size())) {
+                return ReclaimingResult.nothing();
+            }
+        }
+
+        List<Object> results = redisTemplate.executePipelined(new SessionCallback<>() {
+            @Override
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            public Object execute(RedisOperations operations) {
+                batch.forEach(key -> operations.opsForHash().lengthOfValue(key, DATA_FIELD));
+                if (!batch.isEmpty()) {
+                    operations.unlink(batch);
+                }
+                if (!reclaimedTombstones.isEmpty()) {
+                    operations.unlink(reclaimedTombstones);
+                }
+                return null;
+            }
+        });
+
+        long freedBytes = results
+            .stream()
+            .limit(batch.size())
+            .mapToLong(length -> length == null ? 0L : (Long) length)
+            .sum();
+        return new ReclaimingResult(batch.size(), DataSize.ofBytes(freedBytes));
+    }
+
+    @Override
+    public VacuumingResult vacuum(VacuumingRequest vacuumingRequest) {
+        Properties memory = redisTemplate.execute((RedisCallback<Properties>) connection -> connection.serverCommands().info("memory"));
+        if (memory != null) {
+            String policy = memory.getProperty("maxmemory_policy", "unknown");
+            LOGGER.info(
+                "Redis memory usage: {}/{} (maxmemory-policy {}), left to Redis to evict",
+                memory.getProperty("used_memory_human"),
+                memory.getProperty("maxmemory_human"),
+                policy
+            );
+            if (ttl == null && !policy.startsWith("allkeys")) {
+                LOGGER.warn("Cached images have no TTL, and maxmemory-policy {} will never evict them!", policy);
+            }
+        }
+        return new VacuumingResult(0L, DataSize.ofBytes(0L));
+    }
+
+    private List<String> scan(String pattern, int limit) {
+        ScanOptions options = ScanOptions.scanOptions().match(pattern).count(SCAN_COUNT).build();
+        List<String> keys = redisTemplate.execute((RedisCallback<List<String>>) connection -> {
+            List<String> matches = new ArrayList<>();
+            try (Cursor<byte[]> cursor = connection.keyCommands().scan(options)) {
+                while (cursor.hasNext() && matches.size() < limit) {
+                    matches.add(new String(cursor.next(), UTF_8));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed closing cursor over " + pattern, e);
+            }
+            return matches;
+        });
+        return keys == null ? List.of() : keys;
+    }
+
+    private static String escapeGlob(String literal) {
+        return literal.replaceAll("([*?\\[\\]\\\\])", "\\\\$1");
+    }
+
+    private boolean accepts(ImageSpec imageSpec) {
+        return !dataSaverOnly || imageSpec.mode() == ImageMode.DATA_SAVER;
+    }
+
+    private String key(ImageSpec imageSpec) {
+        return imagesPrefix + String.join(":", imageSpec.mode().name(), imageSpec.chapter(), imageSpec.file());
+    }
+
+    private String tombstone(ImageSpec imageSpec) {
+        return tombstonesPrefix + String.join(":", imageSpec.mode().name(), imageSpec.chapter());
+    }
+
+}
@@ -0,0 +1,21 @@
+package moe.tristan.kmdah.service.images.cache.redis;
+
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+@Configuration
+@Profile("cache-redis")
+@EnableConfigurationProperties(RedisCacheSettings.class)
+public class RedisConfiguration {
+
+    @Bean
+    RedisCachedImageService redisCachedImageService(RedisConnectionFactory redisConnectionFactory, RedisCacheSettings redisCacheSettings, MeterRegistry meterRegistry) {
+        return new RedisCachedImageService(redisConnectionFactory, redisCacheSettings, meterRegistry);
+    }
+
+}
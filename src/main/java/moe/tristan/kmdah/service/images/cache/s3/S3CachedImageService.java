@@ -0,0 +1,199 @@
+package moe.tristan.kmdah.service.images.cache.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+import org.springframework.util.unit.DataSize;
+
+import moe.tristan.kmdah.service.images.ImageContent;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.CacheMode;
+import moe.tristan.kmdah.service.images.cache.CachedImageService;
+import moe.tristan.kmdah.service.images.cache.VacuumingRequest;
+import moe.tristan.kmdah.service.images.cache.VacuumingResult;
+
+import okhttp3.Response;
+
+/**
+ * Stores images as objects of an S3-compatible bucket, keyed {@code <prefix>/<chapter>/<mode>/<file>}, so that storage scales separately from workers.
+ * <p>
+ * Fills are uploaded in the background, with a single request up to {@code multipart-threshold-mb} and in parallel parts beyond it, and are dropped when
+ * more than {@code max-pending-mb} are still being uploaded.
+ * <p>
+ * A chapter is deleted right away, as object stores can't hide it any faster than by deleting its objects, which takes one listing and one bulk deletion.
+ */
+public class S3CachedImageService implements CachedImageService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(S3CachedImageService.class);
+
+    // the minimum size of all but the last part
+    private static final long MIN_PART_BYTES = DataSize.ofMegabytes(5).toBytes();
+
+    private final S3Client client;
+    private final String prefix;
+    private final long multipartThresholdBytes;
+    private final int partBytes;
+    private final long maxPendingBytes;
+    private final S3Vacuum vacuum;
+
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final LongAdder droppedUploads = new LongAdder();
+    private final LongAdder failedUploads = new LongAdder();
+
+    S3CachedImageService(S3Client client, S3Settings settings) {
+        this.client = client;
+        this.prefix = settings.prefix() == null || settings.prefix().isBlank() ? "" : settings.prefix() + "/";
+        this.multipartThresholdBytes = DataSize.ofMegabytes(settings.uploads().multipartThresholdMb()).toBytes();
+        this.partBytes = Math.toIntExact(DataSize.ofMegabytes(settings.uploads().partSizeMb()).toBytes());
+        this.maxPendingBytes = DataSize.ofMegabytes(settings.uploads().maxPendingMb()).toBytes();
+        this.vacuum = new S3Vacuum(client, prefix, settings.vacuum());
+
+        if (partBytes < MIN_PART_BYTES) {
+            throw new IllegalArgumentException("Multipart uploads require parts of at least 5MB, but part-size-mb is " + settings.uploads().partSizeMb());
+        }
+    }
+
+    @Override
+    public Optional<ImageContent> findImage(ImageSpec imageSpec) {
+        String key = key(imageSpec);
+
+        Response response = client.get(key, 0L);
+        if (response.code() == 404) {
+            response.close();
+            return Optional.empty();
+        }
+        if (!response.isSuccessful()) {
+            response.close();
+            throw new S3RequestException("Failed looking up " + key + ": " + response.code());
+        }
+
+        long length = response.body().contentLength();
+        String contentType = response.header("Content-Type");
+        Instant lastModified = Optional.ofNullable(response.headers().getDate("Last-Modified")).map(Date::toInstant).orElseGet(Instant::now);
+        return Optional.of(new ImageContent(
+            new S3ObjectResource(client, key, length, response),
+            contentType == null ? MediaType.APPLICATION_OCTET_STREAM : MediaType.parseMediaType(contentType),
+            length < 0 ? OptionalLong.empty() : OptionalLong.of(length),
+            lastModified,
+            CacheMode.HIT
+        ));
+    }
+
+    @Override
+    public void saveImage(ImageSpec imageSpec, MediaType mediaType, InputStream inputStream) {
+        saveImageAsync(imageSpec, mediaType, inputStream);
+    }
+
+    @Override
+    public CompletableFuture<Void> saveImageAsync(ImageSpec imageSpec, MediaType mediaType, InputStream inputStream) {
+        byte[] content;
+        try {
+            content = inputStream.readAllBytes();
+        } catch (IOException e) {
+            LOGGER.error("Failed reading {} for storing in S3!", imageSpec, e);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // a single image is always accepted when nothing is pending, however large
+        long pending = pendingBytes.addAndGet(content.length);
+        if (pending > maxPendingBytes && pending != content.length) {
+            pendingBytes.addAndGet(-content.length);
+            droppedUploads.increment();
+            LOGGER.warn("Dropped {} as too many uploads to S3 are pending", imageSpec);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        String key = key(imageSpec);
+        CompletableFuture<Void> upload = content.length > multipartThresholdBytes
+            ? uploadMultipart(key, mediaType, content)
+            : client.put(key, mediaType.toString(), content);
+        return upload.handle((done, error) -> {
+            pendingBytes.addAndGet(-content.length);
+            if (error != null) {
+                failedUploads.increment();
+                LOGGER.error("Failed storing {} in S3!", imageSpec, error);
+            } else {
+                LOGGER.debug("Stored {} in S3 as {}", imageSpec, key);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public boolean canAcceptWrites() {
+        return pendingBytes.get() < maxPendingBytes;
+    }
+
+    private CompletableFuture<Void> uploadMultipart(String key, MediaType mediaType, byte[] content) {
+        return client.createMultipartUpload(key, mediaType.toString()).thenCompose(uploadId -> {
+            List<CompletableFuture<String>> parts = new ArrayList<>();
+            for (int from = 0, partNumber = 1; from < content.length; from += partBytes, partNumber++) {
+                byte[] part = Arrays.copyOfRange(content, from, Math.min(from + partBytes, content.length));
+                parts.add(client.uploadPart(key, uploadId, partNumber, part));
+            }
+
+            return CompletableFuture
+                .allOf(parts.toArray(CompletableFuture[]::new))
+                .thenCompose(uploaded -> client.completeMultipartUpload(key, uploadId, parts.stream().map(CompletableFuture::join).collect(Collectors.toList())))
+                .whenComplete((done, error) -> {
+                    if (error != null) {
+                        // otherwise its parts are kept, and billed, until the bucket's lifecycle rules remove them, if any
+                        client.abortMultipartUpload(key, uploadId);
+                    }
+                });
+        });
+    }
+
+    @Override
+    public void deleteChapter(ImageSpec imageSpec) {
+        String chapterPrefix = prefix + String.join("/", imageSpec.chapter(), imageSpec.mode().name(), "");
+
+        int deleted = 0;
+        String continuationToken = null;
+        do {
+            S3Client.ListPage page = client.list(chapterPrefix, continuationToken);
+            if (!page.objects().isEmpty()) {
+                deleted += client.delete(page.objects().stream().map(S3Client.StoredObject::key).collect(Collectors.toList()));
+            }
+            continuationToken = page.continuationToken();
+        } while (continuationToken != null);
+
+        LOGGER.info("Deleted {} objects of {}", deleted, chapterPrefix);
+    }
+
+    @Override
+    public VacuumingResult vacuum(VacuumingRequest vacuumingRequest) {
+        return vacuum.vacuum(vacuumingRequest);
+    }
+
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    public long getDroppedUploads() {
+        return droppedUploads.sum();
+    }
+
+    public long getFailedUploads() {
+        return failedUploads.sum();
+    }
+
+    private String key(ImageSpec imageSpec) {
+        return prefix + String.join("/", imageSpec.chapter(), imageSpec.mode().name(), imageSpec.file());
+    }
+
+}
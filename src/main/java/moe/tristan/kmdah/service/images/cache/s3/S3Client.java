@@ -0,0 +1,310 @@
+package moe.tristan.kmdah.service.images.cache.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * The subset of the S3 API kmdah needs, over a pooled HTTP client.
+ * <p>
+ * Reads are synchronous, as their response is streamed by the request thread anyway. Uploads are asynchronous, so that cache fills don't hold request
+ * threads, and are limited to {@code max-connections} in flight like reads are.
+ */
+class S3Client {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(S3Client.class);
+
+    // at most this many keys per DeleteObjects request
+    static final int MAX_DELETE_BATCH = 1000;
+
+    private final OkHttpClient httpClient;
+    private final S3RequestSigner signer;
+    private final HttpUrl bucketUrl;
+
+    S3Client(S3Settings settings) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(settings.maxConnections());
+        dispatcher.setMaxRequestsPerHost(settings.maxConnections());
+
+        this.httpClient = new OkHttpClient.Builder()
+            .dispatcher(dispatcher)
+            .connectionPool(new ConnectionPool(settings.maxConnections(), 5, TimeUnit.MINUTES))
+            .connectTimeout(Duration.ofSeconds(5))
+            .readTimeout(Duration.ofSeconds(30))
+            .writeTimeout(Duration.ofSeconds(30))
+            .build();
+        this.signer = new S3RequestSigner(settings.region(), settings.accessKey(), settings.secretKey());
+
+        HttpUrl endpoint = HttpUrl.get(settings.endpoint());
+        this.bucketUrl = settings.pathStyle()
+            ? endpoint.newBuilder().addPathSegment(settings.bucket()).build()
+            : endpoint.newBuilder().host(settings.bucket() + "." + endpoint.host()).build();
+    }
+
+    /**
+     * Creates the bucket if it doesn't exist yet, which is mostly convenient with MinIO.
+     */
+    void ensureBucket() {
+        try (Response head = execute(new Request.Builder().url(bucketUrl).head(), S3RequestSigner.EMPTY_PAYLOAD_SHA256)) {
+            if (head.isSuccessful()) {
+                return;
+            }
+            if (head.code() != 404) {
+                throw new S3RequestException("Cannot access bucket " + bucketUrl + ": " + head.code());
+            }
+        }
+
+        try (Response created = execute(new Request.Builder().url(bucketUrl).put(RequestBody.create(new byte[0], null)), S3RequestSigner.EMPTY_PAYLOAD_SHA256)) {
+            expectSuccess(created, "create bucket " + bucketUrl);
+            LOGGER.info("Created bucket {}", bucketUrl);
+        }
+    }
+
+    /**
+     * @param offset the first byte to read, as a ranged GET unless 0
+     *
+     * @return the response, to be closed by the caller, and which is a 404 for missing objects
+     */
+    Response get(String key, long offset) {
+        Request.Builder request = new Request.Builder().url(objectUrl(key)).get();
+        if (offset > 0) {
+            request.header("Range", "bytes=" + offset + "-");
+        }
+        return execute(request, S3RequestSigner.EMPTY_PAYLOAD_SHA256);
+    }
+
+    CompletableFuture<Void> put(String key, String contentType, byte[] content) {
+        Request.Builder request = new Request.Builder()
+            .url(objectUrl(key))
+            .header("Content-Type", contentType)
+            .put(RequestBody.create(content, null));
+        return enqueue(request, DigestUtils.sha256Hex(content), response -> {
+            expectSuccess(response, "upload " + key);
+            return null;
+        });
+    }
+
+    /**
+     * @return the id of the upload
+     */
+    CompletableFuture<String> createMultipartUpload(String key, String contentType) {
+        HttpUrl url = objectUrl(key).newBuilder().addEncodedQueryParameter("uploads", "").build();
+        Request.Builder request = new Request.Builder()
+            .url(url)
+            .header("Content-Type", contentType)
+            .post(RequestBody.create(new byte[0], null));
+        return enqueue(request, S3RequestSigner.EMPTY_PAYLOAD_SHA256, response -> {
+            Document result = parseXml(response, "start multipart upload of " + key);
+            return text(result.getDocumentElement(), "UploadId");
+        });
+    }
+
+    /**
+     * @return the ETag of the part
+     */
+    CompletableFuture<String> uploadPart(String key, String uploadId, int partNumber, byte[] part) {
+        HttpUrl url = objectUrl(key)
+            .newBuilder()
+            .addEncodedQueryParameter("partNumber", String.valueOf(partNumber))
+            .addEncodedQueryParameter("uploadId", S3RequestSigner.encode(uploadId, false))
+            .build();
+        Request.Builder request = new Request.Builder().url(url).put(RequestBody.create(part, null));
+        return enqueue(request, DigestUtils.sha256Hex(part), response -> {
+            expectSuccess(response, "upload part " + partNumber + " of " + key);
+            return response.header("ETag");
+        });
+    }
+
+    /**
+     * @param etags the ETag of each part, in order
+     */
+    CompletableFuture<Void> completeMultipartUpload(String key, String uploadId, List<String> etags) {
+        StringBuilder body = new StringBuilder("<CompleteMultipartUpload>");
+        for (int i = 0; i < etags.size(); i++) {
+            body.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>").append(xmlEscape(etags.get(i))).append("</ETag></Part>");
+        }
+        byte[] content = body.append("</CompleteMultipartUpload>").toString().getBytes(StandardCharsets.UTF_8);
+
+        HttpUrl url = objectUrl(key).newBuilder().addEncodedQueryParameter("uploadId", S3RequestSigner.encode(uploadId, false)).build();
+        Request.Builder request = new Request.Builder().url(url).header("Content-Type", "application/xml").post(RequestBody.create(content, null));
+        return enqueue(request, DigestUtils.sha256Hex(content), response -> {
+            // can fail after a 200 response, as it is sent before the parts are assembled
+            Document result = parseXml(response, "complete multipart upload of " + key);
+            if ("Error".equals(result.getDocumentElement().getTagName())) {
+                throw new S3RequestException("Failed completing multipart upload of " + key + ": " + text(result.getDocumentElement(), "Message"));
+            }
+            return null;
+        });
+    }
+
+    CompletableFuture<Void> abortMultipartUpload(String key, String uploadId) {
+        HttpUrl url = objectUrl(key).newBuilder().addEncodedQueryParameter("uploadId", S3RequestSigner.encode(uploadId, false)).build();
+        return enqueue(new Request.Builder().url(url).delete(), S3RequestSigner.EMPTY_PAYLOAD_SHA256, response -> {
+            expectSuccess(response, "abort multipart upload of " + key);
+            return null;
+        });
+    }
+
+    /**
+     * @param continuationToken where the previous page ended, if any
+     */
+    ListPage list(String prefix, String continuationToken) {
+        HttpUrl.Builder url = bucketUrl
+            .newBuilder()
+            .addEncodedQueryParameter("list-type", "2")
+            .addEncodedQueryParameter("prefix", S3RequestSigner.encode(prefix, false));
+        if (continuationToken != null) {
+            url.addEncodedQueryParameter("continuation-token", S3RequestSigner.encode(continuationToken, false));
+        }
+
+        try (Response response = execute(new Request.Builder().url(url.build()).get(), S3RequestSigner.EMPTY_PAYLOAD_SHA256)) {
+            Element result = parseXml(response, "list " + prefix).getDocumentElement();
+
+            List<StoredObject> objects = new ArrayList<>();
+            NodeList contents = result.getElementsByTagName("Contents");
+            for (int i = 0; i < contents.getLength(); i++) {
+                Element object = (Element) contents.item(i);
+                objects.add(new StoredObject(
+                    text(object, "Key"),
+                    Long.parseLong(text(object, "Size")),
+                    Instant.parse(text(object, "LastModified"))
+                ));
+            }
+
+            boolean truncated = Boolean.parseBoolean(text(result, "IsTruncated"));
+            return new ListPage(objects, truncated ? text(result, "NextContinuationToken") : null);
+        }
+    }
+
+    /**
+     * @return the amount of objects deleted
+     */
+    int delete(List<String> keys) {
+        StringBuilder body = new StringBuilder("<Delete><Quiet>true</Quiet>");
+        keys.forEach(key -> body.append("<Object><Key>").append(xmlEscape(key)).append("</Key></Object>"));
+        byte[] content = body.append("</Delete>").toString().getBytes(StandardCharsets.UTF_8);
+
+        HttpUrl url = bucketUrl.newBuilder().addEncodedQueryParameter("delete", "").build();
+        Request.Builder request = new Request.Builder()
+            .url(url)
+            .header("Content-Type", "application/xml")
+            .header("Content-MD5", Base64.getEncoder().encodeToString(DigestUtils.md5(content)))
+            .post(RequestBody.create(content, null));
+
+        try (Response response = execute(request, DigestUtils.sha256Hex(content))) {
+            // quiet mode only reports failures
+            NodeList errors = parseXml(response, "delete " + keys.size() + " objects").getDocumentElement().getElementsByTagName("Error");
+            if (errors.getLength() > 0) {
+                Element error = (Element) errors.item(0);
+                LOGGER.warn("Failed deleting {} objects, such as {}: {}", errors.getLength(), text(error, "Key"), text(error, "Message"));
+            }
+            return keys.size() - errors.getLength();
+        }
+    }
+
+    private HttpUrl objectUrl(String key) {
+        return bucketUrl.newBuilder().addEncodedPathSegments(S3RequestSigner.encode(key, true)).build();
+    }
+
+    private Response execute(Request.Builder request, String payloadSha256) {
+        try {
+            return httpClient.newCall(signer.sign(request.build(), payloadSha256, Instant.now())).execute();
+        } catch (IOException e) {
+            throw new S3RequestException("Failed request to " + request.build().url(), e);
+        }
+    }
+
+    /**
+     * @param handler reads the response on the client's thread, which then closes it
+     */
+    private <T> CompletableFuture<T> enqueue(Request.Builder request, String payloadSha256, Function<Response, T> handler) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        httpClient.newCall(signer.sign(request.build(), payloadSha256, Instant.now())).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.completeExceptionally(new S3RequestException("Failed request to " + call.request().url(), e));
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (response) {
+                    future.complete(handler.apply(response));
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    private static void expectSuccess(Response response, String operation) {
+        if (!response.isSuccessful()) {
+            throw new S3RequestException("Failed to " + operation + ": " + response.code() + " " + errorMessage(response));
+        }
+    }
+
+    private static Document parseXml(Response response, String operation) {
+        expectSuccess(response, operation);
+        try (InputStream body = new ByteArrayInputStream(response.body().bytes())) {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            return factory.newDocumentBuilder().parse(body);
+        } catch (IOException | ParserConfigurationException | SAXException e) {
+            throw new S3RequestException("Cannot read response to " + operation, e);
+        }
+    }
+
+    private static String errorMessage(Response response) {
+        try {
+            return response.body() == null ? "" : response.body().string();
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    private static String xmlEscape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;").replace("'", "&apos;");
+    }
+
+    private static String text(Element parent, String tag) {
+        NodeList nodes = parent.getElementsByTagName(tag);
+        return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent();
+    }
+
+    record StoredObject(String key, long size, Instant lastModified) {}
+
+    record ListPage(List<StoredObject> objects, String continuationToken) {}
+
+}
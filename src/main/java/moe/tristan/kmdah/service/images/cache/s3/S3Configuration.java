@@ -0,0 +1,29 @@
+package moe.tristan.kmdah.service.images.cache.s3;
+
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+@Configuration
+@Profile("cache-s3")
+@EnableConfigurationProperties(S3Settings.class)
+public class S3Configuration {
+
+    @Bean
+    S3CachedImageService s3CachedImageService(S3Settings s3Settings, MeterRegistry meterRegistry) {
+        S3Client client = new S3Client(s3Settings);
+        client.ensureBucket();
+
+        S3CachedImageService service = new S3CachedImageService(client, s3Settings);
+        Gauge.builder("kmdah_cache_s3_upload_pending_bytes", service, S3CachedImageService::getPendingBytes).register(meterRegistry);
+        FunctionCounter.builder("kmdah_cache_s3_upload_dropped", service, S3CachedImageService::getDroppedUploads).register(meterRegistry);
+        FunctionCounter.builder("kmdah_cache_s3_upload_failed", service, S3CachedImageService::getFailedUploads).register(meterRegistry);
+        return service;
+    }
+
+}
@@ -0,0 +1,132 @@
+package moe.tristan.kmdah.service.images.cache.s3;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.springframework.core.io.AbstractResource;
+
+import okhttp3.Response;
+
+/**
+ * Streams an object straight from the response to its lookup, which saves a round-trip for the usual full reads.
+ * <p>
+ * Range requests skip to their start before reading, in which case the object is instead read from there with a ranged GET, rather than by discarding
+ * everything before it. Each further read of the resource, as done for multipart ranges, issues its own GET.
+ * <p>
+ * Until it is read, the resource holds on to a pooled connection, and must be closed if it won't be.
+ */
+class S3ObjectResource extends AbstractResource implements Closeable {
+
+    private final S3Client client;
+    private final String key;
+    private final long length;
+
+    private final AtomicReference<Response> lookup;
+
+    /**
+     * @param lookup the successful response to the lookup of the object, which this resource closes
+     */
+    S3ObjectResource(S3Client client, String key, long length, Response lookup) {
+        this.client = client;
+        this.key = key;
+        this.length = length;
+        this.lookup = new AtomicReference<>(lookup);
+    }
+
+    @Override
+    public String getDescription() {
+        return "S3 object [" + key + "]";
+    }
+
+    @Override
+    public long contentLength() {
+        return length;
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new ObjectInputStream(lookup.getAndSet(null));
+    }
+
+    /**
+     * Closes the response to the lookup if it wasn't read, which doesn't prevent further reads.
+     */
+    @Override
+    public void close() {
+        Response unread = lookup.getAndSet(null);
+        if (unread != null) {
+            unread.close();
+        }
+    }
+
+    private final class ObjectInputStream extends InputStream {
+
+        private Response response;
+        private InputStream body;
+        private long offset;
+
+        private ObjectInputStream(Response response) {
+            this.response = response;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return open().read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return open().read(buffer, offset, length);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (body != null) {
+                return body.skip(n);
+            }
+            long skipped = Math.max(0L, Math.min(n, length - offset));
+            offset += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() {
+            if (response != null) {
+                response.close();
+            }
+        }
+
+        private InputStream open() throws IOException {
+            if (body != null) {
+                return body;
+            }
+
+            if (response != null && offset > 0) {
+                response.close();
+                response = null;
+            }
+            if (response == null) {
+                response = client.get(key, offset);
+                if (response.code() != 200 && response.code() != 206) {
+                    throw new IOException("Cannot read " + key + " from byte " + offset + ": " + response.code());
+                }
+            }
+
+            body = response.body().byteStream();
+            if (response.code() == 200 && offset > 0) {
+                // the server ignored the range
+                body.skipNBytes(offset);
+            }
+            return body;
+        }
+
+    }
+
+}
@@ -0,0 +1,13 @@
+package moe.tristan.kmdah.service.images.cache.s3;
+
+public final class S3RequestException extends RuntimeException {
+
+    public S3RequestException(String reason) {
+        super(reason);
+    }
+
+    public S3RequestException(String reason, Throwable cause) {
+        super(reason, cause);
+    }
+
+}
@@ -0,0 +1,123 @@
+package moe.tristan.kmdah.service.images.cache.s3;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.codec.digest.HmacAlgorithms;
+import org.apache.commons.codec.digest.HmacUtils;
+
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+
+/**
+ * Signs requests with AWS Signature Version 4, which Ceph RGW and MinIO support as well.
+ * <p>
+ * Paths and query parameters must already be encoded with {@link #encode}, so that they are signed as they are sent.
+ */
+class S3RequestSigner {
+
+    static final String EMPTY_PAYLOAD_SHA256 = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String SERVICE = "s3";
+
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneOffset.UTC);
+
+    private final String region;
+    private final String accessKey;
+    private final String secretKey;
+
+    S3RequestSigner(String region, String accessKey, String secretKey) {
+        this.region = region;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+    }
+
+    Request sign(Request request, String payloadSha256, Instant now) {
+        String timestamp = TIMESTAMP.format(now);
+        String scope = String.join("/", DATE.format(now), region, SERVICE, "aws4_request");
+
+        Request dated = request
+            .newBuilder()
+            .header("x-amz-date", timestamp)
+            .header("x-amz-content-sha256", payloadSha256)
+            .build();
+
+        Map<String, String> headers = new TreeMap<>();
+        headers.put("host", hostHeader(dated.url()));
+        for (String name : dated.headers().names()) {
+            headers.put(name.toLowerCase(Locale.ROOT), String.join(",", dated.headers(name)).trim());
+        }
+        String signedHeaders = String.join(";", headers.keySet());
+
+        StringBuilder canonicalRequest = new StringBuilder()
+            .append(dated.method()).append('\n')
+            .append(dated.url().encodedPath()).append('\n')
+            .append(canonicalQuery(dated.url())).append('\n');
+        headers.forEach((name, value) -> canonicalRequest.append(name).append(':').append(value).append('\n'));
+        canonicalRequest.append('\n').append(signedHeaders).append('\n').append(payloadSha256);
+
+        String stringToSign = String.join("\n", ALGORITHM, timestamp, scope, DigestUtils.sha256Hex(canonicalRequest.toString()));
+
+        byte[] signingKey = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), DATE.format(now));
+        signingKey = hmac(signingKey, region);
+        signingKey = hmac(signingKey, SERVICE);
+        signingKey = hmac(signingKey, "aws4_request");
+        String signature = Hex.encodeHexString(hmac(signingKey, stringToSign));
+
+        return dated
+            .newBuilder()
+            .header("Authorization", ALGORITHM + " Credential=" + accessKey + "/" + scope + ", SignedHeaders=" + signedHeaders + ", Signature=" + signature)
+            .build();
+    }
+
+    /**
+     * URI-encodes a value as S3 expects, which only leaves unreserved characters (and optionally slashes) as they are.
+     */
+    static String encode(String value, boolean keepSlashes) {
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == '.' || c == '~' || (keepSlashes && c == '/')) {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(String.format("%02X", b & 0xFF));
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static String canonicalQuery(HttpUrl url) {
+        String query = url.encodedQuery();
+        if (query == null || query.isEmpty()) {
+            return "";
+        }
+
+        return Arrays
+            .stream(query.split("&"))
+            .map(parameter -> parameter.contains("=") ? parameter.split("=", 2) : new String[]{parameter, ""})
+            .sorted(Comparator.<String[], String>comparing(parameter -> parameter[0]).thenComparing(parameter -> parameter[1]))
+            .map(parameter -> parameter[0] + "=" + parameter[1])
+            .collect(Collectors.joining("&"));
+    }
+
+    private static String hostHeader(HttpUrl url) {
+        return url.port() == HttpUrl.defaultPort(url.scheme()) ? url.host() : url.host() + ":" + url.port();
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        return new HmacUtils(HmacAlgorithms.HMAC_SHA_256, key).hmac(data);
+    }
+
+}
@@ -0,0 +1,48 @@
+package moe.tristan.kmdah.service.images.cache.s3;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+
+@ConstructorBinding
+@ConfigurationProperties("kmdah.cache.s3")
+public record S3Settings(
+
+    String endpoint,
+
+    String region,
+
+    String bucket,
+
+    String prefix,
+
+    String accessKey,
+
+    String secretKey,
+
+    boolean pathStyle,
+
+    int maxConnections,
+
+    Uploads uploads,
+
+    Vacuum vacuum
+
+) {
+
+    public record Uploads(
+
+        int multipartThresholdMb,
+
+        int partSizeMb,
+
+        int maxPendingMb
+
+    ) {}
+
+    public record Vacuum(
+
+        int deletionsPerSecond
+
+    ) {}
+
+}
@@ -0,0 +1,110 @@
+package moe.tristan.kmdah.service.images.cache.s3;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.unit.DataSize;
+
+import moe.tristan.kmdah.service.images.cache.VacuumingRequest;
+import moe.tristan.kmdah.service.images.cache.VacuumingResult;
+import moe.tristan.kmdah.util.IoBudget;
+
+/**
+ * Keeps the objects under the cache's prefix within the target size, evicting the oldest uploaded ones first.
+ * <p>
+ * Object stores only list objects in key order, so a first listing sums their sizes per hour of upload, which tells up to which hour objects must be evicted
+ * to get back under the target without holding the whole listing in memory. A second listing then deletes those, in batches and at a bounded rate.
+ */
+class S3Vacuum {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(S3Vacuum.class);
+
+    private final S3Client client;
+    private final String prefix;
+    private final S3Settings.Vacuum settings;
+
+    S3Vacuum(S3Client client, String prefix, S3Settings.Vacuum settings) {
+        this.client = client;
+        this.prefix = prefix;
+        this.settings = settings;
+    }
+
+    VacuumingResult vacuum(VacuumingRequest vacuumingRequest) {
+        NavigableMap<Instant, Long> bytesPerHour = new TreeMap<>();
+        long usedBytes = 0L;
+        String continuationToken = null;
+        do {
+            S3Client.ListPage page = client.list(prefix, continuationToken);
+            for (S3Client.StoredObject object : page.objects()) {
+                bytesPerHour.merge(uploadHour(object), object.size(), Long::sum);
+                usedBytes += object.size();
+            }
+            continuationToken = page.continuationToken();
+        } while (continuationToken != null);
+
+        long maxBytes = vacuumingRequest.targetSize().toBytes();
+        LOGGER.info("Cache fill factor: {}% ({}/{}GB)", (int) (usedBytes * 100. / maxBytes), DataSize.ofBytes(usedBytes).toGigabytes(), vacuumingRequest.targetSize().toGigabytes());
+        if (usedBytes <= maxBytes) {
+            LOGGER.info("No need for vacuuming");
+            return new VacuumingResult(0L, DataSize.ofBytes(0L));
+        }
+
+        long bytesToFree = usedBytes - maxBytes;
+        Instant lastEvictedHour = lastEvictedHour(bytesPerHour, bytesToFree);
+        LOGGER.info("Vacuum will evict {}MB of images uploaded up to {}", DataSize.ofBytes(bytesToFree).toMegabytes(), lastEvictedHour);
+
+        IoBudget deletionBudget = IoBudget.perSecond(settings.deletionsPerSecond());
+        long evictions = 0L;
+        long freedBytes = 0L;
+        do {
+            // pages hold at most as many objects as can be deleted at once
+            S3Client.ListPage page = client.list(prefix, continuationToken);
+            List<String> batch = new ArrayList<>();
+            long batchBytes = 0L;
+            for (S3Client.StoredObject object : page.objects()) {
+                if (freedBytes + batchBytes >= bytesToFree) {
+                    break;
+                }
+                if (!uploadHour(object).isAfter(lastEvictedHour)) {
+                    batch.add(object.key());
+                    batchBytes += object.size();
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                if (!deletionBudget.acquire(batch.size())) {
+                    LOGGER.info("Vacuum was interrupted after evicting {} images", evictions);
+                    break;
+                }
+                evictions += client.delete(batch);
+                freedBytes += batchBytes;
+            }
+            continuationToken = page.continuationToken();
+        } while (continuationToken != null && freedBytes < bytesToFree);
+
+        return new VacuumingResult(evictions, DataSize.ofBytes(freedBytes));
+    }
+
+    private static Instant uploadHour(S3Client.StoredObject object) {
+        return object.lastModified().truncatedTo(ChronoUnit.HOURS);
+    }
+
+    private static Instant lastEvictedHour(NavigableMap<Instant, Long> bytesPerHour, long bytesToFree) {
+        long freed = 0L;
+        for (Map.Entry<Instant, Long> hour : bytesPerHour.entrySet()) {
+            freed += hour.getValue();
+            if (freed >= bytesToFree) {
+                return hour.getKey();
+            }
+        }
+        return bytesPerHour.lastKey();
+    }
+
+}
@@ -0,0 +1,8 @@
+package moe.tristan.kmdah.service.images.cache.tiered;
+
+import moe.tristan.kmdah.service.images.cache.CachedImageService;
+
+/**
+ * @param name the tier's position and backend, as in {@code 0-filesystem}
+ */
+record CacheTier(String name, CachedImageService cachedImageService, TieredSettings.Tier settings) {}
@@ -0,0 +1,265 @@
+package moe.tristan.kmdah.service.images.cache.tiered;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.MediaType;
+import org.springframework.util.unit.DataSize;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import moe.tristan.kmdah.service.images.ImageContent;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.CachedImageService;
+import moe.tristan.kmdah.service.images.cache.ReclaimingRequest;
+import moe.tristan.kmdah.service.images.cache.ReclaimingResult;
+import moe.tristan.kmdah.service.images.cache.ScrubbingRequest;
+import moe.tristan.kmdah.service.images.cache.ScrubbingResult;
+import moe.tristan.kmdah.service.images.cache.VacuumingRequest;
+import moe.tristan.kmdah.service.images.cache.VacuumingResult;
+import moe.tristan.kmdah.util.ContentCallbackInputStream;
+import moe.tristan.kmdah.util.ThrottledExecutorService;
+
+/**
+ * Chains backends, from the fastest to the largest, as a single cache.
+ * <p>
+ * Images are looked up tier by tier, each within its own timeout, past which that tier counts as a miss. An image found in a lower tier is copied to the
+ * upper tiers with {@code promote} once it was fully served, and cache misses are written to every tier with {@code write-on-miss}.
+ * <p>
+ * Lookups run on their own bounded pool, rather than the common pool the overall lookup already runs on, so that slow tiers cannot starve it. A tier
+ * lookup that cannot even be queued counts as rejected, and thus as a miss of that tier.
+ * <p>
+ * Each tier is vacuumed on its own, to its own size, while deletions apply to all of them.
+ */
+public class TieredCachedImageService implements CachedImageService, Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TieredCachedImageService.class);
+
+    private final List<CacheTier> tiers;
+    private final List<TierMetrics> metrics;
+    private final ExecutorService lookupExecutorService;
+
+    TieredCachedImageService(List<CacheTier> tiers, int lookupThreads, MeterRegistry meterRegistry) {
+        if (tiers.isEmpty()) {
+            throw new IllegalArgumentException("The tiered cache requires at least one tier");
+        }
+        this.tiers = tiers;
+        this.metrics = tiers.stream().map(tier -> new TierMetrics(tier.name(), meterRegistry)).collect(Collectors.toList());
+        this.lookupExecutorService = ThrottledExecutorService.from(lookupThreads, lookupThreads, lookupThreads);
+    }
+
+    @Override
+    public Optional<ImageContent> findImage(ImageSpec imageSpec) {
+        for (int i = 0; i < tiers.size(); i++) {
+            Optional<ImageContent> found = findInTier(i, imageSpec);
+            if (found.isPresent()) {
+                return Optional.of(i == 0 ? found.get() : promoting(i, imageSpec, found.get()));
+            }
+        }
+        return Optional.empty();
+    }
+
+    private Optional<ImageContent> findInTier(int index, ImageSpec imageSpec) {
+        CacheTier tier = tiers.get(index);
+        TierMetrics tierMetrics = metrics.get(index);
+
+        long startTime = System.nanoTime();
+        CompletableFuture<Optional<ImageContent>> lookup;
+        try {
+            lookup = CompletableFuture.supplyAsync(() -> tier.cachedImageService().findImage(imageSpec), lookupExecutorService);
+        } catch (RejectedExecutionException e) {
+            tierMetrics.rejections.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+            LOGGER.warn("Skipped lookup of {} in tier {} as too many lookups are already pending", imageSpec, tier.name());
+            return Optional.empty();
+        }
+
+        try {
+            Optional<ImageContent> found = lookup.get(tier.settings().timeoutMillis(), TimeUnit.MILLISECONDS);
+            (found.isPresent() ? tierMetrics.hits : tierMetrics.misses).record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+            return found;
+        } catch (TimeoutException e) {
+            tierMetrics.timeouts.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+            LOGGER.warn("Aborted lookup of {} in tier {} after {}ms", imageSpec, tier.name(), tier.settings().timeoutMillis());
+            lookup.thenAccept(late -> late.ifPresent(ImageContent::discard));
+        } catch (ExecutionException e) {
+            tierMetrics.errors.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+            LOGGER.error("Failed searching image {} in tier {}", imageSpec, tier.name(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Serves an image found in a lower tier, copying it to the upper tiers once fully read.
+     */
+    private ImageContent promoting(int foundIndex, ImageSpec imageSpec, ImageContent found) {
+        List<CacheTier> targets = tiers
+            .subList(0, foundIndex)
+            .stream()
+            .filter(tier -> tier.settings().promote())
+            .collect(Collectors.toList());
+        if (targets.isEmpty()) {
+            return found;
+        }
+
+        try {
+            Consumer<byte[]> promotion = bytes -> targets.forEach(tier -> save(tier, imageSpec, found.contentType(), bytes).thenAccept(saved -> {
+                if (saved) {
+                    metrics.get(tiers.indexOf(tier)).promotions.increment();
+                }
+            }));
+
+            return new ImageContent(
+                new InputStreamResource(new ContentCallbackInputStream(found.resource().getInputStream(), promotion)),
+                found.contentType(),
+                found.contentLength(),
+                found.lastModified(),
+                found.cacheMode()
+            );
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open " + imageSpec + " found in tier " + tiers.get(foundIndex).name() + " for reading!", e);
+        }
+    }
+
+    @Override
+    public void saveImage(ImageSpec imageSpec, MediaType mediaType, InputStream inputStream) {
+        saveImageAsync(imageSpec, mediaType, inputStream);
+    }
+
+    /**
+     * Completes once every tier written to is done with the image.
+     */
+    @Override
+    public CompletableFuture<Void> saveImageAsync(ImageSpec imageSpec, MediaType mediaType, InputStream inputStream) {
+        byte[] content;
+        try {
+            content = inputStream.readAllBytes();
+        } catch (IOException e) {
+            LOGGER.error("Failed reading {} for storing in the tiered cache!", imageSpec, e);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return CompletableFuture.allOf(tiers
+            .stream()
+            .filter(tier -> tier.settings().writeOnMiss())
+            .map(tier -> save(tier, imageSpec, mediaType, content))
+            .toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * @return completed with whether the tier took the image, once it is done with it
+     */
+    private CompletableFuture<Boolean> save(CacheTier tier, ImageSpec imageSpec, MediaType mediaType, byte[] content) {
+        if (!tier.cachedImageService().canAcceptWrites()) {
+            LOGGER.debug("Not storing {} in tier {} as it is falling behind on writes", imageSpec, tier.name());
+            return CompletableFuture.completedFuture(false);
+        }
+
+        try {
+            return tier.cachedImageService().saveImageAsync(imageSpec, mediaType, new ByteArrayInputStream(content)).thenApply(saved -> true);
+        } catch (Exception e) {
+            LOGGER.error("Failed storing {} in tier {}", imageSpec, tier.name(), e);
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    @Override
+    public boolean canAcceptWrites() {
+        return tiers
+            .stream()
+            .filter(tier -> tier.settings().writeOnMiss())
+            .anyMatch(tier -> tier.cachedImageService().canAcceptWrites());
+    }
+
+    @Override
+    public void deleteChapter(ImageSpec imageSpec) {
+        tiers.forEach(tier -> tier.cachedImageService().deleteChapter(imageSpec));
+    }
+
+    @Override
+    public ReclaimingResult reclaim(ReclaimingRequest reclaimingRequest) {
+        long reclaimedFiles = 0L;
+        long freedBytes = 0L;
+        for (CacheTier tier : tiers) {
+            ReclaimingResult result = tier.cachedImageService().reclaim(reclaimingRequest);
+            reclaimedFiles += result.reclaimedFileCount();
+            freedBytes += result.freedSpace().toBytes();
+        }
+        return new ReclaimingResult(reclaimedFiles, DataSize.ofBytes(freedBytes));
+    }
+
+    @Override
+    public VacuumingResult vacuum(VacuumingRequest vacuumingRequest) {
+        long deletedFiles = 0L;
+        long freedBytes = 0L;
+        for (CacheTier tier : tiers) {
+            DataSize targetSize = tier.settings().maxSizeGb() > 0 ? DataSize.ofGigabytes(tier.settings().maxSizeGb()) : vacuumingRequest.targetSize();
+            try {
+                VacuumingResult result = tier.cachedImageService().vacuum(new VacuumingRequest(targetSize));
+                LOGGER.info("Vacuumed tier {} down to {}GB: freed {}MB by deleting {} files", tier.name(), targetSize.toGigabytes(), result.freedSpace().toMegabytes(), result.deletedFileCount());
+                deletedFiles += result.deletedFileCount();
+                freedBytes += result.freedSpace().toBytes();
+            } catch (Exception e) {
+                // so that the other tiers are still vacuumed
+                LOGGER.error("Failed vacuuming tier {}", tier.name(), e);
+            }
+        }
+        return new VacuumingResult(deletedFiles, DataSize.ofBytes(freedBytes));
+    }
+
+    /**
+     * Only scrubs the lowest tier, which holds the copies that the upper ones are filled from.
+     */
+    @Override
+    public ScrubbingResult scrub(ScrubbingRequest scrubbingRequest) {
+        return tiers.get(tiers.size() - 1).cachedImageService().scrub(scrubbingRequest);
+    }
+
+    @Override
+    public void close() {
+        lookupExecutorService.shutdownNow();
+    }
+
+    private static final class TierMetrics {
+
+        private final Timer hits;
+        private final Timer misses;
+        private final Timer timeouts;
+        private final Timer errors;
+        private final Timer rejections;
+        private final Counter promotions;
+
+        private TierMetrics(String tier, MeterRegistry meterRegistry) {
+            this.hits = lookups(tier, "hit", meterRegistry);
+            this.misses = lookups(tier, "miss", meterRegistry);
+            this.timeouts = lookups(tier, "timeout", meterRegistry);
+            this.errors = lookups(tier, "error", meterRegistry);
+            this.rejections = lookups(tier, "rejected", meterRegistry);
+            this.promotions = Counter.builder("kmdah_cache_tier_promotions").tag("tier", tier).register(meterRegistry);
+        }
+
+        private static Timer lookups(String tier, String result, MeterRegistry meterRegistry) {
+            return Timer.builder("kmdah_cache_tier_lookup").tag("tier", tier).tag("result", result).register(meterRegistry);
+        }
+
+    }
+
+}
@@ -0,0 +1,46 @@
+package moe.tristan.kmdah.service.images.cache.tiered;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.context.annotation.Profile;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+import moe.tristan.kmdah.service.images.cache.CacheBackend;
+import moe.tristan.kmdah.service.images.cache.CachedImageService;
+
+/**
+ * The backends of each tier are set up by their own configuration, as their profiles are part of the {@code cache-tiered} profile group.
+ */
+@Configuration
+@Profile("cache-tiered")
+@EnableConfigurationProperties(TieredSettings.class)
+public class TieredConfiguration {
+
+    @Bean
+    @Primary
+    TieredCachedImageService tieredCachedImageService(TieredSettings tieredSettings, Map<String, CachedImageService> backends, MeterRegistry meterRegistry) {
+        List<CacheTier> tiers = new ArrayList<>();
+        for (TieredSettings.Tier tier : tieredSettings.tiers()) {
+            if (tier.backend() == CacheBackend.TIERED || tier.backend() == CacheBackend.DELEGATING || tier.backend() == CacheBackend.UNSET) {
+                throw new IllegalArgumentException("Unsupported backend for a cache tier: " + tier.backend());
+            }
+
+            String backend = tier.backend().name().toLowerCase(Locale.ROOT);
+            CachedImageService cachedImageService = backends.get(backend + "CachedImageService");
+            if (cachedImageService == null) {
+                throw new IllegalStateException("No " + backend + " backend was set up for tier " + tiers.size() + ", as only the first 3 tiers are");
+            }
+            tiers.add(new CacheTier(tiers.size() + "-" + backend, cachedImageService, tier));
+        }
+        return new TieredCachedImageService(tiers, tieredSettings.lookupThreads(), meterRegistry);
+    }
+
+}
@@ -0,0 +1,34 @@
+package moe.tristan.kmdah.service.images.cache.tiered;
+
+import java.util.List;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+
+import moe.tristan.kmdah.service.images.cache.CacheBackend;
+
+@ConstructorBinding
+@ConfigurationProperties("kmdah.cache.tiered")
+public record TieredSettings(
+
+    int lookupThreads,
+
+    List<Tier> tiers
+
+) {
+
+    public record Tier(
+
+        CacheBackend backend,
+
+        long timeoutMillis,
+
+        int maxSizeGb,
+
+        boolean promote,
+
+        boolean writeOnMiss
+
+    ) {}
+
+}
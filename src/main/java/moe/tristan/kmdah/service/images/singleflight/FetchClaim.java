@@ -0,0 +1,54 @@
+package moe.tristan.kmdah.service.images.singleflight;
+
+import moe.tristan.kmdah.service.images.ImageContent;
+import moe.tristan.kmdah.service.images.ImageSpec;
+
+/**
+ * Outcome of {@link UpstreamFetchCoordinator#claimOrAwait}, which only the request that won the claim may release, as other requests of the same worker
+ * fetching the image regardless must not release a lock they don't hold.
+ *
+ * @param token  unique to the claim, and only set if claimed
+ * @param filled the image from the cache, and only set if filled
+ */
+public record FetchClaim(Outcome outcome, ImageSpec imageSpec, String token, ImageContent filled) {
+
+    public static FetchClaim claimed(ImageSpec imageSpec, String token) {
+        return new FetchClaim(Outcome.CLAIMED, imageSpec, token, null);
+    }
+
+    public static FetchClaim filled(ImageSpec imageSpec, ImageContent filled) {
+        return new FetchClaim(Outcome.FILLED, imageSpec, null, filled);
+    }
+
+    public static FetchClaim gaveUp(ImageSpec imageSpec) {
+        return new FetchClaim(Outcome.GAVE_UP, imageSpec, null, null);
+    }
+
+    public boolean isClaimed() {
+        return outcome == Outcome.CLAIMED;
+    }
+
+    public boolean isFilled() {
+        return outcome == Outcome.FILLED;
+    }
+
+    public enum Outcome {
+
+        /**
+         * This request holds the lock, and must fetch the image then release it once saved.
+         */
+        CLAIMED,
+
+        /**
+         * Another worker filled the cache while this request waited.
+         */
+        FILLED,
+
+        /**
+         * This request must fetch the image without holding the lock, as waiting timed out or failed, or coordination is disabled.
+         */
+        GAVE_UP
+
+    }
+
+}
@@ -0,0 +1,20 @@
+package moe.tristan.kmdah.service.images.singleflight;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+
+@ConstructorBinding
+@ConfigurationProperties("kmdah.cache.single-flight")
+public record SingleFlightSettings(
+
+    boolean enabled,
+
+    String keyPrefix,
+
+    long lockTtlMillis,
+
+    long maxWaitMillis,
+
+    long pollIntervalMillis
+
+) {}
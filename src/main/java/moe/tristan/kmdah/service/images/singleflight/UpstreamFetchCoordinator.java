@@ -0,0 +1,150 @@
+package moe.tristan.kmdah.service.images.singleflight;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import moe.tristan.kmdah.service.gossip.InstanceId;
+import moe.tristan.kmdah.service.images.ImageContent;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.CachedImageService;
+
+/**
+ * Lets a single worker of the cluster fetch an image from upstream at a time, while the others wait for it to fill the cache and serve it from there.
+ * <p>
+ * The worker fetching an image holds a lock on it in Redis, which it releases once the image is saved to the cache, rather than merely handed to it,
+ * or as soon as its client goes away mid-fetch. Each claim holds a token of its own, so that other requests of the same worker, which give up waiting and
+ * fetch the image regardless, cannot release it. Locks expire after {@code lock-ttl-millis}, so that a worker crashing only delays the others by as much.
+ * Waiting workers fetch the image themselves if the lock went away without the image being cached, or after {@code max-wait-millis}.
+ * <p>
+ * This only pays off with a cache shared by all workers, as others would not find the image in their own cache.
+ */
+@Component
+public class UpstreamFetchCoordinator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UpstreamFetchCoordinator.class);
+
+    private static final RedisScript<Long> RELEASE_SCRIPT = RedisScript.of(
+        "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end",
+        Long.class
+    );
+
+    private final SingleFlightSettings settings;
+    private final CachedImageService cachedImageService;
+    private final StringRedisTemplate redisTemplate;
+    private final String instanceId;
+
+    private final Counter claimed;
+    private final Counter deduplicated;
+    private final Counter timedOut;
+    private final Counter failed;
+    private final Timer waits;
+
+    public UpstreamFetchCoordinator(
+        SingleFlightSettings settings,
+        CachedImageService cachedImageService,
+        StringRedisTemplate redisTemplate,
+        InstanceId instanceId,
+        MeterRegistry meterRegistry
+    ) {
+        this.settings = settings;
+        this.cachedImageService = cachedImageService;
+        this.redisTemplate = redisTemplate;
+        this.instanceId = instanceId.id();
+
+        this.claimed = fetches("claimed", meterRegistry);
+        this.deduplicated = fetches("deduplicated", meterRegistry);
+        this.timedOut = fetches("timeout", meterRegistry);
+        this.failed = fetches("error", meterRegistry);
+        this.waits = Timer.builder("kmdah_upstream_single_flight_wait").register(meterRegistry);
+    }
+
+    /**
+     * Claims the upstream fetch of an image missed by the cache, or waits for the worker that claimed it to fill the cache.
+     *
+     * @return the image from the cache once filled by another worker, otherwise whether this request holds the claim and must {@link #release} it once
+     *     saved
+     */
+    public FetchClaim claimOrAwait(ImageSpec imageSpec) {
+        if (!settings.enabled()) {
+            return FetchClaim.gaveUp(imageSpec);
+        }
+
+        String key = keyOf(imageSpec);
+        long startTime = System.nanoTime();
+        long deadline = startTime + TimeUnit.MILLISECONDS.toNanos(settings.maxWaitMillis());
+        String token = instanceId + ":" + UUID.randomUUID();
+        try {
+            while (true) {
+                if (Boolean.TRUE.equals(redisTemplate.opsForValue().setIfAbsent(key, token, Duration.ofMillis(settings.lockTtlMillis())))) {
+                    claimed.increment();
+                    return FetchClaim.claimed(imageSpec, token);
+                }
+
+                TimeUnit.MILLISECONDS.sleep(settings.pollIntervalMillis());
+                if (Boolean.FALSE.equals(redisTemplate.hasKey(key))) {
+                    Optional<ImageContent> filled = cachedImageService.findImage(imageSpec);
+                    if (filled.isPresent()) {
+                        deduplicated.increment();
+                        waits.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+                        return FetchClaim.filled(imageSpec, filled.get());
+                    }
+                    // the fetch failed or wasn't saved, so try claiming it again
+                    continue;
+                }
+
+                if (System.nanoTime() > deadline) {
+                    timedOut.increment();
+                    waits.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+                    LOGGER.warn("Gave up waiting for another worker to fetch {} after {}ms", imageSpec, settings.maxWaitMillis());
+                    return FetchClaim.gaveUp(imageSpec);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return FetchClaim.gaveUp(imageSpec);
+        } catch (DataAccessException e) {
+            failed.increment();
+            LOGGER.warn("Failed coordinating the upstream fetch of {}, fetching it regardless: {}", imageSpec, e.getMessage());
+            return FetchClaim.gaveUp(imageSpec);
+        }
+    }
+
+    /**
+     * Lets waiting workers look the image up from the cache, unless the lock already expired and was claimed by another request. Does nothing for
+     * claims that weren't won.
+     */
+    public void release(FetchClaim claim) {
+        if (!settings.enabled() || !claim.isClaimed()) {
+            return;
+        }
+
+        try {
+            redisTemplate.execute(RELEASE_SCRIPT, List.of(keyOf(claim.imageSpec())), claim.token());
+        } catch (DataAccessException e) {
+            LOGGER.warn("Failed releasing the upstream fetch of {}, leaving it to expire: {}", claim.imageSpec(), e.getMessage());
+        }
+    }
+
+    private String keyOf(ImageSpec imageSpec) {
+        return String.join(":", settings.keyPrefix(), imageSpec.mode().getPathFragment(), imageSpec.chapter(), imageSpec.file());
+    }
+
+    private static Counter fetches(String result, MeterRegistry meterRegistry) {
+        return Counter.builder("kmdah_upstream_single_flight").tag("result", result).register(meterRegistry);
+    }
+
+}
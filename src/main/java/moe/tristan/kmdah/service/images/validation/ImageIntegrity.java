@@ -0,0 +1,113 @@
+package moe.tristan.kmdah.service.images.validation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import moe.tristan.kmdah.util.IoBudget;
+
+/**
+ * Checks already cached content, as opposed to {@link ImageValidationService} which checks upstream responses before they are cached.
+ * <p>
+ * Content whose SHA-256 is known (data mode images and deduplicated objects) is hashed. Otherwise, the best that can be done is to check its length when
+ * recorded, and that it ends like a complete image of its format would, which catches truncated writes.
+ */
+public final class ImageIntegrity {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageIntegrity.class);
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int TRAILER_SIZE = 12;
+
+    private static final byte[] PNG_TRAILER = {0, 0, 0, 0, 'I', 'E', 'N', 'D', (byte) 0xAE, 0x42, 0x60, (byte) 0x82};
+    private static final byte[] JPEG_END_OF_IMAGE = {(byte) 0xFF, (byte) 0xD9};
+    private static final byte GIF_TRAILER = 0x3B;
+
+    private ImageIntegrity() {
+    }
+
+    /**
+     * Reads the content fully, spending its size from the budget as it goes.
+     *
+     * @throws InterruptedIOException if interrupted while waiting for budget, in which case nothing can be concluded
+     */
+    public static boolean isIntact(String name, Optional<String> sha256, OptionalLong expectedLength, InputStream content, IoBudget ioBudget) throws IOException {
+        MessageDigest digest = DigestUtils.getSha256Digest();
+        byte[] trailer = new byte[TRAILER_SIZE];
+        byte[] buffer = new byte[CHUNK_SIZE];
+
+        long length = 0;
+        int read;
+        while ((read = content.read(buffer)) != -1) {
+            if (!ioBudget.acquire(read)) {
+                throw new InterruptedIOException("Interrupted while scrubbing " + name);
+            }
+            if (sha256.isPresent()) {
+                digest.update(buffer, 0, read);
+            }
+            keepTrailer(trailer, buffer, read);
+            length += read;
+        }
+
+        if (expectedLength.isPresent() && expectedLength.getAsLong() != length) {
+            LOGGER.warn("Mismatched length for {} ; expected {} bytes but read {} bytes", name, expectedLength.getAsLong(), length);
+            return false;
+        }
+
+        if (sha256.isPresent()) {
+            String actual = Hex.encodeHexString(digest.digest());
+            if (!sha256.get().equals(actual)) {
+                LOGGER.warn("Mismatched shasum for {} ; expected [{}] but got [{}]", name, sha256.get(), actual);
+                return false;
+            }
+            return true;
+        }
+
+        byte[] tail = Arrays.copyOfRange(trailer, TRAILER_SIZE - (int) Math.min(length, TRAILER_SIZE), TRAILER_SIZE);
+        if (!endsLikeImage(name, tail)) {
+            LOGGER.warn("Content of {} doesn't end like a complete image of its format, assuming it was truncated", name);
+            return false;
+        }
+        return true;
+    }
+
+    private static void keepTrailer(byte[] trailer, byte[] buffer, int read) {
+        if (read >= TRAILER_SIZE) {
+            System.arraycopy(buffer, read - TRAILER_SIZE, trailer, 0, TRAILER_SIZE);
+        } else {
+            System.arraycopy(trailer, read, trailer, 0, TRAILER_SIZE - read);
+            System.arraycopy(buffer, 0, trailer, TRAILER_SIZE - read, read);
+        }
+    }
+
+    private static boolean endsLikeImage(String name, byte[] tail) {
+        String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+        return switch (extension) {
+            case "png" -> Arrays.equals(tail, PNG_TRAILER);
+            // some encoders pad after the end of image marker
+            case "jpg", "jpeg" -> indexOf(tail, JPEG_END_OF_IMAGE) >= 0;
+            case "gif" -> tail.length > 0 && tail[tail.length - 1] == GIF_TRAILER;
+            default -> true;
+        };
+    }
+
+    private static int indexOf(byte[] array, byte[] target) {
+        for (int i = 0; i <= array.length - target.length; i++) {
+            if (Arrays.equals(array, i, i + target.length, target, 0, target.length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
@@ -30,7 +30,7 @@ public class ImageValidationService {
                 imageMetrics.recordValidation(false);
                 return false;
             } else {
-                LOGGER.info("Byte count match: {}", bytes.length);
+                LOGGER.debug("Byte count match: {}", bytes.length);
             }
         }
 
@@ -42,7 +42,7 @@ public class ImageValidationService {
                 imageMetrics.recordValidation(false);
                 return false;
             } else {
-                LOGGER.info("Shasum match: {}", actualShasum);
+                LOGGER.debug("Shasum match: {}", actualShasum);
             }
         }
 
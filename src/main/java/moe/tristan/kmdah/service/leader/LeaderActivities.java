@@ -22,6 +22,7 @@ public class LeaderActivities {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(LeaderActivities.class);
     private static final ScheduledExecutorService EXECUTOR_SERVICE = Executors.newScheduledThreadPool(4);
+    private static final ScheduledExecutorService LATENCY_SENSITIVE_EXECUTOR_SERVICE = Executors.newSingleThreadScheduledExecutor();
 
     private final Set<LeaderActivity> leaderActivities;
     private final Map<String, ScheduledFuture<?>> jobs = new ConcurrentHashMap<>();
@@ -49,7 +50,8 @@ public class LeaderActivities {
 
     private void startJobs() {
         leaderActivities.forEach(activity -> {
-            ScheduledFuture<?> job = EXECUTOR_SERVICE.scheduleAtFixedRate(
+            ScheduledExecutorService executorService = activity.isLatencySensitive() ? LATENCY_SENSITIVE_EXECUTOR_SERVICE : EXECUTOR_SERVICE;
+            ScheduledFuture<?> job = executorService.scheduleAtFixedRate(
                 () -> {
                     try {
                         activity.run();
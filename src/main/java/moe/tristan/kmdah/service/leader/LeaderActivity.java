@@ -10,6 +10,13 @@ public interface LeaderActivity extends Runnable {
 
     Duration getPeriod();
 
+    /**
+     * Latency-sensitive activities run apart from the others, so that long maintenance jobs never delay them.
+     */
+    default boolean isLatencySensitive() {
+        return false;
+    }
+
     default void stop() {
     }
 
@@ -62,6 +62,11 @@ public class MangadexHeartbeatJob implements LeaderActivity {
         return Duration.ofSeconds(10);
     }
 
+    @Override
+    public boolean isLatencySensitive() {
+        return true;
+    }
+
     @Override
     public void run() {
         DataSize poolSpeed = DataSize.ofMegabytes(workersRegistry.getTotalBandwidthMbps() / 8);
@@ -0,0 +1,81 @@
+package moe.tristan.kmdah.service.leader.reclaim;
+
+import java.time.Duration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import moe.tristan.kmdah.service.images.cache.CachedImageService;
+import moe.tristan.kmdah.service.images.cache.ReclaimingRequest;
+import moe.tristan.kmdah.service.images.cache.ReclaimingResult;
+import moe.tristan.kmdah.service.leader.LeaderActivity;
+import moe.tristan.kmdah.util.IoBudget;
+
+/**
+ * Deletes the chapters that were only marked as deleted when requested, in batches, so that large deletions don't turn into I/O spikes.
+ */
+@Component
+public class ReclaimJob implements LeaderActivity {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReclaimJob.class);
+
+    private static final Duration PERIOD = Duration.ofSeconds(30);
+
+    private final ReclaimSettings reclaimSettings;
+    private final CachedImageService cachedImageService;
+    private final IoBudget ioBudget;
+
+    private final Counter reclaimedFiles;
+    private final Counter reclaimedBytes;
+
+    public ReclaimJob(ReclaimSettings reclaimSettings, CachedImageService cachedImageService, MeterRegistry meterRegistry) {
+        this.reclaimSettings = reclaimSettings;
+        this.cachedImageService = cachedImageService;
+        this.ioBudget = IoBudget.perSecond(reclaimSettings.filesPerSecond());
+
+        this.reclaimedFiles = meterRegistry.counter("kmdah_cache_reclaimed_files");
+        this.reclaimedBytes = meterRegistry.counter("kmdah_cache_reclaimed_bytes");
+    }
+
+    @Override
+    public String getName() {
+        return "Reclaim";
+    }
+
+    @Override
+    public Duration getInitialDelay() {
+        return Duration.ofSeconds(30);
+    }
+
+    @Override
+    public Duration getPeriod() {
+        return PERIOD;
+    }
+
+    @Override
+    public void run() {
+        long startTime = System.nanoTime();
+
+        long totalFiles = 0L;
+        long totalBytes = 0L;
+        ReclaimingResult result;
+        do {
+            // batches until the backlog is drained, but without holding a leader thread for much longer than a period
+            result = cachedImageService.reclaim(new ReclaimingRequest(reclaimSettings.batchSize(), ioBudget));
+            reclaimedFiles.increment(result.reclaimedFileCount());
+            reclaimedBytes.increment(result.freedSpace().toBytes());
+            totalFiles += result.reclaimedFileCount();
+            totalBytes += result.freedSpace().toBytes();
+        } while (result.reclaimedFileCount() >= reclaimSettings.batchSize() && System.nanoTime() - startTime < PERIOD.toNanos());
+
+        if (totalFiles > 0) {
+            Duration duration = Duration.ofNanos(System.nanoTime() - startTime);
+            LOGGER.info("Reclaimed {}MB by deleting {} files of deleted chapters ({}s {}ms)", totalBytes / (1024 * 1024), totalFiles, duration.toSeconds(), duration.toMillisPart());
+        }
+    }
+
+}
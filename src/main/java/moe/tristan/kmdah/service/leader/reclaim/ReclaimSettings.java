@@ -0,0 +1,14 @@
+package moe.tristan.kmdah.service.leader.reclaim;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+
+@ConstructorBinding
+@ConfigurationProperties("kmdah.cache.reclaim")
+public record ReclaimSettings(
+
+    int filesPerSecond,
+
+    int batchSize
+
+) {}
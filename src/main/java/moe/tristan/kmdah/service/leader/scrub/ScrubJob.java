@@ -0,0 +1,119 @@
+package moe.tristan.kmdah.service.leader.scrub;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import moe.tristan.kmdah.service.images.ImageService;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.CachedImageService;
+import moe.tristan.kmdah.service.images.cache.ScrubbingRequest;
+import moe.tristan.kmdah.service.images.cache.ScrubbingResult;
+import moe.tristan.kmdah.service.leader.LeaderActivity;
+import moe.tristan.kmdah.util.IoBudget;
+
+/**
+ * Re-verifies the cache a bit at a time, as images are otherwise only validated once, when fetched from upstream.
+ * <p>
+ * The cursor of the ongoing pass is kept in Redis, so that a new leader carries on where the previous one stopped. Corrupted images are evicted by the
+ * backend, and with repair enabled, fetched again from upstream right away rather than on their next request.
+ */
+@Component
+public class ScrubJob implements LeaderActivity {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ScrubJob.class);
+
+    private final ScrubSettings scrubSettings;
+    private final CachedImageService cachedImageService;
+    private final ImageService imageService;
+    private final StringRedisTemplate redisTemplate;
+    private final IoBudget ioBudget;
+
+    private final Counter scrubbedImages;
+    private final Counter scrubbedBytes;
+    private final Counter corruptedImages;
+    private final Counter repairedImages;
+    private final Counter completedPasses;
+    private final AtomicLong passProgress = new AtomicLong();
+
+    public ScrubJob(
+        ScrubSettings scrubSettings,
+        CachedImageService cachedImageService,
+        ImageService imageService,
+        StringRedisTemplate redisTemplate,
+        MeterRegistry meterRegistry
+    ) {
+        this.scrubSettings = scrubSettings;
+        this.cachedImageService = cachedImageService;
+        this.imageService = imageService;
+        this.redisTemplate = redisTemplate;
+        this.ioBudget = IoBudget.perSecond(DataSize.ofMegabytes(scrubSettings.mbPerSecond()).toBytes());
+
+        this.scrubbedImages = meterRegistry.counter("kmdah_cache_scrub_images");
+        this.scrubbedBytes = meterRegistry.counter("kmdah_cache_scrub_bytes");
+        this.corruptedImages = meterRegistry.counter("kmdah_cache_scrub_corrupted");
+        this.repairedImages = meterRegistry.counter("kmdah_cache_scrub_repaired");
+        this.completedPasses = meterRegistry.counter("kmdah_cache_scrub_passes");
+        Gauge.builder("kmdah_cache_scrub_pass_images", passProgress, AtomicLong::get).register(meterRegistry);
+    }
+
+    @Override
+    public String getName() {
+        return "Scrub";
+    }
+
+    @Override
+    public Duration getInitialDelay() {
+        return Duration.ofMinutes(2);
+    }
+
+    @Override
+    public Duration getPeriod() {
+        return Duration.ofMinutes(1);
+    }
+
+    @Override
+    public void run() {
+        if (!scrubSettings.enabled()) {
+            return;
+        }
+
+        String cursor = redisTemplate.opsForValue().get(scrubSettings.cursorKey());
+        ScrubbingResult result = cachedImageService.scrub(new ScrubbingRequest(cursor, scrubSettings.imagesPerRun(), ioBudget));
+
+        scrubbedImages.increment(result.scrubbedFileCount());
+        scrubbedBytes.increment(result.scrubbedSize().toBytes());
+        corruptedImages.increment(result.corruptedFileCount());
+        passProgress.addAndGet(result.scrubbedFileCount());
+
+        if (result.corruptedFileCount() > 0) {
+            LOGGER.warn("Scrubbing found {} corrupted images out of {} scrubbed", result.corruptedFileCount(), result.scrubbedFileCount());
+        }
+
+        if (scrubSettings.repair()) {
+            for (ImageSpec evicted : result.evicted()) {
+                imageService.preload(evicted);
+                repairedImages.increment();
+            }
+        }
+
+        if (result.nextCursor() != null) {
+            redisTemplate.opsForValue().set(scrubSettings.cursorKey(), result.nextCursor());
+        } else {
+            redisTemplate.delete(scrubSettings.cursorKey());
+            LOGGER.info("Scrubbing pass done - verified {} images", passProgress.get());
+            completedPasses.increment();
+            passProgress.set(0L);
+        }
+    }
+
+}
@@ -0,0 +1,20 @@
+package moe.tristan.kmdah.service.leader.scrub;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+
+@ConstructorBinding
+@ConfigurationProperties("kmdah.cache.scrub")
+public record ScrubSettings(
+
+    boolean enabled,
+
+    int mbPerSecond,
+
+    int imagesPerRun,
+
+    boolean repair,
+
+    String cursorKey
+
+) {}
@@ -4,10 +4,16 @@ import java.util.Objects;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+/**
+ * @param address the {@code host:port} at which other workers reach this one, which workers of earlier versions don't advertise
+ */
 public record WorkerInfo(
 
     @JsonProperty("id")
-    String id
+    String id,
+
+    @JsonProperty("address")
+    String address
 
 ) {
 
@@ -7,6 +7,8 @@ import org.springframework.boot.context.properties.ConstructorBinding;
 @ConfigurationProperties("kmdah.worker")
 public record WorkerSettings(
 
-    int port
+    int port,
+
+    String advertisedHost
 
 ) {}
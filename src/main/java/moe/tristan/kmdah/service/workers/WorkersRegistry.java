@@ -1,8 +1,10 @@
 package moe.tristan.kmdah.service.workers;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
@@ -45,9 +47,24 @@ public class WorkersRegistry implements HealthIndicator {
             .count();
     }
 
+    /**
+     * @return the workers, including this one, that were heard from within the given duration
+     */
+    public Set<WorkerInfo> getLiveWorkers(Duration maxSilence) {
+        Instant threshold = Instant.now().minus(maxSilence);
+        return knownWorkers
+            .entrySet()
+            .stream()
+            .filter(worker -> worker.getValue().isAfter(threshold))
+            .map(Map.Entry::getKey)
+            .collect(Collectors.toSet());
+    }
+
     @EventListener(WorkerPingEvent.class)
     public void registerWorker(WorkerPingEvent pingEvent) {
-        Instant previous = knownWorkers.put(pingEvent.worker(), Instant.now());
+        // replaces the key as well, as a worker restarted under the same id may have changed address
+        Instant previous = knownWorkers.remove(pingEvent.worker());
+        knownWorkers.put(pingEvent.worker(), Instant.now());
         if (previous == null) {
             LOGGER.info("Registered worker [{}]", pingEvent.worker().id());
             logWorkersState();
@@ -14,11 +14,21 @@ public class ContentCallbackInputStream extends InputStream {
 
     private final ByteArrayOutputStream contentBuffer = new ByteArrayOutputStream();
     private final Consumer<byte[]> contentCallback;
+    private final Runnable incompleteCallback;
     private boolean callbackCalled = false;
 
     public ContentCallbackInputStream(InputStream delegate, Consumer<byte[]> contentCallback) {
+        this(delegate, contentCallback, () -> {
+        });
+    }
+
+    /**
+     * @param incompleteCallback called on close if the content was not fully read, for example as the client went away
+     */
+    public ContentCallbackInputStream(InputStream delegate, Consumer<byte[]> contentCallback, Runnable incompleteCallback) {
         this.delegate = delegate;
         this.contentCallback = contentCallback;
+        this.incompleteCallback = incompleteCallback;
     }
 
     @Override
@@ -43,7 +53,14 @@ public class ContentCallbackInputStream extends InputStream {
 
     @Override
     public void close() throws IOException {
-        delegate.close();
+        try {
+            delegate.close();
+        } finally {
+            if (!callbackCalled) {
+                callbackCalled = true;
+                incompleteCallback.run();
+            }
+        }
     }
 
 }
@@ -0,0 +1,57 @@
+package moe.tristan.kmdah.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces background I/O (bytes, files, operations...) to a fixed rate, so that maintenance work doesn't compete too hard with serving.
+ * <p>
+ * A non-positive rate means an unlimited budget.
+ */
+public final class IoBudget {
+
+    private final double unitsPerSecond;
+
+    private long nextFreeNanos = System.nanoTime();
+
+    private IoBudget(double unitsPerSecond) {
+        this.unitsPerSecond = unitsPerSecond;
+    }
+
+    public static IoBudget perSecond(double unitsPerSecond) {
+        return new IoBudget(unitsPerSecond);
+    }
+
+    public static IoBudget unlimited() {
+        return new IoBudget(0);
+    }
+
+    /**
+     * Blocks until {@code units} can be spent without exceeding the budget.
+     *
+     * @return false if interrupted while waiting, in which case the interrupt flag is restored
+     */
+    public boolean acquire(long units) {
+        if (unitsPerSecond <= 0) {
+            return !Thread.currentThread().isInterrupted();
+        }
+
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long startNanos = Math.max(now, nextFreeNanos);
+            nextFreeNanos = startNanos + (long) (units * TimeUnit.SECONDS.toNanos(1) / unitsPerSecond);
+            waitNanos = startNanos - now;
+        }
+
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !Thread.currentThread().isInterrupted();
+    }
+
+}
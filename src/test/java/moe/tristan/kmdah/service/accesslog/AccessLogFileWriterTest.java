@@ -0,0 +1,33 @@
+package moe.tristan.kmdah.service.accesslog;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class AccessLogFileWriterTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void rotatesOnEncodedSize() throws Exception {
+        Path file = tempDir.resolve("access.log");
+        // 10 characters, but 30 bytes once encoded
+        String line = "ページページページペ";
+
+        try (AccessLogFileWriter writer = new AccessLogFileWriter(file, 60, 2)) {
+            writer.write(List.of(line));
+            assertThat(Files.exists(file.resolveSibling("access.log.1"))).isFalse();
+
+            writer.write(List.of(line));
+            assertThat(Files.size(file.resolveSibling("access.log.1"))).isEqualTo(62L);
+            assertThat(Files.size(file)).isZero();
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+package moe.tristan.kmdah.service.accesslog;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class AccessLogRingBufferTest {
+
+    @Test
+    void roundsCapacityToPowerOfTwo() {
+        assertThat(new AccessLogRingBuffer<>(1000).capacity()).isEqualTo(1024);
+        assertThat(new AccessLogRingBuffer<>(1024).capacity()).isEqualTo(1024);
+    }
+
+    @Test
+    void rejectsWhenFullAndAcceptsAfterDrain() {
+        AccessLogRingBuffer<Integer> ringBuffer = new AccessLogRingBuffer<>(4);
+
+        for (int i = 0; i < 4; i++) {
+            assertThat(ringBuffer.offer(i)).isTrue();
+        }
+        assertThat(ringBuffer.offer(4)).isFalse();
+        assertThat(ringBuffer.size()).isEqualTo(4);
+
+        List<Integer> drained = new ArrayList<>();
+        assertThat(ringBuffer.drain(drained::add, 2)).isEqualTo(2);
+        assertThat(drained).containsExactly(0, 1);
+
+        assertThat(ringBuffer.offer(5)).isTrue();
+        assertThat(ringBuffer.offer(6)).isTrue();
+        assertThat(ringBuffer.offer(7)).isFalse();
+
+        ringBuffer.drain(drained::add, Integer.MAX_VALUE);
+        assertThat(drained).containsExactly(0, 1, 2, 3, 5, 6);
+        assertThat(ringBuffer.size()).isZero();
+    }
+
+    @Test
+    void concurrentProducersLoseNothingButDrops() throws InterruptedException {
+        int producers = 8;
+        int perProducer = 50_000;
+
+        AccessLogRingBuffer<Integer> ringBuffer = new AccessLogRingBuffer<>(1024);
+        AtomicInteger accepted = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(producers);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(producers);
+        for (int p = 0; p < producers; p++) {
+            executorService.submit(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    if (ringBuffer.offer(i)) {
+                        accepted.incrementAndGet();
+                    }
+                }
+                done.countDown();
+            });
+        }
+
+        AtomicInteger consumed = new AtomicInteger();
+        while (done.getCount() > 0) {
+            ringBuffer.drain(element -> consumed.incrementAndGet(), 256);
+        }
+        ringBuffer.drain(element -> consumed.incrementAndGet(), Integer.MAX_VALUE);
+
+        executorService.shutdown();
+        assertThat(executorService.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(consumed.get()).isEqualTo(accepted.get());
+    }
+
+}
@@ -5,15 +5,23 @@ import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
 
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
 import java.time.Instant;
 import java.util.Optional;
 import java.util.OptionalLong;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -23,13 +31,17 @@ import org.springframework.boot.context.properties.EnableConfigurationProperties
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
 import org.springframework.http.MediaType;
 
 import moe.tristan.kmdah.mangadex.image.ImageMode;
 import moe.tristan.kmdah.mangadex.image.MangadexImageService;
+import moe.tristan.kmdah.service.accesslog.AccessLog;
 import moe.tristan.kmdah.service.images.cache.CacheMode;
 import moe.tristan.kmdah.service.images.cache.CacheSettings;
 import moe.tristan.kmdah.service.images.cache.CachedImageService;
+import moe.tristan.kmdah.service.images.singleflight.FetchClaim;
+import moe.tristan.kmdah.service.images.singleflight.UpstreamFetchCoordinator;
 import moe.tristan.kmdah.service.images.validation.ImageValidationService;
 import moe.tristan.kmdah.service.metrics.ImageMetrics;
 
@@ -38,6 +50,7 @@ import moe.tristan.kmdah.service.metrics.ImageMetrics;
 class ImageServiceTest {
 
     private static final ImageSpec SPEC = new ImageSpec(ImageMode.DATA, "chapter", "file");
+    private static final FetchClaim CLAIM = FetchClaim.claimed(SPEC, "token");
 
     @MockBean
     private CachedImageService cachedImageService;
@@ -45,18 +58,25 @@ class ImageServiceTest {
     @MockBean
     private MangadexImageService mangadexImageService;
 
+    @MockBean
+    private UpstreamFetchCoordinator upstreamFetchCoordinator;
+
     @MockBean
     private ImageMetrics imageMetrics;
 
     @MockBean
     private ImageValidationService imageValidationService;
 
+    @MockBean
+    private AccessLog accessLog;
+
     @Autowired
     private ImageService imageService;
 
     @BeforeEach
     void setUp() {
         when(imageValidationService.validate(any(), any(), any())).thenReturn(true);
+        when(upstreamFetchCoordinator.claimOrAwait(eq(SPEC))).thenReturn(CLAIM);
     }
 
     @Test
@@ -88,6 +108,81 @@ class ImageServiceTest {
         verifyCacheModeCounted(CacheMode.HIT);
     }
 
+    @Test
+    void onMissFetchedByAnotherWorker() {
+        ImageContent filledContent = sampleContent(CacheMode.HIT);
+
+        when(cachedImageService.findImage(eq(SPEC))).thenReturn(Optional.empty());
+        when(cachedImageService.canAcceptWrites()).thenReturn(true);
+        when(upstreamFetchCoordinator.claimOrAwait(eq(SPEC))).thenReturn(FetchClaim.filled(SPEC, filledContent));
+
+        imageService.findOrFetch(SPEC);
+
+        verifyCachedCall();
+        verifyUpstreamCall(0);
+
+        verifyCacheModeCounted(CacheMode.HIT);
+    }
+
+    @Test
+    void onFailUpstreamReleasesFetch() {
+        when(cachedImageService.findImage(eq(SPEC))).thenReturn(Optional.empty());
+        when(cachedImageService.canAcceptWrites()).thenReturn(true);
+        when(mangadexImageService.download(eq(SPEC), any())).thenThrow(new IllegalStateException("Upstream error!"));
+
+        assertThatThrownBy(() -> imageService.findOrFetch(SPEC)).isInstanceOf(IllegalStateException.class);
+
+        verify(upstreamFetchCoordinator).release(eq(CLAIM));
+    }
+
+    @Test
+    void onGaveUpWaitingLeavesTheClaimOfOthers() throws IOException {
+        when(cachedImageService.findImage(eq(SPEC))).thenReturn(Optional.empty());
+        when(cachedImageService.canAcceptWrites()).thenReturn(true);
+        when(upstreamFetchCoordinator.claimOrAwait(eq(SPEC))).thenReturn(FetchClaim.gaveUp(SPEC));
+        when(mangadexImageService.download(eq(SPEC), any()))
+            .thenThrow(new IllegalStateException("Upstream error!"))
+            .thenReturn(sampleContent(CacheMode.MISS));
+
+        assertThatThrownBy(() -> imageService.findOrFetch(SPEC)).isInstanceOf(IllegalStateException.class);
+        imageService.findOrFetch(SPEC).resource().getInputStream().close();
+
+        verify(upstreamFetchCoordinator, never()).release(any());
+    }
+
+    @Test
+    void onSavedToCacheReleasesFetch() throws IOException {
+        CompletableFuture<Void> saved = new CompletableFuture<>();
+        when(cachedImageService.findImage(eq(SPEC))).thenReturn(Optional.empty());
+        when(cachedImageService.canAcceptWrites()).thenReturn(true);
+        when(cachedImageService.saveImageAsync(eq(SPEC), any(), any())).thenReturn(saved);
+        when(mangadexImageService.download(eq(SPEC), any())).thenReturn(sampleContent(CacheMode.MISS));
+
+        ImageContent content = imageService.findOrFetch(SPEC);
+        try (InputStream inputStream = content.resource().getInputStream()) {
+            inputStream.readAllBytes();
+        }
+
+        verify(cachedImageService, timeout(5000)).saveImageAsync(eq(SPEC), any(), any());
+        verify(upstreamFetchCoordinator, never()).release(any());
+
+        saved.complete(null);
+        verify(upstreamFetchCoordinator, timeout(5000)).release(eq(CLAIM));
+    }
+
+    @Test
+    void onClientAbortReleasesFetch() throws IOException {
+        when(cachedImageService.findImage(eq(SPEC))).thenReturn(Optional.empty());
+        when(cachedImageService.canAcceptWrites()).thenReturn(true);
+        when(mangadexImageService.download(eq(SPEC), any())).thenReturn(sampleContent(CacheMode.MISS));
+
+        ImageContent content = imageService.findOrFetch(SPEC);
+        content.resource().getInputStream().close();
+
+        verify(upstreamFetchCoordinator).release(eq(CLAIM));
+        verify(cachedImageService, never()).saveImageAsync(any(), any(), any());
+    }
+
     @Test
     void onFailCached() {
         ImageContent cacheMissContent = sampleContent(CacheMode.MISS);
@@ -103,6 +198,23 @@ class ImageServiceTest {
         verifyCacheModeCounted(CacheMode.MISS);
     }
 
+    @Test
+    void onAbortedLookupDiscardsLateResult() throws IOException {
+        Resource lateResource = mock(Resource.class, withSettings().extraInterfaces(Closeable.class));
+        ImageContent lateContent = new ImageContent(lateResource, MediaType.IMAGE_PNG, OptionalLong.empty(), Instant.now(), CacheMode.HIT);
+
+        when(cachedImageService.findImage(eq(SPEC))).thenAnswer(invocation -> {
+            Thread.sleep(1000);
+            return Optional.of(lateContent);
+        });
+        when(mangadexImageService.download(eq(SPEC), any())).thenReturn(sampleContent(CacheMode.MISS));
+
+        imageService.findOrFetch(SPEC);
+
+        verifyUpstreamCall(1);
+        verify((Closeable) lateResource, timeout(5000)).close();
+    }
+
     @Test
     void onFailUpstream() {
         when(cachedImageService.findImage(eq(SPEC))).thenReturn(Optional.empty());
@@ -0,0 +1,50 @@
+package moe.tristan.kmdah.service.images.cache.delegating;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+class BloomFilterTest {
+
+    @Test
+    void holdsAddedKeysWithTheExpectedFalsePositiveRate() {
+        BloomFilter filter = BloomFilter.create(10_000, 0.01);
+        IntStream.range(0, 10_000).forEach(i -> filter.add("data/chapter/" + i));
+
+        assertThat(IntStream.range(0, 10_000)).allMatch(i -> filter.mightContain("data/chapter/" + i));
+        long falsePositives = IntStream.range(0, 100_000).filter(i -> filter.mightContain("data-saver/other/" + i)).count();
+        assertThat(falsePositives).isLessThan(2_000L);
+    }
+
+    @Test
+    void reportsWhetherAddingChangedIt() {
+        BloomFilter filter = BloomFilter.create(100, 0.01);
+
+        assertThat(filter.add("key")).isTrue();
+        assertThat(filter.add("key")).isFalse();
+    }
+
+    @Test
+    void survivesSerializationAndMerging() {
+        BloomFilter first = BloomFilter.create(100, 0.01);
+        BloomFilter second = BloomFilter.create(100, 0.01);
+        first.add("first");
+        second.add("second");
+
+        BloomFilter merged = BloomFilter.fromByteArray(first.union(second).toByteArray(), first.hashFunctions());
+        assertThat(merged.mightContain("first")).isTrue();
+        assertThat(merged.mightContain("second")).isTrue();
+        assertThat(first.mightContain("second")).isFalse();
+    }
+
+    @Test
+    void rejectsMalformedFilters() {
+        assertThatThrownBy(() -> BloomFilter.fromByteArray(new byte[7], 3)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> BloomFilter.fromByteArray(new byte[8], 0)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> BloomFilter.create(100, 1.0)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+}
@@ -0,0 +1,61 @@
+package moe.tristan.kmdah.service.images.cache.delegating;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import moe.tristan.kmdah.service.workers.WorkerInfo;
+
+class CacheDigestsTest {
+
+    private final CacheDigests digests = new CacheDigests(new DelegatingSettings.Digest(true, 1000, 0.001, 60L, 60L));
+
+    @Test
+    void onlyPublishesChanges() {
+        assertThat(digests.takeChanges()).isEmpty();
+
+        digests.record("key");
+        assertThat(digests.takeChanges()).hasValueSatisfying(digest -> assertThat(digest.mightContain("key")).isTrue());
+
+        digests.record("key");
+        assertThat(digests.takeChanges()).isEmpty();
+    }
+
+    @Test
+    void advertisesImagesForTwoGenerations() {
+        digests.record("old");
+        digests.rotate();
+        digests.record("new");
+        assertThat(digests.takeChanges()).hasValueSatisfying(digest -> {
+            assertThat(digest.mightContain("old")).isTrue();
+            assertThat(digest.mightContain("new")).isTrue();
+        });
+
+        digests.rotate();
+        assertThat(digests.takeChanges()).hasValueSatisfying(digest -> {
+            assertThat(digest.mightContain("old")).isFalse();
+            assertThat(digest.mightContain("new")).isTrue();
+        });
+    }
+
+    @Test
+    void findsLikelyHoldersAmongCurrentMembers() {
+        CacheDigests first = new CacheDigests(new DelegatingSettings.Digest(true, 1000, 0.001, 60L, 60L));
+        CacheDigests second = new CacheDigests(new DelegatingSettings.Digest(true, 1000, 0.001, 60L, 60L));
+        first.record("shared");
+        first.record("only-first");
+        second.record("shared");
+        digests.updatePeer("first", first.takeChanges().orElseThrow());
+        digests.updatePeer("second", second.takeChanges().orElseThrow());
+
+        assertThat(digests.likelyHolders("shared")).containsExactly("first", "second");
+        assertThat(digests.likelyHolders("only-first")).containsExactly("first");
+        assertThat(digests.likelyHolders("unknown")).isEmpty();
+
+        digests.retainPeers(List.of(new WorkerInfo("second", "10.0.0.2:8080")));
+        assertThat(digests.likelyHolders("shared")).containsExactly("second");
+    }
+
+}
@@ -0,0 +1,77 @@
+package moe.tristan.kmdah.service.images.cache.delegating;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+import moe.tristan.kmdah.service.workers.WorkerInfo;
+
+class ConsistentHashRingTest {
+
+    private static final int KEYS = 20_000;
+
+    @Test
+    void assignsTheSameOwnersRegardlessOfMembersOrder() {
+        List<WorkerInfo> workers = workers(4);
+        ConsistentHashRing ring = new ConsistentHashRing(workers, 128);
+        ConsistentHashRing reversed = new ConsistentHashRing(List.of(workers.get(3), workers.get(2), workers.get(1), workers.get(0)), 128);
+
+        IntStream.range(0, 1000).mapToObj(i -> "data/chapter/" + i).forEach(key -> assertThat(reversed.ownerOf(key)).isEqualTo(ring.ownerOf(key)));
+    }
+
+    @Test
+    void spreadsKeysEvenly() {
+        ConsistentHashRing ring = new ConsistentHashRing(workers(4), 128);
+
+        Map<String, Long> shares = IntStream
+            .range(0, KEYS)
+            .mapToObj(i -> ring.ownerOf("data/chapter/" + i).orElseThrow().id())
+            .collect(Collectors.groupingBy(id -> id, Collectors.counting()));
+
+        assertThat(shares).hasSize(4);
+        assertThat(shares.values()).allSatisfy(share -> assertThat(share).isBetween(KEYS / 4 * 7 / 10L, KEYS / 4 * 13 / 10L));
+    }
+
+    @Test
+    void onlyMovesKeysToAJoiningWorker() {
+        List<WorkerInfo> workers = workers(5);
+        ConsistentHashRing before = new ConsistentHashRing(workers.subList(0, 4), 128);
+        ConsistentHashRing after = new ConsistentHashRing(workers, 128);
+
+        Map<String, WorkerInfo> moved = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            String key = "data/chapter/" + i;
+            WorkerInfo owner = after.ownerOf(key).orElseThrow();
+            if (!owner.equals(before.ownerOf(key).orElseThrow())) {
+                moved.put(key, owner);
+            }
+        }
+
+        assertThat(moved.values()).containsOnly(workers.get(4));
+        assertThat(moved.size()).isBetween(KEYS / 5 * 7 / 10, KEYS / 5 * 13 / 10);
+    }
+
+    @Test
+    void spansOnlyTheSameWorkersAtTheSameAddresses() {
+        ConsistentHashRing ring = new ConsistentHashRing(workers(2), 16);
+
+        assertThat(new ConsistentHashRing(List.of(), 16).ownerOf("key")).isEmpty();
+        assertThat(ring.spans(workers(2))).isTrue();
+        assertThat(ring.spans(workers(3))).isFalse();
+        assertThat(ring.spans(List.of(workers(2).get(0), new WorkerInfo("worker-1", "10.0.0.42:8080")))).isFalse();
+    }
+
+    private static List<WorkerInfo> workers(int count) {
+        return IntStream
+            .range(0, count)
+            .mapToObj(i -> new WorkerInfo("worker-" + i, "10.0.0." + i + ":8080"))
+            .collect(Collectors.toList());
+    }
+
+}
@@ -0,0 +1,109 @@
+package moe.tristan.kmdah.service.images.cache.delegating;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageContent;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.CacheBackend;
+import moe.tristan.kmdah.service.workers.WorkerInfo;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+class PeerClientTest {
+
+    private static final String SECRET = "secret";
+    private static final ImageSpec SPEC = new ImageSpec(ImageMode.DATA_SAVER, "chapter", "1.png");
+
+    private final MockWebServer owner = new MockWebServer();
+    private final PeerClient peerClient = new PeerClient(SECRET, new DelegatingSettings(
+        CacheBackend.PACKED,
+        16,
+        500L,
+        1,
+        15L,
+        64,
+        new DelegatingSettings.Digest(false, 1000, 0.01, 60L, 60L)
+    ));
+
+    private WorkerInfo ownerInfo;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        owner.start();
+        ownerInfo = new WorkerInfo("owner", owner.getHostName() + ":" + owner.getPort());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        owner.shutdown();
+    }
+
+    @Test
+    void fetchesSignedFromTheOwner() throws Exception {
+        owner.enqueue(new MockResponse().setHeader("Content-Type", "image/png").setBody(new Buffer().write(new byte[]{1, 2, 3})));
+
+        ImageContent found = peerClient.fetch(ownerInfo, SPEC).orElseThrow();
+        assertThat(found.contentType()).isEqualTo(MediaType.IMAGE_PNG);
+        assertThat(found.resource().getInputStream()).hasBinaryContent(new byte[]{1, 2, 3});
+
+        RecordedRequest request = owner.takeRequest();
+        assertThat(request.getPath()).isEqualTo("/__peer/images/data-saver/chapter/1.png");
+        assertThat(request.getHeader(PeerClient.SIGNATURE_HEADER)).isEqualTo(PeerClient.signature(SECRET, "GET", request.getPath(), ""));
+    }
+
+    @Test
+    void releasesTheConnectionOfSmallImagesRightAway() throws Exception {
+        byte[] small = new byte[512];
+        byte[] large = new byte[4096];
+        owner.enqueue(new MockResponse().setHeader("Content-Type", "image/png").setBody(new Buffer().write(small)));
+        owner.enqueue(new MockResponse().setHeader("Content-Type", "image/png").setBody(new Buffer().write(large)));
+
+        ImageContent buffered = peerClient.fetch(ownerInfo, SPEC).orElseThrow();
+        ImageContent streamed = peerClient.fetch(ownerInfo, SPEC).orElseThrow();
+
+        // the second lookup reused the connection, although the first image wasn't read yet
+        assertThat(owner.takeRequest().getSequenceNumber()).isZero();
+        assertThat(owner.takeRequest().getSequenceNumber()).isEqualTo(1);
+
+        assertThat(buffered.resource().getInputStream()).hasBinaryContent(small);
+        assertThat(streamed.resource().getInputStream()).hasBinaryContent(large);
+    }
+
+    @Test
+    void treatsMissingImagesAsMissesAndFailuresAsErrors() throws Exception {
+        owner.enqueue(new MockResponse().setResponseCode(404));
+        owner.enqueue(new MockResponse().setResponseCode(500));
+
+        assertThat(peerClient.fetch(ownerInfo, SPEC)).isEmpty();
+        assertThatThrownBy(() -> peerClient.fetch(ownerInfo, SPEC)).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void handsFillsOverSignedWithTheirContent() throws Exception {
+        owner.enqueue(new MockResponse().setResponseCode(204));
+        byte[] content = {4, 5, 6};
+
+        assertThat(peerClient.store(ownerInfo, SPEC, MediaType.IMAGE_PNG, content)).isTrue();
+
+        RecordedRequest request = owner.takeRequest(5, TimeUnit.SECONDS);
+        assertThat(request.getMethod()).isEqualTo("PUT");
+        assertThat(request.getBody().readByteArray()).isEqualTo(content);
+        assertThat(request.getHeader(PeerClient.SIGNATURE_HEADER))
+            .isEqualTo(PeerClient.signature(SECRET, "PUT", request.getPath(), DigestUtils.sha256Hex(content)));
+    }
+
+}
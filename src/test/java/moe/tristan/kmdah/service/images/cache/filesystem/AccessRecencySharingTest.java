@@ -0,0 +1,60 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+
+import moe.tristan.kmdah.service.gossip.messages.CacheAccessEvent;
+import moe.tristan.kmdah.service.gossip.messages.pub.GossipPublisher;
+import moe.tristan.kmdah.service.workers.WorkerInfo;
+
+class AccessRecencySharingTest {
+
+    private final GossipPublisher gossipPublisher = mock(GossipPublisher.class);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void broadcastsTouchedBucketsOncePerMinute() {
+        AccessRecencyFile recency = AccessRecencyFile.open(dir.resolve("recency"), 1 << 10);
+        try (AccessRecencySharing sharing = new AccessRecencySharing(recency, gossipPublisher, "local")) {
+            recency.touch(1L << 32);
+            recency.touch(1L << 32);
+            recency.touch(2L << 32);
+            sharing.broadcast();
+
+            ArgumentCaptor<int[]> hashes = ArgumentCaptor.forClass(int[].class);
+            verify(gossipPublisher).broadcastCacheAccesses(anyInt(), hashes.capture());
+            assertThat(hashes.getValue()).containsExactly(1, 2);
+        }
+    }
+
+    @Test
+    void mergesAccessesOfOtherWorkersOnly() {
+        AccessRecencyFile recency = AccessRecencyFile.open(dir.resolve("recency"), 1 << 10);
+        try (AccessRecencySharing sharing = new AccessRecencySharing(recency, gossipPublisher, "local")) {
+            sharing.onAccesses(new CacheAccessEvent(new WorkerInfo("local", null), 100, new int[]{1}));
+            assertThat(recency.lastAccessMinutes(1L << 32)).isZero();
+
+            // buckets map the same whatever the amount of them, as only the low bits of hashes are used
+            sharing.onAccesses(new CacheAccessEvent(new WorkerInfo("other", null), 100, new int[]{1, (1 << 20) | 2}));
+            sharing.onAccesses(new CacheAccessEvent(new WorkerInfo("other", null), 50, new int[]{1}));
+            assertThat(recency.lastAccessMinutes(1L << 32)).isEqualTo(100);
+            assertThat(recency.lastAccessMinutes(2L << 32)).isEqualTo(100);
+
+            sharing.broadcast();
+            verify(gossipPublisher, never()).broadcastCacheAccesses(anyInt(), any());
+        }
+    }
+
+}
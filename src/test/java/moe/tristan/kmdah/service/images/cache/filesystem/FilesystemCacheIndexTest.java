@@ -0,0 +1,80 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageSpec;
+
+class FilesystemCacheIndexTest {
+
+    @Test
+    void putGetRemove() {
+        FilesystemCacheIndex index = FilesystemCacheIndex.create(0);
+        long key = FilesystemCacheIndex.key(new ImageSpec(ImageMode.DATA, "chapter", "1.png"));
+
+        assertThat(index.get(key)).isEmpty();
+
+        index.put(key, 1234L, 1_600_000_000_000L, 1, FilesystemMediaType.PNG);
+        FilesystemCacheIndex.Entry entry = index.get(key).orElseThrow();
+        assertThat(entry.size()).isEqualTo(1234L);
+        assertThat(entry.lastModifiedMillis()).isEqualTo(1_600_000_000_000L);
+        assertThat(entry.location()).isEqualTo(1);
+        assertThat(entry.mediaType()).isEqualTo(FilesystemMediaType.PNG);
+        assertThat(index.totalBytes()).isEqualTo(1234L);
+
+        index.put(key, 100L, 1_600_000_000_000L, 0, FilesystemMediaType.PNG);
+        assertThat(index.size()).isEqualTo(1);
+        assertThat(index.totalBytes()).isEqualTo(100L);
+
+        index.remove(key);
+        assertThat(index.get(key)).isEmpty();
+        assertThat(index.size()).isZero();
+        assertThat(index.totalBytes()).isZero();
+    }
+
+    @Test
+    void keysDependOnWholeSpec() {
+        long key = FilesystemCacheIndex.key(new ImageSpec(ImageMode.DATA, "chapter", "1.png"));
+
+        assertThat(FilesystemCacheIndex.key(new ImageSpec(ImageMode.DATA_SAVER, "chapter", "1.png"))).isNotEqualTo(key);
+        assertThat(FilesystemCacheIndex.key(new ImageSpec(ImageMode.DATA, "chapte", "r1.png"))).isNotEqualTo(key);
+        assertThat(FilesystemCacheIndex.key(new ImageSpec(ImageMode.DATA, "chapter", "2.png"))).isNotEqualTo(key);
+    }
+
+    @Test
+    void growsAndSurvivesRandomRemovals() {
+        FilesystemCacheIndex index = FilesystemCacheIndex.create(0);
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 300_000; i++) {
+            long key = random.nextInt(200_000) + 1L;
+            if (random.nextInt(4) == 0) {
+                index.remove(key);
+                expected.remove(key);
+            } else {
+                long size = random.nextInt(1_000_000);
+                index.put(key, size, 0L, 0, FilesystemMediaType.JPEG);
+                expected.put(key, size);
+            }
+        }
+
+        assertThat(index.size()).isEqualTo(expected.size());
+        assertThat(index.totalBytes()).isEqualTo(expected.values().stream().mapToLong(Long::longValue).sum());
+        for (long key = 1; key <= 200_000; key++) {
+            Long size = expected.get(key);
+            if (size == null) {
+                assertThat(index.get(key)).isEmpty();
+            } else {
+                assertThat(index.get(key)).hasValueSatisfying(entry -> assertThat(entry.size()).isEqualTo(size));
+            }
+        }
+    }
+
+}
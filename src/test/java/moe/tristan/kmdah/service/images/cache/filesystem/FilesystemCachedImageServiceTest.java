@@ -0,0 +1,172 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.MediaType;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageContent;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.CacheMode;
+import moe.tristan.kmdah.service.images.cache.ReclaimingRequest;
+import moe.tristan.kmdah.service.images.cache.ReclaimingResult;
+import moe.tristan.kmdah.util.IoBudget;
+
+class FilesystemCachedImageServiceTest {
+
+    private static final ImageSpec SPEC = new ImageSpec(ImageMode.DATA, "0123456789abcdef0123456789abcdef", "1-abc.png");
+
+    @TempDir
+    Path rootDir;
+
+    @Test
+    void saveFindAndDelete() throws Exception {
+        FilesystemSettings settings = settings(false, false);
+        FilesystemCachedImageService service = service(settings, FilesystemLayout.from(settings.layout()), FilesystemCacheIndex.disabled());
+
+        assertThat(service.findImage(SPEC)).isEmpty();
+
+        service.saveImage(SPEC, MediaType.IMAGE_PNG, new ByteArrayInputStream("content".getBytes()));
+        awaitUntil(() -> service.findImage(SPEC).isPresent());
+
+        ImageContent content = service.findImage(SPEC).orElseThrow();
+        assertThat(content.cacheMode()).isEqualTo(CacheMode.HIT);
+        assertThat(content.contentType()).isEqualTo(MediaType.IMAGE_PNG);
+        assertThat(content.contentLength()).hasValue(7L);
+        assertThat(content.resource().getInputStream()).hasContent("content");
+
+        service.deleteChapter(new ImageSpec(SPEC.mode(), SPEC.chapter(), "*"));
+        assertThat(service.findImage(SPEC)).isEmpty();
+
+        // the chapter is only moved to the trash, then deleted in the background
+        Path trashDir = rootDir.resolve(FilesystemTrash.TRASH_DIR);
+        try (Stream<Path> trashed = Files.walk(trashDir)) {
+            assertThat(trashed.filter(Files::isRegularFile)).hasSize(1);
+        }
+
+        ReclaimingResult reclaimed = service.reclaim(new ReclaimingRequest(10, IoBudget.unlimited()));
+        assertThat(reclaimed.reclaimedFileCount()).isEqualTo(1L);
+        assertThat(reclaimed.freedSpace().toBytes()).isEqualTo(7L);
+        try (Stream<Path> trashed = Files.list(trashDir)) {
+            assertThat(trashed).isEmpty();
+        }
+    }
+
+    @Test
+    void indexResolvesHitsAndMissesWithoutFilesystem() throws Exception {
+        FilesystemSettings settings = settings(true, true);
+        FilesystemLayout layout = FilesystemLayout.from(settings.layout());
+
+        Path file = layout.resolve(rootDir, SPEC);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, "content");
+
+        FilesystemCacheIndex index = FilesystemCacheIndex.create(0);
+        FilesystemCachedImageService service = service(settings, layout, index);
+        awaitUntil(index::isReady);
+
+        assertThat(index.size()).isEqualTo(1L);
+        assertThat(index.totalBytes()).isEqualTo(7L);
+
+        // authoritative misses: an image only present on disk is not looked up
+        ImageSpec unindexed = new ImageSpec(SPEC.mode(), SPEC.chapter(), "2-def.jpg");
+        Files.writeString(layout.resolve(rootDir, unindexed), "unindexed");
+        assertThat(service.findImage(unindexed)).isEmpty();
+
+        ImageContent content = service.findImage(SPEC).orElseThrow();
+        assertThat(content.contentType()).isEqualTo(MediaType.IMAGE_PNG);
+        assertThat(content.contentLength()).hasValue(7L);
+        assertThat(content.resource().getInputStream()).hasContent("content");
+
+        service.deleteChapter(new ImageSpec(SPEC.mode(), SPEC.chapter(), "*"));
+        assertThat(index.size()).isZero();
+        assertThat(service.findImage(SPEC)).isEmpty();
+    }
+
+    @Test
+    void dropsIndexEntriesOfFilesGoneElsewhere() throws Exception {
+        FilesystemSettings settings = settings(true, true);
+        FilesystemLayout layout = FilesystemLayout.from(settings.layout());
+
+        Path file = layout.resolve(rootDir, SPEC);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, "content");
+
+        FilesystemCacheIndex index = FilesystemCacheIndex.create(0);
+        FilesystemCachedImageService service = service(settings, layout, index);
+        awaitUntil(index::isReady);
+
+        // as if evicted by another worker
+        Files.delete(file);
+        assertThat(service.findImage(SPEC)).isEmpty();
+        assertThat(index.size()).isZero();
+    }
+
+    private static FilesystemCachedImageService service(FilesystemSettings settings, FilesystemLayout layout, FilesystemCacheIndex index) {
+        FilesystemUsage usage = new FilesystemUsage();
+        AccessRecencyFile recency = AccessRecencyFile.disabled();
+        FilesystemVolumes volumes = FilesystemVolumes.from(settings);
+        FilesystemTiering tiering = new FilesystemTiering(settings, layout, volumes, index, FilesystemObjects.disabled(), usage, new SimpleMeterRegistry());
+        FilesystemWritePipeline writePipeline = new FilesystemWritePipeline(settings.writes(), FilesystemObjects.disabled(), new SimpleMeterRegistry());
+        return new FilesystemCachedImageService(
+            settings,
+            layout,
+            volumes,
+            index,
+            recency,
+            usage,
+            new FilesystemVacuum(
+                settings,
+                List.of(settings.rootDir()),
+                recency,
+                usage,
+                FilesystemObjects.disabled(),
+                settings.vacuum().deletionsPerSecond(),
+                FilesystemVacuum.deleting(index, FilesystemObjects.disabled())
+            ),
+            tiering,
+            writePipeline,
+            FilesystemObjects.disabled()
+        );
+    }
+
+    private FilesystemSettings settings(boolean indexed, boolean authoritativeMisses) {
+        return new FilesystemSettings(
+            rootDir,
+            false,
+            null,
+            false,
+            new FilesystemSettings.Layout(2, 2, false, 0),
+            new FilesystemSettings.Index(indexed, authoritativeMisses, 0, 2),
+            new FilesystemSettings.Vacuum(0.95, 0.85, 0, 1024, null, 1),
+            new FilesystemSettings.Tiering(false, 0, 0, 1, 0, 0),
+            new FilesystemSettings.Stripes(List.of(), List.of(), 1, 0, 0, 0, 0),
+            new FilesystemSettings.Writes(1, 16, 8, false, 100),
+            new FilesystemSettings.Dedup(false)
+        );
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Condition not met in time");
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import moe.tristan.kmdah.service.gossip.messages.CacheIndexInvalidationEvent;
+import moe.tristan.kmdah.service.gossip.messages.pub.GossipPublisher;
+import moe.tristan.kmdah.service.workers.WorkerInfo;
+
+class FilesystemIndexInvalidationsTest {
+
+    private final FilesystemCacheIndex index = FilesystemCacheIndex.create(0);
+    private final GossipPublisher gossipPublisher = mock(GossipPublisher.class);
+
+    @Test
+    void broadcastsRelocatedAndInvalidatedKeys() {
+        try (FilesystemIndexInvalidations invalidations = new FilesystemIndexInvalidations(index, gossipPublisher, "local")) {
+            index.put(1L, 10L, 0L, 0, FilesystemMediaType.PNG);
+            index.relocate(2L, 10L, 0L, 4, FilesystemMediaType.PNG);
+            index.invalidate(1L);
+            invalidations.broadcast();
+
+            ArgumentCaptor<long[]> keys = ArgumentCaptor.forClass(long[].class);
+            verify(gossipPublisher).broadcastCacheIndexInvalidation(keys.capture());
+            assertThat(keys.getValue()).containsExactly(2L, 1L);
+            assertThat(index.get(2L)).isPresent();
+        }
+    }
+
+    @Test
+    void dropsKeysInvalidatedByOtherWorkersOnly() {
+        try (FilesystemIndexInvalidations invalidations = new FilesystemIndexInvalidations(index, gossipPublisher, "local")) {
+            index.put(1L, 10L, 0L, 0, FilesystemMediaType.PNG);
+            index.put(2L, 10L, 0L, 0, FilesystemMediaType.PNG);
+
+            invalidations.onInvalidation(new CacheIndexInvalidationEvent(new WorkerInfo("local", null), new long[]{1L}));
+            assertThat(index.get(1L)).isPresent();
+
+            invalidations.onInvalidation(new CacheIndexInvalidationEvent(new WorkerInfo("other", null), new long[]{1L, 2L}));
+            assertThat(index.size()).isZero();
+
+            invalidations.broadcast();
+            verify(gossipPublisher, never()).broadcastCacheIndexInvalidation(any());
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageContent;
+import moe.tristan.kmdah.service.images.ImageSpec;
+
+class FilesystemLayoutMigrationTest {
+
+    private static final String CHAPTER = "0123456789abcdef0123456789abcdef";
+
+    @TempDir
+    Path rootDir;
+
+    @Test
+    void servesFromBothLayoutsDuringMigration() throws IOException {
+        FilesystemSettings settings = settings(true);
+        FilesystemLayout layout = FilesystemLayout.from(settings.layout());
+        FilesystemCachedImageService service = service(settings, layout, FilesystemCacheIndex.disabled());
+
+        ImageSpec legacySpec = new ImageSpec(ImageMode.DATA, CHAPTER, "1.png");
+        writeFile(FilesystemLayout.legacy().resolve(rootDir, legacySpec), "legacy");
+
+        ImageSpec shardedSpec = new ImageSpec(ImageMode.DATA, CHAPTER, "2.png");
+        writeFile(layout.resolve(rootDir, shardedSpec), "sharded");
+
+        assertThat(service.findImage(legacySpec)).isPresent();
+        assertThat(service.findImage(shardedSpec)).isPresent();
+        assertThat(service.findImage(new ImageSpec(ImageMode.DATA, CHAPTER, "3.png"))).isEmpty();
+    }
+
+    @Test
+    void migratesAndMergesLegacyChapters() throws IOException {
+        FilesystemSettings settings = settings(true);
+        FilesystemLayout layout = FilesystemLayout.from(settings.layout());
+
+        ImageSpec first = new ImageSpec(ImageMode.DATA, CHAPTER, "1.png");
+        ImageSpec second = new ImageSpec(ImageMode.DATA, CHAPTER, "2.png");
+        ImageSpec other = new ImageSpec(ImageMode.DATA_SAVER, "fedcba9876543210fedcba9876543210", "1.jpg");
+
+        writeFile(FilesystemLayout.legacy().resolve(rootDir, first), "first");
+        writeFile(FilesystemLayout.legacy().resolve(rootDir, second), "second");
+        writeFile(layout.resolve(rootDir, second), "second");
+        writeFile(FilesystemLayout.legacy().resolve(rootDir, other), "other");
+
+        new FilesystemLayoutMigration(settings, layout, FilesystemVolumes.from(settings), FilesystemCacheIndex.disabled()).run();
+
+        assertThat(FilesystemLayout.legacy().chapterDir(rootDir, ImageMode.DATA, CHAPTER)).doesNotExist();
+        assertThat(FilesystemLayout.legacy().chapterDir(rootDir, ImageMode.DATA_SAVER, other.chapter())).doesNotExist();
+        assertThat(layout.resolve(rootDir, first)).hasContent("first");
+        assertThat(layout.resolve(rootDir, second)).hasContent("second");
+        assertThat(layout.resolve(rootDir, other)).hasContent("other");
+
+        FilesystemCachedImageService service = service(settings(false), layout, FilesystemCacheIndex.disabled());
+        ImageContent content = service.findImage(first).orElseThrow();
+        assertThat(content.resource().getInputStream()).hasContent("first");
+    }
+
+    @Test
+    void migratesStripedVolumesAndRelocatesIndexEntries() throws IOException {
+        Path stripe = rootDir.resolve("stripe");
+        FilesystemSettings settings = settings(true, List.of(stripe.toString()));
+        FilesystemLayout layout = FilesystemLayout.from(settings.layout());
+        FilesystemVolumes volumes = FilesystemVolumes.from(settings);
+        FilesystemCacheIndex index = FilesystemCacheIndex.create(16);
+        List<Long> invalidated = new ArrayList<>();
+        index.onInvalidation(invalidated::add);
+
+        ImageSpec indexed = new ImageSpec(ImageMode.DATA, CHAPTER, "1.png");
+        ImageSpec unindexed = new ImageSpec(ImageMode.DATA, CHAPTER, "2.png");
+        writeFile(FilesystemLayout.legacy().resolve(stripe, indexed), "indexed");
+        writeFile(FilesystemLayout.legacy().resolve(stripe, unindexed), "unindexed");
+
+        int stripeLocation = FilesystemCachedImageService.volumeLocation(volumes.all().get(1));
+        long indexedKey = FilesystemCacheIndex.key(indexed);
+        index.put(indexedKey, 7L, 1000L, stripeLocation | FilesystemCachedImageService.LOCATION_LEGACY_LAYOUT_FLAG, FilesystemMediaType.PNG);
+
+        new FilesystemLayoutMigration(settings, layout, volumes, index).run();
+
+        assertThat(FilesystemLayout.legacy().chapterDir(stripe, ImageMode.DATA, CHAPTER)).doesNotExist();
+        assertThat(layout.resolve(stripe, indexed)).hasContent("indexed");
+        assertThat(layout.resolve(stripe, unindexed)).hasContent("unindexed");
+        assertThat(index.get(indexedKey)).hasValue(new FilesystemCacheIndex.Entry(7L, 1000L, stripeLocation, FilesystemMediaType.PNG));
+        assertThat(invalidated).containsExactlyInAnyOrder(indexedKey, FilesystemCacheIndex.key(unindexed));
+    }
+
+    private static FilesystemCachedImageService service(FilesystemSettings settings, FilesystemLayout layout, FilesystemCacheIndex index) {
+        FilesystemUsage usage = new FilesystemUsage();
+        AccessRecencyFile recency = AccessRecencyFile.disabled();
+        FilesystemVolumes volumes = FilesystemVolumes.from(settings);
+        FilesystemTiering tiering = new FilesystemTiering(settings, layout, volumes, index, FilesystemObjects.disabled(), usage, new SimpleMeterRegistry());
+        FilesystemWritePipeline writePipeline = new FilesystemWritePipeline(settings.writes(), FilesystemObjects.disabled(), new SimpleMeterRegistry());
+        return new FilesystemCachedImageService(
+            settings,
+            layout,
+            volumes,
+            index,
+            recency,
+            usage,
+            new FilesystemVacuum(
+                settings,
+                List.of(settings.rootDir()),
+                recency,
+                usage,
+                FilesystemObjects.disabled(),
+                settings.vacuum().deletionsPerSecond(),
+                FilesystemVacuum.deleting(index, FilesystemObjects.disabled())
+            ),
+            tiering,
+            writePipeline,
+            FilesystemObjects.disabled()
+        );
+    }
+
+    private FilesystemSettings settings(boolean migrate) {
+        return settings(migrate, List.of());
+    }
+
+    private FilesystemSettings settings(boolean migrate, List<String> stripes) {
+        return new FilesystemSettings(
+            rootDir,
+            false,
+            null,
+            false,
+            new FilesystemSettings.Layout(2, 2, migrate, 0),
+            new FilesystemSettings.Index(false, false, 0, 1),
+            new FilesystemSettings.Vacuum(0.95, 0.85, 0, 1024, null, 1),
+            new FilesystemSettings.Tiering(false, 0, 0, 1, 0, 0),
+            new FilesystemSettings.Stripes(stripes, List.of(), 1, 0, 0, 0, 0),
+            new FilesystemSettings.Writes(1, 16, 8, false, 100),
+            new FilesystemSettings.Dedup(false)
+        );
+    }
+
+    private static void writeFile(Path path, String content) throws IOException {
+        Files.createDirectories(path.getParent());
+        Files.writeString(path, content);
+    }
+
+}
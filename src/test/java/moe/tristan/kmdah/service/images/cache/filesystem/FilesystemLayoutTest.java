@@ -0,0 +1,41 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageSpec;
+
+class FilesystemLayoutTest {
+
+    private static final Path ROOT = Path.of("/cache");
+    private static final ImageSpec SPEC = new ImageSpec(ImageMode.DATA_SAVER, "ABCDEF0123456789abcdef0123456789", "x1-abc.png");
+
+    @Test
+    void legacyLayout() {
+        FilesystemLayout layout = FilesystemLayout.from(new FilesystemSettings.Layout(0, 2, false, 0));
+
+        assertThat(layout.isSharded()).isFalse();
+        assertThat(layout.resolve(ROOT, SPEC)).isEqualTo(Path.of("/cache/data-saver/ABCDEF0123456789abcdef0123456789/x1-abc.png"));
+    }
+
+    @Test
+    void fanOutLayout() {
+        FilesystemLayout layout = FilesystemLayout.from(new FilesystemSettings.Layout(2, 2, false, 0));
+
+        assertThat(layout.isSharded()).isTrue();
+        assertThat(layout.resolve(ROOT, SPEC)).isEqualTo(Path.of("/cache/data-saver/ab/cd/ABCDEF0123456789abcdef0123456789/x1-abc.png"));
+    }
+
+    @Test
+    void fanOutOfShortChapterIsPadded() {
+        FilesystemLayout layout = FilesystemLayout.from(new FilesystemSettings.Layout(2, 2, false, 0));
+
+        ImageSpec spec = new ImageSpec(ImageMode.DATA, "abc", "file");
+        assertThat(layout.resolve(ROOT, spec)).isEqualTo(Path.of("/cache/data/ab/c_/abc/file"));
+    }
+
+}
@@ -0,0 +1,173 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.MediaType;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.ReclaimingRequest;
+import moe.tristan.kmdah.service.images.cache.ScrubbingRequest;
+import moe.tristan.kmdah.service.images.cache.ScrubbingResult;
+import moe.tristan.kmdah.util.IoBudget;
+
+class FilesystemObjectsTest {
+
+    private static final byte[] CONTENT = "credits page".getBytes(StandardCharsets.UTF_8);
+    private static final String FILE = "1-" + DigestUtils.sha256Hex(CONTENT) + ".png";
+
+    @TempDir
+    Path rootDir;
+
+    @Test
+    void storesIdenticalImagesOnceAndReleasesThemWithTheirLastReference() throws Exception {
+        FilesystemSettings settings = settings();
+        FilesystemLayout layout = FilesystemLayout.from(settings.layout());
+        FilesystemVolumes volumes = FilesystemVolumes.from(settings);
+        FilesystemCacheIndex index = FilesystemCacheIndex.disabled();
+        FilesystemObjects objects = new FilesystemObjects(true, volumes.dirs());
+        FilesystemUsage usage = new FilesystemUsage();
+        FilesystemCachedImageService service = service(settings, layout, volumes, index, objects, usage);
+
+        ImageSpec first = new ImageSpec(ImageMode.DATA, "chapter1", FILE);
+        ImageSpec second = new ImageSpec(ImageMode.DATA, "chapter2", FILE);
+        for (ImageSpec spec : List.of(first, second)) {
+            service.saveImage(spec, MediaType.IMAGE_PNG, new ByteArrayInputStream(CONTENT));
+            awaitUntil(() -> service.findImage(spec).isPresent());
+        }
+
+        Path object = objects.objectOf(first, layout.resolve(rootDir, first)).orElseThrow();
+        assertThat(Files.isSameFile(layout.resolve(rootDir, first), object)).isTrue();
+        assertThat(Files.isSameFile(layout.resolve(rootDir, second), object)).isTrue();
+        assertThat(usage.usedBytes()).isEqualTo(CONTENT.length);
+        assertThat(objects.getDeduplicatedWrites()).isEqualTo(1L);
+
+        service.deleteChapter(new ImageSpec(ImageMode.DATA, "chapter1", "*"));
+        assertThat(service.findImage(first)).isEmpty();
+        service.reclaim(new ReclaimingRequest(10, IoBudget.unlimited()));
+        assertThat(service.findImage(second).orElseThrow().resource().getInputStream().readAllBytes()).isEqualTo(CONTENT);
+        assertThat(object).exists();
+        assertThat(usage.usedBytes()).isEqualTo(CONTENT.length);
+
+        service.deleteChapter(new ImageSpec(ImageMode.DATA, "chapter2", "*"));
+        service.reclaim(new ReclaimingRequest(10, IoBudget.unlimited()));
+        assertThat(object).doesNotExist();
+        assertThat(usage.usedBytes()).isZero();
+    }
+
+    @Test
+    void evictsEveryReferenceToCorruptedContent() throws Exception {
+        FilesystemSettings settings = settings();
+        FilesystemLayout layout = FilesystemLayout.from(settings.layout());
+        FilesystemVolumes volumes = FilesystemVolumes.from(settings);
+        FilesystemCacheIndex index = FilesystemCacheIndex.disabled();
+        FilesystemObjects objects = new FilesystemObjects(true, volumes.dirs());
+        FilesystemUsage usage = new FilesystemUsage();
+        FilesystemCachedImageService service = service(settings, layout, volumes, index, objects, usage);
+
+        ImageSpec first = new ImageSpec(ImageMode.DATA, "chapter1", FILE);
+        ImageSpec second = new ImageSpec(ImageMode.DATA, "chapter2", FILE);
+        for (ImageSpec spec : List.of(first, second)) {
+            service.saveImage(spec, MediaType.IMAGE_PNG, new ByteArrayInputStream(CONTENT));
+            awaitUntil(() -> service.findImage(spec).isPresent());
+        }
+
+        // rewritten in place, so through every link
+        Files.writeString(layout.resolve(rootDir, first), "corrupt page", StandardCharsets.UTF_8);
+        ScrubbingResult result = service.scrub(new ScrubbingRequest(null, 1, IoBudget.unlimited()));
+
+        assertThat(result.evicted()).containsExactlyInAnyOrder(first, second);
+        assertThat(service.findImage(first)).isEmpty();
+        assertThat(service.findImage(second)).isEmpty();
+        assertThat(objects.objectOf(first, layout.resolve(rootDir, first)).orElseThrow()).doesNotExist();
+        assertThat(usage.usedBytes()).isZero();
+    }
+
+    @Test
+    void splitsSizeAcrossReferencesWithOrWithoutObject() throws Exception {
+        FilesystemObjects objects = new FilesystemObjects(true, List.of(rootDir));
+        ImageSpec spec = new ImageSpec(ImageMode.DATA, "chapter1", FILE);
+        Path first = rootDir.resolve("first");
+        Path second = rootDir.resolve("second");
+        Files.write(first, CONTENT);
+        Files.createLink(second, first);
+
+        Path object = objects.objectOf(spec, first).orElseThrow();
+        objects.register(object, first);
+        assertThat(objects.physicalSize(spec, first, 12)).isEqualTo(6);
+
+        Files.delete(object);
+        assertThat(objects.physicalSize(spec, first, 12)).isEqualTo(6);
+    }
+
+    @Test
+    void onlyDataModeImagesNamedAfterTheirHashAreDeduplicated() {
+        FilesystemObjects objects = new FilesystemObjects(true, List.of(rootDir));
+
+        assertThat(objects.objectOf(new ImageSpec(ImageMode.DATA, "chapter", FILE), rootDir.resolve("file"))).isPresent();
+        assertThat(objects.objectOf(new ImageSpec(ImageMode.DATA_SAVER, "chapter", FILE), rootDir.resolve("file"))).isEmpty();
+        assertThat(objects.objectOf(new ImageSpec(ImageMode.DATA, "chapter", "file-1.png"), rootDir.resolve("file"))).isEmpty();
+    }
+
+    private static FilesystemCachedImageService service(
+        FilesystemSettings settings,
+        FilesystemLayout layout,
+        FilesystemVolumes volumes,
+        FilesystemCacheIndex index,
+        FilesystemObjects objects,
+        FilesystemUsage usage
+    ) {
+        return new FilesystemCachedImageService(
+            settings,
+            layout,
+            volumes,
+            index,
+            AccessRecencyFile.disabled(),
+            usage,
+            new FilesystemVacuum(settings, volumes.dirs(), AccessRecencyFile.disabled(), usage, objects, 0, FilesystemVacuum.deleting(index, objects)),
+            new FilesystemTiering(settings, layout, volumes, index, objects, usage, new SimpleMeterRegistry()),
+            new FilesystemWritePipeline(settings.writes(), objects, new SimpleMeterRegistry()),
+            objects
+        );
+    }
+
+    private FilesystemSettings settings() {
+        return new FilesystemSettings(
+            rootDir,
+            false,
+            null,
+            false,
+            new FilesystemSettings.Layout(2, 2, false, 0),
+            new FilesystemSettings.Index(false, false, 0, 2),
+            new FilesystemSettings.Vacuum(0.9, 0.6, 0, 1024, null, 100),
+            new FilesystemSettings.Tiering(false, 0, 0, 1, 0, 0),
+            new FilesystemSettings.Stripes(List.of(), List.of(), 1, 0, 0, 0, 0),
+            new FilesystemSettings.Writes(1, 16, 8, false, 100),
+            new FilesystemSettings.Dedup(true)
+        );
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Condition not met in time");
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+}
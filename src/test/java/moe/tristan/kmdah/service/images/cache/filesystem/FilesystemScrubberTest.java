@@ -0,0 +1,127 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.MediaType;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.ScrubbingRequest;
+import moe.tristan.kmdah.service.images.cache.ScrubbingResult;
+import moe.tristan.kmdah.util.IoBudget;
+
+class FilesystemScrubberTest {
+
+    private static final byte[] PNG_TRAILER = {0, 0, 0, 0, 'I', 'E', 'N', 'D', (byte) 0xAE, 0x42, 0x60, (byte) 0x82};
+
+    @TempDir
+    Path rootDir;
+
+    @Test
+    void evictsCorruptedImagesAcrossResumedRuns() throws Exception {
+        FilesystemSettings settings = settings();
+        FilesystemLayout layout = FilesystemLayout.from(settings.layout());
+        FilesystemVolumes volumes = FilesystemVolumes.from(settings);
+        FilesystemCacheIndex index = FilesystemCacheIndex.disabled();
+        FilesystemUsage usage = new FilesystemUsage();
+        FilesystemCachedImageService service = new FilesystemCachedImageService(
+            settings,
+            layout,
+            volumes,
+            index,
+            AccessRecencyFile.disabled(),
+            usage,
+            new FilesystemVacuum(settings, volumes.dirs(), AccessRecencyFile.disabled(), usage, FilesystemObjects.disabled(), 0, FilesystemVacuum.deleting(index, FilesystemObjects.disabled())),
+            new FilesystemTiering(settings, layout, volumes, index, FilesystemObjects.disabled(), usage, new SimpleMeterRegistry()),
+            new FilesystemWritePipeline(settings.writes(), FilesystemObjects.disabled(), new SimpleMeterRegistry()),
+            FilesystemObjects.disabled()
+        );
+
+        List<ImageSpec> specs = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            byte[] content = ("page " + i).getBytes(StandardCharsets.UTF_8);
+            specs.add(new ImageSpec(ImageMode.DATA, "chapter" + i, i + "-" + DigestUtils.sha256Hex(content) + ".png"));
+            save(service, specs.get(i), content);
+        }
+        byte[] savedPng = new byte[100];
+        System.arraycopy(PNG_TRAILER, 0, savedPng, savedPng.length - PNG_TRAILER.length, PNG_TRAILER.length);
+        for (int i = 0; i < 2; i++) {
+            specs.add(new ImageSpec(ImageMode.DATA_SAVER, "chapter" + i, "saver.png"));
+            save(service, specs.get(5 + i), savedPng);
+        }
+
+        // bit rot on a data image, and a data-saver image cut short
+        ImageSpec rotten = specs.get(3);
+        Files.writeString(layout.resolve(rootDir, rotten), "page 4", StandardCharsets.UTF_8);
+        ImageSpec truncated = specs.get(6);
+        Files.write(layout.resolve(rootDir, truncated), new byte[50]);
+
+        List<ImageSpec> evicted = new ArrayList<>();
+        String cursor = null;
+        int runs = 0;
+        do {
+            ScrubbingResult result = service.scrub(new ScrubbingRequest(cursor, 2, IoBudget.unlimited()));
+            assertThat(result.scrubbedFileCount()).isLessThanOrEqualTo(2);
+            evicted.addAll(result.evicted());
+            cursor = result.nextCursor();
+            runs++;
+        } while (cursor != null);
+
+        assertThat(runs).isEqualTo(4);
+        assertThat(evicted).containsExactlyInAnyOrder(rotten, truncated);
+        for (ImageSpec spec : specs) {
+            assertThat(service.findImage(spec).isPresent()).isEqualTo(!evicted.contains(spec));
+        }
+
+        ScrubbingResult secondPass = service.scrub(new ScrubbingRequest(null, 100, IoBudget.unlimited()));
+        assertThat(secondPass.nextCursor()).isNull();
+        assertThat(secondPass.scrubbedFileCount()).isEqualTo(5);
+        assertThat(secondPass.corruptedFileCount()).isZero();
+    }
+
+    private static void save(FilesystemCachedImageService service, ImageSpec spec, byte[] content) throws InterruptedException {
+        service.saveImage(spec, MediaType.IMAGE_PNG, new ByteArrayInputStream(content));
+        awaitUntil(() -> service.findImage(spec).isPresent());
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Condition not met in time");
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    private FilesystemSettings settings() {
+        return new FilesystemSettings(
+            rootDir,
+            false,
+            null,
+            false,
+            new FilesystemSettings.Layout(2, 2, false, 0),
+            new FilesystemSettings.Index(false, false, 0, 2),
+            new FilesystemSettings.Vacuum(0.9, 0.6, 0, 1024, null, 100),
+            new FilesystemSettings.Tiering(false, 0, 0, 1, 0, 0),
+            new FilesystemSettings.Stripes(List.of(), List.of(), 1, 0, 0, 0, 0),
+            new FilesystemSettings.Writes(1, 16, 8, false, 100),
+            new FilesystemSettings.Dedup(false)
+        );
+    }
+
+}
@@ -0,0 +1,198 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.ReclaimingRequest;
+import moe.tristan.kmdah.service.images.cache.ReclaimingResult;
+import moe.tristan.kmdah.service.images.cache.VacuumingRequest;
+import moe.tristan.kmdah.service.images.cache.VacuumingResult;
+import moe.tristan.kmdah.util.IoBudget;
+
+class FilesystemTieringTest {
+
+    private static final int IMAGE_SIZE = 1000;
+
+    @TempDir
+    Path tempDir;
+
+    private Path hotDir;
+    private Path coldDir;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        hotDir = Files.createDirectory(tempDir.resolve("hot"));
+        coldDir = Files.createDirectory(tempDir.resolve("cold"));
+    }
+
+    @Test
+    void promotesAfterRepeatedColdHits() throws Exception {
+        FilesystemSettings settings = settings();
+        FilesystemLayout layout = FilesystemLayout.from(settings.layout());
+        FilesystemCacheIndex index = FilesystemCacheIndex.disabled();
+        FilesystemUsage hotUsage = new FilesystemUsage();
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        FilesystemTiering tiering = new FilesystemTiering(settings, layout, FilesystemVolumes.from(settings), index, FilesystemObjects.disabled(), hotUsage, meterRegistry);
+        FilesystemCachedImageService service = new FilesystemCachedImageService(
+            settings,
+            layout,
+            FilesystemVolumes.from(settings),
+            index,
+            AccessRecencyFile.disabled(),
+            hotUsage,
+            new FilesystemVacuum(
+                settings,
+                List.of(settings.rootDir()),
+                AccessRecencyFile.disabled(),
+                hotUsage,
+                FilesystemObjects.disabled(),
+                settings.vacuum().deletionsPerSecond(),
+                FilesystemVacuum.deleting(index, FilesystemObjects.disabled())
+            ),
+            tiering,
+            new FilesystemWritePipeline(settings.writes(), FilesystemObjects.disabled(), meterRegistry),
+            FilesystemObjects.disabled()
+        );
+
+        ImageSpec spec = new ImageSpec(ImageMode.DATA, "chapter", "1.png");
+        writeImage(layout.resolve(coldDir, spec), Instant.now());
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(service.findImage(spec)).isPresent();
+        }
+
+        awaitUntil(() -> Files.exists(layout.resolve(hotDir, spec)) && !Files.exists(layout.resolve(coldDir, spec)));
+        assertThat(hotUsage.usedBytes()).isEqualTo(IMAGE_SIZE);
+        assertThat(meterRegistry.counter("kmdah_cache_filesystem_tier_hits", "tier", "cold").count()).isEqualTo(3.0);
+
+        assertThat(service.findImage(spec)).isPresent();
+        assertThat(meterRegistry.counter("kmdah_cache_filesystem_tier_hits", "tier", "hot").count()).isEqualTo(1.0);
+    }
+
+    @Test
+    void demotesLeastRecentlyAccessedToColdTier() throws IOException {
+        FilesystemSettings settings = settings();
+        FilesystemLayout layout = FilesystemLayout.from(settings.layout());
+        FilesystemCacheIndex index = FilesystemCacheIndex.create(100);
+        index.markReady();
+        FilesystemUsage hotUsage = new FilesystemUsage();
+        FilesystemTiering tiering = new FilesystemTiering(settings, layout, FilesystemVolumes.from(settings), index, FilesystemObjects.disabled(), hotUsage, new SimpleMeterRegistry());
+        FilesystemVacuum hotTierVacuum = new FilesystemVacuum(settings, List.of(hotDir), AccessRecencyFile.disabled(), hotUsage, FilesystemObjects.disabled(), 0, tiering.demoting());
+
+        ImageSpec[] specs = new ImageSpec[4];
+        for (int i = 0; i < specs.length; i++) {
+            specs[i] = new ImageSpec(ImageMode.DATA, "chapter" + i, i + ".png");
+            writeImage(layout.resolve(hotDir, specs[i]), Instant.now().minus(Duration.ofHours(specs.length - i)));
+        }
+
+        // high watermark at 3600 bytes, low at 2400
+        VacuumingResult result = hotTierVacuum.vacuum(new VacuumingRequest(DataSize.ofBytes(4000)));
+
+        assertThat(result.deletedFileCount()).isEqualTo(2L);
+        assertThat(hotUsage.usedBytes()).isEqualTo(2L * IMAGE_SIZE);
+        assertThat(tiering.getColdUsage().usedBytes()).isEqualTo(2L * IMAGE_SIZE);
+        for (int i = 0; i < 2; i++) {
+            assertThat(layout.resolve(hotDir, specs[i])).doesNotExist();
+            assertThat(Files.size(layout.resolve(coldDir, specs[i]))).isEqualTo(IMAGE_SIZE);
+            assertThat(index.get(FilesystemCacheIndex.key(specs[i])).orElseThrow().location()).isEqualTo(FilesystemCachedImageService.LOCATION_ALT_DIR);
+        }
+        for (int i = 2; i < specs.length; i++) {
+            assertThat(layout.resolve(hotDir, specs[i])).exists();
+        }
+    }
+
+    @Test
+    void reclaimingTrashedColdChaptersReducesColdUsage() throws IOException {
+        FilesystemSettings settings = settings();
+        FilesystemLayout layout = FilesystemLayout.from(settings.layout());
+        FilesystemCacheIndex index = FilesystemCacheIndex.disabled();
+        FilesystemUsage hotUsage = new FilesystemUsage();
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        FilesystemTiering tiering = new FilesystemTiering(settings, layout, FilesystemVolumes.from(settings), index, FilesystemObjects.disabled(), hotUsage, meterRegistry);
+        FilesystemCachedImageService service = new FilesystemCachedImageService(
+            settings,
+            layout,
+            FilesystemVolumes.from(settings),
+            index,
+            AccessRecencyFile.disabled(),
+            hotUsage,
+            new FilesystemVacuum(
+                settings,
+                List.of(settings.rootDir()),
+                AccessRecencyFile.disabled(),
+                hotUsage,
+                FilesystemObjects.disabled(),
+                settings.vacuum().deletionsPerSecond(),
+                FilesystemVacuum.deleting(index, FilesystemObjects.disabled())
+            ),
+            tiering,
+            new FilesystemWritePipeline(settings.writes(), FilesystemObjects.disabled(), meterRegistry),
+            FilesystemObjects.disabled()
+        );
+
+        ImageSpec spec = new ImageSpec(ImageMode.DATA, "chapter", "1.png");
+        Path hotFile = layout.resolve(hotDir, spec);
+        writeImage(hotFile, Instant.now());
+        tiering.demoting().evict(spec, hotFile, IMAGE_SIZE);
+        assertThat(tiering.getColdUsage().usedBytes()).isEqualTo(IMAGE_SIZE);
+
+        service.deleteChapter(spec);
+        ReclaimingResult reclaimed = service.reclaim(new ReclaimingRequest(10, IoBudget.unlimited()));
+
+        assertThat(reclaimed.reclaimedFileCount()).isEqualTo(1L);
+        assertThat(tiering.getColdUsage().usedBytes()).isZero();
+        assertThat(hotUsage.usedBytes()).isZero();
+    }
+
+    private FilesystemSettings settings() {
+        return new FilesystemSettings(
+            hotDir,
+            true,
+            coldDir,
+            false,
+            new FilesystemSettings.Layout(2, 2, false, 0),
+            new FilesystemSettings.Index(false, false, 0, 2),
+            new FilesystemSettings.Vacuum(0.9, 0.6, 0, 1024, null, 100),
+            new FilesystemSettings.Tiering(true, 1, 3, 10, 0, 0),
+            new FilesystemSettings.Stripes(List.of(), List.of(), 1, 0, 0, 0, 0),
+            new FilesystemSettings.Writes(1, 16, 8, false, 100),
+            new FilesystemSettings.Dedup(false)
+        );
+    }
+
+    private static void writeImage(Path path, Instant lastModified) throws IOException {
+        Files.createDirectories(path.getParent());
+        Files.write(path, new byte[IMAGE_SIZE]);
+        Files.setLastModifiedTime(path, FileTime.from(lastModified));
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Condition not met in time");
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.VacuumingRequest;
+import moe.tristan.kmdah.service.images.cache.VacuumingResult;
+
+class FilesystemVacuumTest {
+
+    private static final int IMAGE_SIZE = 1000;
+
+    @TempDir
+    Path rootDir;
+
+    @Test
+    void evictsLeastRecentlyAccessedDownToLowWatermark() throws IOException {
+        FilesystemSettings settings = settings();
+        FilesystemLayout layout = FilesystemLayout.from(settings.layout());
+        AccessRecencyFile recency = AccessRecencyFile.open(rootDir.resolve(".kmdah").resolve("recency"), 1 << 16);
+        FilesystemUsage usage = new FilesystemUsage();
+        FilesystemVacuum vacuum = vacuum(settings, recency, usage);
+
+        Instant now = Instant.now();
+        ImageSpec[] specs = new ImageSpec[10];
+        for (int i = 0; i < specs.length; i++) {
+            // written one hour apart, the first one being the oldest
+            specs[i] = new ImageSpec(ImageMode.DATA, "chapter" + i, i + ".png");
+            writeImage(layout.resolve(rootDir, specs[i]), now.minus(Duration.ofHours(specs.length - i)));
+        }
+        // the oldest written image was recently read, so it should be kept
+        recency.touch(FilesystemCacheIndex.key(specs[0]));
+
+        Path staleTmpFile = layout.resolve(rootDir, specs[9]).resolveSibling("10.png.tmp");
+        writeImage(staleTmpFile, now.minus(Duration.ofHours(1)));
+
+        // 10 images of 1000 bytes, high watermark at 9000 and low at 7000
+        VacuumingResult result = vacuum.vacuum(new VacuumingRequest(DataSize.ofBytes(10_000)));
+
+        // 3 evicted images and the stale temporary file
+        assertThat(result.deletedFileCount()).isEqualTo(4L);
+        assertThat(result.freedSpace().toBytes()).isEqualTo(4L * IMAGE_SIZE);
+        assertThat(usage.usedBytes()).isEqualTo(7L * IMAGE_SIZE);
+        assertThat(staleTmpFile).doesNotExist();
+
+        assertThat(layout.resolve(rootDir, specs[0])).exists();
+        for (int i = 1; i <= 3; i++) {
+            assertThat(layout.resolve(rootDir, specs[i])).doesNotExist();
+            assertThat(layout.chapterDir(rootDir, ImageMode.DATA, specs[i].chapter())).doesNotExist();
+        }
+        for (int i = 4; i < specs.length; i++) {
+            assertThat(layout.resolve(rootDir, specs[i])).exists();
+        }
+    }
+
+    @Test
+    void skipsWalkingWhenUsageIsKnownAndBelowHighWatermark() throws IOException {
+        FilesystemSettings settings = settings();
+        FilesystemLayout layout = FilesystemLayout.from(settings.layout());
+        FilesystemUsage usage = new FilesystemUsage();
+        usage.reconcile(0L);
+        FilesystemVacuum vacuum = vacuum(settings, AccessRecencyFile.disabled(), usage);
+
+        ImageSpec spec = new ImageSpec(ImageMode.DATA, "chapter", "1.png");
+        writeImage(layout.resolve(rootDir, spec), Instant.now().minus(Duration.ofDays(1)));
+
+        VacuumingResult result = vacuum.vacuum(new VacuumingRequest(DataSize.ofBytes(IMAGE_SIZE / 2)));
+
+        assertThat(result.deletedFileCount()).isZero();
+        assertThat(layout.resolve(rootDir, spec)).exists();
+    }
+
+    @Test
+    void reconcilesUsageBeforeEvicting() throws IOException {
+        FilesystemSettings settings = settings();
+        FilesystemLayout layout = FilesystemLayout.from(settings.layout());
+        FilesystemUsage usage = new FilesystemUsage();
+        FilesystemVacuum vacuum = vacuum(settings, AccessRecencyFile.disabled(), usage);
+
+        for (int i = 0; i < 5; i++) {
+            writeImage(layout.resolve(rootDir, new ImageSpec(ImageMode.DATA, "chapter" + i, i + ".png")), Instant.now().minus(Duration.ofHours(i)));
+        }
+        vacuum.vacuum(new VacuumingRequest(DataSize.ofBytes(10_000)));
+        assertThat(usage.usedBytes()).isEqualTo(5L * IMAGE_SIZE);
+
+        // as if written by this instance, but deleted by another one since
+        usage.added(5L * IMAGE_SIZE);
+        VacuumingResult result = vacuum.vacuum(new VacuumingRequest(DataSize.ofBytes(10_000)));
+
+        assertThat(result.deletedFileCount()).isZero();
+        assertThat(usage.usedBytes()).isEqualTo(5L * IMAGE_SIZE);
+    }
+
+    private static FilesystemVacuum vacuum(FilesystemSettings settings, AccessRecencyFile recency, FilesystemUsage usage) {
+        return new FilesystemVacuum(
+            settings,
+            List.of(settings.rootDir()),
+            recency,
+            usage,
+            FilesystemObjects.disabled(),
+            settings.vacuum().deletionsPerSecond(),
+            FilesystemVacuum.deleting(FilesystemCacheIndex.disabled(), FilesystemObjects.disabled())
+        );
+    }
+
+    private FilesystemSettings settings() {
+        return new FilesystemSettings(
+            rootDir,
+            false,
+            null,
+            false,
+            new FilesystemSettings.Layout(2, 2, false, 0),
+            new FilesystemSettings.Index(false, false, 0, 2),
+            new FilesystemSettings.Vacuum(0.9, 0.7, 0, 1 << 16, null, 100),
+            new FilesystemSettings.Tiering(false, 0, 0, 1, 0, 0),
+            new FilesystemSettings.Stripes(List.of(), List.of(), 1, 0, 0, 0, 0),
+            new FilesystemSettings.Writes(1, 16, 8, false, 100),
+            new FilesystemSettings.Dedup(false)
+        );
+    }
+
+    private static void writeImage(Path path, Instant lastModified) throws IOException {
+        Files.createDirectories(path.getParent());
+        Files.write(path, new byte[IMAGE_SIZE]);
+        Files.setLastModifiedTime(path, FileTime.from(lastModified));
+    }
+
+}
@@ -0,0 +1,153 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.MediaType;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageSpec;
+
+class FilesystemVolumesTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path rootDir;
+    private Path volumeA;
+    private Path volumeB;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        rootDir = Files.createDirectory(tempDir.resolve("root"));
+        volumeA = Files.createDirectory(tempDir.resolve("a"));
+        volumeB = Files.createDirectory(tempDir.resolve("b"));
+    }
+
+    @Test
+    void spreadsImagesProportionallyToWeights() {
+        FilesystemVolumes volumes = FilesystemVolumes.from(settings(List.of(volumeA + ":1", volumeB + ":2"), List.of()));
+
+        int[] counts = new int[3];
+        for (int i = 0; i < 40_000; i++) {
+            counts[volumes.preferred(FilesystemCacheIndex.key(spec(i))).getId()]++;
+        }
+
+        assertThat(counts[0]).isBetween(9_000, 11_000);
+        assertThat(counts[1]).isBetween(9_000, 11_000);
+        assertThat(counts[2]).isBetween(19_000, 21_000);
+    }
+
+    @Test
+    void writesAvoidDegradedAndDrainingVolumes() {
+        FilesystemVolumes volumes = FilesystemVolumes.from(settings(List.of(volumeA), List.of(volumeB.toString())));
+        FilesystemVolume draining = volumes.byId(2);
+        assertThat(draining.isDraining()).isTrue();
+
+        FilesystemVolume degraded = volumes.byId(1);
+        for (int i = 0; i < 3; i++) {
+            degraded.getHealth().recordError();
+        }
+        assertThat(degraded.getHealth().isDegraded()).isTrue();
+
+        for (int i = 0; i < 1000; i++) {
+            long key = FilesystemCacheIndex.key(spec(i));
+            assertThat(volumes.preferred(key)).isNotSameAs(draining);
+            assertThat(volumes.forWrite(key)).containsSame(volumes.byId(0));
+        }
+        assertThat(volumes.consumeMisplacedWrites()).isTrue();
+        assertThat(volumes.consumeMisplacedWrites()).isFalse();
+    }
+
+    @Test
+    void rebalancesMisplacedImagesAndServesThemThroughout() throws Exception {
+        FilesystemSettings settings = settings(List.of(volumeA, volumeB), List.of());
+        FilesystemLayout layout = FilesystemLayout.from(settings.layout());
+        FilesystemVolumes volumes = FilesystemVolumes.from(settings);
+        FilesystemCacheIndex index = FilesystemCacheIndex.disabled();
+        FilesystemUsage usage = new FilesystemUsage();
+        FilesystemCachedImageService service = new FilesystemCachedImageService(
+            settings,
+            layout,
+            volumes,
+            index,
+            AccessRecencyFile.disabled(),
+            usage,
+            new FilesystemVacuum(settings, volumes.dirs(), AccessRecencyFile.disabled(), usage, FilesystemObjects.disabled(), 0, FilesystemVacuum.deleting(index, FilesystemObjects.disabled())),
+            new FilesystemTiering(settings, layout, volumes, index, FilesystemObjects.disabled(), usage, new SimpleMeterRegistry()),
+            new FilesystemWritePipeline(settings.writes(), FilesystemObjects.disabled(), new SimpleMeterRegistry()),
+            FilesystemObjects.disabled()
+        );
+
+        // every image lands on the root dir while both other volumes are unhealthy
+        for (int volume = 1; volume <= 2; volume++) {
+            for (int i = 0; i < 3; i++) {
+                volumes.byId(volume).getHealth().recordError();
+            }
+        }
+        for (int i = 0; i < 30; i++) {
+            ImageSpec spec = spec(i);
+            service.saveImage(spec, MediaType.IMAGE_PNG, new ByteArrayInputStream(new byte[100]));
+            awaitUntil(() -> Files.exists(layout.resolve(rootDir, spec)));
+        }
+
+        // they recover, and images are moved to their preferred volume
+        FilesystemSettings recoveredSettings = settings(List.of(volumeA, volumeB), List.of());
+        FilesystemVolumes recovered = FilesystemVolumes.from(recoveredSettings);
+        recovered.consumeMisplacedWrites();
+        new FilesystemRebalanceJob(recoveredSettings, layout, recovered, index).run();
+
+        for (int i = 0; i < 30; i++) {
+            ImageSpec spec = spec(i);
+            FilesystemVolume preferred = recovered.preferred(FilesystemCacheIndex.key(spec));
+            for (FilesystemVolume volume : recovered.all()) {
+                assertThat(Files.exists(layout.resolve(volume.getDir(), spec))).isEqualTo(volume.getId() == preferred.getId());
+            }
+            assertThat(service.findImage(spec)).isPresent();
+        }
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Condition not met in time");
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    private static ImageSpec spec(int i) {
+        return new ImageSpec(ImageMode.DATA, "chapter" + (i % 7), i + ".png");
+    }
+
+    private FilesystemSettings settings(List<?> volumes, List<String> draining) {
+        return new FilesystemSettings(
+            rootDir,
+            false,
+            null,
+            false,
+            new FilesystemSettings.Layout(2, 2, false, 0),
+            new FilesystemSettings.Index(false, false, 0, 2),
+            new FilesystemSettings.Vacuum(0.9, 0.6, 0, 1024, null, 100),
+            new FilesystemSettings.Tiering(false, 0, 0, 1, 0, 0),
+            new FilesystemSettings.Stripes(volumes.stream().map(Object::toString).collect(Collectors.toList()), draining, 1, 0, 3, 0, 0),
+            new FilesystemSettings.Writes(1, 16, 8, false, 100),
+            new FilesystemSettings.Dedup(false)
+        );
+    }
+
+}
@@ -0,0 +1,177 @@
+package moe.tristan.kmdah.service.images.cache.filesystem;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageSpec;
+
+class FilesystemWritePipelineTest {
+
+    private static final int IMAGE_SIZE = 256 * 1024;
+
+    @TempDir
+    Path rootDir;
+
+    @Test
+    void boundsPendingWritesInBytesThenCommitsThemInBatches() throws Exception {
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        FilesystemWritePipeline pipeline = new FilesystemWritePipeline(new FilesystemSettings.Writes(2, 1, 4, true, 2), FilesystemObjects.disabled(), meterRegistry);
+
+        // 1MB fits 4 images, and nothing is written until started
+        for (int i = 0; i < 4; i++) {
+            assertThat(pipeline.canAccept()).isTrue();
+            assertThat(pipeline.submit(spec(i), new byte[IMAGE_SIZE])).isTrue();
+        }
+        assertThat(pipeline.canAccept()).isFalse();
+        assertThat(pipeline.submit(spec(4), new byte[IMAGE_SIZE])).isFalse();
+        assertThat(meterRegistry.counter("kmdah_cache_filesystem_write_dropped", "reason", "queue_full").count()).isEqualTo(1.0);
+
+        FilesystemLayout layout = FilesystemLayout.from(new FilesystemSettings.Layout(2, 2, false, 0));
+        FilesystemVolume volume = new FilesystemVolume(0, rootDir, 1, false, new DiskHealth(rootDir, 0, 0, 0));
+        Map<ImageSpec, Long> committed = new ConcurrentHashMap<>();
+        pipeline.start(new FilesystemWritePipeline.Placement() {
+            @Override
+            public Optional<FilesystemWritePipeline.Target> place(ImageSpec spec) {
+                return Optional.of(new FilesystemWritePipeline.Target(layout.resolve(rootDir, spec), volume));
+            }
+
+            @Override
+            public void committed(ImageSpec spec, FilesystemWritePipeline.Target target, long size, boolean deduplicated) {
+                assertThat(target.file()).exists();
+                committed.put(spec, size);
+            }
+        });
+
+        awaitUntil(() -> committed.size() == 4 && pipeline.getQueuedBytes() == 0);
+        assertThat(pipeline.canAccept()).isTrue();
+
+        // more directories than remembered, and some deleted in the meantime
+        Files.delete(layout.resolve(rootDir, spec(0)));
+        Files.delete(layout.resolve(rootDir, spec(0)).getParent());
+        for (int i = 4; i < 8; i++) {
+            assertThat(pipeline.submit(spec(i), new byte[IMAGE_SIZE])).isTrue();
+        }
+        awaitUntil(() -> committed.size() == 8);
+        assertThat(pipeline.submit(spec(0), new byte[IMAGE_SIZE])).isTrue();
+        awaitUntil(() -> meterRegistry.timer("kmdah_cache_filesystem_write_latency").count() == 9L);
+
+        for (ImageSpec spec : committed.keySet()) {
+            assertThat(Files.size(layout.resolve(rootDir, spec))).isEqualTo(IMAGE_SIZE);
+            assertThat(layout.resolve(rootDir, spec).resolveSibling(spec.file() + ".tmp")).doesNotExist();
+        }
+        assertThat(committed.values()).containsOnly((long) IMAGE_SIZE);
+    }
+
+    @Test
+    void treatsImagesWrittenConcurrentlyElsewhereAsDuplicates() throws Exception {
+        FilesystemWritePipeline pipeline = new FilesystemWritePipeline(new FilesystemSettings.Writes(1, 1, 4, false, 2), FilesystemObjects.disabled(), new SimpleMeterRegistry());
+        FilesystemLayout layout = FilesystemLayout.from(new FilesystemSettings.Layout(2, 2, false, 0));
+        DiskHealth health = new DiskHealth(rootDir, 0, 0, 0);
+        FilesystemVolume volume = new FilesystemVolume(0, rootDir, 1, false, health);
+
+        Path existing = layout.resolve(rootDir, spec(0));
+        Files.createDirectories(existing.getParent());
+        Files.write(existing, new byte[IMAGE_SIZE]);
+
+        Map<ImageSpec, Long> committed = new ConcurrentHashMap<>();
+        pipeline.start(new FilesystemWritePipeline.Placement() {
+            @Override
+            public Optional<FilesystemWritePipeline.Target> place(ImageSpec spec) {
+                return Optional.of(new FilesystemWritePipeline.Target(layout.resolve(rootDir, spec), volume));
+            }
+
+            @Override
+            public void committed(ImageSpec spec, FilesystemWritePipeline.Target target, long size, boolean deduplicated) {
+                committed.put(spec, size);
+            }
+        });
+
+        CompletableFuture<Void> duplicateWritten = new CompletableFuture<>();
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        assertThat(pipeline.submit(spec(0), new byte[IMAGE_SIZE], duplicateWritten)).isTrue();
+        assertThat(pipeline.submit(spec(1), new byte[IMAGE_SIZE], written)).isTrue();
+
+        // completed once done with, whether committed or not
+        CompletableFuture.allOf(duplicateWritten, written).get(10, TimeUnit.SECONDS);
+        assertThat(committed).containsKey(spec(1));
+        awaitUntil(() -> pipeline.getQueuedBytes() == 0);
+
+        assertThat(committed).doesNotContainKey(spec(0));
+        assertThat(existing.resolveSibling(spec(0).file() + ".tmp")).doesNotExist();
+        assertThat(health.getRecentErrors()).isZero();
+    }
+
+    @Test
+    void dropsWritesToChaptersTrashedInFlightWithoutCountingErrors() throws Exception {
+        FilesystemWritePipeline pipeline = new FilesystemWritePipeline(new FilesystemSettings.Writes(1, 1, 4, false, 2), FilesystemObjects.disabled(), new SimpleMeterRegistry());
+        FilesystemLayout layout = FilesystemLayout.from(new FilesystemSettings.Layout(2, 2, false, 0));
+        DiskHealth health = new DiskHealth(rootDir, 0, 0, 0);
+        FilesystemVolume volume = new FilesystemVolume(0, rootDir, 1, false, health);
+        Path trashed = rootDir.resolve(FilesystemTrash.TRASH_DIR).resolve("chapter");
+        Files.createDirectories(trashed.getParent());
+
+        // both in the same batch, so that the first is staged before its chapter is trashed while placing the second
+        CompletableFuture<Void> trashedWritten = new CompletableFuture<>();
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        assertThat(pipeline.submit(spec(0), new byte[IMAGE_SIZE], trashedWritten)).isTrue();
+        assertThat(pipeline.submit(spec(1), new byte[IMAGE_SIZE], written)).isTrue();
+
+        Map<ImageSpec, Long> committed = new ConcurrentHashMap<>();
+        pipeline.start(new FilesystemWritePipeline.Placement() {
+            @Override
+            public Optional<FilesystemWritePipeline.Target> place(ImageSpec spec) {
+                if (spec.equals(spec(1))) {
+                    try {
+                        Files.move(layout.resolve(rootDir, spec(0)).getParent(), trashed);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return Optional.of(new FilesystemWritePipeline.Target(layout.resolve(rootDir, spec), volume));
+            }
+
+            @Override
+            public void committed(ImageSpec spec, FilesystemWritePipeline.Target target, long size, boolean deduplicated) {
+                committed.put(spec, size);
+            }
+        });
+
+        CompletableFuture.allOf(trashedWritten, written).get(10, TimeUnit.SECONDS);
+        assertThat(committed).containsOnlyKeys(spec(1));
+        assertThat(layout.resolve(rootDir, spec(0))).doesNotExist();
+        assertThat(health.getRecentErrors()).isZero();
+    }
+
+    private static ImageSpec spec(int i) {
+        return new ImageSpec(ImageMode.DATA, List.of("aa", "bb", "cc", "dd").get(i % 4) + i, i + ".png");
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Condition not met in time");
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+}
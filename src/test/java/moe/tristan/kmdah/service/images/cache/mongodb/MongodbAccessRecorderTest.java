@@ -0,0 +1,84 @@
+package moe.tristan.kmdah.service.images.cache.mongodb;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+class MongodbAccessRecorderTest {
+
+    private final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+
+    @Test
+    void coalescesAccessesUntilFlushed() {
+        MongodbAccessRecorder recorder = new MongodbAccessRecorder(mongoTemplate, new MongodbSharding(false), "images", new MongodbSettings.Access(60, 100));
+
+        recorder.recordAccess("a");
+        recorder.recordAccess("a");
+        recorder.recordAccess("b");
+        assertThat(recorder.getPendingCount()).isEqualTo(2);
+        verify(mongoTemplate, never()).updateMulti(any(Query.class), any(Update.class), anyString());
+
+        recorder.flush();
+        assertThat(recorder.getPendingCount()).isZero();
+
+        ArgumentCaptor<Query> gridfsQuery = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate).updateMulti(gridfsQuery.capture(), any(Update.class), eq("fs.files"));
+        assertThat(inValues(gridfsQuery.getValue(), "filename")).containsExactlyInAnyOrder("a", "b");
+
+        ArgumentCaptor<Query> inlineQuery = ArgumentCaptor.forClass(Query.class);
+        verify(mongoTemplate).updateMulti(inlineQuery.capture(), any(Update.class), eq("images"));
+        assertThat(inValues(inlineQuery.getValue(), "_id")).containsExactlyInAnyOrder("a", "b");
+
+        recorder.flush();
+        verify(mongoTemplate, times(2)).updateMulti(any(Query.class), any(Update.class), anyString());
+    }
+
+    @Test
+    void dropsAccessesPastMaxPending() {
+        MongodbAccessRecorder recorder = new MongodbAccessRecorder(mongoTemplate, new MongodbSharding(false), null, new MongodbSettings.Access(60, 2));
+
+        recorder.recordAccess("a");
+        recorder.recordAccess("b");
+        recorder.recordAccess("c");
+        recorder.recordAccess("a");
+
+        assertThat(recorder.getPendingCount()).isEqualTo(2);
+        assertThat(recorder.getDroppedAccesses()).isEqualTo(1);
+
+        recorder.flush();
+        verify(mongoTemplate).updateMulti(any(Query.class), any(Update.class), eq("fs.files"));
+        verify(mongoTemplate, never()).updateMulti(any(Query.class), any(Update.class), eq("images"));
+    }
+
+    @Test
+    void disabled() {
+        MongodbAccessRecorder recorder = new MongodbAccessRecorder(mongoTemplate, new MongodbSharding(false), "images", new MongodbSettings.Access(0, 100));
+
+        recorder.recordAccess("a");
+        recorder.flush();
+
+        assertThat(recorder.isEnabled()).isFalse();
+        verify(mongoTemplate, never()).updateMulti(any(Query.class), any(Update.class), anyString());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> inValues(Query query, String field) {
+        Document criteria = (Document) query.getQueryObject().get(field);
+        return (List<String>) criteria.get("$in");
+    }
+
+}
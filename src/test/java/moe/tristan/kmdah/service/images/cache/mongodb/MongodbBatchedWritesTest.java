@@ -0,0 +1,106 @@
+package moe.tristan.kmdah.service.images.cache.mongodb;
+
+import static java.util.Objects.requireNonNull;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+import static org.springframework.data.mongodb.gridfs.GridFsCriteria.whereFilename;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.http.MediaType;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageSpec;
+
+@Testcontainers
+@DirtiesContext
+@ActiveProfiles("cache-mongodb")
+@SpringBootTest(
+    classes = MongodbConfiguration.class,
+    properties = {
+        "kmdah.cache.mongodb.inline-max-kb=512",
+        "kmdah.cache.mongodb.writes.threads=2",
+        "kmdah.cache.mongodb.writes.linger-millis=50"
+    }
+)
+class MongodbBatchedWritesTest {
+
+    private static final int MONGODB_PORT = 27017;
+
+    @Container
+    private static final GenericContainer<?> MONGODB = new GenericContainer<>("library/mongo:4.4")
+        .withEnv("MONGO_INITDB_ROOT_USERNAME", "kmdah")
+        .withEnv("MONGO_INITDB_ROOT_PASSWORD", "kmdah")
+        .withExposedPorts(MONGODB_PORT);
+
+    @Autowired
+    private MongodbCachedImageService mongodbCachedImageService;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private GridFsTemplate gridFsTemplate;
+
+    @BeforeAll
+    static void beforeAll() {
+        System.setProperty("KMDAH_CACHE_MONGODB_HOST", MONGODB.getHost());
+        System.setProperty("KMDAH_CACHE_MONGODB_PORT", String.valueOf(MONGODB.getMappedPort(MONGODB_PORT)));
+    }
+
+    @Test
+    void storesBatchesOnceAndReadableThroughGridfs() throws IOException {
+        byte[] smallBytes = requireNonNull(getClass().getClassLoader().getResourceAsStream("ref.jpg")).readAllBytes();
+        byte[] largeBytes = Arrays.copyOf(smallBytes, 1024 * 1024);
+        ImageSpec small = new ImageSpec(ImageMode.DATA_SAVER, "batchchapter", "small.jpg");
+        ImageSpec large = new ImageSpec(ImageMode.DATA_SAVER, "batchchapter", "large.jpg");
+
+        // as if two requests filled the same images concurrently
+        for (int i = 0; i < 2; i++) {
+            mongodbCachedImageService.saveImage(small, MediaType.IMAGE_JPEG, new ByteArrayInputStream(smallBytes));
+            mongodbCachedImageService.saveImage(large, MediaType.IMAGE_JPEG, new ByteArrayInputStream(largeBytes));
+        }
+        awaitUntil(() -> mongodbCachedImageService.findImage(small).isPresent() && mongodbCachedImageService.findImage(large).isPresent());
+        awaitUntil(() -> mongodbCachedImageService.getDuplicateWrites() >= 2);
+
+        assertThat(mongoTemplate.count(query(where("_id").is("batchchapter/DATA_SAVER/small.jpg")), MongodbCachedImageService.INLINE_COLLECTION)).isEqualTo(1);
+        assertThat(mongoTemplate.count(query(whereFilename().is("batchchapter/DATA_SAVER/large.jpg")), "fs.files")).isEqualTo(1);
+
+        // written directly, but still in the GridFS format
+        assertThat(gridFsTemplate.getResource(gridFsTemplate.findOne(query(whereFilename().is("batchchapter/DATA_SAVER/large.jpg")))).getInputStream())
+            .hasBinaryContent(largeBytes);
+        assertThat(mongodbCachedImageService.findImage(large).orElseThrow().contentType()).isEqualTo(MediaType.IMAGE_JPEG);
+        assertThat(mongodbCachedImageService.findImage(small).orElseThrow().resource().getInputStream()).hasBinaryContent(smallBytes);
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) {
+        Instant deadline = Instant.now().plus(Duration.ofSeconds(10));
+        while (!condition.getAsBoolean()) {
+            assertThat(Instant.now()).isBefore(deadline);
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+}
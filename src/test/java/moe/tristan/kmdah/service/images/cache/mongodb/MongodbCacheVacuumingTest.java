@@ -3,6 +3,9 @@ package moe.tristan.kmdah.service.images.cache.mongodb;
 import static org.assertj.core.api.Assertions.assertThat;
 
 import java.io.ByteArrayInputStream;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
 import java.util.Random;
 
 import org.junit.jupiter.api.BeforeAll;
@@ -12,6 +15,7 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.http.MediaType;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.ActiveProfiles;
@@ -91,6 +95,38 @@ class MongodbCacheVacuumingTest {
         assertThat(remainingFileCount).isEqualTo(maxFileCount);
     }
 
+    @Test
+    void vacuumEvictsLeastRecentlyAccessedFirst() {
+        mongoTemplate.remove(new Query(), "fs.files");
+        mongoTemplate.remove(new Query(), "fs.chunks");
+
+        byte[] fileBytes = new byte[100 * 1024];
+        new Random().nextBytes(fileBytes);
+        for (int i = 0; i < 3; i++) {
+            ImageSpec spec = new ImageSpec(ImageMode.DATA_SAVER, "lru", "file-" + i);
+            mongodbCachedImageService.saveImage(spec, MediaType.IMAGE_PNG, new ByteArrayInputStream(fileBytes));
+        }
+
+        // file-0 is the oldest upload, but the most recently accessed
+        mongoTemplate.updateFirst(
+            Query.query(Criteria.where("filename").is("lru/DATA_SAVER/file-0")),
+            Update.update("metadata.lastAccess", Date.from(Instant.now().plus(1, ChronoUnit.HOURS))),
+            "fs.files"
+        );
+
+        VacuumingResult vacuum = mongodbCachedImageService.vacuum(new VacuumingRequest(DataSize.ofKilobytes(100)));
+        assertThat(vacuum.deletedFileCount()).isEqualTo(2);
+        assertThat(vacuum.freedSpace()).isEqualTo(DataSize.ofKilobytes(200));
+
+        assertThat(mongodbCachedImageService.findImage(new ImageSpec(ImageMode.DATA_SAVER, "lru", "file-0"))).isPresent();
+        assertThat(mongodbCachedImageService.findImage(new ImageSpec(ImageMode.DATA_SAVER, "lru", "file-1"))).isEmpty();
+        assertThat(mongodbCachedImageService.findImage(new ImageSpec(ImageMode.DATA_SAVER, "lru", "file-2"))).isEmpty();
+        assertThat(mongodbCachedImageService.getVacuumRemainingBytes()).isZero();
+
+        mongoTemplate.remove(new Query(), "fs.files");
+        mongoTemplate.remove(new Query(), "fs.chunks");
+    }
+
     private void fillCacheToSize(DataSize targetSize) {
         int numberOfFilesToCreate = (int) (targetSize.toKilobytes() / 255);
         long perFile = targetSize.toBytes() / numberOfFilesToCreate;
@@ -22,6 +22,9 @@ import moe.tristan.kmdah.mangadex.image.ImageMode;
 import moe.tristan.kmdah.service.images.ImageContent;
 import moe.tristan.kmdah.service.images.ImageSpec;
 import moe.tristan.kmdah.service.images.cache.CacheMode;
+import moe.tristan.kmdah.service.images.cache.ReclaimingRequest;
+import moe.tristan.kmdah.service.images.cache.ReclaimingResult;
+import moe.tristan.kmdah.util.IoBudget;
 
 @Testcontainers
 @DirtiesContext
@@ -76,4 +79,19 @@ class MongodbCachedImageServiceTest {
         assertThat(retrieved.resource().getInputStream()).hasBinaryContent(sampleBytes);
     }
 
+    @Test
+    void deletedChapterIsHiddenThenReclaimed() throws IOException {
+        ImageSpec sampleSpec = new ImageSpec(ImageMode.DATA, "deletedchapterid", "fileno");
+        byte[] sampleBytes = requireNonNull(getClass().getClassLoader().getResourceAsStream("ref.jpg")).readAllBytes();
+        mongodbCachedImageService.saveImage(sampleSpec, MediaType.IMAGE_JPEG, new ByteArrayInputStream(sampleBytes));
+
+        mongodbCachedImageService.deleteChapter(new ImageSpec(ImageMode.DATA, "deletedchapterid", "*"));
+        assertThat(mongodbCachedImageService.findImage(sampleSpec)).isEmpty();
+
+        ReclaimingResult reclaimed = mongodbCachedImageService.reclaim(new ReclaimingRequest(100, IoBudget.unlimited()));
+        assertThat(reclaimed.reclaimedFileCount()).isEqualTo(1L);
+        assertThat(reclaimed.freedSpace().toBytes()).isEqualTo(sampleBytes.length);
+        assertThat(mongodbCachedImageService.reclaim(new ReclaimingRequest(100, IoBudget.unlimited())).reclaimedFileCount()).isZero();
+    }
+
 }
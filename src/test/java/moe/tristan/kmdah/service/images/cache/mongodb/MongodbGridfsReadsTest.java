@@ -0,0 +1,105 @@
+package moe.tristan.kmdah.service.images.cache.mongodb;
+
+import static java.util.Objects.requireNonNull;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+import static org.springframework.data.mongodb.gridfs.GridFsCriteria.whereFilename;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.http.MediaType;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import com.mongodb.client.gridfs.model.GridFSFile;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageContent;
+import moe.tristan.kmdah.service.images.ImageSpec;
+
+@Testcontainers
+@DirtiesContext
+@ActiveProfiles("cache-mongodb")
+@SpringBootTest(
+    classes = MongodbConfiguration.class,
+    properties = {
+        "kmdah.cache.mongodb.reads.metadata-cache-size=100",
+        "kmdah.cache.mongodb.reads.prefetch-chunks=2"
+    }
+)
+class MongodbGridfsReadsTest {
+
+    private static final int MONGODB_PORT = 27017;
+
+    @Container
+    private static final GenericContainer<?> MONGODB = new GenericContainer<>("library/mongo:4.4")
+        .withEnv("MONGO_INITDB_ROOT_USERNAME", "kmdah")
+        .withEnv("MONGO_INITDB_ROOT_PASSWORD", "kmdah")
+        .withExposedPorts(MONGODB_PORT);
+
+    @Autowired
+    private MongodbCachedImageService mongodbCachedImageService;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private GridFsTemplate gridFsTemplate;
+
+    @BeforeAll
+    static void beforeAll() {
+        System.setProperty("KMDAH_CACHE_MONGODB_HOST", MONGODB.getHost());
+        System.setProperty("KMDAH_CACHE_MONGODB_PORT", String.valueOf(MONGODB.getMappedPort(MONGODB_PORT)));
+    }
+
+    @Test
+    void readsChunksInParallelAndCachesMetadata() throws IOException {
+        ImageSpec spec = new ImageSpec(ImageMode.DATA_SAVER, "readschapter", "large.jpg");
+        byte[] bytes = largeImage();
+        mongodbCachedImageService.saveImage(spec, MediaType.IMAGE_JPEG, new ByteArrayInputStream(bytes));
+
+        for (int i = 0; i < 3; i++) {
+            ImageContent content = mongodbCachedImageService.findImage(spec).orElseThrow();
+            assertThat(content.contentLength()).hasValue(bytes.length);
+            assertThat(content.resource().getInputStream()).hasBinaryContent(bytes);
+        }
+        assertThat(mongodbCachedImageService.getMetadataCacheMisses()).isEqualTo(1);
+        assertThat(mongodbCachedImageService.getMetadataCacheHits()).isEqualTo(2);
+
+        mongodbCachedImageService.deleteChapter(new ImageSpec(ImageMode.DATA_SAVER, "readschapter", "*"));
+        assertThat(mongodbCachedImageService.findImage(spec)).isEmpty();
+    }
+
+    @Test
+    void cachedMetadataOfFilesDeletedElsewhereIsDropped() throws IOException {
+        ImageSpec spec = new ImageSpec(ImageMode.DATA_SAVER, "vacuumedchapter", "large.jpg");
+        mongodbCachedImageService.saveImage(spec, MediaType.IMAGE_JPEG, new ByteArrayInputStream(largeImage()));
+        assertThat(mongodbCachedImageService.findImage(spec)).isPresent();
+
+        // as vacuuming by another instance would
+        GridFSFile file = requireNonNull(gridFsTemplate.findOne(query(whereFilename().is("vacuumedchapter/DATA_SAVER/large.jpg"))));
+        mongoTemplate.remove(query(where("_id").is(file.getObjectId())), "fs.files");
+        mongoTemplate.remove(query(where("files_id").is(file.getObjectId())), "fs.chunks");
+
+        assertThat(mongodbCachedImageService.findImage(spec)).isEmpty();
+    }
+
+    private byte[] largeImage() throws IOException {
+        byte[] image = requireNonNull(getClass().getClassLoader().getResourceAsStream("ref.jpg")).readAllBytes();
+        // spans several chunks, the last of which is partial
+        return Arrays.copyOf(image, 5 * 255 * 1024 + 1234);
+    }
+
+}
@@ -0,0 +1,142 @@
+package moe.tristan.kmdah.service.images.cache.mongodb;
+
+import static java.util.Objects.requireNonNull;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+import static org.springframework.data.mongodb.gridfs.GridFsCriteria.whereFilename;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.http.MediaType;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageContent;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.ScrubbingRequest;
+import moe.tristan.kmdah.service.images.cache.ScrubbingResult;
+import moe.tristan.kmdah.util.IoBudget;
+
+@Testcontainers
+@DirtiesContext
+@ActiveProfiles("cache-mongodb")
+@SpringBootTest(
+    classes = MongodbConfiguration.class,
+    properties = "kmdah.cache.mongodb.inline-max-kb=2048"
+)
+class MongodbInlineImagesTest {
+
+    private static final int MONGODB_PORT = 27017;
+
+    @Container
+    private static final GenericContainer<?> MONGODB = new GenericContainer<>("library/mongo:4.4")
+        .withEnv("MONGO_INITDB_ROOT_USERNAME", "kmdah")
+        .withEnv("MONGO_INITDB_ROOT_PASSWORD", "kmdah")
+        .withExposedPorts(MONGODB_PORT);
+
+    @Autowired
+    private MongodbCachedImageService mongodbCachedImageService;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private GridFsTemplate gridFsTemplate;
+
+    @BeforeAll
+    static void beforeAll() {
+        System.setProperty("KMDAH_CACHE_MONGODB_HOST", MONGODB.getHost());
+        System.setProperty("KMDAH_CACHE_MONGODB_PORT", String.valueOf(MONGODB.getMappedPort(MONGODB_PORT)));
+    }
+
+    @Test
+    void smallImagesAreInlinedAndLargeOnesGoToGridfs() throws IOException {
+        ImageSpec small = new ImageSpec(ImageMode.DATA_SAVER, "inlinechapter", "small.jpg");
+        byte[] smallBytes = requireNonNull(getClass().getClassLoader().getResourceAsStream("ref.jpg")).readAllBytes();
+        ImageSpec large = new ImageSpec(ImageMode.DATA_SAVER, "inlinechapter", "large.jpg");
+        byte[] largeBytes = Arrays.copyOf(smallBytes, 3 * 1024 * 1024);
+
+        mongodbCachedImageService.saveImage(small, MediaType.IMAGE_JPEG, new ByteArrayInputStream(smallBytes));
+        mongodbCachedImageService.saveImage(large, MediaType.IMAGE_JPEG, new ByteArrayInputStream(largeBytes));
+
+        assertThat(mongoTemplate.exists(query(where("_id").is("inlinechapter/DATA_SAVER/small.jpg")), MongodbCachedImageService.INLINE_COLLECTION)).isTrue();
+        assertThat(gridFsTemplate.find(query(whereFilename().is("inlinechapter/DATA_SAVER/large.jpg"))).first()).isNotNull();
+
+        ImageContent smallContent = mongodbCachedImageService.findImage(small).orElseThrow();
+        assertThat(smallContent.contentType()).isEqualTo(MediaType.IMAGE_JPEG);
+        assertThat(smallContent.contentLength()).hasValue(smallBytes.length);
+        assertThat(smallContent.resource().getInputStream()).hasBinaryContent(smallBytes);
+        assertThat(mongodbCachedImageService.findImage(large).orElseThrow().resource().getInputStream()).hasBinaryContent(largeBytes);
+
+        mongodbCachedImageService.deleteChapter(new ImageSpec(ImageMode.DATA_SAVER, "inlinechapter", "*"));
+        assertThat(mongodbCachedImageService.findImage(small)).isEmpty();
+        assertThat(mongodbCachedImageService.findImage(large)).isEmpty();
+    }
+
+    @Test
+    void imagesStoredBeforeShardingAreGivenTheirChapter() {
+        mongoTemplate.insert(new Document("_id", "legacychapter/DATA/1.png"), MongodbCachedImageService.INLINE_COLLECTION);
+        mongoTemplate.insert(new Document("_id", "deleted:legacychapter/DATA/2.png"), MongodbCachedImageService.INLINE_COLLECTION);
+        mongoTemplate.insert(new Document("_id", "sha256/abc"), MongodbCachedImageService.INLINE_COLLECTION);
+        mongoTemplate.insert(new Document("filename", "legacychapter/DATA/3.png").append("metadata", new Document()), "fs.files");
+
+        MongodbSharding.backfillChapters(mongoTemplate, false, true);
+
+        assertThat(chapterOf("legacychapter/DATA/1.png")).isEqualTo("legacychapter");
+        assertThat(chapterOf("deleted:legacychapter/DATA/2.png")).isEqualTo("legacychapter");
+        assertThat(chapterOf("sha256/abc")).isEqualTo("abc");
+        Document file = mongoTemplate.findOne(query(where("filename").is("legacychapter/DATA/3.png")), Document.class, "fs.files");
+        assertThat(requireNonNull(file).get("metadata", Document.class).getString("chapter")).isEqualTo("legacychapter");
+
+        mongoTemplate.remove(query(where(MongodbSharding.DOCUMENTS_KEY).is("legacychapter")), MongodbCachedImageService.INLINE_COLLECTION);
+        mongoTemplate.remove(query(where("filename").is("legacychapter/DATA/3.png")), "fs.files");
+    }
+
+    @Test
+    void inlineImagesAreScrubbedAfterGridfsFiles() throws IOException {
+        byte[] bytes = requireNonNull(getClass().getClassLoader().getResourceAsStream("ref.jpg")).readAllBytes();
+        ImageSpec intact = new ImageSpec(ImageMode.DATA_SAVER, "scrubbedchapter", "intact.jpg");
+        ImageSpec corrupted = new ImageSpec(ImageMode.DATA_SAVER, "scrubbedchapter", "corrupted.jpg");
+        mongodbCachedImageService.saveImage(intact, MediaType.IMAGE_JPEG, new ByteArrayInputStream(bytes));
+        mongodbCachedImageService.saveImage(corrupted, MediaType.IMAGE_JPEG, new ByteArrayInputStream(bytes));
+        mongoTemplate.updateFirst(
+            query(where("_id").is("scrubbedchapter/DATA_SAVER/corrupted.jpg")),
+            Update.update("data", new Binary(Arrays.copyOf(bytes, bytes.length / 2))),
+            MongodbCachedImageService.INLINE_COLLECTION
+        );
+
+        ScrubbingResult gridfsPass = mongodbCachedImageService.scrub(new ScrubbingRequest(null, 1000, IoBudget.unlimited()));
+        assertThat(gridfsPass.nextCursor()).isEqualTo(MongodbCachedImageService.INLINE_SCRUB_CURSOR);
+
+        ScrubbingResult inlinePass = mongodbCachedImageService.scrub(new ScrubbingRequest(gridfsPass.nextCursor(), 1000, IoBudget.unlimited()));
+        assertThat(inlinePass.nextCursor()).isNull();
+        assertThat(inlinePass.corruptedFileCount()).isEqualTo(1L);
+        assertThat(inlinePass.evicted()).containsExactly(corrupted);
+        assertThat(mongodbCachedImageService.findImage(corrupted)).isEmpty();
+        assertThat(mongodbCachedImageService.findImage(intact)).isPresent();
+
+        mongodbCachedImageService.deleteChapter(new ImageSpec(ImageMode.DATA_SAVER, "scrubbedchapter", "*"));
+    }
+
+    private String chapterOf(String name) {
+        Document image = mongoTemplate.findById(name, Document.class, MongodbCachedImageService.INLINE_COLLECTION);
+        return requireNonNull(image).getString(MongodbSharding.DOCUMENTS_KEY);
+    }
+
+}
@@ -0,0 +1,49 @@
+package moe.tristan.kmdah.service.images.cache.mongodb;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ServerConnectionState;
+import com.mongodb.connection.ServerDescription;
+import com.mongodb.connection.ServerId;
+import com.mongodb.connection.ServerType;
+import com.mongodb.event.ServerDescriptionChangedEvent;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class MongodbMemberMetricsTest {
+
+    @Test
+    void reportsLatencyAndRoleOfEachMember() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        MongodbMemberMetrics memberMetrics = new MongodbMemberMetrics(meterRegistry);
+
+        memberMetrics.serverDescriptionChanged(changed("mongo-0:27017", ServerType.REPLICA_SET_PRIMARY, 1500));
+        memberMetrics.serverDescriptionChanged(changed("mongo-1:27017", ServerType.REPLICA_SET_SECONDARY, 800));
+        memberMetrics.serverDescriptionChanged(changed("mongo-1:27017", ServerType.REPLICA_SET_SECONDARY, 600));
+
+        assertThat(meterRegistry.get("kmdah_cache_mongodb_member_latency_micros").tag("member", "mongo-0:27017").gauge().value()).isEqualTo(1500.0);
+        assertThat(meterRegistry.get("kmdah_cache_mongodb_member_latency_micros").tag("member", "mongo-1:27017").gauge().value()).isEqualTo(600.0);
+        assertThat(meterRegistry.get("kmdah_cache_mongodb_member_primary").tag("member", "mongo-0:27017").gauge().value()).isEqualTo(1.0);
+        assertThat(meterRegistry.get("kmdah_cache_mongodb_member_primary").tag("member", "mongo-1:27017").gauge().value()).isEqualTo(0.0);
+    }
+
+    private static ServerDescriptionChangedEvent changed(String member, ServerType type, long latencyMicros) {
+        ServerAddress address = new ServerAddress(member);
+        ServerDescription description = ServerDescription.builder()
+            .address(address)
+            .state(ServerConnectionState.CONNECTED)
+            .ok(true)
+            .type(type)
+            .roundTripTime(latencyMicros, TimeUnit.MICROSECONDS)
+            .build();
+        ServerDescription previous = ServerDescription.builder().address(address).state(ServerConnectionState.CONNECTING).build();
+        return new ServerDescriptionChangedEvent(new ServerId(new ClusterId(), address), description, previous);
+    }
+
+}
@@ -0,0 +1,48 @@
+package moe.tristan.kmdah.service.images.cache.mongodb;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.query.Query;
+
+class MongodbShardingTest {
+
+    @Test
+    void chapterOfImagesAndObjects() {
+        assertThat(MongodbSharding.chapterOf("8f3a/DATA/x1-abc.png")).isEqualTo("8f3a");
+        assertThat(MongodbSharding.chapterOf("deleted:8f3a/DATA/x1-abc.png")).isEqualTo("8f3a");
+        assertThat(MongodbSharding.chapterOf("8f3a/DATA_SAVER/")).isEqualTo("8f3a");
+        assertThat(MongodbSharding.chapterOf("sha256/abc")).isEqualTo("abc");
+        assertThat(MongodbSharding.chapterOf("deleted:sha256/abc")).isEqualTo("abc");
+    }
+
+    @Test
+    void targetsShardsOwningNames() {
+        MongodbSharding sharding = new MongodbSharding(true);
+
+        Query single = sharding.targetDocuments(query(where("_id").is("8f3a/DATA/1.png")), List.of("8f3a/DATA/1.png"));
+        assertThat(single.getQueryObject().get(MongodbSharding.DOCUMENTS_KEY)).isEqualTo("8f3a");
+
+        Query several = sharding.targetFiles(
+            query(where("filename").in("8f3a/DATA/1.png", "8f3a/DATA/2.png", "b7c1/DATA/1.png")),
+            List.of("8f3a/DATA/1.png", "8f3a/DATA/2.png", "b7c1/DATA/1.png")
+        );
+        Document chapters = several.getQueryObject().get(MongodbSharding.FILES_KEY, Document.class);
+        assertThat(chapters.get("$in", Collection.class)).containsExactly("8f3a", "b7c1");
+    }
+
+    @Test
+    void leavesQueriesAsIsWhenDisabled() {
+        MongodbSharding sharding = new MongodbSharding(false);
+
+        Query query = sharding.targetFiles(query(where("filename").is("8f3a/DATA/1.png")), List.of("8f3a/DATA/1.png"));
+        assertThat(query.getQueryObject().keySet()).containsExactly("filename");
+    }
+
+}
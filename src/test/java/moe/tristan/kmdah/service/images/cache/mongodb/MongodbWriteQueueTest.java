@@ -0,0 +1,114 @@
+package moe.tristan.kmdah.service.images.cache.mongodb;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageSpec;
+
+class MongodbWriteQueueTest {
+
+    private static final int ONE_MB = 1024 * 1024;
+
+    @Test
+    void writesInBackground() {
+        MongodbWriteQueue queue = new MongodbWriteQueue(new MongodbSettings.Writes(2, 4, 64, 5, "acknowledged"), new SimpleMeterRegistry());
+        List<ImageSpec> written = new CopyOnWriteArrayList<>();
+        queue.start(batch -> batch.forEach(write -> written.add(write.spec())));
+
+        ImageSpec spec = new ImageSpec(ImageMode.DATA, "chapter", "file.png");
+        assertThat(queue.isAsync()).isTrue();
+        assertThat(queue.submit(spec, MediaType.IMAGE_PNG, new byte[128])).isTrue();
+
+        awaitUntil(() -> written.contains(spec) && queue.getQueuedBytes() == 0);
+    }
+
+    @Test
+    void refusesWritesPastMaxQueuedBytes() throws InterruptedException {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        MongodbWriteQueue queue = new MongodbWriteQueue(new MongodbSettings.Writes(1, 2, 64, 5, "acknowledged"), meterRegistry);
+
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        queue.start(batch -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        assertThat(queue.submit(spec(1), MediaType.IMAGE_PNG, new byte[ONE_MB])).isTrue();
+        blocked.await();
+        assertThat(queue.submit(spec(2), MediaType.IMAGE_PNG, new byte[ONE_MB])).isTrue();
+
+        assertThat(queue.canAccept()).isFalse();
+        assertThat(queue.submit(spec(3), MediaType.IMAGE_PNG, new byte[1])).isFalse();
+        assertThat(meterRegistry.get("kmdah_cache_mongodb_write_dropped").tag("reason", "queue_full").counter().count()).isEqualTo(1.0);
+
+        release.countDown();
+        awaitUntil(() -> queue.getQueuedBytes() == 0);
+        assertThat(queue.canAccept()).isTrue();
+    }
+
+    @Test
+    void batchesWritesSubmittedTogether() {
+        MongodbWriteQueue queue = new MongodbWriteQueue(new MongodbSettings.Writes(1, 4, 64, 500, "acknowledged"), new SimpleMeterRegistry());
+        List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        queue.start(batch -> batchSizes.add(batch.size()));
+
+        for (int page = 0; page < 3; page++) {
+            assertThat(queue.submit(spec(page), MediaType.IMAGE_PNG, new byte[16 * 1024])).isTrue();
+        }
+        // a fourth image goes past the batch size limit, and thus in another batch
+        assertThat(queue.submit(spec(3), MediaType.IMAGE_PNG, new byte[16 * 1024])).isTrue();
+        assertThat(queue.submit(spec(4), MediaType.IMAGE_PNG, new byte[16 * 1024])).isTrue();
+
+        awaitUntil(() -> batchSizes.stream().mapToInt(Integer::intValue).sum() == 5);
+        assertThat(batchSizes).containsExactly(4, 1);
+    }
+
+    @Test
+    void rejectsUnknownWriteConcern() {
+        MongodbSettings.Writes settings = new MongodbSettings.Writes(1, 4, 64, 5, "whenever");
+        assertThatThrownBy(() -> new MongodbWriteQueue(settings, new SimpleMeterRegistry())).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void synchronousWhenNoThreads() {
+        MongodbWriteQueue queue = new MongodbWriteQueue(new MongodbSettings.Writes(0, 0, 64, 5, "acknowledged"), new SimpleMeterRegistry());
+        assertThat(queue.isAsync()).isFalse();
+        assertThat(queue.canAccept()).isTrue();
+    }
+
+    private static ImageSpec spec(int page) {
+        return new ImageSpec(ImageMode.DATA_SAVER, "chapter", page + ".png");
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) {
+        Instant deadline = Instant.now().plus(Duration.ofSeconds(10));
+        while (!condition.getAsBoolean()) {
+            assertThat(Instant.now()).isBefore(deadline);
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+}
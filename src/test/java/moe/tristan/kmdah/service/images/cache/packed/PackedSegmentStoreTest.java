@@ -0,0 +1,140 @@
+package moe.tristan.kmdah.service.images.cache.packed;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.MediaType;
+import org.springframework.util.unit.DataSize;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.VacuumingResult;
+
+class PackedSegmentStoreTest {
+
+    private static final int IMAGE_SIZE = 300 * 1024;
+
+    @TempDir
+    Path rootDir;
+
+    @Test
+    void putFindAndReopen() throws IOException {
+        ImageSpec spec = new ImageSpec(ImageMode.DATA, "chapter", "1.png");
+        byte[] content = randomBytes(1, IMAGE_SIZE);
+
+        try (PackedSegmentStore store = PackedSegmentStore.open(settings(0.5))) {
+            assertThat(store.find(spec)).isEmpty();
+            assertThat(store.put(spec, content)).isTrue();
+            assertThat(store.put(spec, content)).isFalse();
+
+            PackedImage image = store.find(spec).orElseThrow();
+            assertThat(image.getMediaType()).isEqualTo(MediaType.IMAGE_PNG);
+            assertThat(image.contentLength()).isEqualTo(IMAGE_SIZE);
+            assertThat(image.getInputStream().readAllBytes()).isEqualTo(content);
+        }
+
+        try (PackedSegmentStore store = PackedSegmentStore.open(settings(0.5))) {
+            assertThat(store.find(spec).orElseThrow().getInputStream().readAllBytes()).isEqualTo(content);
+        }
+    }
+
+    @Test
+    void rebuildsIndexAndDropsTornTailAfterCrash() throws IOException {
+        ImageSpec kept = new ImageSpec(ImageMode.DATA, "chapter", "1.png");
+        ImageSpec deleted = new ImageSpec(ImageMode.DATA, "chapter", "2.png");
+
+        PackedSegmentStore crashed = PackedSegmentStore.open(settings(0.5));
+        crashed.put(kept, randomBytes(1, IMAGE_SIZE));
+        crashed.put(deleted, randomBytes(2, IMAGE_SIZE));
+        crashed.delete(deleted);
+
+        // a record that was being appended when crashing
+        Path segment = rootDir.resolve("0000000000.pack");
+        long validSize = Files.size(segment);
+        Files.write(segment, randomBytes(3, 100), StandardOpenOption.APPEND);
+
+        try (PackedSegmentStore store = PackedSegmentStore.open(settings(0.5))) {
+            assertThat(store.imageCount()).isEqualTo(1L);
+            assertThat(store.find(kept).orElseThrow().getInputStream().readAllBytes()).isEqualTo(randomBytes(1, IMAGE_SIZE));
+            assertThat(store.find(deleted)).isEmpty();
+            assertThat(Files.size(segment)).isEqualTo(validSize);
+        }
+    }
+
+    @Test
+    void compactsSegmentsWithDeletedImages() throws IOException {
+        try (PackedSegmentStore store = PackedSegmentStore.open(settings(0.5))) {
+            for (int i = 0; i < 6; i++) {
+                store.put(new ImageSpec(ImageMode.DATA, i < 3 ? "deleted" : "kept", i + ".png"), randomBytes(i, IMAGE_SIZE));
+            }
+            assertThat(store.segmentCount()).isEqualTo(2);
+
+            store.deleteChapter(ImageMode.DATA, "deleted");
+            assertThat(store.find(new ImageSpec(ImageMode.DATA, "deleted", "0.png"))).isEmpty();
+            assertThat(store.imageCount()).isEqualTo(6L);
+
+            assertThat(store.purgeDeletedChapters()).isEqualTo(3);
+            assertThat(store.compact()).isGreaterThanOrEqualTo(3L * IMAGE_SIZE);
+
+            assertThat(store.imageCount()).isEqualTo(3L);
+            for (int i = 3; i < 6; i++) {
+                ImageSpec spec = new ImageSpec(ImageMode.DATA, "kept", i + ".png");
+                assertThat(store.find(spec).orElseThrow().getInputStream().readAllBytes()).isEqualTo(randomBytes(i, IMAGE_SIZE));
+            }
+        }
+    }
+
+    @Test
+    void keepsDeletedChaptersHiddenAcrossRestartsUntilPurged() throws IOException {
+        ImageSpec deleted = new ImageSpec(ImageMode.DATA, "deleted", "1.png");
+        try (PackedSegmentStore store = PackedSegmentStore.open(settings(0.5))) {
+            store.put(deleted, randomBytes(1, IMAGE_SIZE));
+            store.deleteChapter(ImageMode.DATA, "deleted");
+        }
+
+        try (PackedSegmentStore store = PackedSegmentStore.open(settings(0.5))) {
+            assertThat(store.find(deleted)).isEmpty();
+            assertThat(store.put(deleted, randomBytes(1, IMAGE_SIZE))).isFalse();
+            assertThat(store.purgeDeletedChapters()).isEqualTo(1);
+            assertThat(store.imageCount()).isZero();
+
+            assertThat(store.put(deleted, randomBytes(1, IMAGE_SIZE))).isTrue();
+            assertThat(store.find(deleted)).isPresent();
+        }
+    }
+
+    @Test
+    void evictsOldestSegments() throws IOException {
+        try (PackedSegmentStore store = PackedSegmentStore.open(settings(0.5))) {
+            for (int i = 0; i < 9; i++) {
+                store.put(new ImageSpec(ImageMode.DATA_SAVER, "chapter", i + ".jpg"), randomBytes(i, IMAGE_SIZE));
+            }
+            assertThat(store.segmentCount()).isEqualTo(3);
+
+            VacuumingResult result = store.evictOldestSegments(DataSize.ofMegabytes(2));
+
+            assertThat(result.deletedFileCount()).isEqualTo(3L);
+            assertThat(store.segmentCount()).isEqualTo(2);
+            assertThat(store.find(new ImageSpec(ImageMode.DATA_SAVER, "chapter", "0.jpg"))).isEmpty();
+            assertThat(store.find(new ImageSpec(ImageMode.DATA_SAVER, "chapter", "8.jpg"))).isPresent();
+        }
+    }
+
+    private PackedSettings settings(double compactionThreshold) {
+        return new PackedSettings(rootDir, 1, 100, compactionThreshold, 60);
+    }
+
+    private static byte[] randomBytes(long seed, int size) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,128 @@
+package moe.tristan.kmdah.service.images.cache.redis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.http.MediaType;
+import org.springframework.util.unit.DataSize;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageContent;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.ReclaimingRequest;
+import moe.tristan.kmdah.service.images.cache.ReclaimingResult;
+import moe.tristan.kmdah.util.IoBudget;
+
+@Testcontainers
+class RedisCachedImageServiceTest {
+
+    private static final int REDIS_PORT = 6379;
+
+    @Container
+    private static final GenericContainer<?> REDIS = new GenericContainer<>("redis:6.0").withExposedPorts(REDIS_PORT);
+
+    private static RedisCachedImageService redisCachedImageService;
+    private static StringRedisTemplate redisTemplate;
+
+    @BeforeAll
+    static void beforeAll() {
+        LettuceConnectionFactory connectionFactory = new LettuceConnectionFactory(REDIS.getHost(), REDIS.getMappedPort(REDIS_PORT));
+        connectionFactory.afterPropertiesSet();
+
+        RedisCacheSettings settings = new RedisCacheSettings("kmdah-images", 64, 3600, true);
+        redisCachedImageService = new RedisCachedImageService(connectionFactory, settings, new SimpleMeterRegistry());
+        redisTemplate = new StringRedisTemplate(connectionFactory);
+    }
+
+    @Test
+    void storesAndReadsImages() throws Exception {
+        byte[] content = randomBytes(DataSize.ofKilobytes(16));
+        ImageSpec spec = new ImageSpec(ImageMode.DATA_SAVER, "redischapter", "small.jpg");
+
+        assertThat(redisCachedImageService.findImage(spec)).isEmpty();
+        redisCachedImageService.saveImage(spec, MediaType.IMAGE_JPEG, new ByteArrayInputStream(content));
+
+        ImageContent found = redisCachedImageService.findImage(spec).orElseThrow();
+        assertThat(found.contentType()).isEqualTo(MediaType.IMAGE_JPEG);
+        assertThat(found.contentLength()).hasValue(content.length);
+        assertThat(found.resource().getInputStream()).hasBinaryContent(content);
+    }
+
+    @Test
+    void skipsLargeAndDataModeImages() {
+        ImageSpec large = new ImageSpec(ImageMode.DATA_SAVER, "redischapter", "large.jpg");
+        redisCachedImageService.saveImage(large, MediaType.IMAGE_JPEG, new ByteArrayInputStream(randomBytes(DataSize.ofKilobytes(65))));
+        assertThat(redisCachedImageService.findImage(large)).isEmpty();
+
+        ImageSpec data = new ImageSpec(ImageMode.DATA, "redischapter", "data.jpg");
+        redisCachedImageService.saveImage(data, MediaType.IMAGE_JPEG, new ByteArrayInputStream(randomBytes(DataSize.ofKilobytes(1))));
+        assertThat(redisCachedImageService.findImage(data)).isEmpty();
+    }
+
+    @Test
+    void hidesDeletedChaptersUntilReclaimed() {
+        ImageSpec deleted = new ImageSpec(ImageMode.DATA_SAVER, "deletedchapter", "1.png");
+        ImageSpec kept = new ImageSpec(ImageMode.DATA_SAVER, "keptchapter", "1.png");
+        redisCachedImageService.saveImage(deleted, MediaType.IMAGE_PNG, new ByteArrayInputStream(randomBytes(DataSize.ofKilobytes(2))));
+        redisCachedImageService.saveImage(kept, MediaType.IMAGE_PNG, new ByteArrayInputStream(randomBytes(DataSize.ofKilobytes(2))));
+
+        redisCachedImageService.deleteChapter(deleted);
+        assertThat(redisCachedImageService.findImage(deleted)).isEmpty();
+        assertThat(redisCachedImageService.findImage(kept)).isPresent();
+
+        ReclaimingResult reclaimed = redisCachedImageService.reclaim(new ReclaimingRequest(100, IoBudget.unlimited()));
+        assertThat(reclaimed.reclaimedFileCount()).isEqualTo(1L);
+        assertThat(reclaimed.freedSpace()).isEqualTo(DataSize.ofKilobytes(2));
+        assertThat(redisCachedImageService.reclaim(new ReclaimingRequest(100, IoBudget.unlimited()))).isEqualTo(ReclaimingResult.nothing());
+
+        // the tombstone is gone, so storing the chapter again makes it visible again
+        redisCachedImageService.saveImage(deleted, MediaType.IMAGE_PNG, new ByteArrayInputStream(randomBytes(DataSize.ofKilobytes(2))));
+        assertThat(redisCachedImageService.findImage(deleted)).isPresent();
+        assertThat(redisCachedImageService.findImage(kept)).isPresent();
+    }
+
+    @Test
+    void stopsRefreshingImagesOfDeletedChapters() {
+        ImageSpec spec = new ImageSpec(ImageMode.DATA_SAVER, "expiringchapter", "1.png");
+        redisCachedImageService.saveImage(spec, MediaType.IMAGE_PNG, new ByteArrayInputStream(randomBytes(DataSize.ofKilobytes(2))));
+        redisTemplate.expire("kmdah-images:DATA_SAVER:expiringchapter:1.png", Duration.ofSeconds(60));
+
+        redisCachedImageService.deleteChapter(spec);
+        assertThat(redisCachedImageService.findImage(spec)).isEmpty();
+        assertThat(redisTemplate.getExpire("kmdah-images:DATA_SAVER:expiringchapter:1.png")).isLessThanOrEqualTo(60L);
+    }
+
+    @Test
+    void keepsTombstonesOfPartiallyReclaimedChapters() {
+        ImageSpec first = new ImageSpec(ImageMode.DATA_SAVER, "partialchapter", "1.png");
+        ImageSpec second = new ImageSpec(ImageMode.DATA_SAVER, "partialchapter", "2.png");
+        redisCachedImageService.saveImage(first, MediaType.IMAGE_PNG, new ByteArrayInputStream(randomBytes(DataSize.ofKilobytes(1))));
+        redisCachedImageService.saveImage(second, MediaType.IMAGE_PNG, new ByteArrayInputStream(randomBytes(DataSize.ofKilobytes(1))));
+        redisCachedImageService.deleteChapter(first);
+
+        assertThat(redisCachedImageService.reclaim(new ReclaimingRequest(1, IoBudget.unlimited())).reclaimedFileCount()).isEqualTo(1L);
+        assertThat(redisTemplate.hasKey("kmdah-images-deleted:DATA_SAVER:partialchapter")).isTrue();
+
+        assertThat(redisCachedImageService.reclaim(new ReclaimingRequest(2, IoBudget.unlimited())).reclaimedFileCount()).isEqualTo(1L);
+        assertThat(redisTemplate.hasKey("kmdah-images-deleted:DATA_SAVER:partialchapter")).isFalse();
+    }
+
+    private static byte[] randomBytes(DataSize size) {
+        byte[] bytes = new byte[(int) size.toBytes()];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        return bytes;
+    }
+
+}
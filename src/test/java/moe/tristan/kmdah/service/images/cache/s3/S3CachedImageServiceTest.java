@@ -0,0 +1,128 @@
+package moe.tristan.kmdah.service.images.cache.s3;
+
+import static java.util.Objects.requireNonNull;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.util.unit.DataSize;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageContent;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.VacuumingRequest;
+import moe.tristan.kmdah.service.images.cache.VacuumingResult;
+
+@Testcontainers
+class S3CachedImageServiceTest {
+
+    private static final int MINIO_PORT = 9000;
+
+    @Container
+    private static final GenericContainer<?> MINIO = new GenericContainer<>("minio/minio:RELEASE.2021-02-14T04-01-33Z")
+        .withEnv("MINIO_ROOT_USER", "kmdah")
+        .withEnv("MINIO_ROOT_PASSWORD", "kmdah-secret")
+        .withCommand("server", "/data")
+        .withExposedPorts(MINIO_PORT);
+
+    private static S3CachedImageService s3CachedImageService;
+
+    @BeforeAll
+    static void beforeAll() {
+        S3Settings settings = new S3Settings(
+            "http://" + MINIO.getHost() + ":" + MINIO.getMappedPort(MINIO_PORT),
+            "us-east-1",
+            "kmdah",
+            "images",
+            "kmdah",
+            "kmdah-secret",
+            true,
+            8,
+            new S3Settings.Uploads(5, 5, 64),
+            new S3Settings.Vacuum(0)
+        );
+        S3Client client = new S3Client(settings);
+        client.ensureBucket();
+        s3CachedImageService = new S3CachedImageService(client, settings);
+    }
+
+    @Test
+    void storesAndStreamsImages() throws IOException {
+        byte[] content = requireNonNull(getClass().getClassLoader().getResourceAsStream("ref.jpg")).readAllBytes();
+        ImageSpec spec = new ImageSpec(ImageMode.DATA, "s3chapter", "small.jpg");
+
+        assertThat(s3CachedImageService.findImage(spec)).isEmpty();
+        s3CachedImageService.saveImage(spec, MediaType.IMAGE_JPEG, new ByteArrayInputStream(content));
+        awaitUntil(() -> s3CachedImageService.findImage(spec).isPresent());
+
+        ImageContent found = s3CachedImageService.findImage(spec).orElseThrow();
+        assertThat(found.contentType()).isEqualTo(MediaType.IMAGE_JPEG);
+        assertThat(found.contentLength()).hasValue(content.length);
+        assertThat(found.resource().getInputStream()).hasBinaryContent(content);
+
+        // as done to serve range requests
+        try (InputStream ranged = s3CachedImageService.findImage(spec).orElseThrow().resource().getInputStream()) {
+            assertThat(ranged.skip(100)).isEqualTo(100);
+            assertThat(ranged.readAllBytes()).isEqualTo(Arrays.copyOfRange(content, 100, content.length));
+        }
+    }
+
+    @Test
+    void uploadsLargeImagesInParts() throws IOException {
+        byte[] content = Arrays.copyOf(requireNonNull(getClass().getClassLoader().getResourceAsStream("ref.jpg")).readAllBytes(), 12 * 1024 * 1024);
+        ImageSpec spec = new ImageSpec(ImageMode.DATA, "s3chapter", "large.jpg");
+
+        s3CachedImageService.saveImage(spec, MediaType.IMAGE_JPEG, new ByteArrayInputStream(content));
+        awaitUntil(() -> s3CachedImageService.findImage(spec).isPresent());
+
+        assertThat(s3CachedImageService.findImage(spec).orElseThrow().resource().getInputStream()).hasBinaryContent(content);
+        assertThat(s3CachedImageService.getFailedUploads()).isZero();
+    }
+
+    @Test
+    void deletesChaptersAndVacuums() {
+        byte[] content = new byte[1024];
+        ImageSpec first = new ImageSpec(ImageMode.DATA_SAVER, "s3deleted", "1.jpg");
+        ImageSpec second = new ImageSpec(ImageMode.DATA_SAVER, "s3deleted", "2.jpg");
+        ImageSpec other = new ImageSpec(ImageMode.DATA_SAVER, "s3vacuumed", "1.jpg");
+        for (ImageSpec spec : new ImageSpec[]{first, second, other}) {
+            s3CachedImageService.saveImage(spec, MediaType.IMAGE_JPEG, new ByteArrayInputStream(content));
+        }
+        awaitUntil(() -> s3CachedImageService.getPendingBytes() == 0);
+
+        s3CachedImageService.deleteChapter(new ImageSpec(ImageMode.DATA_SAVER, "s3deleted", "*"));
+        assertThat(s3CachedImageService.findImage(first)).isEmpty();
+        assertThat(s3CachedImageService.findImage(second)).isEmpty();
+        assertThat(s3CachedImageService.findImage(other)).isPresent();
+
+        VacuumingResult result = s3CachedImageService.vacuum(new VacuumingRequest(DataSize.ofBytes(0L)));
+        assertThat(result.deletedFileCount()).isPositive();
+        assertThat(s3CachedImageService.findImage(other)).isEmpty();
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) {
+        Instant deadline = Instant.now().plus(Duration.ofSeconds(10));
+        while (!condition.getAsBoolean()) {
+            assertThat(Instant.now()).isBefore(deadline);
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+}
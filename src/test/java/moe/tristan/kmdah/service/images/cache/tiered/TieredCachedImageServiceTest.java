@@ -0,0 +1,202 @@
+package moe.tristan.kmdah.service.images.cache.tiered;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.MediaType;
+import org.springframework.util.unit.DataSize;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageContent;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.CacheBackend;
+import moe.tristan.kmdah.service.images.cache.CacheMode;
+import moe.tristan.kmdah.service.images.cache.CachedImageService;
+import moe.tristan.kmdah.service.images.cache.VacuumingRequest;
+import moe.tristan.kmdah.service.images.cache.VacuumingResult;
+
+class TieredCachedImageServiceTest {
+
+    private static final ImageSpec SPEC = new ImageSpec(ImageMode.DATA, "chapter", "1.png");
+    private static final byte[] CONTENT = {1, 2, 3, 4};
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void promotesLowerTierHitsOnceServed() throws Exception {
+        InMemoryTier upper = new InMemoryTier(0L);
+        InMemoryTier lower = new InMemoryTier(0L);
+        lower.images.put(SPEC, CONTENT);
+        TieredCachedImageService tiered = tiered(upper, lower);
+
+        ImageContent found = tiered.findImage(SPEC).orElseThrow();
+        assertThat(upper.images).isEmpty();
+        assertThat(found.resource().getInputStream()).hasBinaryContent(CONTENT);
+
+        // counted once saved
+        awaitUntil(() -> meterRegistry.counter("kmdah_cache_tier_promotions", "tier", "0-filesystem").count() == 1.0);
+        assertThat(upper.images).containsKey(SPEC);
+        assertThat(meterRegistry.timer("kmdah_cache_tier_lookup", "tier", "1-mongodb", "result", "hit").count()).isEqualTo(1L);
+
+        // then served by the upper tier only
+        assertThat(tiered.findImage(SPEC)).isPresent();
+        assertThat(meterRegistry.timer("kmdah_cache_tier_lookup", "tier", "0-filesystem", "result", "hit").count()).isEqualTo(1L);
+        assertThat(lower.lookups).isEqualTo(1);
+    }
+
+    @Test
+    void writesMissesToEveryTierAndVacuumsThemIndependently() {
+        InMemoryTier upper = new InMemoryTier(0L);
+        InMemoryTier lower = new InMemoryTier(0L);
+        TieredCachedImageService tiered = tiered(upper, lower);
+
+        assertThat(tiered.findImage(SPEC)).isEmpty();
+        tiered.saveImage(SPEC, MediaType.IMAGE_PNG, new ByteArrayInputStream(CONTENT));
+        assertThat(upper.images).containsKey(SPEC);
+        assertThat(lower.images).containsKey(SPEC);
+
+        tiered.vacuum(new VacuumingRequest(DataSize.ofGigabytes(100)));
+        assertThat(upper.vacuumedTo).isEqualTo(DataSize.ofGigabytes(1));
+        assertThat(lower.vacuumedTo).isEqualTo(DataSize.ofGigabytes(100));
+
+        tiered.deleteChapter(SPEC);
+        assertThat(upper.images).isEmpty();
+        assertThat(lower.images).isEmpty();
+    }
+
+    @Test
+    void skipsTiersThatTimeOutAndDiscardsTheirLateResults() throws InterruptedException {
+        InMemoryTier slow = new InMemoryTier(500L);
+        InMemoryTier lower = new InMemoryTier(0L);
+        slow.images.put(SPEC, CONTENT);
+        lower.images.put(SPEC, CONTENT);
+        TieredCachedImageService tiered = tiered(slow, lower);
+
+        assertThat(tiered.findImage(SPEC)).isPresent();
+        assertThat(meterRegistry.timer("kmdah_cache_tier_lookup", "tier", "0-filesystem", "result", "timeout").count()).isEqualTo(1L);
+        assertThat(meterRegistry.timer("kmdah_cache_tier_lookup", "tier", "1-mongodb", "result", "hit").count()).isEqualTo(1L);
+
+        awaitUntil(() -> slow.served.size() == 1 && slow.served.get(0).closed);
+        assertThat(lower.served.get(0).closed).isFalse();
+    }
+
+    @Test
+    void skipsTiersWhenTooManyLookupsArePending() {
+        InMemoryTier slow = new InMemoryTier(500L);
+        InMemoryTier lower = new InMemoryTier(0L);
+        TieredCachedImageService tiered = tiered(slow, lower, 1);
+
+        // the only thread is stuck on the slow tier, past which the lookup of the lower tier waits in the queue until timing out
+        assertThat(tiered.findImage(SPEC)).isEmpty();
+        assertThat(tiered.findImage(SPEC)).isEmpty();
+
+        assertThat(meterRegistry.timer("kmdah_cache_tier_lookup", "tier", "0-filesystem", "result", "rejected").count()).isEqualTo(1L);
+        assertThat(slow.lookups).isEqualTo(1);
+        tiered.close();
+    }
+
+    private TieredCachedImageService tiered(InMemoryTier upper, InMemoryTier lower) {
+        return tiered(upper, lower, 4);
+    }
+
+    private TieredCachedImageService tiered(InMemoryTier upper, InMemoryTier lower, int lookupThreads) {
+        return new TieredCachedImageService(List.of(
+            new CacheTier("0-filesystem", upper, new TieredSettings.Tier(CacheBackend.FILESYSTEM, 100L, 1, true, true)),
+            new CacheTier("1-mongodb", lower, new TieredSettings.Tier(CacheBackend.MONGODB, 100L, 0, false, true))
+        ), lookupThreads, meterRegistry);
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Condition not met in time");
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    private static final class InMemoryTier implements CachedImageService {
+
+        private final Map<ImageSpec, byte[]> images = new ConcurrentHashMap<>();
+        private final List<ClosedTrackingResource> served = new CopyOnWriteArrayList<>();
+        private final long lookupDelayMillis;
+        private volatile int lookups;
+        private volatile DataSize vacuumedTo;
+
+        private InMemoryTier(long lookupDelayMillis) {
+            this.lookupDelayMillis = lookupDelayMillis;
+        }
+
+        @Override
+        public Optional<ImageContent> findImage(ImageSpec imageSpec) {
+            lookups++;
+            try {
+                TimeUnit.MILLISECONDS.sleep(lookupDelayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Optional.ofNullable(images.get(imageSpec)).map(bytes -> {
+                ClosedTrackingResource resource = new ClosedTrackingResource(bytes);
+                served.add(resource);
+                return new ImageContent(resource, MediaType.IMAGE_PNG, OptionalLong.of(bytes.length), Instant.now(), CacheMode.HIT);
+            });
+        }
+
+        @Override
+        public void saveImage(ImageSpec imageSpec, MediaType mediaType, InputStream inputStream) {
+            try {
+                images.put(imageSpec, inputStream.readAllBytes());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void deleteChapter(ImageSpec imageSpec) {
+            images.keySet().removeIf(spec -> spec.chapter().equals(imageSpec.chapter()));
+        }
+
+        @Override
+        public VacuumingResult vacuum(VacuumingRequest vacuumingRequest) {
+            vacuumedTo = vacuumingRequest.targetSize();
+            return new VacuumingResult(0L, DataSize.ofBytes(0L));
+        }
+
+    }
+
+    private static final class ClosedTrackingResource extends ByteArrayResource implements Closeable {
+
+        private volatile boolean closed;
+
+        private ClosedTrackingResource(byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+    }
+
+}
@@ -0,0 +1,135 @@
+package moe.tristan.kmdah.service.images.singleflight;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.http.MediaType;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.gossip.InstanceId;
+import moe.tristan.kmdah.service.images.ImageContent;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.CacheMode;
+import moe.tristan.kmdah.service.images.cache.CachedImageService;
+
+@Testcontainers
+class UpstreamFetchCoordinatorTest {
+
+    private static final int REDIS_PORT = 6379;
+
+    @Container
+    private static final GenericContainer<?> REDIS = new GenericContainer<>("redis:6.0").withExposedPorts(REDIS_PORT);
+
+    private static StringRedisTemplate redisTemplate;
+
+    private final CachedImageService cachedImageService = mock(CachedImageService.class);
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @BeforeAll
+    static void beforeAll() {
+        LettuceConnectionFactory connectionFactory = new LettuceConnectionFactory(REDIS.getHost(), REDIS.getMappedPort(REDIS_PORT));
+        connectionFactory.afterPropertiesSet();
+        redisTemplate = new StringRedisTemplate(connectionFactory);
+    }
+
+    @Test
+    void waitersAreServedFromTheCacheOnceFilled() throws Exception {
+        ImageSpec spec = new ImageSpec(ImageMode.DATA, "singleflight", "filled.png");
+        UpstreamFetchCoordinator fetcher = coordinator("fetcher", 5000L, 3000L);
+        UpstreamFetchCoordinator waiter = coordinator("waiter", 5000L, 3000L);
+
+        FetchClaim claim = fetcher.claimOrAwait(spec);
+        assertThat(claim.isClaimed()).isTrue();
+        CompletableFuture<FetchClaim> waiting = CompletableFuture.supplyAsync(() -> waiter.claimOrAwait(spec));
+
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertThat(waiting).isNotDone();
+
+        when(cachedImageService.findImage(eq(spec))).thenReturn(Optional.of(sampleContent()));
+        fetcher.release(claim);
+
+        assertThat(waiting.get(5, TimeUnit.SECONDS).outcome()).isEqualTo(FetchClaim.Outcome.FILLED);
+        assertThat(meterRegistry.counter("kmdah_upstream_single_flight", "result", "deduplicated").count()).isEqualTo(1.0);
+    }
+
+    @Test
+    void waitersClaimFetchesThatExpiredWithoutFilling() throws Exception {
+        ImageSpec spec = new ImageSpec(ImageMode.DATA, "singleflight", "crashed.png");
+        UpstreamFetchCoordinator crashed = coordinator("crashed", 300L, 3000L);
+        UpstreamFetchCoordinator waiter = coordinator("waiter", 300L, 3000L);
+
+        assertThat(crashed.claimOrAwait(spec).isClaimed()).isTrue();
+        assertThat(waiter.claimOrAwait(spec).isClaimed()).isTrue();
+
+        assertThat(meterRegistry.counter("kmdah_upstream_single_flight", "result", "claimed").count()).isEqualTo(2.0);
+        assertThat(meterRegistry.counter("kmdah_upstream_single_flight", "result", "deduplicated").count()).isZero();
+    }
+
+    @Test
+    void onlyReleasesItsOwnFetches() {
+        ImageSpec spec = new ImageSpec(ImageMode.DATA, "singleflight", "owned.png");
+        UpstreamFetchCoordinator owner = coordinator("owner", 5000L, 3000L);
+        UpstreamFetchCoordinator other = coordinator("other", 5000L, 3000L);
+
+        FetchClaim claim = owner.claimOrAwait(spec);
+        other.release(new FetchClaim(FetchClaim.Outcome.CLAIMED, spec, "other:token", null));
+        assertThat(redisTemplate.hasKey("kmdah-fetches:data:singleflight:owned.png")).isTrue();
+
+        owner.release(claim);
+        assertThat(redisTemplate.hasKey("kmdah-fetches:data:singleflight:owned.png")).isFalse();
+    }
+
+    @Test
+    void waitersOfTheSameWorkerGivingUpLeaveTheClaimInPlace() {
+        ImageSpec spec = new ImageSpec(ImageMode.DATA, "singleflight", "same-worker.png");
+        UpstreamFetchCoordinator worker = coordinator("worker", 5000L, 200L);
+
+        FetchClaim claim = worker.claimOrAwait(spec);
+        FetchClaim gaveUp = worker.claimOrAwait(spec);
+        assertThat(gaveUp.outcome()).isEqualTo(FetchClaim.Outcome.GAVE_UP);
+        assertThat(meterRegistry.counter("kmdah_upstream_single_flight", "result", "timeout").count()).isEqualTo(1.0);
+
+        worker.release(gaveUp);
+        assertThat(redisTemplate.hasKey("kmdah-fetches:data:singleflight:same-worker.png")).isTrue();
+
+        worker.release(claim);
+        assertThat(redisTemplate.hasKey("kmdah-fetches:data:singleflight:same-worker.png")).isFalse();
+    }
+
+    private UpstreamFetchCoordinator coordinator(String instanceId, long lockTtlMillis, long maxWaitMillis) {
+        SingleFlightSettings settings = new SingleFlightSettings(true, "kmdah-fetches", lockTtlMillis, maxWaitMillis, 20L);
+        return new UpstreamFetchCoordinator(settings, cachedImageService, redisTemplate, new InstanceId(instanceId), meterRegistry);
+    }
+
+    private static ImageContent sampleContent() {
+        byte[] bytes = {1, 2, 3};
+        return new ImageContent(
+            new InputStreamResource(new ByteArrayInputStream(bytes)),
+            MediaType.IMAGE_PNG,
+            OptionalLong.of(bytes.length),
+            Instant.now(),
+            CacheMode.HIT
+        );
+    }
+
+}
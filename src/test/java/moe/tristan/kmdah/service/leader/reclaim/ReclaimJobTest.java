@@ -0,0 +1,55 @@
+package moe.tristan.kmdah.service.leader.reclaim;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.util.unit.DataSize;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import moe.tristan.kmdah.service.images.cache.CachedImageService;
+import moe.tristan.kmdah.service.images.cache.ReclaimingResult;
+
+@SpringBootTest(
+    classes = {ReclaimJob.class, SimpleMeterRegistry.class},
+    properties = {
+        "kmdah.cache.reclaim.files-per-second=0",
+        "kmdah.cache.reclaim.batch-size=100"
+    }
+)
+@EnableConfigurationProperties(ReclaimSettings.class)
+class ReclaimJobTest {
+
+    @MockBean
+    private CachedImageService cachedImageService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private ReclaimJob reclaimJob;
+
+    @Test
+    void reclaimsInBatchesUntilBacklogIsDrained() {
+        when(cachedImageService.reclaim(argThat(request -> request.maxFiles() == 100)))
+            .thenReturn(new ReclaimingResult(100L, DataSize.ofMegabytes(10)))
+            .thenReturn(new ReclaimingResult(100L, DataSize.ofMegabytes(10)))
+            .thenReturn(new ReclaimingResult(20L, DataSize.ofMegabytes(2)));
+
+        reclaimJob.run();
+
+        verify(cachedImageService, times(3)).reclaim(argThat(request -> request.maxFiles() == 100));
+        assertThat(meterRegistry.counter("kmdah_cache_reclaimed_files").count()).isEqualTo(220.0);
+        assertThat(meterRegistry.counter("kmdah_cache_reclaimed_bytes").count()).isEqualTo(DataSize.ofMegabytes(22).toBytes());
+    }
+
+}
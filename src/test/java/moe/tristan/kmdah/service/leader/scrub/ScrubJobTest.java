@@ -0,0 +1,94 @@
+package moe.tristan.kmdah.service.leader.scrub;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.util.unit.DataSize;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import moe.tristan.kmdah.mangadex.image.ImageMode;
+import moe.tristan.kmdah.service.images.ImageService;
+import moe.tristan.kmdah.service.images.ImageSpec;
+import moe.tristan.kmdah.service.images.cache.CachedImageService;
+import moe.tristan.kmdah.service.images.cache.ScrubbingRequest;
+import moe.tristan.kmdah.service.images.cache.ScrubbingResult;
+
+@SpringBootTest(
+    classes = {ScrubJob.class, SimpleMeterRegistry.class},
+    properties = {
+        "kmdah.cache.scrub.enabled=true",
+        "kmdah.cache.scrub.mb-per-second=0",
+        "kmdah.cache.scrub.images-per-run=100",
+        "kmdah.cache.scrub.repair=true",
+        "kmdah.cache.scrub.cursor-key=scrub-cursor"
+    }
+)
+@EnableConfigurationProperties(ScrubSettings.class)
+class ScrubJobTest {
+
+    @MockBean
+    private CachedImageService cachedImageService;
+
+    @MockBean
+    private ImageService imageService;
+
+    @MockBean
+    private StringRedisTemplate redisTemplate;
+
+    @MockBean
+    private ValueOperations<String, String> cursors;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private ScrubJob scrubJob;
+
+    @BeforeEach
+    void setUp() {
+        when(redisTemplate.opsForValue()).thenReturn(cursors);
+    }
+
+    @Test
+    void resumesFromStoredCursorAndRepairsEvictedImages() {
+        ImageSpec corrupted = new ImageSpec(ImageMode.DATA, "chapter", "1.png");
+        when(cursors.get("scrub-cursor")).thenReturn("previous");
+        when(cachedImageService.scrub(argThat(request -> "previous".equals(request.cursor()) && request.maxImages() == 100)))
+            .thenReturn(new ScrubbingResult("next", 100L, DataSize.ofMegabytes(20), 1L, List.of(corrupted)));
+
+        scrubJob.run();
+
+        verify(cursors).set("scrub-cursor", "next");
+        verify(imageService).preload(corrupted);
+        assertThat(meterRegistry.counter("kmdah_cache_scrub_images").count()).isEqualTo(100.0);
+        assertThat(meterRegistry.counter("kmdah_cache_scrub_corrupted").count()).isEqualTo(1.0);
+        assertThat(meterRegistry.counter("kmdah_cache_scrub_repaired").count()).isEqualTo(1.0);
+    }
+
+    @Test
+    void startsOverOncePassIsComplete() {
+        when(cachedImageService.scrub(any(ScrubbingRequest.class)))
+            .thenReturn(new ScrubbingResult(null, 10L, DataSize.ofMegabytes(2), 0L, List.of()));
+
+        scrubJob.run();
+
+        verify(redisTemplate).delete("scrub-cursor");
+        assertThat(meterRegistry.counter("kmdah_cache_scrub_passes").count()).isEqualTo(1.0);
+    }
+
+}